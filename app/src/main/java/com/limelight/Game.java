@@ -18,15 +18,25 @@ import com.limelight.binding.video.CrashListener;
 import com.limelight.binding.video.MediaCodecDecoderRenderer;
 import com.limelight.binding.video.MediaCodecHelper;
 import com.limelight.binding.video.PerfOverlayListener;
+import com.limelight.nvstream.ConnectionTimeline;
 import com.limelight.nvstream.NvConnection;
 import com.limelight.nvstream.NvConnectionListener;
 import com.limelight.nvstream.StreamConfiguration;
+import com.limelight.nvstream.av.AvSyncMonitor;
+import com.limelight.nvstream.av.audio.OpusPacketCapture;
+import com.limelight.nvstream.av.audio.OpusPacketRecorder;
+import com.limelight.nvstream.av.video.DecodeUnitCapture;
+import com.limelight.nvstream.av.video.DecodeUnitRecorder;
+import com.limelight.nvstream.av.video.LatencyHistogram;
+import com.limelight.nvstream.av.video.VideoDecoderRenderer;
 import com.limelight.nvstream.http.ComputerDetails;
 import com.limelight.nvstream.http.NvApp;
 import com.limelight.nvstream.http.NvHTTP;
 import com.limelight.nvstream.input.ControllerPacket;
+import com.limelight.nvstream.input.InputLatencyTracer;
 import com.limelight.nvstream.input.KeyboardPacket;
 import com.limelight.nvstream.input.MouseButtonPacket;
+import com.limelight.nvstream.input.MouseMotionAccumulator;
 import com.limelight.nvstream.jni.MoonBridge;
 import com.limelight.preferences.GlPreferences;
 import com.limelight.preferences.PreferenceConfiguration;
@@ -61,9 +71,11 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Rational;
 import android.view.Display;
 import android.view.InputDevice;
+import android.view.InputEvent;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -86,6 +98,7 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentActivity;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.cert.CertificateException;
@@ -154,6 +167,20 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
     private TextView performanceOverlayView;
 
     private MediaCodecDecoderRenderer decoderRenderer;
+    private AndroidAudioRenderer audioRenderer;
+    private ConnectionTimeline connectionTimeline;
+    private final AvSyncMonitor avSyncMonitor = new AvSyncMonitor();
+    private final MouseMotionAccumulator.WindowStats mouseMotionStats = new MouseMotionAccumulator.WindowStats();
+    private final LatencyHistogram inputLatencyWindow = new LatencyHistogram();
+
+    // Indexed by InputLatencyTracer source
+    private static final int[] INPUT_SOURCE_NAMES = {
+            R.string.perf_overlay_inputsource_touch,
+            R.string.perf_overlay_inputsource_mouse,
+            R.string.perf_overlay_inputsource_keyboard,
+            R.string.perf_overlay_inputsource_gamepad,
+            R.string.perf_overlay_inputsource_usb_gamepad,
+    };
     private boolean reportedCrash;
 
     private WifiManager.WifiLock highPerfWifiLock;
@@ -208,11 +235,17 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
     public static final String EXTRA_PC_NAME = "PcName";
     public static final String EXTRA_APP_HDR = "HDR";
     public static final String EXTRA_SERVER_CERT = "ServerCert";
+    public static final String EXTRA_LAUNCH_TIME = "LaunchTime";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Time the stream start from when the user launched it, if we know that
+        connectionTimeline = new ConnectionTimeline(
+                getIntent().getLongExtra(EXTRA_LAUNCH_TIME, SystemClock.uptimeMillis()));
+        connectionTimeline.event("Stream activity created", SystemClock.uptimeMillis());
+
         UiHelper.setLocale(this);
 
         // We don't want a title bar
@@ -422,6 +455,8 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
                 willStreamHdr,
                 glPrefs.glRenderer,
                 this);
+        decoderRenderer.setConnectionTimeline(connectionTimeline);
+        decoderRenderer.setAvSyncMonitor(avSyncMonitor);
 
         // Don't stream HDR if the decoder can't support it
         if (willStreamHdr && !decoderRenderer.isHevcMain10Hdr10Supported() && !decoderRenderer.isAv1Main10Supported()) {
@@ -469,6 +504,7 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
         // Set to the optimal mode for streaming
         float displayRefreshRate = prepareDisplayForRendering();
         LimeLog.info("Display refresh rate: "+displayRefreshRate);
+        decoderRenderer.setDisplayRefreshRate(displayRefreshRate);
 
         // If the user requested frame pacing using a capped FPS, we will need to change our
         // desired FPS setting here in accordance with the active display refresh rate.
@@ -517,6 +553,7 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
                 new ComputerDetails.AddressTuple(host, port),
                 httpsPort, uniqueId, config,
                 PlatformBinding.getCryptoProvider(this), serverCert);
+        conn.setMouseMotionWindowMs(prefConfig.mouseMotionWindowMs);
         controllerHandler = new ControllerHandler(this, conn, this, prefConfig);
         keyboardTranslator = new KeyboardTranslator();
 
@@ -1171,6 +1208,26 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
             displayedFailureDialog = true;
             stopConnection();
 
+            String latencySummary = decoderRenderer.getLatencySummary();
+            if (!latencySummary.isEmpty()) {
+                LimeLog.info("Session latency summary:\n" + latencySummary.trim());
+            }
+
+            String audioSummary = audioRenderer != null ? audioRenderer.getSessionSummary() : "";
+            if (!audioSummary.isEmpty()) {
+                LimeLog.info("Session audio summary:\n" + audioSummary.trim());
+            }
+
+            StringBuilder inputSummary = new StringBuilder();
+            LatencyHistogram sessionInputLatency = new LatencyHistogram();
+            for (int source = 0; source < InputLatencyTracer.SOURCE_COUNT; source++) {
+                conn.getInputLatencyTracer().getSessionHistogram(source, sessionInputLatency);
+                appendInputLatencyPercentiles(inputSummary, source, sessionInputLatency);
+            }
+            if (inputSummary.length() != 0) {
+                LimeLog.info("Session input summary:\n" + inputSummary.toString().trim());
+            }
+
             if (prefConfig.enableLatencyToast) {
                 int averageEndToEndLat = decoderRenderer.getAverageEndToEndLatency();
                 int averageDecoderLat = decoderRenderer.getAverageDecoderLatency();
@@ -1383,6 +1440,15 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public boolean handleKeyDown(KeyEvent event) {
+        beginInputEvent(getInputSourceForKeyEvent(event), event);
+        try {
+            return processKeyDown(event);
+        } finally {
+            conn.getInputLatencyTracer().endEvent();
+        }
+    }
+
+    private boolean processKeyDown(KeyEvent event) {
         // Pass-through virtual navigation keys
         if ((event.getFlags() & KeyEvent.FLAG_VIRTUAL_HARD_KEY) != 0) {
             return false;
@@ -1465,6 +1531,15 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public boolean handleKeyUp(KeyEvent event) {
+        beginInputEvent(getInputSourceForKeyEvent(event), event);
+        try {
+            return processKeyUp(event);
+        } finally {
+            conn.getInputLatencyTracer().endEvent();
+        }
+    }
+
+    private boolean processKeyUp(KeyEvent event) {
         // Pass-through virtual navigation keys
         if ((event.getFlags() & KeyEvent.FLAG_VIRTUAL_HARD_KEY) != 0) {
             return false;
@@ -1524,7 +1599,12 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public boolean onKeyMultiple(int keyCode, int repeatCount, KeyEvent event) {
-        return handleKeyMultiple(event) || super.onKeyMultiple(keyCode, repeatCount, event);
+        beginInputEvent(InputLatencyTracer.SOURCE_KEYBOARD, event);
+        try {
+            return handleKeyMultiple(event) || super.onKeyMultiple(keyCode, repeatCount, event);
+        } finally {
+            conn.getInputLatencyTracer().endEvent();
+        }
     }
 
     private boolean handleKeyMultiple(KeyEvent event) {
@@ -1544,6 +1624,42 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
         return true;
     }
 
+    private void beginInputEvent(int source, InputEvent event) {
+        long eventTimeNs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            eventTimeNs = event.getEventTimeNanos();
+        }
+        else {
+            // Same time base as getEventTimeNanos(), just less precise
+            eventTimeNs = event.getEventTime() * 1000000;
+        }
+
+        conn.getInputLatencyTracer().beginEvent(source, eventTimeNs);
+    }
+
+    private static int getInputSourceForKeyEvent(KeyEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD ||
+                (event.getSource() & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK) {
+            return InputLatencyTracer.SOURCE_GAMEPAD;
+        }
+        else {
+            return InputLatencyTracer.SOURCE_KEYBOARD;
+        }
+    }
+
+    private static int getInputSourceForMotionEvent(MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_CLASS_JOYSTICK) != 0) {
+            return InputLatencyTracer.SOURCE_GAMEPAD;
+        }
+        else if ((event.getSource() & InputDevice.SOURCE_TOUCHSCREEN) == InputDevice.SOURCE_TOUCHSCREEN) {
+            // This includes styluses on the touchscreen
+            return InputLatencyTracer.SOURCE_TOUCH;
+        }
+        else {
+            return InputLatencyTracer.SOURCE_MOUSE;
+        }
+    }
+
     private TouchContext getTouchContext(int actionIndex)
     {
         if (actionIndex < touchContextMap.length) {
@@ -1840,6 +1956,15 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
     // Returns true if the event was consumed
     // NB: View is only present if called from a view callback
     private boolean handleMotionEvent(View view, MotionEvent event) {
+        beginInputEvent(getInputSourceForMotionEvent(event), event);
+        try {
+            return processMotionEvent(view, event);
+        } finally {
+            conn.getInputLatencyTracer().endEvent();
+        }
+    }
+
+    private boolean processMotionEvent(View view, MotionEvent event) {
         // Pass through mouse/touch/joystick input if we're not grabbing
         if (!grabbedInput) {
             return false;
@@ -1902,18 +2027,20 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
                 // dealing with a stylus without hover support, our position might be
                 // significantly different than before.
                 if (inputCaptureProvider.eventHasRelativeMouseAxes(event)) {
-                    // Send the deltas straight from the motion event
-                    short deltaX = (short)inputCaptureProvider.getRelativeAxisX(event);
-                    short deltaY = (short)inputCaptureProvider.getRelativeAxisY(event);
+                    // Queue the deltas from the motion event. These include any historical samples,
+                    // and the connection combines them with other recent motion before sending.
+                    float deltaX = inputCaptureProvider.getRelativeAxisX(event);
+                    float deltaY = inputCaptureProvider.getRelativeAxisY(event);
 
                     if (deltaX != 0 || deltaY != 0) {
+                        int samples = event.getHistorySize() + 1;
                         if (prefConfig.absoluteMouseMode) {
                             // NB: view may be null, but we can unconditionally use streamView because we don't need to adjust
                             // relative axis deltas for the position of the streamView within the parent's coordinate system.
-                            conn.sendMouseMoveAsMousePosition(deltaX, deltaY, (short)streamView.getWidth(), (short)streamView.getHeight());
+                            conn.queueMouseMove(deltaX, deltaY, samples, (short)streamView.getWidth(), (short)streamView.getHeight());
                         }
                         else {
-                            conn.sendMouseMove(deltaX, deltaY);
+                            conn.queueMouseMove(deltaX, deltaY, samples, (short)0, (short)0);
                         }
                     }
                 }
@@ -2270,6 +2397,8 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public void stageStarting(final String stage) {
+        connectionTimeline.stageStarting(stage, SystemClock.uptimeMillis());
+
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -2282,6 +2411,7 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public void stageComplete(String stage) {
+        connectionTimeline.stageComplete(stage, SystemClock.uptimeMillis());
     }
 
     private void stopConnection() {
@@ -2309,6 +2439,8 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public void stageFailed(final String stage, final int portFlags, final int errorCode) {
+        LimeLog.info(connectionTimeline.toString());
+
         // Perform a connection test if the failure could be due to a blocked port
         // This does network I/O, so don't do it on the main thread.
         final int portTestResult = MoonBridge.testClientConnectivity(ServerHelper.CONNECTION_TEST_SERVER, 443, portFlags);
@@ -2453,6 +2585,8 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public void connectionStarted() {
+        connectionTimeline.event("Connection started", SystemClock.uptimeMillis());
+
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -2561,12 +2695,35 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
         if (!attemptedConnection) {
             attemptedConnection = true;
 
+            connectionTimeline.event("Video surface ready", SystemClock.uptimeMillis());
+
             // Update GameManager state to indicate we're "loading" while connecting
             UiHelper.notifyStreamConnecting(Game.this);
 
             decoderRenderer.setRenderTarget(holder);
-            conn.start(new AndroidAudioRenderer(Game.this, prefConfig.enableAudioFx),
-                    decoderRenderer, Game.this);
+
+            File captureDir = getExternalFilesDir("captures");
+            if (captureDir == null) {
+                captureDir = new File(getFilesDir(), "captures");
+            }
+            long captureTime = System.currentTimeMillis();
+
+            VideoDecoderRenderer videoRenderer = decoderRenderer;
+            if (prefConfig.captureDecodeUnits) {
+                File captureFile = new File(captureDir,
+                        "capture-" + captureTime + DecodeUnitCapture.FILE_EXTENSION);
+                videoRenderer = new DecodeUnitRecorder(decoderRenderer, captureFile, true);
+            }
+
+            if (prefConfig.captureAudioPackets) {
+                // This stays in place until the connection cleans up the bridge
+                MoonBridge.setAudioPacketRecorder(new OpusPacketRecorder(new File(captureDir,
+                        "capture-" + captureTime + OpusPacketCapture.FILE_EXTENSION)));
+            }
+
+            audioRenderer = new AndroidAudioRenderer(Game.this, prefConfig.enableAudioFx, prefConfig.nonBlockingAudio,
+                    avSyncMonitor, prefConfig.avSyncCorrection);
+            conn.start(audioRenderer, videoRenderer, Game.this);
         }
     }
 
@@ -2624,7 +2781,7 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
 
     @Override
     public void mouseMove(int deltaX, int deltaY) {
-        conn.sendMouseMove((short) deltaX, (short) deltaY);
+        conn.queueMouseMove(deltaX, deltaY, 1, (short)0, (short)0);
     }
 
     @Override
@@ -2717,11 +2874,49 @@ public class Game extends FragmentActivity implements SurfaceHolder.Callback,
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                performanceOverlayView.setText(text);
+                String audioStats = audioRenderer != null ? audioRenderer.getPerfStats() : "";
+
+                // Only show mouse motion stats while the mouse is moving
+                String mouseStats = "";
+                conn.getMouseMotionWindowStats(mouseMotionStats);
+                if (mouseMotionStats.inputSamples != 0 && mouseMotionStats.durationMs > 0) {
+                    mouseStats = getString(R.string.perf_overlay_mouse_motion,
+                            mouseMotionStats.inputSamples * 1000f / mouseMotionStats.durationMs,
+                            mouseMotionStats.packets * 1000f / mouseMotionStats.durationMs,
+                            100f - mouseMotionStats.packets * 100f / mouseMotionStats.inputSamples) + '\n';
+                }
+
+                StringBuilder inputStats = new StringBuilder();
+                for (int source = 0; source < InputLatencyTracer.SOURCE_COUNT; source++) {
+                    conn.getInputLatencyTracer().takeWindow(source, inputLatencyWindow);
+                    appendInputLatencyPercentiles(inputStats, source, inputLatencyWindow);
+                }
+
+                String extraStats = (audioStats + mouseStats + inputStats +
+                        controllerHandler.getDriverReportRates()).trim();
+                if (!extraStats.isEmpty()) {
+                    performanceOverlayView.setText(text + '\n' + extraStats);
+                }
+                else {
+                    performanceOverlayView.setText(text);
+                }
             }
         });
     }
 
+    private void appendInputLatencyPercentiles(StringBuilder sb, int source, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+
+        sb.append(getString(R.string.perf_overlay_inputlatency,
+                getString(INPUT_SOURCE_NAMES[source]),
+                histogram.getPercentileUs(50) / 1000f,
+                histogram.getPercentileUs(95) / 1000f,
+                histogram.getPercentileUs(99) / 1000f,
+                histogram.getMaxUs() / 1000f)).append('\n');
+    }
+
     @Override
     public void onUsbPermissionPromptStarting() {
         // Disable PiP auto-enter while the USB permission prompt is on-screen. This prevents
@@ -6,6 +6,7 @@ import java.net.UnknownHostException;
 
 import com.limelight.binding.PlatformBinding;
 import com.limelight.binding.crypto.AndroidCryptoProvider;
+import com.limelight.binding.video.DecoderCapabilityIndex;
 import com.limelight.computers.ComputerManagerListener;
 import com.limelight.computers.ComputerManagerService;
 import com.limelight.grid.PcGridAdapter;
@@ -190,6 +191,10 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
         // between binding to CMS and onResume()
         inForeground = true;
 
+        // Get the decoder capability index loaded (or rebuilt after an OS or app update)
+        // before the user starts a stream or opens the settings
+        DecoderCapabilityIndex.prefetch(this);
+
         // Create a GLSurfaceView to fetch GLRenderer unless we have
         // a cached result already.
         final GlPreferences glPrefs = GlPreferences.readPreferences(this);
@@ -1,28 +1,85 @@
 package com.limelight.binding.audio;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.audiofx.AudioEffect;
 import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 
 import com.limelight.LimeLog;
+import com.limelight.R;
+import com.limelight.nvstream.av.AvSyncMonitor;
+import com.limelight.nvstream.av.audio.AudioConfiguration;
+import com.limelight.nvstream.av.audio.AudioJitterBuffer;
 import com.limelight.nvstream.av.audio.AudioRenderer;
+import com.limelight.nvstream.av.audio.AudioStats;
+import com.limelight.nvstream.av.audio.PcmRingBuffer;
+import com.limelight.nvstream.av.video.LatencyHistogram;
 import com.limelight.nvstream.jni.MoonBridge;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 public class AndroidAudioRenderer implements AudioRenderer {
 
     private final Context context;
     private final boolean enableAudioFx;
+    private final boolean nonBlocking;
+    private final AvSyncMonitor avSyncMonitor;
+    private final boolean avSyncCorrection;
 
     private AudioTrack track;
 
-    public AndroidAudioRenderer(Context context, boolean enableAudioFx) {
+    private AudioJitterBuffer jitterBuffer;
+    private short[] jitterBufferOutput;
+    private int channelCount;
+    private int sampleRate;
+    private volatile long samplesWritten;
+
+    // Used in non-blocking mode
+    private ByteBuffer directSampleBuffer;
+    private ShortBuffer directSamples;
+    private short[] decodedFrame;
+    private PcmRingBuffer ringBuffer;
+    private Thread writerThread;
+    private int ringBufferOverflows;
+
+    // Maximum amount of audio the ring buffer can hold between the decoder and writer threads
+    private static final int RING_BUFFER_MS = 200;
+
+    // Track configuration chosen in setup()
+    private int trackBufferSizeMs;
+    private boolean trackLowLatency;
+
+    // Stats are recorded on the audio decoder thread and read on the UI thread
+    private final AudioStats activeWindowAudioStats = new AudioStats();
+    private final AudioStats globalAudioStats = new AudioStats();
+    private final AudioTimestamp audioTimestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ?
+            new AudioTimestamp() : null;
+    private long lastStatsSampleNs;
+    private int lastUnderrunCount;
+
+    // How often we sample the output latency and underrun count
+    private static final long STATS_SAMPLE_INTERVAL_NS = 50 * 1000000L;
+
+    // avSyncMonitor may be null
+    public AndroidAudioRenderer(Context context, boolean enableAudioFx, boolean nonBlocking,
+                                AvSyncMonitor avSyncMonitor, boolean avSyncCorrection) {
         this.context = context;
         this.enableAudioFx = enableAudioFx;
+        this.avSyncMonitor = avSyncMonitor;
+        this.avSyncCorrection = avSyncCorrection;
+
+        // Non-blocking ByteBuffer writes require Lollipop
+        this.nonBlocking = nonBlocking && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
     }
 
     private AudioTrack createAudioTrack(int channelConfig, int sampleRate, int bufferSize, boolean lowLatency) {
@@ -75,7 +132,7 @@ public class AndroidAudioRenderer implements AudioRenderer {
     }
 
     @Override
-    public int setup(MoonBridge.AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame) {
+    public int setup(AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame) {
         int channelConfig;
         int bytesPerFrame;
 
@@ -184,6 +241,8 @@ public class AndroidAudioRenderer implements AudioRenderer {
 
                 // Successfully created working AudioTrack. We're done here.
                 LimeLog.info("Audio track configuration: "+bufferSize+" "+lowLatency);
+                trackBufferSizeMs = bufferSize * 1000 / (audioConfiguration.channelCount * 2 * sampleRate);
+                trackLowLatency = lowLatency;
                 break;
             } catch (Exception e) {
                 // Try to release the AudioTrack if we got far enough
@@ -202,25 +261,261 @@ public class AndroidAudioRenderer implements AudioRenderer {
             return -2;
         }
 
+        this.channelCount = audioConfiguration.channelCount;
+        this.sampleRate = sampleRate;
+        jitterBuffer = new AudioJitterBuffer(sampleRate, audioConfiguration.channelCount, samplesPerFrame);
+        jitterBufferOutput = new short[jitterBuffer.getMaxOutputLength()];
+
+        if (nonBlocking) {
+            // The decoder writes each frame here, then we pass it through the jitter buffer
+            // into the ring buffer that the writer thread drains into the AudioTrack.
+            directSampleBuffer = ByteBuffer.allocateDirect(audioConfiguration.channelCount * samplesPerFrame * 2)
+                    .order(ByteOrder.nativeOrder());
+            directSamples = directSampleBuffer.asShortBuffer();
+            decodedFrame = new short[audioConfiguration.channelCount * samplesPerFrame];
+            ringBuffer = new PcmRingBuffer(sampleRate * RING_BUFFER_MS / 1000 * audioConfiguration.channelCount);
+            LimeLog.info("Using non-blocking audio output");
+        }
+
         return 0;
     }
 
+    // Returns the number of samples (per channel) waiting to be played, including
+    // both audio queued in the native receive path and audio buffered by AudioTrack
+    private int getBufferedSamples() {
+        // The playback head position is an unsigned 32-bit value that wraps
+        long playedSamples = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long trackBufferedSamples = (samplesWritten - playedSamples) & 0xFFFFFFFFL;
+        if (ringBuffer != null) {
+            trackBufferedSamples += ringBuffer.getAvailable() / channelCount;
+        }
+
+        return (int)(trackBufferedSamples + (long)MoonBridge.getPendingAudioDuration() * sampleRate / 1000);
+    }
+
     @Override
     public void playDecodedAudio(short[] audioData) {
-        // Only queue up to 40 ms of pending audio data in addition to what AudioTrack is buffering for us.
-        if (MoonBridge.getPendingAudioDuration() < 40) {
-            // This will block until the write is completed. That can cause a backlog
-            // of pending audio data, so we do the above check to be able to bound
-            // latency at 40 ms in that situation.
-            track.write(audioData, 0, audioData.length);
+        // The jitter buffer drops or inserts a few samples in this frame to steer the amount of buffered audio
+        // toward a depth that covers the network jitter we've seen. That bounds latency when
+        // audio piles up without audible gaps from dropping whole frames.
+        int outputLength = jitterBuffer.process(audioData, audioData.length, System.nanoTime(),
+                getBufferedSamples(), jitterBufferOutput);
+        if (outputLength != 0) {
+            // This will block until the write is completed
+            track.write(jitterBufferOutput, 0, outputLength);
+            samplesWritten += outputLength / channelCount;
         }
-        else {
-            LimeLog.info("Too much pending audio data: " + MoonBridge.getPendingAudioDuration() +" ms");
+
+        updateStats(outputLength == 0);
+    }
+
+    @Override
+    public ByteBuffer getDirectSampleBuffer() {
+        return directSampleBuffer;
+    }
+
+    @Override
+    public void playDecodedAudio(ByteBuffer audioData, int sampleCount) {
+        // audioData is always our directSampleBuffer
+        directSamples.clear();
+        directSamples.get(decodedFrame, 0, sampleCount);
+
+        int outputLength = jitterBuffer.process(decodedFrame, sampleCount, System.nanoTime(),
+                getBufferedSamples(), jitterBufferOutput);
+        boolean dropped = outputLength == 0;
+        if (!dropped) {
+            // This never blocks. If the writer thread has fallen far behind, we lose
+            // whatever doesn't fit rather than stalling the audio receive thread.
+            if (ringBuffer.write(jitterBufferOutput, 0, outputLength) < outputLength) {
+                ringBufferOverflows++;
+                dropped = true;
+            }
         }
+
+        updateStats(dropped);
+    }
+
+    // Returns the time until audio written now will be played, or -1 if it isn't known yet
+    private long getOutputLatencyUs(long nowNs) {
+        if (audioTimestamp == null || !track.getTimestamp(audioTimestamp)) {
+            // No timestamp is available until playback has started
+            return -1;
+        }
+
+        // Extrapolate the frame being played right now from the last timestamp. The difference
+        // is taken in 32 bits, since the frame position may wrap like the playback head does.
+        long playingFrame = audioTimestamp.framePosition + (nowNs - audioTimestamp.nanoTime) * sampleRate / 1000000000L;
+        int pendingFrames = (int)(samplesWritten - playingFrame);
+        if (pendingFrames < 0) {
+            return -1;
+        }
+
+        return pendingFrames * 1000000L / sampleRate;
+    }
+
+    private void updateStats(boolean frameDropped) {
+        long now = System.nanoTime();
+        long outputLatencyUs = -1;
+        int newUnderruns = 0;
+
+        // Querying the track isn't free, so we only sample these periodically
+        if (now - lastStatsSampleNs >= STATS_SAMPLE_INTERVAL_NS) {
+            lastStatsSampleNs = now;
+            outputLatencyUs = getOutputLatencyUs(now);
+
+            if (avSyncMonitor != null && outputLatencyUs >= 0) {
+                // Audio decoded now plays after everything queued ahead of it
+                long audioLatencyUs = outputLatencyUs + MoonBridge.getPendingAudioDuration() * 1000L;
+                if (ringBuffer != null) {
+                    audioLatencyUs += ringBuffer.getAvailable() / channelCount * 1000000L / sampleRate;
+                }
+
+                // The jitter buffer deliberately adds latency when arrivals get erratic. That
+                // isn't drift, so leave it out or the correction would fight the jitter buffer.
+                audioLatencyUs -= jitterBuffer.getJitterTargetDepthMs() * 1000L;
+                avSyncMonitor.onAudioLatencySample(audioLatencyUs, now);
+
+                if (avSyncCorrection) {
+                    jitterBuffer.setTargetOffsetMs(avSyncMonitor.getAudioCorrectionMs());
+                }
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                int underrunCount = track.getUnderrunCount();
+                newUnderruns = underrunCount - lastUnderrunCount;
+                lastUnderrunCount = underrunCount;
+            }
+        }
+
+        synchronized (activeWindowAudioStats) {
+            if (activeWindowAudioStats.measurementStartTimestamp == 0) {
+                activeWindowAudioStats.measurementStartTimestamp = SystemClock.uptimeMillis();
+            }
+
+            activeWindowAudioStats.totalFrames++;
+            if (frameDropped) {
+                activeWindowAudioStats.framesDropped++;
+            }
+            activeWindowAudioStats.underruns += newUnderruns;
+            if (outputLatencyUs >= 0) {
+                activeWindowAudioStats.outputLatency.record(outputLatencyUs);
+            }
+        }
+    }
+
+    private void appendAudioStats(StringBuilder sb, AudioStats stats) {
+        sb.append(context.getString(trackLowLatency ? R.string.perf_overlay_audiotrack_lowlatency :
+                R.string.perf_overlay_audiotrack, trackBufferSizeMs)).append('\n');
+
+        LatencyHistogram latency = stats.outputLatency;
+        if (latency.getCount() != 0) {
+            sb.append(context.getString(R.string.perf_overlay_audiolatency,
+                    latency.getPercentileUs(50) / 1000f,
+                    latency.getPercentileUs(95) / 1000f,
+                    latency.getPercentileUs(99) / 1000f,
+                    latency.getMaxUs() / 1000f)).append('\n');
+        }
+
+        sb.append(context.getString(R.string.perf_overlay_audioloss,
+                stats.underruns, stats.framesDropped, stats.totalFrames)).append('\n');
+    }
+
+    private void appendAvSyncStats(StringBuilder sb) {
+        if (avSyncMonitor == null || !avSyncMonitor.hasMeasurement()) {
+            return;
+        }
+
+        sb.append(context.getString(R.string.perf_overlay_avsync,
+                avSyncMonitor.getDriftMs(), avSyncMonitor.getTrendMsPerMinute(),
+                avSyncMonitor.getAudioCorrectionMs())).append('\n');
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startWriterThread() {
+        writerThread = new Thread() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+                int frameSize = channelCount * 2;
+                try {
+                    while (!isInterrupted()) {
+                        if (!ringBuffer.awaitData(100)) {
+                            continue;
+                        }
+
+                        ByteBuffer readable = ringBuffer.getReadableBuffer();
+                        int bytes = track.write(readable, readable.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+                        if (bytes < 0) {
+                            LimeLog.warning("Audio track write failed: "+bytes);
+                            return;
+                        }
+                        else if (bytes > 0) {
+                            ringBuffer.commitRead(bytes);
+                            samplesWritten += bytes / frameSize;
+                        }
+                        else {
+                            // The track is full. Wait for it to play out some audio.
+                            Thread.sleep(2);
+                        }
+                    }
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        writerThread.setName("Audio - Writer");
+        writerThread.start();
+    }
+
+    // Returns audio stats for the performance overlay, one per line. Each call covers
+    // the audio played since the previous call.
+    public String getPerfStats() {
+        if (jitterBuffer == null) {
+            return "";
+        }
+
+        AudioStats lastWindowAudioStats = new AudioStats();
+        synchronized (activeWindowAudioStats) {
+            lastWindowAudioStats.copy(activeWindowAudioStats);
+            globalAudioStats.add(activeWindowAudioStats);
+            activeWindowAudioStats.clear();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(context.getString(R.string.perf_overlay_audiobuffer,
+                jitterBuffer.getDepthMs(), jitterBuffer.getTargetDepthMs(),
+                jitterBuffer.getEmptyArrivals(), jitterBuffer.getDroppedMs(), jitterBuffer.getInsertedMs())).append('\n');
+        appendAudioStats(sb, lastWindowAudioStats);
+        appendAvSyncStats(sb);
+        return sb.toString();
+    }
+
+    // Audio stats for the whole session
+    public String getSessionSummary() {
+        if (jitterBuffer == null) {
+            return "";
+        }
+
+        AudioStats sessionAudioStats = new AudioStats();
+        synchronized (activeWindowAudioStats) {
+            sessionAudioStats.copy(globalAudioStats);
+            sessionAudioStats.add(activeWindowAudioStats);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        appendAudioStats(sb, sessionAudioStats);
+        appendAvSyncStats(sb);
+        if (avSyncMonitor != null && avSyncMonitor.hasMeasurement()) {
+            sb.append(context.getString(R.string.perf_overlay_avsync_max, avSyncMonitor.getMaxAbsDriftMs())).append('\n');
+        }
+        return sb.toString();
     }
 
     @Override
     public void start() {
+        if (nonBlocking) {
+            startWriterThread();
+        }
+
         if (enableAudioFx) {
             // Open an audio effect control session to allow equalizers to apply audio effects
             Intent i = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
@@ -244,6 +539,24 @@ public class AndroidAudioRenderer implements AudioRenderer {
 
     @Override
     public void cleanup() {
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+
+            if (ringBufferOverflows != 0) {
+                LimeLog.info("Audio ring buffer overflowed "+ringBufferOverflows+" times");
+            }
+        }
+
         // Immediately drop all pending data
         track.pause();
         track.flush();
@@ -0,0 +1,99 @@
+package com.limelight.binding.audio;
+
+import android.content.Context;
+import android.os.Debug;
+
+import com.limelight.BuildConfig;
+import com.limelight.LimeLog;
+import com.limelight.nvstream.av.audio.OpusPacketCapture;
+import com.limelight.nvstream.av.audio.OpusPacketReplayer;
+import com.limelight.nvstream.av.audio.PcmSinkAudioRenderer;
+import com.limelight.nvstream.av.video.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+// Replays each recorded Opus packet capture through the native decoder and logs how much time
+// and how many allocations decoding took per packet. Captures recorded with different audio
+// configurations give us the decode cost of each channel layout on this device.
+//
+// Each capture is decoded twice, once through the short[] path and once through the direct
+// buffer path, and the PCM checksums of both passes must match.
+public class AudioDecodeBenchmarkRunner {
+    // Takes a while, so this must not be called on the UI thread. Returns the number of
+    // captures that were benchmarked.
+    @SuppressWarnings("deprecation")
+    public static int run(Context context) {
+        File captureDir = context.getExternalFilesDir("captures");
+        if (captureDir == null) {
+            captureDir = new File(context.getFilesDir(), "captures");
+        }
+
+        File[] captureFiles = captureDir.listFiles();
+        if (captureFiles == null) {
+            return 0;
+        }
+
+        int benchmarked = 0;
+        Debug.startAllocCounting();
+        try {
+            for (File captureFile : captureFiles) {
+                if (!captureFile.getName().endsWith(OpusPacketCapture.FILE_EXTENSION)) {
+                    continue;
+                }
+
+                try {
+                    // Both measured passes must only differ in the decode path
+                    PcmSinkAudioRenderer arraySink = new PcmSinkAudioRenderer(null, false);
+                    PcmSinkAudioRenderer directSink = new PcmSinkAudioRenderer(null, true);
+
+                    benchmark(captureFile, arraySink, "short[]");
+                    benchmark(captureFile, directSink, "direct buffer");
+
+                    if (arraySink.getChecksum() != directSink.getChecksum()) {
+                        LimeLog.warning("Opus decode benchmark: PCM mismatch between decode paths for "+captureFile.getName());
+                    }
+                    benchmarked++;
+
+                    if (BuildConfig.DEBUG) {
+                        // Keep the decoded audio around for listening. This is a separate pass,
+                        // so the file I/O doesn't count toward either measurement.
+                        File wavFile = new File(captureFile.getPath() + ".wav");
+                        new OpusPacketReplayer(captureFile, false).replay(new PcmSinkAudioRenderer(wavFile, true));
+                    }
+                } catch (IOException e) {
+                    LimeLog.warning("Opus decode benchmark failed for "+captureFile.getName()+": "+e.getMessage());
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        return benchmarked;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void benchmark(File captureFile, PcmSinkAudioRenderer sink, String path) throws IOException {
+        OpusPacketReplayer replayer = new OpusPacketReplayer(captureFile, false);
+
+        int allocationsBefore = Debug.getThreadAllocCount();
+        replayer.replay(sink);
+        int allocations = Debug.getThreadAllocCount() - allocationsBefore;
+
+        int packets = replayer.getReplayedPackets();
+        if (packets == 0 || sink.getSampleRate() == 0) {
+            throw new IOException("No packets decoded");
+        }
+
+        LatencyHistogram packetTime = replayer.getPacketTime();
+        long audioDurationMs = sink.getSamples() * 1000 / sink.getSampleRate();
+        LimeLog.info(String.format(Locale.ROOT,
+                "Opus decode benchmark: %s, %d channels, %s: %d packets (%d ms of audio) in %d ms, " +
+                        "p50/p99/max %d/%d/%d us per packet, %.2f%% of real time, %.2f allocations per packet, PCM CRC32 %08x",
+                captureFile.getName(), sink.getChannelCount(), path, packets, audioDurationMs, replayer.getElapsedTimeMs(),
+                packetTime.getPercentileUs(50), packetTime.getPercentileUs(99), packetTime.getMaxUs(),
+                audioDurationMs > 0 ? replayer.getElapsedTimeMs() * 100f / audioDurationMs : 0f,
+                allocations / (float)packets, sink.getChecksum()));
+    }
+}
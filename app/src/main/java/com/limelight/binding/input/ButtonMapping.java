@@ -0,0 +1,251 @@
+package com.limelight.binding.input;
+
+import android.util.SparseIntArray;
+import android.view.KeyEvent;
+
+import com.limelight.nvstream.input.ControllerPacket;
+
+// Button lookup tables for a single input device. These are filled in once when the device's
+// context is created from its quirks and any user remapping profile, so handling a button event
+// on the input thread is a couple of array lookups instead of a walk through every vendor's
+// special cases (and no boxing like a Map<Integer, Integer> would need).
+//
+// Handling a button happens in two steps:
+// 1. remap() turns the keycode and scancode of the event into the keycode of the button that
+//    was actually pressed, fixing up devices with broken or missing key layout files.
+// 2. getButton() turns that keycode into the ControllerPacket flags to set or clear, plus a few
+//    bits describing special handling.
+class ButtonMapping {
+    // Results of remap() other than a keycode
+    static final int REMAP_IGNORE = -1;
+    static final int REMAP_CONSUME = -2;
+
+    // KEYCODE_UNKNOWN is never the result of a remapping, so we use it to mark empty entries
+    private static final int UNMAPPED = KeyEvent.KEYCODE_UNKNOWN;
+
+    // Large enough for all evdev key codes (KEY_MAX is 0x2ff)
+    private static final int SCAN_CODE_COUNT = 0x300;
+
+    // These bits sit above the ControllerPacket button flags in the result of getButton().
+    // A d-pad button is suppressed if all of the hat axes it is marked with are in use,
+    // because we're already getting the same input from the hat.
+    static final int BUTTON_HAT_X = 0x1000000;
+    static final int BUTTON_HAT_Y = 0x2000000;
+    static final int BUTTON_HAT_MASK = BUTTON_HAT_X | BUTTON_HAT_Y;
+    static final int BUTTON_LEFT_TRIGGER = 0x4000000;
+    static final int BUTTON_RIGHT_TRIGGER = 0x8000000;
+
+    // A button that is handled by us but doesn't do anything
+    static final int BUTTON_NONE = 0x10000000;
+
+    static final int BUTTON_FLAGS_MASK = 0xFFFFFF;
+
+    // The buttons reported in the arrival packet if the device has the matching keys
+    static final int[] ARRIVAL_KEYCODES = {
+            KeyEvent.KEYCODE_BUTTON_A,
+            KeyEvent.KEYCODE_BUTTON_B,
+            KeyEvent.KEYCODE_BUTTON_X,
+            KeyEvent.KEYCODE_BUTTON_Y,
+            KeyEvent.KEYCODE_DPAD_UP,
+            KeyEvent.KEYCODE_DPAD_DOWN,
+            KeyEvent.KEYCODE_DPAD_LEFT,
+            KeyEvent.KEYCODE_DPAD_RIGHT,
+            KeyEvent.KEYCODE_DPAD_UP_LEFT,
+            KeyEvent.KEYCODE_DPAD_UP_RIGHT,
+            KeyEvent.KEYCODE_DPAD_DOWN_LEFT,
+            KeyEvent.KEYCODE_DPAD_DOWN_RIGHT,
+            KeyEvent.KEYCODE_BUTTON_L1,
+            KeyEvent.KEYCODE_BUTTON_R1,
+            KeyEvent.KEYCODE_BUTTON_THUMBL,
+            KeyEvent.KEYCODE_BUTTON_THUMBR,
+            KeyEvent.KEYCODE_BUTTON_START,
+            KeyEvent.KEYCODE_MENU,
+            KeyEvent.KEYCODE_BUTTON_SELECT,
+            KeyEvent.KEYCODE_BACK,
+            KeyEvent.KEYCODE_BUTTON_MODE,
+            KeyEvent.KEYCODE_MEDIA_RECORD,
+            KeyEvent.KEYCODE_BUTTON_1,
+    };
+
+    private static final int[] DEFAULT_BUTTONS = new int[KeyEvent.getMaxKeyCode() + 1];
+    static {
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_A] = ControllerPacket.A_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_CENTER] = ControllerPacket.A_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_B] = ControllerPacket.B_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_X] = ControllerPacket.X_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_Y] = ControllerPacket.Y_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_UP] = ControllerPacket.UP_FLAG | BUTTON_HAT_Y;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_DOWN] = ControllerPacket.DOWN_FLAG | BUTTON_HAT_Y;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_LEFT] = ControllerPacket.LEFT_FLAG | BUTTON_HAT_X;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_RIGHT] = ControllerPacket.RIGHT_FLAG | BUTTON_HAT_X;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_UP_LEFT] = ControllerPacket.UP_FLAG | ControllerPacket.LEFT_FLAG | BUTTON_HAT_MASK;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_UP_RIGHT] = ControllerPacket.UP_FLAG | ControllerPacket.RIGHT_FLAG | BUTTON_HAT_MASK;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_DOWN_LEFT] = ControllerPacket.DOWN_FLAG | ControllerPacket.LEFT_FLAG | BUTTON_HAT_MASK;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_DPAD_DOWN_RIGHT] = ControllerPacket.DOWN_FLAG | ControllerPacket.RIGHT_FLAG | BUTTON_HAT_MASK;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_L1] = ControllerPacket.LB_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_R1] = ControllerPacket.RB_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_L2] = BUTTON_LEFT_TRIGGER;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_R2] = BUTTON_RIGHT_TRIGGER;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_THUMBL] = ControllerPacket.LS_CLK_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_THUMBR] = ControllerPacket.RS_CLK_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_START] = ControllerPacket.PLAY_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_MENU] = ControllerPacket.PLAY_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_SELECT] = ControllerPacket.BACK_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BACK] = ControllerPacket.BACK_FLAG;
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_MODE] = ControllerPacket.SPECIAL_BUTTON_FLAG;
+
+        // This is the Xbox Series X Share button
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_MEDIA_RECORD] = ControllerPacket.MISC_FLAG;
+
+        // This is a weird one, but it's what Android does prior to 4.10 kernels
+        // where DualShock/DualSense touchpads weren't mapped as separate devices.
+        // https://android.googlesource.com/platform/frameworks/base/+/master/data/keyboards/Vendor_054c_Product_0ce6_fallback.kl
+        // https://android.googlesource.com/platform/frameworks/base/+/master/data/keyboards/Vendor_054c_Product_09cc.kl
+        DEFAULT_BUTTONS[KeyEvent.KEYCODE_BUTTON_1] = ControllerPacket.TOUCHPAD_FLAG;
+    }
+
+    // Keycode remappings that take priority over everything else
+    private final int[] keyCodeOverrides = new int[DEFAULT_BUTTONS.length];
+
+    // Scancode remappings for events with a keycode, and for events with KEYCODE_UNKNOWN.
+    // Remappings for all events are present in both tables.
+    private final int[] scanCodes = new int[SCAN_CODE_COUNT];
+    private final int[] unknownKeyScanCodes = new int[SCAN_CODE_COUNT];
+    private int unmappedScanCodeResult = UNMAPPED;
+
+    // Sony clickpad quirk (see ControllerHandler)
+    private int selectClickpadScanCode = -1;
+
+    // Keycode remappings used when no scancode remapping matched
+    private final int[] keyCodeFallbacks = new int[DEFAULT_BUTTONS.length];
+
+    private final int[] buttons = DEFAULT_BUTTONS.clone();
+
+    // Buttons for events with KEYCODE_UNKNOWN, indexed by scancode. Only devices with buttons
+    // that aren't in any key layout file (like paddles) have this.
+    private int[] unknownKeyButtons;
+
+    private static int lookup(int[] table, int index) {
+        return index >= 0 && index < table.length ? table[index] : UNMAPPED;
+    }
+
+    // Returns the keycode of the button that was pressed, REMAP_CONSUME, REMAP_IGNORE, or
+    // KEYCODE_UNKNOWN if nothing about this device changes how the event is interpreted.
+    int remap(int keyCode, int scanCode) {
+        int result = lookup(keyCodeOverrides, keyCode);
+        if (result != UNMAPPED) {
+            return result;
+        }
+
+        if (keyCode == KeyEvent.KEYCODE_BUTTON_SELECT && scanCode == selectClickpadScanCode) {
+            return KeyEvent.KEYCODE_BUTTON_1;
+        }
+
+        if (scanCode >= 0 && scanCode < SCAN_CODE_COUNT) {
+            result = keyCode == KeyEvent.KEYCODE_UNKNOWN ? unknownKeyScanCodes[scanCode] : scanCodes[scanCode];
+        }
+        else {
+            result = unmappedScanCodeResult;
+        }
+        if (result != UNMAPPED) {
+            return result;
+        }
+
+        return lookup(keyCodeFallbacks, keyCode);
+    }
+
+    // Returns the ControllerPacket flags of the button with the remapped keycode, combined with
+    // the BUTTON_* bits above, or 0 if this isn't a gamepad button.
+    int getButton(int keyCode, int scanCode) {
+        if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+            return unknownKeyButtons != null ? lookup(unknownKeyButtons, scanCode) : 0;
+        }
+
+        return lookup(buttons, keyCode);
+    }
+
+    // The methods below are only called while the mapping is being built. Remappings are
+    // first-match-wins, so each one only fills entries that are still empty.
+
+    void overrideKeyCode(int keyCode, int result) {
+        if (keyCodeOverrides[keyCode] == UNMAPPED) {
+            keyCodeOverrides[keyCode] = result;
+        }
+    }
+
+    void mapSelectClickpadScanCode(int scanCode) {
+        selectClickpadScanCode = scanCode;
+    }
+
+    void mapScanCode(int scanCode, int result) {
+        if (scanCodes[scanCode] == UNMAPPED) {
+            scanCodes[scanCode] = result;
+        }
+        mapUnknownKeyScanCode(scanCode, result);
+    }
+
+    void mapUnknownKeyScanCode(int scanCode, int result) {
+        if (unknownKeyScanCodes[scanCode] == UNMAPPED) {
+            unknownKeyScanCodes[scanCode] = result;
+        }
+    }
+
+    // Every scancode without a remapping so far gets this result
+    void mapRemainingScanCodes(int result) {
+        for (int i = 0; i < SCAN_CODE_COUNT; i++) {
+            mapScanCode(i, result);
+        }
+        if (unmappedScanCodeResult == UNMAPPED) {
+            unmappedScanCodeResult = result;
+        }
+    }
+
+    void mapFallbackKeyCode(int keyCode, int result) {
+        if (keyCodeFallbacks[keyCode] == UNMAPPED) {
+            keyCodeFallbacks[keyCode] = result;
+        }
+    }
+
+    void mapUnknownKeyButton(int scanCode, int button) {
+        if (unknownKeyButtons == null) {
+            unknownKeyButtons = new int[SCAN_CODE_COUNT];
+        }
+        unknownKeyButtons[scanCode] = button;
+    }
+
+    void swapButtons(int keyCode1, int keyCode2) {
+        int button = buttons[keyCode1];
+        buttons[keyCode1] = buttons[keyCode2];
+        buttons[keyCode2] = button;
+    }
+
+    // Makes each button in the profile act like the button with the target keycode did before
+    // the profile was applied. A negative target unbinds the button. Entries with keycodes that
+    // aren't gamepad buttons are skipped. Returns the number of entries that were applied.
+    int applyProfile(SparseIntArray profile) {
+        int[] originalButtons = buttons.clone();
+        int applied = 0;
+
+        for (int i = 0; i < profile.size(); i++) {
+            int keyCode = profile.keyAt(i);
+            int targetKeyCode = profile.valueAt(i);
+            if (keyCode <= KeyEvent.KEYCODE_UNKNOWN || keyCode >= buttons.length) {
+                continue;
+            }
+
+            if (targetKeyCode < 0) {
+                buttons[keyCode] = BUTTON_NONE;
+            }
+            else if (lookup(originalButtons, targetKeyCode) != 0) {
+                buttons[keyCode] = originalButtons[targetKeyCode];
+            }
+            else {
+                continue;
+            }
+
+            applied++;
+        }
+
+        return applied;
+    }
+}
@@ -0,0 +1,147 @@
+package com.limelight.binding.input;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.SparseIntArray;
+import android.view.KeyEvent;
+
+import com.limelight.LimeLog;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Stores the user's button remapping profile for each controller model, keyed by VID/PID.
+// A profile maps the keycode a button produces (after our own fixups for the device) to the
+// keycode of the button it should act like. Mapping a button to UNBOUND disables it.
+//
+// Profiles are stored as "keyCode=targetKeyCode" pairs separated by commas. The user edits
+// them in settings as text with one controller per line (see importProfiles()).
+public class ButtonRemapProfiles {
+    private static final String PREF_NAME = "ButtonRemapProfiles";
+
+    public static final int UNBOUND = -1;
+
+    private final SharedPreferences prefs;
+
+    public ButtonRemapProfiles(Context context) {
+        this.prefs = context.getSharedPreferences(PREF_NAME, 0);
+    }
+
+    private static String getKey(int vendorId, int productId) {
+        return String.format(Locale.ROOT, "%04x/%04x", vendorId, productId);
+    }
+
+    // Returns null if there's no profile for this controller
+    public SparseIntArray getProfile(int vendorId, int productId) {
+        String profileString = prefs.getString(getKey(vendorId, productId), null);
+        if (profileString == null || profileString.isEmpty()) {
+            return null;
+        }
+
+        SparseIntArray profile = new SparseIntArray();
+        for (String entry : profileString.split(",")) {
+            String[] keyCodes = entry.split("=");
+            try {
+                if (keyCodes.length != 2) {
+                    throw new NumberFormatException();
+                }
+                profile.put(Integer.parseInt(keyCodes[0].trim()), Integer.parseInt(keyCodes[1].trim()));
+            } catch (NumberFormatException e) {
+                LimeLog.warning("Ignoring invalid button remapping: "+entry);
+            }
+        }
+
+        return profile;
+    }
+
+    // Returns all profiles in the format accepted by importProfiles()
+    public String exportProfiles() {
+        // Sort by controller, so the text doesn't get shuffled each time it's edited
+        TreeMap<String, ?> profiles = new TreeMap<>(prefs.getAll());
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ?> entry : profiles.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                sb.append(entry.getKey()).append(": ")
+                        .append(((String) entry.getValue()).replace(",", ", ")).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Replaces all profiles with the ones in the text. Each line holds the profile for one
+    // controller model, like "045e/028e: KEYCODE_BUTTON_A=KEYCODE_BUTTON_B, 99=UNBOUND".
+    // Key codes may be numbers or KeyEvent names. Blank lines and lines starting with #
+    // are ignored. Returns the number of profiles imported, or -1 if the text is invalid,
+    // in which case the existing profiles are left alone.
+    public int importProfiles(String text) {
+        TreeMap<String, String> profiles = new TreeMap<>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            int separator = line.indexOf(':');
+            if (separator < 0) {
+                LimeLog.warning("Invalid button remapping profile: "+line);
+                return -1;
+            }
+
+            String[] ids = line.substring(0, separator).trim().split("/");
+            StringBuilder profileString = new StringBuilder();
+            try {
+                if (ids.length != 2) {
+                    throw new NumberFormatException();
+                }
+                int vendorId = Integer.parseInt(ids[0].trim(), 16);
+                int productId = Integer.parseInt(ids[1].trim(), 16);
+
+                for (String entry : line.substring(separator + 1).split(",")) {
+                    if (entry.trim().isEmpty()) {
+                        continue;
+                    }
+
+                    String[] keyCodes = entry.split("=");
+                    if (keyCodes.length != 2) {
+                        throw new NumberFormatException();
+                    }
+
+                    if (profileString.length() > 0) {
+                        profileString.append(',');
+                    }
+                    profileString.append(parseKeyCode(keyCodes[0])).append('=').append(parseKeyCode(keyCodes[1]));
+                }
+
+                profiles.put(getKey(vendorId, productId), profileString.toString());
+            } catch (NumberFormatException e) {
+                LimeLog.warning("Invalid button remapping profile: "+line);
+                return -1;
+            }
+        }
+
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        for (Map.Entry<String, String> profile : profiles.entrySet()) {
+            editor.putString(profile.getKey(), profile.getValue());
+        }
+        editor.apply();
+
+        return profiles.size();
+    }
+
+    private static int parseKeyCode(String keyCodeString) {
+        keyCodeString = keyCodeString.trim();
+        if (keyCodeString.equalsIgnoreCase("UNBOUND")) {
+            return UNBOUND;
+        }
+
+        int keyCode = KeyEvent.keyCodeFromString(keyCodeString);
+        if (keyCode != KeyEvent.KEYCODE_UNKNOWN) {
+            return keyCode;
+        }
+
+        // Older versions of keyCodeFromString() don't accept numbers
+        return Integer.parseInt(keyCodeString);
+    }
+}
@@ -26,6 +26,7 @@ import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.os.VibratorManager;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.InputDevice;
 import android.view.InputEvent;
 import android.view.KeyEvent;
@@ -39,7 +40,9 @@ import com.limelight.binding.input.driver.AbstractController;
 import com.limelight.binding.input.driver.UsbDriverListener;
 import com.limelight.binding.input.driver.UsbDriverService;
 import com.limelight.nvstream.NvConnection;
+import com.limelight.nvstream.input.ControllerInputAggregator;
 import com.limelight.nvstream.input.ControllerPacket;
+import com.limelight.nvstream.input.InputLatencyTracer;
 import com.limelight.nvstream.input.MouseButtonPacket;
 import com.limelight.nvstream.jni.MoonBridge;
 import com.limelight.preferences.PreferenceConfiguration;
@@ -51,7 +54,7 @@ import org.cgutman.shieldcontrollerextensions.SceConnectionType;
 import org.cgutman.shieldcontrollerextensions.SceManager;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
+import java.util.ArrayList;
 
 public class ControllerHandler implements InputManager.InputDeviceListener, UsbDriverListener {
 
@@ -69,44 +72,19 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
     private static final int BATTERY_RECHECK_INTERVAL_MS = 120 * 1000;
 
-    private static final Map<Integer, Integer> ANDROID_TO_LI_BUTTON_MAP = Map.ofEntries(
-            Map.entry(KeyEvent.KEYCODE_BUTTON_A, ControllerPacket.A_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_B, ControllerPacket.B_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_X, ControllerPacket.X_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_Y, ControllerPacket.Y_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_UP, ControllerPacket.UP_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_DOWN, ControllerPacket.DOWN_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_LEFT, ControllerPacket.LEFT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_RIGHT, ControllerPacket.RIGHT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_UP_LEFT, ControllerPacket.UP_FLAG | ControllerPacket.LEFT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_UP_RIGHT, ControllerPacket.UP_FLAG | ControllerPacket.RIGHT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_DOWN_LEFT, ControllerPacket.DOWN_FLAG | ControllerPacket.LEFT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_DPAD_DOWN_RIGHT, ControllerPacket.DOWN_FLAG | ControllerPacket.RIGHT_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_L1, ControllerPacket.LB_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_R1, ControllerPacket.RB_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_THUMBL, ControllerPacket.LS_CLK_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_THUMBR, ControllerPacket.RS_CLK_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_START, ControllerPacket.PLAY_FLAG),
-            Map.entry(KeyEvent.KEYCODE_MENU, ControllerPacket.PLAY_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_SELECT, ControllerPacket.BACK_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BACK, ControllerPacket.BACK_FLAG),
-            Map.entry(KeyEvent.KEYCODE_BUTTON_MODE, ControllerPacket.SPECIAL_BUTTON_FLAG),
-
-            // This is the Xbox Series X Share button
-            Map.entry(KeyEvent.KEYCODE_MEDIA_RECORD, ControllerPacket.MISC_FLAG),
-
-            // This is a weird one, but it's what Android does prior to 4.10 kernels
-            // where DualShock/DualSense touchpads weren't mapped as separate devices.
-            // https://android.googlesource.com/platform/frameworks/base/+/master/data/keyboards/Vendor_054c_Product_0ce6_fallback.kl
-            // https://android.googlesource.com/platform/frameworks/base/+/master/data/keyboards/Vendor_054c_Product_09cc.kl
-            Map.entry(KeyEvent.KEYCODE_BUTTON_1, ControllerPacket.TOUCHPAD_FLAG)
-
-            // FIXME: Paddles?
-    );
-
     private final Vector2d inputVector = new Vector2d();
 
     private final SparseArray<InputDeviceContext> inputDeviceContexts = new SparseArray<>();
+    private final ControllerInputAggregator controllerInputAggregator = new ControllerInputAggregator();
+
+    // Contexts with an assigned controller number, grouped by that number, so only the devices
+    // sharing the changed device's controller number need to be aggregated for each update.
+    // Guarded by controllerInputAggregator.
+    private final SparseArray<ArrayList<GenericControllerContext>> controllerNumberContexts = new SparseArray<>();
+
+    // Controllers with a coalesced input update waiting to be sent. Only used on the main thread.
+    private final GenericControllerContext[] pendingInputContexts = new GenericControllerContext[MAX_GAMEPADS];
+    private boolean inputFlushPending;
     private final SparseArray<UsbDeviceContext> usbDeviceContexts = new SparseArray<>();
 
     private final NvConnection conn;
@@ -126,6 +104,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     private boolean stopped = false;
 
     private final PreferenceConfiguration prefConfig;
+    private final ButtonRemapProfiles buttonRemapProfiles;
     private short currentControllers, initialControllers;
 
     public ControllerHandler(Activity activityContext, NvConnection conn, GameGestures gestures, PreferenceConfiguration prefConfig) {
@@ -133,6 +112,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         this.conn = conn;
         this.gestures = gestures;
         this.prefConfig = prefConfig;
+        this.buttonRemapProfiles = new ButtonRemapProfiles(activityContext);
         this.deviceVibrator = (Vibrator) activityContext.getSystemService(Context.VIBRATOR_SERVICE);
         this.deviceSensorManager = (SensorManager) activityContext.getSystemService(Context.SENSOR_SERVICE);
         this.inputManager = (InputManager) activityContext.getSystemService(Context.INPUT_SERVICE);
@@ -194,6 +174,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         defaultContext.hatYAxis = MotionEvent.AXIS_HAT_Y;
         defaultContext.controllerNumber = (short) 0;
         defaultContext.assignedControllerNumber = true;
+        addControllerNumberContext(defaultContext);
         defaultContext.external = false;
 
         // Some devices (GPD XD) have a back button which sends input events
@@ -201,6 +182,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         // consume these. Instead, let's ignore them since that's probably the
         // most likely case.
         defaultContext.ignoreBack = true;
+        defaultContext.buttonMapping = createButtonMapping(defaultContext);
 
         // Get the initially attached set of gamepads. As each gamepad receives
         // its initial InputEvent, we will move these from this set onto the
@@ -262,6 +244,15 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         InputDeviceContext newContext = createInputDeviceContextForDevice(device);
         newContext.migrateContext(existingContext);
         inputDeviceContexts.put(deviceId, newContext);
+        if (existingContext.assignedControllerNumber) {
+            // The old context is gone, so it must not be flushed by a pending update
+            if (pendingInputContexts[existingContext.controllerNumber] == existingContext) {
+                pendingInputContexts[existingContext.controllerNumber] = null;
+            }
+
+            removeControllerNumberContext(existingContext);
+            addControllerNumberContext(newContext);
+        }
     }
 
     public void stop() {
@@ -404,6 +395,26 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         return mask;
     }
 
+    private void addControllerNumberContext(GenericControllerContext context) {
+        synchronized (controllerInputAggregator) {
+            ArrayList<GenericControllerContext> contexts = controllerNumberContexts.get(context.controllerNumber);
+            if (contexts == null) {
+                contexts = new ArrayList<>();
+                controllerNumberContexts.put(context.controllerNumber, contexts);
+            }
+            contexts.add(context);
+        }
+    }
+
+    private void removeControllerNumberContext(GenericControllerContext context) {
+        synchronized (controllerInputAggregator) {
+            ArrayList<GenericControllerContext> contexts = controllerNumberContexts.get(context.controllerNumber);
+            if (contexts != null) {
+                contexts.remove(context);
+            }
+        }
+    }
+
     private void releaseControllerNumber(GenericControllerContext context) {
         // If we reserved a controller number, remove that reservation
         if (context.reservedControllerNumber) {
@@ -415,6 +426,12 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         // We must do this after clearing the currentControllers entry so this
         // causes the device to be removed on the server PC.
         if (context.assignedControllerNumber) {
+            // Don't let a coalesced update from this device go out after it's removed
+            if (pendingInputContexts[context.controllerNumber] == context) {
+                pendingInputContexts[context.controllerNumber] = null;
+            }
+
+            removeControllerNumberContext(context);
             conn.sendControllerInput(context.controllerNumber, getActiveControllerMask(),
                     (short) 0,
                     (byte) 0, (byte) 0,
@@ -556,6 +573,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
         LimeLog.info("Assigned as controller "+context.controllerNumber);
         context.assignedControllerNumber = true;
+        addControllerNumberContext(context);
 
         // Report attributes of this new controller to the host
         context.sendControllerArrival();
@@ -1017,6 +1035,8 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         LimeLog.info("Analog stick deadzone: "+context.leftStickDeadzoneRadius+" "+context.rightStickDeadzoneRadius);
         LimeLog.info("Trigger deadzone: "+context.triggerDeadzone);
 
+        context.buttonMapping = createButtonMapping(context);
+
         return context;
     }
 
@@ -1056,28 +1076,6 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         return context;
     }
 
-    private byte maxByMagnitude(byte a, byte b) {
-        int absA = Math.abs(a);
-        int absB = Math.abs(b);
-        if (absA > absB) {
-            return a;
-        }
-        else {
-            return b;
-        }
-    }
-
-    private short maxByMagnitude(short a, short b) {
-        int absA = Math.abs(a);
-        int absB = Math.abs(b);
-        if (absA > absB) {
-            return a;
-        }
-        else {
-            return b;
-        }
-    }
-
     private short getActiveControllerMask() {
         if (prefConfig.multiController) {
             return (short)(currentControllers | initialControllers | (prefConfig.onscreenController ? 1 : 0));
@@ -1208,58 +1206,88 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         }
     }
 
+    private final Runnable flushPendingInputRunnable = new Runnable() {
+        @Override
+        public void run() {
+            inputFlushPending = false;
+
+            for (int i = 0; i < pendingInputContexts.length; i++) {
+                GenericControllerContext context = pendingInputContexts[i];
+                if (context != null) {
+                    pendingInputContexts[i] = null;
+                    if (!stopped) {
+                        sendControllerInputPacket(context);
+                    }
+                }
+            }
+        }
+    };
+
+    // Like sendControllerInputPacket(), but if coalescing is enabled, the packet is sent after
+    // the rest of the current input batch has been processed. Several updates to the same
+    // controller in one batch then only produce a single packet with the latest state.
+    // This must only be called on the main thread.
+    private void queueControllerInputPacket(GenericControllerContext context) {
+        if (!prefConfig.coalesceControllerInput) {
+            sendControllerInputPacket(context);
+            return;
+        }
+
+        assignControllerNumberIfNeeded(context);
+
+        GenericControllerContext pendingContext = pendingInputContexts[context.controllerNumber];
+        if (pendingContext != null && pendingContext != context &&
+                pendingContext.mouseEmulationActive != context.mouseEmulationActive) {
+            // This update won't be aggregated with the pending one, so send that now
+            sendControllerInputPacket(pendingContext);
+        }
+        pendingInputContexts[context.controllerNumber] = context;
+
+        // Input events in a batch are dispatched from a single message, so this runs
+        // as soon as the rest of the batch is done.
+        if (!inputFlushPending) {
+            inputFlushPending = true;
+            mainThreadHandler.postAtFrontOfQueue(flushPendingInputRunnable);
+        }
+    }
+
     private void sendControllerInputPacket(GenericControllerContext originalContext) {
         assignControllerNumberIfNeeded(originalContext);
 
         // Take the context's controller number and fuse all inputs with the same number
         short controllerNumber = originalContext.controllerNumber;
-        int inputMap = 0;
-        byte leftTrigger = 0;
-        byte rightTrigger = 0;
-        short leftStickX = 0;
-        short leftStickY = 0;
-        short rightStickX = 0;
-        short rightStickY = 0;
+        int inputMap;
+        byte leftTrigger, rightTrigger;
+        short leftStickX, leftStickY, rightStickX, rightStickY;
 
         // In order to properly handle controllers that are split into multiple devices,
         // we must aggregate all controllers with the same controller number into a single
         // device before we send it.
-        for (int i = 0; i < inputDeviceContexts.size(); i++) {
-            GenericControllerContext context = inputDeviceContexts.valueAt(i);
-            if (context.assignedControllerNumber &&
-                    context.controllerNumber == controllerNumber &&
-                    context.mouseEmulationActive == originalContext.mouseEmulationActive) {
-                inputMap |= context.inputMap;
-                leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
-                rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
-                leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
-                leftStickY |= maxByMagnitude(leftStickY, context.leftStickY);
-                rightStickX |= maxByMagnitude(rightStickX, context.rightStickX);
-                rightStickY |= maxByMagnitude(rightStickY, context.rightStickY);
+        //
+        // Input may be reported from USB driver threads too, so the shared aggregator must be locked.
+        synchronized (controllerInputAggregator) {
+            controllerInputAggregator.reset();
+
+            ArrayList<GenericControllerContext> contexts = controllerNumberContexts.get(controllerNumber);
+            for (int i = 0; i < contexts.size(); i++) {
+                GenericControllerContext context = contexts.get(i);
+
+                // The default context is always included, even if it's in a different mouse emulation state
+                if (context == defaultContext || context.mouseEmulationActive == originalContext.mouseEmulationActive) {
+                    controllerInputAggregator.add(context.inputMap,
+                            context.leftTrigger, context.rightTrigger,
+                            context.leftStickX, context.leftStickY,
+                            context.rightStickX, context.rightStickY);
+                }
             }
-        }
-        for (int i = 0; i < usbDeviceContexts.size(); i++) {
-            GenericControllerContext context = usbDeviceContexts.valueAt(i);
-            if (context.assignedControllerNumber &&
-                    context.controllerNumber == controllerNumber &&
-                    context.mouseEmulationActive == originalContext.mouseEmulationActive) {
-                inputMap |= context.inputMap;
-                leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
-                rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
-                leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
-                leftStickY |= maxByMagnitude(leftStickY, context.leftStickY);
-                rightStickX |= maxByMagnitude(rightStickX, context.rightStickX);
-                rightStickY |= maxByMagnitude(rightStickY, context.rightStickY);
-            }
-        }
-        if (defaultContext.controllerNumber == controllerNumber) {
-            inputMap |= defaultContext.inputMap;
-            leftTrigger |= maxByMagnitude(leftTrigger, defaultContext.leftTrigger);
-            rightTrigger |= maxByMagnitude(rightTrigger, defaultContext.rightTrigger);
-            leftStickX |= maxByMagnitude(leftStickX, defaultContext.leftStickX);
-            leftStickY |= maxByMagnitude(leftStickY, defaultContext.leftStickY);
-            rightStickX |= maxByMagnitude(rightStickX, defaultContext.rightStickX);
-            rightStickY |= maxByMagnitude(rightStickY, defaultContext.rightStickY);
+
+            inputMap = controllerInputAggregator.inputMap;
+            leftTrigger = controllerInputAggregator.leftTrigger;
+            rightTrigger = controllerInputAggregator.rightTrigger;
+            leftStickX = controllerInputAggregator.leftStickX;
+            leftStickY = controllerInputAggregator.leftStickY;
+            rightStickX = controllerInputAggregator.rightStickX;
+            rightStickY = controllerInputAggregator.rightStickY;
         }
 
         if (originalContext.mouseEmulationActive) {
@@ -1319,26 +1347,22 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         }
     }
 
-    private final int REMAP_IGNORE = -1;
-    private final int REMAP_CONSUME = -2;
+    // Builds the button lookup tables for this device. This must be called after
+    // all of the context's device quirks have been detected.
+    private ButtonMapping createButtonMapping(InputDeviceContext context) {
+        ButtonMapping mapping = new ButtonMapping();
+
+        // Remappings are first-match-wins, so the order of these matters
 
-    // Return a valid keycode, -2 to consume, or -1 to not consume the event
-    // Device MAY BE NULL
-    private int handleRemapping(InputDeviceContext context, KeyEvent event) {
         // Don't capture the back button if configured
         if (context.ignoreBack) {
-            if (event.getKeyCode() == KeyEvent.KEYCODE_BACK) {
-                return REMAP_IGNORE;
-            }
+            mapping.overrideKeyCode(KeyEvent.KEYCODE_BACK, ButtonMapping.REMAP_IGNORE);
         }
 
         // If we know this gamepad has a share button and receive an unmapped
         // KEY_RECORD event, report that as a share button press.
         if (context.hasShare) {
-            if (event.getKeyCode() == KeyEvent.KEYCODE_UNKNOWN &&
-                    event.getScanCode() == 167) {
-                return KeyEvent.KEYCODE_MEDIA_RECORD;
-            }
+            mapping.mapUnknownKeyScanCode(167, KeyEvent.KEYCODE_MEDIA_RECORD);
         }
 
         // The Shield's key layout files map the DualShock 4 clickpad button to
@@ -1347,15 +1371,18 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         // that matches the keycode used by hid-sony for the clickpad or it's from the
         // separate touchpad input device, remap it to BUTTON_1 to match the current AOSP
         // layout and trigger our touchpad button logic.
-        if (context.vendorId == 0x054c &&
-                event.getKeyCode() == KeyEvent.KEYCODE_BUTTON_SELECT &&
-                (event.getScanCode() == 317 || context.isDualShockStandaloneTouchpad)) {
-            return KeyEvent.KEYCODE_BUTTON_1;
+        if (context.vendorId == 0x054c) {
+            if (context.isDualShockStandaloneTouchpad) {
+                mapping.overrideKeyCode(KeyEvent.KEYCODE_BUTTON_SELECT, KeyEvent.KEYCODE_BUTTON_1);
+            }
+            else {
+                mapping.mapSelectClickpadScanCode(317);
+            }
         }
 
         // Override mode button for 8BitDo controllers
-        if (context.vendorId == 0x2dc8 && event.getScanCode() == 306) {
-            return KeyEvent.KEYCODE_BUTTON_MODE;
+        if (context.vendorId == 0x2dc8) {
+            mapping.mapScanCode(306, KeyEvent.KEYCODE_BUTTON_MODE);
         }
 
         // This mapping was adding in Android 10, then changed based on
@@ -1363,123 +1390,68 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         // on anything newer than Pie, just use the built-in mapping.
         if ((context.vendorId == 0x057e && context.productId == 0x2009 && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) || // Switch Pro controller
                 (context.vendorId == 0x0f0d && context.productId == 0x00c1)) { // HORIPAD for Switch
-            switch (event.getScanCode()) {
-                case 0x130:
-                    return KeyEvent.KEYCODE_BUTTON_A;
-                case 0x131:
-                    return KeyEvent.KEYCODE_BUTTON_B;
-                case 0x132:
-                    return KeyEvent.KEYCODE_BUTTON_X;
-                case 0x133:
-                    return KeyEvent.KEYCODE_BUTTON_Y;
-                case 0x134:
-                    return KeyEvent.KEYCODE_BUTTON_L1;
-                case 0x135:
-                    return KeyEvent.KEYCODE_BUTTON_R1;
-                case 0x136:
-                    return KeyEvent.KEYCODE_BUTTON_L2;
-                case 0x137:
-                    return KeyEvent.KEYCODE_BUTTON_R2;
-                case 0x138:
-                    return KeyEvent.KEYCODE_BUTTON_SELECT;
-                case 0x139:
-                    return KeyEvent.KEYCODE_BUTTON_START;
-                case 0x13A:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBL;
-                case 0x13B:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBR;
-                case 0x13D:
-                    return KeyEvent.KEYCODE_BUTTON_MODE;
-            }
+            mapping.mapScanCode(0x130, KeyEvent.KEYCODE_BUTTON_A);
+            mapping.mapScanCode(0x131, KeyEvent.KEYCODE_BUTTON_B);
+            mapping.mapScanCode(0x132, KeyEvent.KEYCODE_BUTTON_X);
+            mapping.mapScanCode(0x133, KeyEvent.KEYCODE_BUTTON_Y);
+            mapping.mapScanCode(0x134, KeyEvent.KEYCODE_BUTTON_L1);
+            mapping.mapScanCode(0x135, KeyEvent.KEYCODE_BUTTON_R1);
+            mapping.mapScanCode(0x136, KeyEvent.KEYCODE_BUTTON_L2);
+            mapping.mapScanCode(0x137, KeyEvent.KEYCODE_BUTTON_R2);
+            mapping.mapScanCode(0x138, KeyEvent.KEYCODE_BUTTON_SELECT);
+            mapping.mapScanCode(0x139, KeyEvent.KEYCODE_BUTTON_START);
+            mapping.mapScanCode(0x13A, KeyEvent.KEYCODE_BUTTON_THUMBL);
+            mapping.mapScanCode(0x13B, KeyEvent.KEYCODE_BUTTON_THUMBR);
+            mapping.mapScanCode(0x13D, KeyEvent.KEYCODE_BUTTON_MODE);
         }
 
         if (context.usesLinuxGamepadStandardFaceButtons) {
             // Android's Generic.kl swaps BTN_NORTH and BTN_WEST
-            switch (event.getScanCode()) {
-                case 304:
-                    return KeyEvent.KEYCODE_BUTTON_A;
-                case 305:
-                    return KeyEvent.KEYCODE_BUTTON_B;
-                case 307:
-                    return KeyEvent.KEYCODE_BUTTON_Y;
-                case 308:
-                    return KeyEvent.KEYCODE_BUTTON_X;
-            }
+            mapping.mapScanCode(304, KeyEvent.KEYCODE_BUTTON_A);
+            mapping.mapScanCode(305, KeyEvent.KEYCODE_BUTTON_B);
+            mapping.mapScanCode(307, KeyEvent.KEYCODE_BUTTON_Y);
+            mapping.mapScanCode(308, KeyEvent.KEYCODE_BUTTON_X);
         }
 
         if (context.isNonStandardDualShock4) {
-            switch (event.getScanCode()) {
-                case 304:
-                    return KeyEvent.KEYCODE_BUTTON_X;
-                case 305:
-                    return KeyEvent.KEYCODE_BUTTON_A;
-                case 306:
-                    return KeyEvent.KEYCODE_BUTTON_B;
-                case 307:
-                    return KeyEvent.KEYCODE_BUTTON_Y;
-                case 308:
-                    return KeyEvent.KEYCODE_BUTTON_L1;
-                case 309:
-                    return KeyEvent.KEYCODE_BUTTON_R1;
-                /*
-                **** Using analog triggers instead ****
-                case 310:
-                    return KeyEvent.KEYCODE_BUTTON_L2;
-                case 311:
-                    return KeyEvent.KEYCODE_BUTTON_R2;
-                */
-                case 312:
-                    return KeyEvent.KEYCODE_BUTTON_SELECT;
-                case 313:
-                    return KeyEvent.KEYCODE_BUTTON_START;
-                case 314:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBL;
-                case 315:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBR;
-                case 316:
-                    return KeyEvent.KEYCODE_BUTTON_MODE;
-                default:
-                    return REMAP_CONSUME;
-            }
+            mapping.mapScanCode(304, KeyEvent.KEYCODE_BUTTON_X);
+            mapping.mapScanCode(305, KeyEvent.KEYCODE_BUTTON_A);
+            mapping.mapScanCode(306, KeyEvent.KEYCODE_BUTTON_B);
+            mapping.mapScanCode(307, KeyEvent.KEYCODE_BUTTON_Y);
+            mapping.mapScanCode(308, KeyEvent.KEYCODE_BUTTON_L1);
+            mapping.mapScanCode(309, KeyEvent.KEYCODE_BUTTON_R1);
+            /*
+            **** Using analog triggers instead ****
+            mapping.mapScanCode(310, KeyEvent.KEYCODE_BUTTON_L2);
+            mapping.mapScanCode(311, KeyEvent.KEYCODE_BUTTON_R2);
+            */
+            mapping.mapScanCode(312, KeyEvent.KEYCODE_BUTTON_SELECT);
+            mapping.mapScanCode(313, KeyEvent.KEYCODE_BUTTON_START);
+            mapping.mapScanCode(314, KeyEvent.KEYCODE_BUTTON_THUMBL);
+            mapping.mapScanCode(315, KeyEvent.KEYCODE_BUTTON_THUMBR);
+            mapping.mapScanCode(316, KeyEvent.KEYCODE_BUTTON_MODE);
+            mapping.mapRemainingScanCodes(ButtonMapping.REMAP_CONSUME);
         }
         // If this is a Serval controller sending an unknown key code, it's probably
         // the start and select buttons
-        else if (context.isServal && event.getKeyCode() == KeyEvent.KEYCODE_UNKNOWN) {
-            switch (event.getScanCode())  {
-                case 314:
-                    return KeyEvent.KEYCODE_BUTTON_SELECT;
-                case 315:
-                    return KeyEvent.KEYCODE_BUTTON_START;
-            }
+        else if (context.isServal) {
+            mapping.mapUnknownKeyScanCode(314, KeyEvent.KEYCODE_BUTTON_SELECT);
+            mapping.mapUnknownKeyScanCode(315, KeyEvent.KEYCODE_BUTTON_START);
         }
         else if (context.isNonStandardXboxBtController) {
-            switch (event.getScanCode()) {
-                case 306:
-                    return KeyEvent.KEYCODE_BUTTON_X;
-                case 307:
-                    return KeyEvent.KEYCODE_BUTTON_Y;
-                case 308:
-                    return KeyEvent.KEYCODE_BUTTON_L1;
-                case 309:
-                    return KeyEvent.KEYCODE_BUTTON_R1;
-                case 310:
-                    return KeyEvent.KEYCODE_BUTTON_SELECT;
-                case 311:
-                    return KeyEvent.KEYCODE_BUTTON_START;
-                case 312:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBL;
-                case 313:
-                    return KeyEvent.KEYCODE_BUTTON_THUMBR;
-                case 139:
-                    return KeyEvent.KEYCODE_BUTTON_MODE;
-                default:
-                    // Other buttons are mapped correctly
-            }
+            mapping.mapScanCode(306, KeyEvent.KEYCODE_BUTTON_X);
+            mapping.mapScanCode(307, KeyEvent.KEYCODE_BUTTON_Y);
+            mapping.mapScanCode(308, KeyEvent.KEYCODE_BUTTON_L1);
+            mapping.mapScanCode(309, KeyEvent.KEYCODE_BUTTON_R1);
+            mapping.mapScanCode(310, KeyEvent.KEYCODE_BUTTON_SELECT);
+            mapping.mapScanCode(311, KeyEvent.KEYCODE_BUTTON_START);
+            mapping.mapScanCode(312, KeyEvent.KEYCODE_BUTTON_THUMBL);
+            mapping.mapScanCode(313, KeyEvent.KEYCODE_BUTTON_THUMBR);
+            mapping.mapScanCode(139, KeyEvent.KEYCODE_BUTTON_MODE);
+            // Other buttons are mapped correctly
 
             // The Xbox button is sent as MENU
-            if (event.getKeyCode() == KeyEvent.KEYCODE_MENU) {
-                return KeyEvent.KEYCODE_BUTTON_MODE;
-            }
+            mapping.mapFallbackKeyCode(KeyEvent.KEYCODE_MENU, KeyEvent.KEYCODE_BUTTON_MODE);
         }
         else if (context.vendorId == 0x0b05 && // ASUS
                      (context.productId == 0x7900 || // Kunai - USB
@@ -1488,41 +1460,67 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
             // ROG Kunai has special M1-M4 buttons that are accessible via the
             // joycon-style detachable controllers that we should map to Start
             // and Select.
-            switch (event.getScanCode()) {
-                case 264:
-                case 266:
-                    return KeyEvent.KEYCODE_BUTTON_START;
-
-                case 265:
-                case 267:
-                    return KeyEvent.KEYCODE_BUTTON_SELECT;
-            }
+            mapping.mapScanCode(264, KeyEvent.KEYCODE_BUTTON_START);
+            mapping.mapScanCode(266, KeyEvent.KEYCODE_BUTTON_START);
+            mapping.mapScanCode(265, KeyEvent.KEYCODE_BUTTON_SELECT);
+            mapping.mapScanCode(267, KeyEvent.KEYCODE_BUTTON_SELECT);
         }
 
         if (context.hatXAxis == -1 &&
-                 context.hatYAxis == -1 &&
+                 context.hatYAxis == -1
                  /* FIXME: There's no good way to know for sure if xpad is bound
                     to this device, so we won't use the name to validate if these
                     scancodes should be mapped to DPAD
 
-                    context.isXboxController &&
-                  */
-                 event.getKeyCode() == KeyEvent.KEYCODE_UNKNOWN) {
+                    && context.isXboxController
+                  */) {
             // If there's not a proper Xbox controller mapping, we'll translate the raw d-pad
             // scan codes into proper key codes
-            switch (event.getScanCode())
-            {
-            case 704:
-                return KeyEvent.KEYCODE_DPAD_LEFT;
-            case 705:
-                return KeyEvent.KEYCODE_DPAD_RIGHT;
-            case 706:
-                return KeyEvent.KEYCODE_DPAD_UP;
-            case 707:
-                return KeyEvent.KEYCODE_DPAD_DOWN;
+            mapping.mapUnknownKeyScanCode(704, KeyEvent.KEYCODE_DPAD_LEFT);
+            mapping.mapUnknownKeyScanCode(705, KeyEvent.KEYCODE_DPAD_RIGHT);
+            mapping.mapUnknownKeyScanCode(706, KeyEvent.KEYCODE_DPAD_UP);
+            mapping.mapUnknownKeyScanCode(707, KeyEvent.KEYCODE_DPAD_DOWN);
+        }
+
+        if (context.searchIsMode) {
+            // Emulate the mode button with search
+            mapping.mapFallbackKeyCode(KeyEvent.KEYCODE_SEARCH, KeyEvent.KEYCODE_BUTTON_MODE);
+        }
+
+        // Paddles aren't mapped in any of the Android key layout files,
+        // so we need to handle the evdev key codes directly.
+        if (context.hasPaddles) {
+            mapping.mapUnknownKeyButton(0x2c4, ControllerPacket.PADDLE1_FLAG); // BTN_TRIGGER_HAPPY5
+            mapping.mapUnknownKeyButton(0x2c5, ControllerPacket.PADDLE2_FLAG); // BTN_TRIGGER_HAPPY6
+            mapping.mapUnknownKeyButton(0x2c6, ControllerPacket.PADDLE3_FLAG); // BTN_TRIGGER_HAPPY7
+            mapping.mapUnknownKeyButton(0x2c7, ControllerPacket.PADDLE4_FLAG); // BTN_TRIGGER_HAPPY8
+        }
+
+        if (prefConfig.flipFaceButtons) {
+            mapping.swapButtons(KeyEvent.KEYCODE_BUTTON_A, KeyEvent.KEYCODE_BUTTON_B);
+            mapping.swapButtons(KeyEvent.KEYCODE_BUTTON_X, KeyEvent.KEYCODE_BUTTON_Y);
+        }
+
+        // Apply the user's remapping profile for this controller model last, so it
+        // works in terms of the buttons the user sees after all of our fixups.
+        if (context.vendorId != 0 || context.productId != 0) {
+            SparseIntArray profile = buttonRemapProfiles.getProfile(context.vendorId, context.productId);
+            if (profile != null) {
+                LimeLog.info("Applied "+mapping.applyProfile(profile)+" button remappings for "+context.name);
             }
         }
 
+        return mapping;
+    }
+
+    // Return a valid keycode, -2 to consume, or -1 to not consume the event
+    private int handleRemapping(InputDeviceContext context, KeyEvent event) {
+        // Fixups for this device's layout were compiled into its button mapping
+        int remappedKeyCode = context.buttonMapping.remap(event.getKeyCode(), event.getScanCode());
+        if (remappedKeyCode != KeyEvent.KEYCODE_UNKNOWN) {
+            return remappedKeyCode;
+        }
+
         // Past here we can fixup the keycode and potentially trigger
         // another special case so we need to remember what keycode we're using
         int keyCode = event.getKeyCode();
@@ -1553,29 +1551,10 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
             // Emulate the select button with mode
             return KeyEvent.KEYCODE_BUTTON_SELECT;
         }
-        else if (context.searchIsMode && keyCode == KeyEvent.KEYCODE_SEARCH) {
-            // Emulate the mode button with search
-            return KeyEvent.KEYCODE_BUTTON_MODE;
-        }
 
         return keyCode;
     }
 
-    private int handleFlipFaceButtons(int keyCode) {
-        switch (keyCode) {
-            case KeyEvent.KEYCODE_BUTTON_A:
-                return KeyEvent.KEYCODE_BUTTON_B;
-            case KeyEvent.KEYCODE_BUTTON_B:
-                return KeyEvent.KEYCODE_BUTTON_A;
-            case KeyEvent.KEYCODE_BUTTON_X:
-                return KeyEvent.KEYCODE_BUTTON_Y;
-            case KeyEvent.KEYCODE_BUTTON_Y:
-                return KeyEvent.KEYCODE_BUTTON_X;
-            default:
-                return keyCode;
-        }
-    }
-
     private Vector2d populateCachedVector(float x, float y) {
         // Reinitialize our cached Vector2d object
         inputVector.initialize(x, y);
@@ -1667,7 +1646,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
             }
         }
 
-        sendControllerInputPacket(context);
+        queueControllerInputPacket(context);
     }
 
     // Normalize the given raw float value into a 0.0-1.0f range
@@ -2324,6 +2303,18 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         }
     }
 
+    // D-pad buttons are suppressed if we're getting the same input from a hat
+    private static boolean isSuppressedHatButton(InputDeviceContext context, int button) {
+        int hatAxes = button & ButtonMapping.BUTTON_HAT_MASK;
+        if (hatAxes == 0) {
+            return false;
+        }
+
+        int usedHatAxes = (context.hatXAxisUsed ? ButtonMapping.BUTTON_HAT_X : 0) |
+                (context.hatYAxisUsed ? ButtonMapping.BUTTON_HAT_Y : 0);
+        return (hatAxes & ~usedHatAxes) == 0;
+    }
+
     public boolean handleButtonUp(KeyEvent event) {
         InputDeviceContext context = getContextForEvent(event);
         if (context == null) {
@@ -2332,11 +2323,16 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
         int keyCode = handleRemapping(context, event);
         if (keyCode < 0) {
-            return (keyCode == REMAP_CONSUME);
+            return (keyCode == ButtonMapping.REMAP_CONSUME);
         }
 
-        if (prefConfig.flipFaceButtons) {
-            keyCode = handleFlipFaceButtons(keyCode);
+        int button = context.buttonMapping.getButton(keyCode, event.getScanCode());
+        if (button == 0) {
+            return false;
+        }
+        else if (isSuppressedHatButton(context, button)) {
+            // Suppress this duplicate event if we have a hat
+            return true;
         }
 
         // If the button hasn't been down long enough, sleep for a bit before sending the up event
@@ -2359,157 +2355,39 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
             }
         }
 
-        switch (keyCode) {
-        case KeyEvent.KEYCODE_BUTTON_MODE:
-            context.inputMap &= ~ControllerPacket.SPECIAL_BUTTON_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_START:
-        case KeyEvent.KEYCODE_MENU:
-            // Sometimes we'll get a spurious key up event on controller disconnect.
-            // Make sure it's real by checking that the key is actually down before taking
-            // any action.
-            if ((context.inputMap & ControllerPacket.PLAY_FLAG) != 0 &&
-                    event.getEventTime() - context.startDownTime > ControllerHandler.START_DOWN_TIME_MOUSE_MODE_MS &&
-                    prefConfig.mouseEmulation) {
-                context.toggleMouseEmulation();
-            }
-            context.inputMap &= ~ControllerPacket.PLAY_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BACK:
-        case KeyEvent.KEYCODE_BUTTON_SELECT:
-            context.inputMap &= ~ControllerPacket.BACK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_LEFT:
-            if (context.hatXAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~ControllerPacket.LEFT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_RIGHT:
-            if (context.hatXAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~ControllerPacket.RIGHT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP:
-            if (context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~ControllerPacket.UP_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN:
-            if (context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~ControllerPacket.DOWN_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP_LEFT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~(ControllerPacket.UP_FLAG | ControllerPacket.LEFT_FLAG);
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP_RIGHT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~(ControllerPacket.UP_FLAG | ControllerPacket.RIGHT_FLAG);
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN_LEFT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~(ControllerPacket.DOWN_FLAG | ControllerPacket.LEFT_FLAG);
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN_RIGHT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap &= ~(ControllerPacket.DOWN_FLAG | ControllerPacket.RIGHT_FLAG);
-            break;
-        case KeyEvent.KEYCODE_BUTTON_B:
-            context.inputMap &= ~ControllerPacket.B_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_CENTER:
-        case KeyEvent.KEYCODE_BUTTON_A:
-            context.inputMap &= ~ControllerPacket.A_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_X:
-            context.inputMap &= ~ControllerPacket.X_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_Y:
-            context.inputMap &= ~ControllerPacket.Y_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_L1:
-            context.inputMap &= ~ControllerPacket.LB_FLAG;
-            context.lastLbUpTime = event.getEventTime();
-            break;
-        case KeyEvent.KEYCODE_BUTTON_R1:
-            context.inputMap &= ~ControllerPacket.RB_FLAG;
-            context.lastRbUpTime = event.getEventTime();
-            break;
-        case KeyEvent.KEYCODE_BUTTON_THUMBL:
-            context.inputMap &= ~ControllerPacket.LS_CLK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_THUMBR:
-            context.inputMap &= ~ControllerPacket.RS_CLK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_MEDIA_RECORD: // Xbox Series X Share button
-            context.inputMap &= ~ControllerPacket.MISC_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_1: // PS4/PS5 touchpad button (prior to 4.10)
-            context.inputMap &= ~ControllerPacket.TOUCHPAD_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_L2:
+        if ((button & ButtonMapping.BUTTON_LEFT_TRIGGER) != 0) {
             if (context.leftTriggerAxisUsed) {
                 // Suppress this digital event if an analog trigger is active
                 return true;
             }
             context.leftTrigger = 0;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_R2:
+        }
+        if ((button & ButtonMapping.BUTTON_RIGHT_TRIGGER) != 0) {
             if (context.rightTriggerAxisUsed) {
                 // Suppress this digital event if an analog trigger is active
                 return true;
             }
             context.rightTrigger = 0;
-            break;
-        case KeyEvent.KEYCODE_UNKNOWN:
-            // Paddles aren't mapped in any of the Android key layout files,
-            // so we need to handle the evdev key codes directly.
-            if (context.hasPaddles) {
-                switch (event.getScanCode()) {
-                    case 0x2c4: // BTN_TRIGGER_HAPPY5
-                        context.inputMap &= ~ControllerPacket.PADDLE1_FLAG;
-                        break;
-                    case 0x2c5: // BTN_TRIGGER_HAPPY6
-                        context.inputMap &= ~ControllerPacket.PADDLE2_FLAG;
-                        break;
-                    case 0x2c6: // BTN_TRIGGER_HAPPY7
-                        context.inputMap &= ~ControllerPacket.PADDLE3_FLAG;
-                        break;
-                    case 0x2c7: // BTN_TRIGGER_HAPPY8
-                        context.inputMap &= ~ControllerPacket.PADDLE4_FLAG;
-                        break;
-                    default:
-                        return false;
-                }
-            }
-            else {
-                return false;
+        }
+
+        int buttonFlags = button & ButtonMapping.BUTTON_FLAGS_MASK;
+        if ((buttonFlags & ControllerPacket.PLAY_FLAG) != 0) {
+            // Sometimes we'll get a spurious key up event on controller disconnect.
+            // Make sure it's real by checking that the key is actually down before taking
+            // any action.
+            if ((context.inputMap & ControllerPacket.PLAY_FLAG) != 0 &&
+                    event.getEventTime() - context.startDownTime > ControllerHandler.START_DOWN_TIME_MOUSE_MODE_MS &&
+                    prefConfig.mouseEmulation) {
+                context.toggleMouseEmulation();
             }
-            break;
-        default:
-            return false;
         }
+        if ((buttonFlags & ControllerPacket.LB_FLAG) != 0) {
+            context.lastLbUpTime = event.getEventTime();
+        }
+        if ((buttonFlags & ControllerPacket.RB_FLAG) != 0) {
+            context.lastRbUpTime = event.getEventTime();
+        }
+        context.inputMap &= ~buttonFlags;
 
         // Check if we're emulating the select button
         if ((context.emulatingButtonFlags & ControllerHandler.EMULATING_SELECT) != 0)
@@ -2569,160 +2447,45 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
         int keyCode = handleRemapping(context, event);
         if (keyCode < 0) {
-            return (keyCode == REMAP_CONSUME);
+            return (keyCode == ButtonMapping.REMAP_CONSUME);
         }
 
-        if (prefConfig.flipFaceButtons) {
-            keyCode = handleFlipFaceButtons(keyCode);
+        int button = context.buttonMapping.getButton(keyCode, event.getScanCode());
+        if (button == 0) {
+            return false;
+        }
+        else if (isSuppressedHatButton(context, button)) {
+            // Suppress this duplicate event if we have a hat
+            return true;
         }
 
-        switch (keyCode) {
-        case KeyEvent.KEYCODE_BUTTON_MODE:
-            context.hasMode = true;
-            context.inputMap |= ControllerPacket.SPECIAL_BUTTON_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_START:
-        case KeyEvent.KEYCODE_MENU:
-            if (event.getRepeatCount() == 0) {
-                context.startDownTime = event.getEventTime();
-            }
-            context.inputMap |= ControllerPacket.PLAY_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BACK:
-        case KeyEvent.KEYCODE_BUTTON_SELECT:
-            context.hasSelect = true;
-            context.inputMap |= ControllerPacket.BACK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_LEFT:
-            if (context.hatXAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.LEFT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_RIGHT:
-            if (context.hatXAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.RIGHT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP:
-            if (context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.UP_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN:
-            if (context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.DOWN_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP_LEFT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.UP_FLAG | ControllerPacket.LEFT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_UP_RIGHT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.UP_FLAG | ControllerPacket.RIGHT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN_LEFT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.DOWN_FLAG | ControllerPacket.LEFT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_DOWN_RIGHT:
-            if (context.hatXAxisUsed && context.hatYAxisUsed) {
-                // Suppress this duplicate event if we have a hat
-                return true;
-            }
-            context.inputMap |= ControllerPacket.DOWN_FLAG | ControllerPacket.RIGHT_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_B:
-            context.inputMap |= ControllerPacket.B_FLAG;
-            break;
-        case KeyEvent.KEYCODE_DPAD_CENTER:
-        case KeyEvent.KEYCODE_BUTTON_A:
-            context.inputMap |= ControllerPacket.A_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_X:
-            context.inputMap |= ControllerPacket.X_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_Y:
-            context.inputMap |= ControllerPacket.Y_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_L1:
-            context.inputMap |= ControllerPacket.LB_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_R1:
-            context.inputMap |= ControllerPacket.RB_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_THUMBL:
-            context.inputMap |= ControllerPacket.LS_CLK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_THUMBR:
-            context.inputMap |= ControllerPacket.RS_CLK_FLAG;
-            break;
-        case KeyEvent.KEYCODE_MEDIA_RECORD: // Xbox Series X Share button
-            context.inputMap |= ControllerPacket.MISC_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_1: // PS4/PS5 touchpad button (prior to 4.10)
-            context.inputMap |= ControllerPacket.TOUCHPAD_FLAG;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_L2:
+        if ((button & ButtonMapping.BUTTON_LEFT_TRIGGER) != 0) {
             if (context.leftTriggerAxisUsed) {
                 // Suppress this digital event if an analog trigger is active
                 return true;
             }
             context.leftTrigger = (byte)0xFF;
-            break;
-        case KeyEvent.KEYCODE_BUTTON_R2:
+        }
+        if ((button & ButtonMapping.BUTTON_RIGHT_TRIGGER) != 0) {
             if (context.rightTriggerAxisUsed) {
                 // Suppress this digital event if an analog trigger is active
                 return true;
             }
             context.rightTrigger = (byte)0xFF;
-            break;
-        case KeyEvent.KEYCODE_UNKNOWN:
-            // Paddles aren't mapped in any of the Android key layout files,
-            // so we need to handle the evdev key codes directly.
-            if (context.hasPaddles) {
-                switch (event.getScanCode()) {
-                    case 0x2c4: // BTN_TRIGGER_HAPPY5
-                        context.inputMap |= ControllerPacket.PADDLE1_FLAG;
-                        break;
-                    case 0x2c5: // BTN_TRIGGER_HAPPY6
-                        context.inputMap |= ControllerPacket.PADDLE2_FLAG;
-                        break;
-                    case 0x2c6: // BTN_TRIGGER_HAPPY7
-                        context.inputMap |= ControllerPacket.PADDLE3_FLAG;
-                        break;
-                    case 0x2c7: // BTN_TRIGGER_HAPPY8
-                        context.inputMap |= ControllerPacket.PADDLE4_FLAG;
-                        break;
-                    default:
-                        return false;
-                }
-            }
-            else {
-                return false;
-            }
-            break;
-        default:
-            return false;
         }
 
+        int buttonFlags = button & ButtonMapping.BUTTON_FLAGS_MASK;
+        if ((buttonFlags & ControllerPacket.SPECIAL_BUTTON_FLAG) != 0) {
+            context.hasMode = true;
+        }
+        if ((buttonFlags & ControllerPacket.PLAY_FLAG) != 0 && event.getRepeatCount() == 0) {
+            context.startDownTime = event.getEventTime();
+        }
+        if ((buttonFlags & ControllerPacket.BACK_FLAG) != 0) {
+            context.hasSelect = true;
+        }
+        context.inputMap |= buttonFlags;
+
         // Start+Back+LB+RB is the quit combo
         if (context.inputMap == (ControllerPacket.BACK_FLAG | ControllerPacket.PLAY_FLAG |
                                  ControllerPacket.LB_FLAG | ControllerPacket.RB_FLAG)) {
@@ -2808,12 +2571,27 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     public void reportControllerState(int controllerId, int buttonFlags,
                                       float leftStickX, float leftStickY,
                                       float rightStickX, float rightStickY,
-                                      float leftTrigger, float rightTrigger) {
+                                      float leftTrigger, float rightTrigger,
+                                      long inputTimeNs) {
         GenericControllerContext context = usbDeviceContexts.get(controllerId);
         if (context == null) {
             return;
         }
 
+        InputLatencyTracer tracer = conn.getInputLatencyTracer();
+        tracer.beginEvent(InputLatencyTracer.SOURCE_USB_GAMEPAD, inputTimeNs);
+        try {
+            updateUsbControllerState(context, buttonFlags, leftStickX, leftStickY,
+                    rightStickX, rightStickY, leftTrigger, rightTrigger);
+        } finally {
+            tracer.endEvent();
+        }
+    }
+
+    private void updateUsbControllerState(GenericControllerContext context, int buttonFlags,
+                                          float leftStickX, float leftStickY,
+                                          float rightStickX, float rightStickY,
+                                          float leftTrigger, float rightTrigger) {
         Vector2d leftStickVector = populateCachedVector(leftStickX, leftStickY);
 
         handleDeadZone(leftStickVector, context.leftStickDeadzoneRadius);
@@ -2843,6 +2621,17 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         sendControllerInputPacket(context);
     }
 
+    // Input report rates of the controllers using our own drivers, one per line
+    public String getDriverReportRates() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < usbDeviceContexts.size(); i++) {
+            AbstractController device = usbDeviceContexts.valueAt(i).device;
+            sb.append(activityContext.getString(R.string.perf_overlay_driver_report_rate,
+                    device.getDisplayName(), device.getReportRate())).append('\n');
+        }
+        return sb.toString();
+    }
+
     @Override
     public void deviceRemoved(AbstractController controller) {
         UsbDeviceContext context = usbDeviceContexts.get(controller.getControllerId());
@@ -2940,6 +2729,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         public short accelReportRateHz;
 
         public InputDevice inputDevice;
+        public ButtonMapping buttonMapping;
 
         public boolean hasRgbLed;
         public LightsManager.LightsSession lightsSession;
@@ -3073,9 +2863,10 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
             }
 
             int supportedButtonFlags = 0;
-            for (Map.Entry<Integer, Integer> entry : ANDROID_TO_LI_BUTTON_MAP.entrySet()) {
-                if (inputDevice.hasKeys(entry.getKey())[0]) {
-                    supportedButtonFlags |= entry.getValue();
+            boolean[] hasKeys = inputDevice.hasKeys(ButtonMapping.ARRIVAL_KEYCODES);
+            for (int i = 0; i < hasKeys.length; i++) {
+                if (hasKeys[i]) {
+                    supportedButtonFlags |= buttonMapping.getButton(ButtonMapping.ARRIVAL_KEYCODES[i], 0) & ButtonMapping.BUTTON_FLAGS_MASK;
                 }
             }
 
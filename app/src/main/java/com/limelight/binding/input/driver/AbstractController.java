@@ -1,5 +1,7 @@
 package com.limelight.binding.input.driver;
 
+import java.util.Locale;
+
 public abstract class AbstractController {
 
     private final int deviceId;
@@ -15,6 +17,9 @@ public abstract class AbstractController {
     protected short capabilities;
     protected byte type;
 
+    // When the input being reported was read from the device, from System.nanoTime()
+    protected long inputTimeNs;
+
     public int getControllerId() {
         return deviceId;
     }
@@ -35,6 +40,11 @@ public abstract class AbstractController {
         return capabilities;
     }
 
+    // Shown to the user to tell controllers apart
+    public String getDisplayName() {
+        return String.format(Locale.ROOT, "%04x:%04x", vendorId, productId);
+    }
+
     public byte getType() {
         return type;
     }
@@ -48,9 +58,30 @@ public abstract class AbstractController {
         }
     }
 
+    // Input reports per second, measured over windows of about a second while the
+    // controller is sending input
+    private static final long REPORT_RATE_WINDOW_NS = 1000000000L;
+    private long reportRateWindowStartNs;
+    private int reportRateWindowReports;
+    private volatile int reportRate;
+
+    public int getReportRate() {
+        return reportRate;
+    }
+
     protected void reportInput() {
+        long now = System.nanoTime();
+        if (reportRateWindowReports++ == 0) {
+            reportRateWindowStartNs = now;
+        }
+        else if (now - reportRateWindowStartNs >= REPORT_RATE_WINDOW_NS) {
+            reportRate = (int) ((reportRateWindowReports - 1) * 1000000000L / (now - reportRateWindowStartNs));
+            reportRateWindowReports = 1;
+            reportRateWindowStartNs = now;
+        }
+
         listener.reportControllerState(deviceId, buttonFlags, leftStickX, leftStickY,
-                rightStickX, rightStickY, leftTrigger, rightTrigger);
+                rightStickX, rightStickY, leftTrigger, rightTrigger, inputTimeNs);
     }
 
     public abstract boolean start();
@@ -1,10 +1,13 @@
 package com.limelight.binding.input.driver;
 
+import android.annotation.TargetApi;
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
 import android.os.SystemClock;
 
 import com.limelight.LimeLog;
@@ -13,6 +16,7 @@ import com.limelight.nvstream.jni.MoonBridge;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.TimeoutException;
 
 public abstract class AbstractXboxController extends AbstractController {
     protected final UsbDevice device;
@@ -21,6 +25,10 @@ public abstract class AbstractXboxController extends AbstractController {
     private Thread inputThread;
     private boolean stopped;
 
+    // Number of input transfers kept in flight when queued input transfers are enabled
+    private static final int QUEUED_INPUT_TRANSFERS = 4;
+    private boolean queuedInputTransfers;
+
     protected UsbEndpoint inEndpt, outEndpt;
 
     public AbstractXboxController(UsbDevice device, UsbDeviceConnection connection, int deviceId, UsbDriverListener listener) {
@@ -54,46 +62,134 @@ public abstract class AbstractXboxController extends AbstractController {
                 // Report that we're added _before_ reporting input
                 notifyDeviceAdded();
 
-                while (!isInterrupted() && !stopped) {
-                    byte[] buffer = new byte[64];
-
-                    int res;
-
-                    //
-                    // There's no way that I can tell to determine if a device has failed
-                    // or if the timeout has simply expired. We'll check how long the transfer
-                    // took to fail and assume the device failed if it happened before the timeout
-                    // expired.
-                    //
-
-                    do {
-                        // Read the next input state packet
-                        long lastMillis = SystemClock.uptimeMillis();
-                        res = connection.bulkTransfer(inEndpt, buffer, buffer.length, 3000);
-
-                        // If we get a zero length response, treat it as an error
-                        if (res == 0) {
-                            res = -1;
-                        }
-
-                        if (res == -1 && SystemClock.uptimeMillis() - lastMillis < 1000) {
-                            LimeLog.warning("Detected device I/O error");
-                            AbstractXboxController.this.stop();
-                            break;
-                        }
-                    } while (res == -1 && !isInterrupted() && !stopped);
-
-                    if (res == -1 || stopped) {
-                        break;
+                if (!queuedInputTransfers || !readQueuedInput()) {
+                    readInput();
+                }
+            }
+        };
+    }
+
+    // Must be called before start()
+    public void setQueuedInputTransfers(boolean enabled) {
+        // UsbRequest can't tell us how much data was transferred before Android O
+        queuedInputTransfers = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    private void readInput() {
+        byte[] buffer = new byte[64];
+        ByteBuffer wrappedBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (!Thread.currentThread().isInterrupted() && !stopped) {
+            int res;
+
+            //
+            // There's no way that I can tell to determine if a device has failed
+            // or if the timeout has simply expired. We'll check how long the transfer
+            // took to fail and assume the device failed if it happened before the timeout
+            // expired.
+            //
+
+            do {
+                // Read the next input state packet
+                long lastMillis = SystemClock.uptimeMillis();
+                res = connection.bulkTransfer(inEndpt, buffer, buffer.length, 3000);
+
+                // If we get a zero length response, treat it as an error
+                if (res == 0) {
+                    res = -1;
+                }
+
+                if (res == -1 && SystemClock.uptimeMillis() - lastMillis < 1000) {
+                    LimeLog.warning("Detected device I/O error");
+                    AbstractXboxController.this.stop();
+                    break;
+                }
+            } while (res == -1 && !Thread.currentThread().isInterrupted() && !stopped);
+
+            if (res == -1 || stopped) {
+                break;
+            }
+
+            inputTimeNs = System.nanoTime();
+            wrappedBuffer.clear();
+            wrappedBuffer.limit(res);
+            if (handleRead(wrappedBuffer)) {
+                // Report input if handleRead() returns true
+                reportInput();
+            }
+        }
+    }
+
+    // Keeps several input transfers queued, so the controller always has somewhere to put
+    // its next report while we're processing the last one. Returns false if the transfers
+    // couldn't be set up, in which case the caller should fall back to readInput().
+    @TargetApi(Build.VERSION_CODES.O)
+    private boolean readQueuedInput() {
+        UsbRequest[] requests = new UsbRequest[QUEUED_INPUT_TRANSFERS];
+        try {
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = new UsbRequest();
+                if (!requests[i].initialize(connection, inEndpt)) {
+                    LimeLog.warning("Unable to initialize USB request");
+                    requests[i] = null;
+                    return false;
+                }
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(64, inEndpt.getMaxPacketSize()))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                requests[i].setClientData(buffer);
+                if (!requests[i].queue(buffer)) {
+                    LimeLog.warning("Unable to queue USB request");
+                    return false;
+                }
+            }
+
+            while (!Thread.currentThread().isInterrupted() && !stopped) {
+                UsbRequest request;
+                try {
+                    // Time out periodically to check if we've been stopped
+                    request = connection.requestWait(1000);
+                } catch (TimeoutException e) {
+                    continue;
+                }
+
+                if (request == null) {
+                    if (!stopped) {
+                        LimeLog.warning("Detected device I/O error");
+                        AbstractXboxController.this.stop();
                     }
+                    break;
+                }
+
+                inputTimeNs = System.nanoTime();
+
+                // The buffer's position is the amount of data transferred
+                ByteBuffer buffer = (ByteBuffer) request.getClientData();
+                buffer.flip();
+                if (buffer.hasRemaining() && handleRead(buffer)) {
+                    // Report input if handleRead() returns true
+                    reportInput();
+                }
 
-                    if (handleRead(ByteBuffer.wrap(buffer, 0, res).order(ByteOrder.LITTLE_ENDIAN))) {
-                        // Report input if handleRead() returns true
-                        reportInput();
+                buffer.clear();
+                if (!request.queue(buffer)) {
+                    if (!stopped) {
+                        LimeLog.warning("Unable to queue USB request");
+                        AbstractXboxController.this.stop();
                     }
+                    break;
                 }
             }
-        };
+
+            return true;
+        } finally {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.cancel();
+                    request.close();
+                }
+            }
+        }
     }
 
     public boolean start() {
@@ -10,13 +10,15 @@ import android.bluetooth.BluetoothGattService;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+import com.limelight.BuildConfig;
 import com.limelight.LimeLog;
 import com.limelight.nvstream.input.ControllerPacket;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Locale;
 import java.util.UUID;
 
 public class SteamController extends AbstractController {
@@ -103,7 +105,8 @@ public class SteamController extends AbstractController {
 
             if (characteristic.getUuid().equals(inputCharacteristic)) {
                 //mManager.HIDDeviceInputReport(getId(), characteristic.getValue());
-                handleRead(ByteBuffer.wrap(characteristic.getValue()));
+                inputTimeNs = System.nanoTime();
+                handleRead(characteristic.getValue());
             }
         }
 
@@ -181,6 +184,11 @@ public class SteamController extends AbstractController {
         }
     }
 
+    @Override
+    public String getDisplayName() {
+        return "Steam Controller";
+    }
+
     public String getIdentifier() {
         return String.format("SteamController.%s", mDevice.getAddress());
     }
@@ -192,76 +200,125 @@ public class SteamController extends AbstractController {
     private static final int BLELeftTrackpadChunk = 0x100;
     private static final int BLERightTrackpadChunk = 0x200;
 
-    protected void handleRead(ByteBuffer buffer) {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.get(); // skip first byte
-
-        int type = Byte.toUnsignedInt(buffer.get()) | Byte.toUnsignedInt(buffer.get()) << 8;
-        if((type & BLEButtonChunk1) != 0)
-        {
-            byte[] buttons = new byte[3];
-            buffer.get(buttons);
-
-            long b = Byte.toUnsignedLong(buttons[0]) | Byte.toUnsignedLong(buttons[1]) << 8 | Byte.toUnsignedLong(buttons[2]) << 16;
-            setButtonFlag(ControllerPacket.RS_CLK_FLAG, (int) (b & 0x00000001));
-            setButtonFlag(ControllerPacket.LS_CLK_FLAG, (int) (b & 0x00000002));
-
-            setButtonFlag(ControllerPacket.RB_FLAG, (int) (b & 0x00000004));
-            setButtonFlag(ControllerPacket.LB_FLAG, (int) (b & 0x00000008));
+    // Only used for debug logging of input reports
+    private static final int DEBUG_LOG_INTERVAL_MS = 1000;
+    private long lastDebugLogTimeMs;
 
-            setButtonFlag(ControllerPacket.Y_FLAG, (int) (b & 0x00000010));
-            setButtonFlag(ControllerPacket.B_FLAG, (int) (b & 0x00000020));
-            setButtonFlag(ControllerPacket.X_FLAG, (int) (b & 0x00000040));
-            setButtonFlag(ControllerPacket.A_FLAG, (int) (b & 0x00000080));
-
-            setButtonFlag(ControllerPacket.UP_FLAG, (int) (b & 0x00000100));
-            setButtonFlag(ControllerPacket.RIGHT_FLAG, (int) (b & 0x00000200));
-            setButtonFlag(ControllerPacket.LEFT_FLAG, (int) (b & 0x00000400));
-            setButtonFlag(ControllerPacket.DOWN_FLAG, (int) (b & 0x00000800));
+    // This runs for every input report on the Bluetooth callback thread, so it must not
+    // allocate or log anything unless we're debugging.
+    private void handleRead(byte[] report) {
+        if (report.length < 3) {
+            return;
+        }
 
-            setButtonFlag(ControllerPacket.BACK_FLAG, (int) (b & 0x00001000));
-            setButtonFlag(ControllerPacket.SPECIAL_BUTTON_FLAG, (int) (b & 0x00002000));
-            setButtonFlag(ControllerPacket.PLAY_FLAG, (int) (b & 0x00004000));
+        // The first byte is skipped. The chunks present in the report follow the
+        // report type in the order of their bits.
+        int type = readUnsignedByte(report, 1) | readUnsignedByte(report, 2) << 8;
+        int length = 3;
+        if ((type & BLEButtonChunk1) != 0) {
+            length += 3;
+        }
+        if ((type & BLEButtonChunk2) != 0) {
+            length += 2;
+        }
+        if ((type & BLEButtonChunk3) != 0) {
+            length += 3;
+        }
+        if ((type & BLELeftJoystickChunk) != 0) {
+            length += 4;
+        }
+        if ((type & BLELeftTrackpadChunk) != 0) {
+            length += 4;
+        }
+        if ((type & BLERightTrackpadChunk) != 0) {
+            length += 4;
+        }
+        if (report.length < length) {
+            // Don't apply part of a truncated report
+            return;
+        }
 
-            LimeLog.info("Buttons: "+Long.toBinaryString(b));
+        int offset = 3;
+        if((type & BLEButtonChunk1) != 0)
+        {
+            int b = readUnsignedByte(report, offset) |
+                    readUnsignedByte(report, offset + 1) << 8 |
+                    readUnsignedByte(report, offset + 2) << 16;
+            offset += 3;
+
+            setButtonFlag(ControllerPacket.RS_CLK_FLAG, b & 0x00000001);
+            setButtonFlag(ControllerPacket.LS_CLK_FLAG, b & 0x00000002);
+
+            setButtonFlag(ControllerPacket.RB_FLAG, b & 0x00000004);
+            setButtonFlag(ControllerPacket.LB_FLAG, b & 0x00000008);
+
+            setButtonFlag(ControllerPacket.Y_FLAG, b & 0x00000010);
+            setButtonFlag(ControllerPacket.B_FLAG, b & 0x00000020);
+            setButtonFlag(ControllerPacket.X_FLAG, b & 0x00000040);
+            setButtonFlag(ControllerPacket.A_FLAG, b & 0x00000080);
+
+            setButtonFlag(ControllerPacket.UP_FLAG, b & 0x00000100);
+            setButtonFlag(ControllerPacket.RIGHT_FLAG, b & 0x00000200);
+            setButtonFlag(ControllerPacket.LEFT_FLAG, b & 0x00000400);
+            setButtonFlag(ControllerPacket.DOWN_FLAG, b & 0x00000800);
+
+            setButtonFlag(ControllerPacket.BACK_FLAG, b & 0x00001000);
+            setButtonFlag(ControllerPacket.SPECIAL_BUTTON_FLAG, b & 0x00002000);
+            setButtonFlag(ControllerPacket.PLAY_FLAG, b & 0x00004000);
         }
         if((type & BLEButtonChunk2) != 0)
         {
-            int left = Byte.toUnsignedInt(buffer.get());
-            int right = Byte.toUnsignedInt(buffer.get());
-            LimeLog.info("Triggers: "+left+" | "+right);
-            leftTrigger = left/255.0f;
-            rightTrigger = right/255.0f;
+            leftTrigger = readUnsignedByte(report, offset) / 255.0f;
+            rightTrigger = readUnsignedByte(report, offset + 1) / 255.0f;
+            offset += 2;
         }
         if((type & BLEButtonChunk3) != 0)
         {
-            byte[] buttons = new byte[3];
-            buffer.get(buttons);
+            // Unused
+            offset += 3;
         }
         if((type & BLELeftJoystickChunk) != 0)
         {
-            int x = buffer.getShort();
-            int y = ~buffer.getShort();
-            LimeLog.info("Joystick: "+x+" | "+y);
+            int x = readShort(report, offset);
+            int y = ~readShort(report, offset + 2);
+            offset += 4;
             leftStickX = x / (float)Short.MAX_VALUE;
             leftStickY = y / (float)Short.MAX_VALUE;
         }
         if((type & BLELeftTrackpadChunk) != 0)
         {
-            buffer.getShort();
-            buffer.getShort();
+            // Unused
+            offset += 4;
         }
         if((type & BLERightTrackpadChunk) != 0)
         {
-            int x = buffer.getShort();
-            int y = ~buffer.getShort();
-            LimeLog.info("Right Pad: "+x+" | "+y);
+            int x = readShort(report, offset);
+            int y = ~readShort(report, offset + 2);
             rightStickX = x / (float)Short.MAX_VALUE;
             rightStickY = y / (float)Short.MAX_VALUE;
         }
 
         reportInput();
 
+        if (BuildConfig.DEBUG) {
+            long now = SystemClock.uptimeMillis();
+            if (now - lastDebugLogTimeMs >= DEBUG_LOG_INTERVAL_MS) {
+                lastDebugLogTimeMs = now;
+                LimeLog.info(String.format(Locale.ROOT, "Steam Controller: %d reports/s, buttons %x, triggers %.2f/%.2f, " +
+                                "left stick %.2f/%.2f, right pad %.2f/%.2f",
+                        getReportRate(), buttonFlags, leftTrigger, rightTrigger,
+                        leftStickX, leftStickY, rightStickX, rightStickY));
+            }
+        }
+    }
+
+    private static int readUnsignedByte(byte[] report, int offset) {
+        return report[offset] & 0xFF;
+    }
+
+    private static short readShort(byte[] report, int offset) {
+        // Little endian
+        return (short) (readUnsignedByte(report, offset) | readUnsignedByte(report, offset + 1) << 8);
     }
 
     @Override
@@ -409,7 +466,9 @@ public class SteamController extends AbstractController {
 
             // Our operation failed, let's add it back to the beginning of our queue.
             if (!result) {
-                mOperations.addFirst(op);
+                synchronized (mOperations) {
+                    mOperations.addFirst(op);
+                }
             }
         }
         executeNextGattOperation();
@@ -443,7 +502,21 @@ public class SteamController extends AbstractController {
     }
     private void queueGattOperation(GattOperation op) {
         synchronized (mOperations) {
-            mOperations.add(op);
+            if (op.mOp == GattOperation.Operation.ENABLE_NOTIFICATION) {
+                // We get no input until notifications are enabled, so that goes ahead of
+                // any reads and writes that haven't started yet
+                ListIterator<GattOperation> it = mOperations.listIterator();
+                while (it.hasNext()) {
+                    if (it.next().mOp != GattOperation.Operation.ENABLE_NOTIFICATION) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(op);
+            }
+            else {
+                mOperations.add(op);
+            }
         }
         executeNextGattOperation();
     }
@@ -4,7 +4,8 @@ public interface UsbDriverListener {
     void reportControllerState(int controllerId, int buttonFlags,
                                float leftStickX, float leftStickY,
                                float rightStickX, float rightStickY,
-                               float leftTrigger, float rightTrigger);
+                               float leftTrigger, float rightTrigger,
+                               long inputTimeNs);
 
     void deviceRemoved(AbstractController controller);
     void deviceAdded(AbstractController controller);
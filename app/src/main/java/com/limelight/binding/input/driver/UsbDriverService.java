@@ -43,10 +43,11 @@ public class UsbDriverService extends Service implements UsbDriverListener {
 
     @Override
     public void reportControllerState(int controllerId, int buttonFlags, float leftStickX, float leftStickY,
-                                      float rightStickX, float rightStickY, float leftTrigger, float rightTrigger) {
+                                      float rightStickX, float rightStickY, float leftTrigger, float rightTrigger,
+                                      long inputTimeNs) {
         // Call through to the client's listener
         if (listener != null) {
-            listener.reportControllerState(controllerId, buttonFlags, leftStickX, leftStickY, rightStickX, rightStickY, leftTrigger, rightTrigger);
+            listener.reportControllerState(controllerId, buttonFlags, leftStickX, leftStickY, rightStickX, rightStickY, leftTrigger, rightTrigger, inputTimeNs);
         }
     }
 
@@ -198,6 +199,10 @@ public class UsbDriverService extends Service implements UsbDriverListener {
                 return;
             }
 
+            if (controller instanceof AbstractXboxController) {
+                ((AbstractXboxController) controller).setQueuedInputTransfers(prefConfig.usbQueuedTransfers);
+            }
+
             // Start the controller
             if (!controller.start()) {
                 connection.close();
@@ -0,0 +1,169 @@
+package com.limelight.binding.video;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.limelight.BuildConfig;
+import com.limelight.LimeLog;
+import com.limelight.nvstream.av.video.DecodeUnitCapture;
+import com.limelight.nvstream.av.video.DecoderBenchmark;
+import com.limelight.nvstream.av.video.DecoderRanking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+// Runs DecoderBenchmark on every decoder we'd be willing to use and persists the resulting
+// ranking for MediaCodecHelper. The ranking is only valid for the OS build and app version
+// that produced it, like the decoder capability index.
+//
+// Benchmark clips are decode unit captures. We use the clips bundled in our assets if there
+// are any, and fall back to the newest capture the user recorded for each video format.
+public class DecoderBenchmarkRunner {
+    private static final String PREF_NAME = "DecoderRanking";
+    private static final String BUILD_PREF_STRING = "Build";
+    private static final String RANKING_PREF_STRING = "Ranking";
+
+    private static final String CLIP_ASSET_DIR = "decoder_benchmark";
+
+    // About 3 seconds of video at 60 FPS
+    private static final int MAX_CLIP_FRAMES = 180;
+
+    private static String getBuildKey() {
+        return Build.FINGERPRINT + "/" + BuildConfig.VERSION_CODE;
+    }
+
+    private static File getCaptureDir(Context context) {
+        File captureDir = context.getExternalFilesDir("captures");
+        if (captureDir == null) {
+            captureDir = new File(context.getFilesDir(), "captures");
+        }
+        return captureDir;
+    }
+
+    // Cheap check for whether run() has anything to benchmark with. This doesn't parse the
+    // clips, so run() can still come up empty if every capture is unreadable.
+    public static boolean hasClips(Context context) {
+        try {
+            String[] assetNames = context.getAssets().list(CLIP_ASSET_DIR);
+            if (assetNames != null && assetNames.length != 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        File[] captureFiles = getCaptureDir(context).listFiles();
+        if (captureFiles != null) {
+            for (File captureFile : captureFiles) {
+                if (captureFile.getName().endsWith(DecodeUnitCapture.FILE_EXTENSION)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // Returns null if the decoders haven't been benchmarked on this build
+    public static DecoderRanking loadRanking(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, 0);
+        if (!getBuildKey().equals(prefs.getString(BUILD_PREF_STRING, null))) {
+            return null;
+        }
+
+        return DecoderRanking.deserialize(prefs.getString(RANKING_PREF_STRING, ""));
+    }
+
+    // Benchmarks all candidate decoders and saves the ranking. This takes a while, so it must
+    // not be called on the UI thread. MediaCodecHelper must be initialized first. Returns the
+    // new ranking, or null if there were no clips to benchmark with.
+    public static DecoderRanking run(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // MediaCodecDecoderDriver requires the Lollipop buffer APIs
+            LimeLog.warning("Decoder benchmark requires Android 5.0 or later");
+            return null;
+        }
+
+        List<DecoderBenchmark.Clip> clips = loadClips(context);
+        if (clips.isEmpty()) {
+            LimeLog.warning("No decoder benchmark clips available");
+            return null;
+        }
+
+        ArrayList<DecoderBenchmark.Result> results = new ArrayList<>();
+        for (DecoderBenchmark.Clip clip : clips) {
+            for (String decoderName : MediaCodecHelper.getCandidateDecoders(clip.mimeType, -1)) {
+                results.add(DecoderBenchmark.run(new MediaCodecDecoderDriver(decoderName), clip));
+            }
+        }
+
+        DecoderRanking ranking = new DecoderRanking(results);
+        context.getSharedPreferences(PREF_NAME, 0).edit()
+                .putString(BUILD_PREF_STRING, getBuildKey())
+                .putString(RANKING_PREF_STRING, ranking.serialize())
+                .apply();
+        MediaCodecHelper.setDecoderRanking(ranking);
+
+        return ranking;
+    }
+
+    // Returns at most one clip per video format
+    private static List<DecoderBenchmark.Clip> loadClips(Context context) {
+        HashMap<String, DecoderBenchmark.Clip> clips = new HashMap<>();
+
+        try {
+            String[] assetNames = context.getAssets().list(CLIP_ASSET_DIR);
+            if (assetNames != null) {
+                for (String assetName : assetNames) {
+                    try (InputStream in = context.getAssets().open(CLIP_ASSET_DIR + "/" + assetName)) {
+                        addClip(clips, DecodeUnitCapture.readBenchmarkClip(in, MAX_CLIP_FRAMES));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        File[] captureFiles = getCaptureDir(context).listFiles();
+        if (captureFiles != null) {
+            // Newest captures first, since older ones may have been recorded with different settings
+            Arrays.sort(captureFiles, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+
+            for (File captureFile : captureFiles) {
+                if (!captureFile.getName().endsWith(DecodeUnitCapture.FILE_EXTENSION)) {
+                    continue;
+                }
+
+                try (InputStream in = new FileInputStream(captureFile)) {
+                    addClip(clips, DecodeUnitCapture.readBenchmarkClip(in, MAX_CLIP_FRAMES));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return new ArrayList<>(clips.values());
+    }
+
+    private static void addClip(HashMap<String, DecoderBenchmark.Clip> clips, DecoderBenchmark.Clip clip) {
+        // Keep the first usable clip we find for each format
+        if (clip != null && clip.getPictureFrameCount() != 0 && !clips.containsKey(clip.mimeType)) {
+            LimeLog.info("Decoder benchmark clip: "+clip.mimeType+" "+clip.width+"x"+clip.height+
+                    " ("+clip.getPictureFrameCount()+" frames)");
+            clips.put(clip.mimeType, clip);
+        }
+    }
+}
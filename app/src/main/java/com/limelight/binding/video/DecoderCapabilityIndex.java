@@ -0,0 +1,409 @@
+package com.limelight.binding.video;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.os.Build;
+import android.util.Range;
+
+import com.limelight.BuildConfig;
+import com.limelight.LimeLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+// Stores the answers to the MediaCodecList queries we make when choosing a decoder, so we don't
+// have to enumerate and interrogate every codec on the device each time a stream starts or the
+// settings are opened. The index is persisted and keyed by the build fingerprint and app version,
+// since an OS update can change the codecs and an app update can change what we ask of them.
+//
+// Answers that are expensive to compute (like whether a decoder can meet a performance point)
+// are filled in lazily the first time they're asked for and persisted along with the index.
+public class DecoderCapabilityIndex {
+    private static final String INDEX_FILE_NAME = "decoder_capabilities.json";
+
+    // Bump this when the contents of the index change
+    private static final int INDEX_FORMAT_VERSION = 1;
+
+    private static DecoderCapabilityIndex instance;
+
+    private final File indexFile;
+    private final String buildKey;
+    private final List<Decoder> decoders;
+    private final HashMap<String, Boolean> lazyAnswers;
+
+    public static class Decoder {
+        public final String name;
+        public final boolean alias;
+        public final boolean softwareOnly;
+        public final boolean hardwareAccelerated;
+
+        private final HashMap<String, MediaType> mediaTypes = new HashMap<>();
+
+        private Decoder(String name, boolean alias, boolean softwareOnly, boolean hardwareAccelerated) {
+            this.name = name;
+            this.alias = alias;
+            this.softwareOnly = softwareOnly;
+            this.hardwareAccelerated = hardwareAccelerated;
+        }
+
+        // Returns null if this decoder doesn't support the specified MIME type
+        public MediaType getMediaType(String mimeType) {
+            return mediaTypes.get(mimeType.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    public static class MediaType {
+        public final String mimeType;
+
+        // Set if getCapabilitiesForType() threw for this MIME type. None of
+        // the other fields are valid in that case.
+        public final boolean capabilitiesUnavailable;
+
+        public final int[] profiles;
+        public final boolean lowLatency;
+        public final boolean adaptivePlayback;
+        public final int maxSupportedInstances;
+
+        // Only valid on Lollipop and later. Zero if unknown.
+        public final int minWidth;
+        public final int maxWidth;
+
+        private MediaType(String mimeType, boolean capabilitiesUnavailable, int[] profiles,
+                          boolean lowLatency, boolean adaptivePlayback, int maxSupportedInstances,
+                          int minWidth, int maxWidth) {
+            this.mimeType = mimeType;
+            this.capabilitiesUnavailable = capabilitiesUnavailable;
+            this.profiles = profiles;
+            this.lowLatency = lowLatency;
+            this.adaptivePlayback = adaptivePlayback;
+            this.maxSupportedInstances = maxSupportedInstances;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+        }
+
+        public boolean supportsProfile(int profile) {
+            for (int supportedProfile : profiles) {
+                if (supportedProfile == profile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isWidthKnown() {
+            return maxWidth != 0;
+        }
+    }
+
+    private DecoderCapabilityIndex(File indexFile, String buildKey, List<Decoder> decoders, HashMap<String, Boolean> lazyAnswers) {
+        this.indexFile = indexFile;
+        this.buildKey = buildKey;
+        this.decoders = decoders;
+        this.lazyAnswers = lazyAnswers;
+    }
+
+    // Returns the index for this device, loading it from disk or building it if necessary.
+    // This may block for a while if the index must be built, so prefetch() should be used to
+    // get that out of the way early.
+    public static synchronized DecoderCapabilityIndex get(Context context) {
+        if (instance != null) {
+            return instance;
+        }
+
+        File indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+        String buildKey = Build.FINGERPRINT + "/" + BuildConfig.VERSION_CODE + "/" + INDEX_FORMAT_VERSION;
+
+        long startTime = System.currentTimeMillis();
+        instance = load(indexFile, buildKey);
+        if (instance != null) {
+            LimeLog.info("Loaded decoder capability index in "+(System.currentTimeMillis() - startTime)+" ms");
+        }
+        else {
+            instance = build(indexFile, buildKey);
+            LimeLog.info("Built decoder capability index in "+(System.currentTimeMillis() - startTime)+" ms");
+            instance.saveAsync();
+        }
+
+        return instance;
+    }
+
+    // Loads (or rebuilds, if it's missing or stale) the index in the background
+    public static void prefetch(Context context) {
+        final Context appContext = context.getApplicationContext();
+        new Thread("Decoder capability index") {
+            @Override
+            public void run() {
+                get(appContext);
+            }
+        }.start();
+    }
+
+    // Throws away the index, so it will be rebuilt the next time it's needed. This is used
+    // if the index doesn't match the codecs that are actually present.
+    public static synchronized void invalidate() {
+        if (instance != null) {
+            LimeLog.warning("Invalidating decoder capability index");
+            if (!instance.indexFile.delete()) {
+                LimeLog.warning("Unable to delete decoder capability index");
+            }
+            instance = null;
+        }
+    }
+
+    // Decoders are in MediaCodecList order, with encoders omitted
+    public List<Decoder> getDecoders() {
+        return decoders;
+    }
+
+    // Returns null if the decoder isn't in the index
+    public Decoder getDecoder(String name) {
+        for (Decoder decoder : decoders) {
+            if (decoder.name.equals(name)) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+
+    // Returns null if this question has not been answered yet
+    public synchronized Boolean getLazyAnswer(String key) {
+        return lazyAnswers.get(key);
+    }
+
+    public void putLazyAnswer(String key, boolean answer) {
+        synchronized (this) {
+            Boolean previousAnswer = lazyAnswers.put(key, answer);
+            if (previousAnswer != null && previousAnswer == answer) {
+                return;
+            }
+        }
+
+        saveAsync();
+    }
+
+    @SuppressLint("NewApi")
+    private static DecoderCapabilityIndex build(File indexFile, String buildKey) {
+        ArrayList<Decoder> decoders = new ArrayList<>();
+
+        for (MediaCodecInfo codecInfo : MediaCodecHelper.getMediaCodecList()) {
+            // Skip encoders
+            if (codecInfo.isEncoder()) {
+                continue;
+            }
+
+            Decoder decoder;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                decoder = new Decoder(codecInfo.getName(), codecInfo.isAlias(),
+                        codecInfo.isSoftwareOnly(), codecInfo.isHardwareAccelerated());
+            }
+            else {
+                decoder = new Decoder(codecInfo.getName(), false, false, true);
+            }
+
+            for (String mimeType : codecInfo.getSupportedTypes()) {
+                decoder.mediaTypes.put(mimeType.toLowerCase(Locale.ENGLISH), buildMediaType(codecInfo, mimeType));
+            }
+
+            decoders.add(decoder);
+        }
+
+        return new DecoderCapabilityIndex(indexFile, buildKey, Collections.unmodifiableList(decoders), new HashMap<String, Boolean>());
+    }
+
+    @SuppressLint("NewApi")
+    private static MediaType buildMediaType(MediaCodecInfo codecInfo, String mimeType) {
+        CodecCapabilities caps;
+        try {
+            caps = codecInfo.getCapabilitiesForType(mimeType);
+        } catch (Exception e) {
+            // Tolerate buggy codecs
+            e.printStackTrace();
+            return new MediaType(mimeType, true, new int[0], false, false, 0, 0, 0);
+        }
+
+        int[] profiles = new int[caps.profileLevels.length];
+        for (int i = 0; i < profiles.length; i++) {
+            CodecProfileLevel profileLevel = caps.profileLevels[i];
+            profiles[i] = profileLevel.profile;
+        }
+
+        boolean lowLatency = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
+                caps.isFeatureSupported(CodecCapabilities.FEATURE_LowLatency);
+        boolean adaptivePlayback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                caps.isFeatureSupported(CodecCapabilities.FEATURE_AdaptivePlayback);
+
+        int maxSupportedInstances = 0;
+        int minWidth = 0, maxWidth = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            maxSupportedInstances = caps.getMaxSupportedInstances();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && caps.getVideoCapabilities() != null) {
+            Range<Integer> widthRange = caps.getVideoCapabilities().getSupportedWidths();
+            minWidth = widthRange.getLower();
+            maxWidth = widthRange.getUpper();
+        }
+
+        return new MediaType(mimeType, false, profiles, lowLatency, adaptivePlayback,
+                maxSupportedInstances, minWidth, maxWidth);
+    }
+
+    private static DecoderCapabilityIndex load(File indexFile, String buildKey) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try (final InputStream in = new FileInputStream(indexFile)) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                contents.write(buffer, 0, bytesRead);
+            }
+
+            JSONObject json = new JSONObject(contents.toString("UTF-8"));
+            if (!buildKey.equals(json.getString("buildKey"))) {
+                LimeLog.info("Decoder capability index is stale");
+                return null;
+            }
+
+            ArrayList<Decoder> decoders = new ArrayList<>();
+            JSONArray decodersJson = json.getJSONArray("decoders");
+            for (int i = 0; i < decodersJson.length(); i++) {
+                JSONObject decoderJson = decodersJson.getJSONObject(i);
+                Decoder decoder = new Decoder(decoderJson.getString("name"),
+                        decoderJson.getBoolean("alias"),
+                        decoderJson.getBoolean("softwareOnly"),
+                        decoderJson.getBoolean("hardwareAccelerated"));
+
+                JSONArray typesJson = decoderJson.getJSONArray("types");
+                for (int j = 0; j < typesJson.length(); j++) {
+                    JSONObject typeJson = typesJson.getJSONObject(j);
+
+                    JSONArray profilesJson = typeJson.getJSONArray("profiles");
+                    int[] profiles = new int[profilesJson.length()];
+                    for (int k = 0; k < profiles.length; k++) {
+                        profiles[k] = profilesJson.getInt(k);
+                    }
+
+                    String mimeType = typeJson.getString("mimeType");
+                    decoder.mediaTypes.put(mimeType.toLowerCase(Locale.ENGLISH), new MediaType(mimeType,
+                            typeJson.getBoolean("capabilitiesUnavailable"),
+                            profiles,
+                            typeJson.getBoolean("lowLatency"),
+                            typeJson.getBoolean("adaptivePlayback"),
+                            typeJson.getInt("maxSupportedInstances"),
+                            typeJson.getInt("minWidth"),
+                            typeJson.getInt("maxWidth")));
+                }
+
+                decoders.add(decoder);
+            }
+
+            HashMap<String, Boolean> lazyAnswers = new HashMap<>();
+            JSONObject answersJson = json.getJSONObject("lazyAnswers");
+            JSONArray answerKeys = answersJson.names();
+            if (answerKeys != null) {
+                for (int i = 0; i < answerKeys.length(); i++) {
+                    String key = answerKeys.getString(i);
+                    lazyAnswers.put(key, answersJson.getBoolean(key));
+                }
+            }
+
+            return new DecoderCapabilityIndex(indexFile, buildKey, Collections.unmodifiableList(decoders), lazyAnswers);
+        } catch (IOException | JSONException e) {
+            // We'll just rebuild it
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("buildKey", buildKey);
+
+        JSONArray decodersJson = new JSONArray();
+        for (Decoder decoder : decoders) {
+            JSONObject decoderJson = new JSONObject();
+            decoderJson.put("name", decoder.name);
+            decoderJson.put("alias", decoder.alias);
+            decoderJson.put("softwareOnly", decoder.softwareOnly);
+            decoderJson.put("hardwareAccelerated", decoder.hardwareAccelerated);
+
+            JSONArray typesJson = new JSONArray();
+            for (MediaType mediaType : decoder.mediaTypes.values()) {
+                JSONObject typeJson = new JSONObject();
+                typeJson.put("mimeType", mediaType.mimeType);
+                typeJson.put("capabilitiesUnavailable", mediaType.capabilitiesUnavailable);
+
+                JSONArray profilesJson = new JSONArray();
+                for (int profile : mediaType.profiles) {
+                    profilesJson.put(profile);
+                }
+                typeJson.put("profiles", profilesJson);
+
+                typeJson.put("lowLatency", mediaType.lowLatency);
+                typeJson.put("adaptivePlayback", mediaType.adaptivePlayback);
+                typeJson.put("maxSupportedInstances", mediaType.maxSupportedInstances);
+                typeJson.put("minWidth", mediaType.minWidth);
+                typeJson.put("maxWidth", mediaType.maxWidth);
+                typesJson.put(typeJson);
+            }
+            decoderJson.put("types", typesJson);
+
+            decodersJson.put(decoderJson);
+        }
+        json.put("decoders", decodersJson);
+
+        JSONObject answersJson = new JSONObject();
+        for (HashMap.Entry<String, Boolean> answer : lazyAnswers.entrySet()) {
+            answersJson.put(answer.getKey(), answer.getValue().booleanValue());
+        }
+        json.put("lazyAnswers", answersJson);
+
+        return json;
+    }
+
+    private void saveAsync() {
+        new Thread("Decoder capability index - Save") {
+            @Override
+            public void run() {
+                save();
+            }
+        }.start();
+    }
+
+    private void save() {
+        // Write to a temporary file first, so we never leave a partially written index behind
+        synchronized (DecoderCapabilityIndex.class) {
+            File tempFile = new File(indexFile.getPath() + ".tmp");
+            try (final OutputStream out = new FileOutputStream(tempFile)) {
+                out.write(toJson().toString().getBytes("UTF-8"));
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            // If we've been invalidated since this save was started, don't bring the index back
+            if (instance != this || !tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.limelight.binding.video;
+
+import android.os.Debug;
+
+import com.limelight.BuildConfig;
+import com.limelight.LimeLog;
+
+// Counts heap allocations made by a single thread over a fixed number of frames. This is
+// only active in debug builds and is used to verify that our per-frame paths don't allocate
+// anything in steady state. Each instance must only be used by one thread.
+@SuppressWarnings("deprecation")
+class FrameAllocationCounter {
+    static final boolean ENABLED = BuildConfig.DEBUG;
+
+    private static final int FRAMES_PER_REPORT = 1000;
+
+    private final String name;
+    private int frames;
+    private int allocationsAtWindowStart = -1;
+
+    FrameAllocationCounter(String name) {
+        this.name = name;
+    }
+
+    static void startCounting() {
+        if (ENABLED) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    static void stopCounting() {
+        if (ENABLED) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    void onFrame() {
+        if (!ENABLED) {
+            return;
+        }
+
+        if (allocationsAtWindowStart < 0) {
+            // First frame on this thread
+            allocationsAtWindowStart = Debug.getThreadAllocCount();
+            return;
+        }
+
+        if (++frames == FRAMES_PER_REPORT) {
+            int allocations = Debug.getThreadAllocCount() - allocationsAtWindowStart;
+            LimeLog.info(name + ": " + allocations + " allocations in " + frames + " frames");
+
+            // Start the next window after logging, so we don't count our own allocations
+            frames = 0;
+            allocationsAtWindowStart = Debug.getThreadAllocCount();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.limelight.binding.video;
+
+import android.os.Build;
+import android.os.Debug;
+
+// Samples the ART GC stats, which are collected in release builds too, for the perf overlay.
+// These cover the whole process, so they can only show the overall allocation rate. Use
+// FrameAllocationCounter in a debug build to check that a particular thread doesn't allocate.
+//
+// Samples must only be taken by one thread.
+class GcStatsSampler {
+    // Debug.getRuntimeStat() was added in Marshmallow
+    static final boolean SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+
+    private long lastBytesAllocated = -1;
+    private long lastGcCount;
+
+    // Deltas between the last two samples
+    private long windowBytesAllocated;
+    private long windowGcCount;
+
+    private static long getRuntimeStat(String statName) {
+        String value = Debug.getRuntimeStat(statName);
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Takes a sample of the GC stats. Returns true if there was an earlier sample to compute
+    // the window deltas from.
+    boolean sample() {
+        if (!SUPPORTED) {
+            return false;
+        }
+
+        long bytesAllocated = getRuntimeStat("art.gc.bytes-allocated");
+        long gcCount = getRuntimeStat("art.gc.gc-count");
+        if (bytesAllocated < 0 || gcCount < 0) {
+            return false;
+        }
+
+        boolean hasWindow = lastBytesAllocated >= 0;
+        windowBytesAllocated = bytesAllocated - lastBytesAllocated;
+        windowGcCount = gcCount - lastGcCount;
+        lastBytesAllocated = bytesAllocated;
+        lastGcCount = gcCount;
+        return hasWindow;
+    }
+
+    long getWindowBytesAllocated() {
+        return windowBytesAllocated;
+    }
+
+    long getWindowGcCount() {
+        return windowGcCount;
+    }
+}
@@ -0,0 +1,182 @@
+package com.limelight.binding.video;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Surface;
+
+import com.limelight.LimeLog;
+
+import java.io.IOException;
+
+// Keeps a second decoder instance configured and ready to take over if the active decoder
+// needs to be reset during codec recovery. A Surface can only be connected to one decoder at
+// a time, so the spare is configured against a dummy surface and moved to the real one with
+// setOutputSurface() when it's swapped in. The spare is never started until then.
+@TargetApi(Build.VERSION_CODES.M)
+class HotSpareDecoder {
+    // Rough number of frames a decoder instance allocates at the stream resolution
+    private static final int ESTIMATED_FRAMES_PER_INSTANCE = 16;
+
+    private final SurfaceTexture dummySurfaceTexture;
+    private final Surface dummySurface;
+    private final HandlerThread prepareThread;
+    private final Handler prepareHandler;
+
+    private final Object lock = new Object();
+    private MediaCodec spareDecoder;
+    private String spareDecoderName;
+    private String spareFormatString;
+    private boolean released;
+
+    HotSpareDecoder() {
+        dummySurfaceTexture = new SurfaceTexture(0);
+        dummySurface = new Surface(dummySurfaceTexture);
+
+        prepareThread = new HandlerThread("Video - Hot Spare", Process.THREAD_PRIORITY_BACKGROUND);
+        prepareThread.start();
+        prepareHandler = new Handler(prepareThread.getLooper());
+    }
+
+    // Returns true if this device can afford to keep two decoder instances around
+    static boolean isAffordable(Context context, MediaCodecInfo decoderInfo, String mimeType, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // setOutputSurface() is required to swap in the spare
+            return false;
+        }
+
+        int maxSupportedInstances = MediaCodecHelper.getDecoderMaxSupportedInstances(decoderInfo.getName(), mimeType);
+        if (maxSupportedInstances < 2) {
+            LimeLog.info("Hot spare decoder unavailable: "+decoderInfo.getName()+" supports "+
+                    maxSupportedInstances+" instance(s)");
+            return false;
+        }
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager.isLowRamDevice()) {
+            LimeLog.info("Hot spare decoder unavailable: low RAM device");
+            return false;
+        }
+
+        // Make sure the spare's buffers would still leave plenty of memory free. We assume
+        // 10-bit 4:2:0 frames to stay on the safe side.
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        long estimatedInstanceBytes = (long)width * height * 3 * ESTIMATED_FRAMES_PER_INSTANCE;
+        if (memoryInfo.lowMemory || memoryInfo.availMem - estimatedInstanceBytes < memoryInfo.threshold * 2) {
+            LimeLog.info("Hot spare decoder unavailable: "+(memoryInfo.availMem / (1024 * 1024))+
+                    " MB available, spare needs about "+(estimatedInstanceBytes / (1024 * 1024))+" MB");
+            return false;
+        }
+
+        return true;
+    }
+
+    // Creates and configures a new spare decoder in the background, replacing any existing
+    // spare. The callback is set prior to configuring the decoder, as required for async mode.
+    void prepare(final String decoderName, final MediaFormat format,
+                 final MediaCodec.Callback callback, final Handler callbackHandler) {
+        // The format may be modified later for a new decoder configuration, so we
+        // remember what it looked like when the spare was requested.
+        final String formatString = format.toString();
+
+        prepareHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+
+                MediaCodec decoder;
+                try {
+                    decoder = MediaCodec.createByCodecName(decoderName);
+                } catch (IOException | IllegalArgumentException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                try {
+                    if (callback != null) {
+                        decoder.setCallback(callback, callbackHandler);
+                    }
+                    decoder.configure(format, dummySurface, null, 0);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    e.printStackTrace();
+                    decoder.release();
+                    return;
+                }
+
+                synchronized (lock) {
+                    if (released) {
+                        decoder.release();
+                        return;
+                    }
+
+                    releaseSpareDecoder();
+                    spareDecoder = decoder;
+                    spareDecoderName = decoderName;
+                    spareFormatString = formatString;
+                }
+
+                LimeLog.info("Hot spare decoder ready in "+(System.currentTimeMillis() - startTime)+" ms");
+            }
+        });
+    }
+
+    // Returns the configured spare decoder if it's ready and matches the active decoder's
+    // configuration, or null otherwise. The caller takes ownership of the returned decoder.
+    MediaCodec take(String decoderName, MediaFormat format) {
+        synchronized (lock) {
+            if (spareDecoder == null) {
+                LimeLog.warning("Hot spare decoder is not ready");
+                return null;
+            }
+
+            if (!spareDecoderName.equals(decoderName) || !spareFormatString.equals(format.toString())) {
+                LimeLog.warning("Hot spare decoder configuration is stale");
+                releaseSpareDecoder();
+                return null;
+            }
+
+            MediaCodec decoder = spareDecoder;
+            spareDecoder = null;
+            return decoder;
+        }
+    }
+
+    void release() {
+        synchronized (lock) {
+            released = true;
+            releaseSpareDecoder();
+        }
+
+        // Wait for any pending preparation to finish with the dummy surface
+        prepareThread.quitSafely();
+        try {
+            prepareThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+        }
+
+        dummySurface.release();
+        dummySurfaceTexture.release();
+    }
+
+    private void releaseSpareDecoder() {
+        if (spareDecoder != null) {
+            spareDecoder.release();
+            spareDecoder = null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.limelight.binding.video;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.limelight.BuildConfig;
+
+// Remembers which low latency configuration try succeeded for each decoder, so later streams can
+// skip straight past the option sets that the decoder rejects. Entries are only valid for the OS
+// build and app version that recorded them. An OS update can change which options a decoder
+// accepts, and an app update can change the options each try number sets.
+class LowLatencyTryCache {
+    private static final String PREF_NAME = "LowLatencyTryCache";
+
+    private static final String BUILD_SUFFIX = "/Build";
+    private static final String TRY_NUMBER_SUFFIX = "/Try";
+    private static final String SAVED_TIME_SUFFIX = "/SavedMs";
+
+    private final SharedPreferences prefs;
+    private final String buildKey;
+
+    LowLatencyTryCache(Context context) {
+        this.prefs = context.getSharedPreferences(PREF_NAME, 0);
+        this.buildKey = Build.FINGERPRINT + "/" + BuildConfig.VERSION_CODE;
+    }
+
+    private static String getKey(String decoderName, String mimeType) {
+        return decoderName + "/" + mimeType;
+    }
+
+    // Returns 0 if we don't know of a successful try for this decoder
+    int getSuccessfulTry(String decoderName, String mimeType) {
+        String key = getKey(decoderName, mimeType);
+        if (!buildKey.equals(prefs.getString(key + BUILD_SUFFIX, null))) {
+            return 0;
+        }
+
+        return prefs.getInt(key + TRY_NUMBER_SUFFIX, 0);
+    }
+
+    // Returns the time that was spent on failed tries when the successful try was recorded
+    long getSavedConfigureTimeMs(String decoderName, String mimeType) {
+        return prefs.getLong(getKey(decoderName, mimeType) + SAVED_TIME_SUFFIX, 0);
+    }
+
+    void recordSuccessfulTry(String decoderName, String mimeType, int tryNumber, long failedTryTimeMs) {
+        String key = getKey(decoderName, mimeType);
+        prefs.edit()
+                .putString(key + BUILD_SUFFIX, buildKey)
+                .putInt(key + TRY_NUMBER_SUFFIX, tryNumber)
+                .putLong(key + SAVED_TIME_SUFFIX, failedTryTimeMs)
+                .apply();
+    }
+
+    void invalidate(String decoderName, String mimeType) {
+        String key = getKey(decoderName, mimeType);
+        prefs.edit()
+                .remove(key + BUILD_SUFFIX)
+                .remove(key + TRY_NUMBER_SUFFIX)
+                .remove(key + SAVED_TIME_SUFFIX)
+                .apply();
+    }
+}
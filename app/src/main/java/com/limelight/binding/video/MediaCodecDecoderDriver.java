@@ -0,0 +1,131 @@
+package com.limelight.binding.video;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import com.limelight.nvstream.av.video.DecoderBenchmark;
+import com.limelight.nvstream.av.video.DecoderDriver;
+
+import java.nio.ByteBuffer;
+
+// Drives a MediaCodec decoder for DecoderBenchmark. Frames are decoded to a dummy surface
+// and never rendered, since we only care how long the decoder takes to produce them.
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class MediaCodecDecoderDriver implements DecoderDriver {
+    private final String decoderName;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private SurfaceTexture dummySurfaceTexture;
+    private Surface dummySurface;
+    private MediaCodec decoder;
+    private boolean outputEnded;
+
+    MediaCodecDecoderDriver(String decoderName) {
+        this.decoderName = decoderName;
+    }
+
+    @Override
+    public String getName() {
+        return decoderName;
+    }
+
+    @Override
+    public void start(DecoderBenchmark.Clip clip) throws Exception {
+        dummySurfaceTexture = new SurfaceTexture(0);
+        dummySurface = new Surface(dummySurfaceTexture);
+
+        MediaCodecInfo decoderInfo = MediaCodecHelper.getDecoderInfo(decoderName);
+        if (decoderInfo == null) {
+            throw new IllegalStateException("Decoder not found: "+decoderName);
+        }
+
+        // Use the same low latency options a stream would get on its first try
+        MediaFormat format = MediaFormat.createVideoFormat(clip.mimeType, clip.width, clip.height);
+        MediaCodecHelper.setDecoderLowLatencyOptions(format, decoderInfo, 0);
+
+        decoder = MediaCodec.createByCodecName(decoderName);
+        try {
+            decoder.configure(format, dummySurface, null, 0);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // Some decoders reject those options, so try again without any
+            e.printStackTrace();
+            decoder.release();
+
+            decoder = MediaCodec.createByCodecName(decoderName);
+            decoder.configure(MediaFormat.createVideoFormat(clip.mimeType, clip.width, clip.height), dummySurface, null, 0);
+        }
+        decoder.start();
+    }
+
+    @Override
+    public boolean submitFrame(byte[] data, int length, long presentationTimeUs, boolean codecConfig) throws Exception {
+        int inputIndex = decoder.dequeueInputBuffer(0);
+        if (inputIndex < 0) {
+            return false;
+        }
+
+        ByteBuffer buffer = decoder.getInputBuffer(inputIndex);
+        buffer.clear();
+        buffer.put(data, 0, length);
+        decoder.queueInputBuffer(inputIndex, 0, length, presentationTimeUs,
+                codecConfig ? MediaCodec.BUFFER_FLAG_CODEC_CONFIG : 0);
+        return true;
+    }
+
+    @Override
+    public boolean signalEndOfStream() throws Exception {
+        int inputIndex = decoder.dequeueInputBuffer(0);
+        if (inputIndex < 0) {
+            return false;
+        }
+
+        decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    @Override
+    public long pollDecodedFrame(long timeoutUs) throws Exception {
+        if (outputEnded) {
+            return END_OF_STREAM;
+        }
+
+        int outputIndex = decoder.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        if (outputIndex < 0) {
+            // Includes format and buffer changes, which we don't care about
+            return -1;
+        }
+
+        decoder.releaseOutputBuffer(outputIndex, false);
+
+        // Some decoders set the end of stream flag on the last frame rather than an empty buffer
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            outputEnded = true;
+            if (bufferInfo.size == 0) {
+                return END_OF_STREAM;
+            }
+        }
+
+        return bufferInfo.presentationTimeUs;
+    }
+
+    @Override
+    public void release() {
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
+        if (dummySurface != null) {
+            dummySurface.release();
+            dummySurface = null;
+        }
+        if (dummySurfaceTexture != null) {
+            dummySurfaceTexture.release();
+            dummySurfaceTexture = null;
+        }
+    }
+}
@@ -3,26 +3,32 @@ package com.limelight.binding.video;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-import org.jcodec.codecs.h264.H264Utils;
-import org.jcodec.codecs.h264.io.model.SeqParameterSet;
-import org.jcodec.codecs.h264.io.model.VUIParameters;
 
 import com.limelight.BuildConfig;
 import com.limelight.LimeLog;
 import com.limelight.R;
+import com.limelight.nvstream.ConnectionTimeline;
+import com.limelight.nvstream.av.AvSyncMonitor;
+import com.limelight.nvstream.av.video.AdaptiveFramePacer;
+import com.limelight.nvstream.av.video.CsdCache;
+import com.limelight.nvstream.av.video.H264SpsPatcher;
+import com.limelight.nvstream.av.video.LatencyHistogram;
 import com.limelight.nvstream.av.video.VideoDecoderRenderer;
+import com.limelight.nvstream.av.video.VideoStats;
+import com.limelight.nvstream.av.video.VideoStatsFps;
 import com.limelight.nvstream.jni.MoonBridge;
 import com.limelight.preferences.PreferenceConfiguration;
+import com.limelight.utils.IntRingBuffer;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
+import android.hardware.display.DisplayManager;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
@@ -49,9 +55,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private MediaCodecInfo hevcDecoder;
     private MediaCodecInfo av1Decoder;
 
-    private final ArrayList<byte[]> vpsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> spsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> ppsBuffers = new ArrayList<>();
+    private CsdCache csdCache;
     private boolean submittedCsd;
     private byte[] currentHdrMetadata;
 
@@ -64,6 +68,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private Thread rendererThread;
     private boolean needsSpsBitstreamFixup, isExynos4;
     private boolean adaptivePlayback, directSubmit, fusedIdrFrame;
+    private boolean directInputBuffers;
+    private boolean asyncMode;
     private boolean constrainedHighProfile;
     private boolean refFrameInvalidationAvc, refFrameInvalidationHevc, refFrameInvalidationAv1;
     private byte optimalSlicesPerFrame;
@@ -96,12 +102,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private int codecRecoveryThreadQuiescedFlags = 0;
     private int codecRecoveryAttempts = 0;
 
+    // Codec recovery time metrics (excluding flushes)
+    private long codecRecoveryStartTimeMs;
+    private int codecRecoveries;
+    private int hotSpareCodecRecoveries;
+    private long totalCodecRecoveryTimeMs;
+    private long maxCodecRecoveryTimeMs;
+
     private MediaFormat inputFormat;
     private MediaFormat outputFormat;
     private MediaFormat configuredFormat;
 
     private boolean needsBaselineSpsHack;
-    private SeqParameterSet savedSps;
+    private H264SpsPatcher spsPatcher;
 
     private RendererException initialException;
     private long initialExceptionTimestamp;
@@ -110,17 +123,53 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private VideoStats activeWindowVideoStats;
     private VideoStats lastWindowVideoStats;
     private VideoStats globalVideoStats;
+    private final VideoStats perfOverlayVideoStats = new VideoStats();
+
+    // Decoder output times of recent frames, used to match OnFrameRenderedListener
+    // callbacks with the time each frame left the decoder
+    private static final int OUTPUT_TIME_HISTORY_SIZE = 16;
+    private final long[] outputPresentationTimesUs = new long[OUTPUT_TIME_HISTORY_SIZE];
+    private final long[] outputTimesNs = new long[OUTPUT_TIME_HISTORY_SIZE];
+    private int outputTimeHistoryIndex;
 
     private long lastTimestampUs;
     private int lastFrameNumber;
     private int refreshRate;
+    private float displayRefreshRate;
     private PreferenceConfiguration prefs;
 
-    private LinkedBlockingQueue<Integer> outputBufferQueue = new LinkedBlockingQueue<>();
     private static final int OUTPUT_BUFFER_QUEUE_LIMIT = 2;
+    private final IntRingBuffer outputBufferQueue = new IntRingBuffer(OUTPUT_BUFFER_QUEUE_LIMIT);
     private long lastRenderedFrameTimeNanos;
+    private AdaptiveFramePacer adaptiveFramePacer;
+
+    // A decoder instance created by prepare() for setup() to use
+    private final Object preparedDecoderLock = new Object();
+    private MediaCodec preparedDecoder;
+    private String preparedDecoderName;
+
+    private ConnectionTimeline connectionTimeline;
+    private AvSyncMonitor avSyncMonitor;
+
+    private HotSpareDecoder hotSpareDecoder;
+    private final LowLatencyTryCache lowLatencyTryCache;
+    private String configuredDecoderName;
+    private MediaCodec.OnFrameRenderedListener frameRenderedListener;
+    private volatile long appVsyncOffsetNanos;
     private HandlerThread choreographerHandlerThread;
     private Handler choreographerHandler;
+    private DisplayManager.DisplayListener displayListener;
+    private FrameAllocationCounter choreographerAllocationCounter;
+    private final GcStatsSampler gcStatsSampler = new GcStatsSampler();
+
+    // Used in asynchronous mode (MediaCodec.setCallback())
+    private static final int AVAILABLE_INPUT_BUFFER_QUEUE_SIZE = 64;
+    private final IntRingBuffer availableInputBuffers = new IntRingBuffer(AVAILABLE_INPUT_BUFFER_QUEUE_SIZE);
+    private volatile Thread inputBufferWaiter;
+    private HandlerThread codecCallbackThread;
+    private Handler codecCallbackHandler;
+    private MediaCodec.Callback codecCallback;
+    private boolean codecCallbackQuiescePosted;
 
     private int numSpsIn;
     private int numPpsIn;
@@ -178,12 +227,23 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return caps.areSizeAndRateSupported(prefs.width, prefs.height, prefs.fps);
     }
 
+    // The answer for a given decoder and stream settings won't change until the OS is updated,
+    // so we keep it in the capability index rather than asking the decoder every time.
+    private boolean decoderCanMeetPerformancePoint(MediaCodecInfo decoderInfo, String mimeType, PreferenceConfiguration prefs) {
+        DecoderCapabilityIndex index = MediaCodecHelper.getCapabilityIndex();
+        String answerKey = "perfPoint/"+decoderInfo.getName()+"/"+mimeType+"/"+prefs.width+"x"+prefs.height+"@"+prefs.fps;
+        Boolean canMeetPerformancePoint = index.getLazyAnswer(answerKey);
+        if (canMeetPerformancePoint == null) {
+            canMeetPerformancePoint = decoderCanMeetPerformancePoint(decoderInfo.getCapabilitiesForType(mimeType).getVideoCapabilities(), prefs);
+            index.putLazyAnswer(answerKey, canMeetPerformancePoint);
+        }
+        return canMeetPerformancePoint;
+    }
+
     private boolean decoderCanMeetPerformancePointWithHevcAndNotAvc(MediaCodecInfo hevcDecoderInfo, MediaCodecInfo avcDecoderInfo, PreferenceConfiguration prefs) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities avcCaps = avcDecoderInfo.getCapabilitiesForType("video/avc").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities hevcCaps = hevcDecoderInfo.getCapabilitiesForType("video/hevc").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(avcCaps, prefs) && decoderCanMeetPerformancePoint(hevcCaps, prefs);
+            return !decoderCanMeetPerformancePoint(avcDecoderInfo, "video/avc", prefs) &&
+                    decoderCanMeetPerformancePoint(hevcDecoderInfo, "video/hevc", prefs);
         }
         else {
             // No performance data
@@ -193,10 +253,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     private boolean decoderCanMeetPerformancePointWithAv1AndNotHevc(MediaCodecInfo av1DecoderInfo, MediaCodecInfo hevcDecoderInfo, PreferenceConfiguration prefs) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities av1Caps = av1DecoderInfo.getCapabilitiesForType("video/av01").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities hevcCaps = hevcDecoderInfo.getCapabilitiesForType("video/hevc").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(hevcCaps, prefs) && decoderCanMeetPerformancePoint(av1Caps, prefs);
+            return !decoderCanMeetPerformancePoint(hevcDecoderInfo, "video/hevc", prefs) &&
+                    decoderCanMeetPerformancePoint(av1DecoderInfo, "video/av01", prefs);
         }
         else {
             // No performance data
@@ -206,10 +264,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     private boolean decoderCanMeetPerformancePointWithAv1AndNotAvc(MediaCodecInfo av1DecoderInfo, MediaCodecInfo avcDecoderInfo, PreferenceConfiguration prefs) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities avcCaps = avcDecoderInfo.getCapabilitiesForType("video/avc").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities av1Caps = av1DecoderInfo.getCapabilitiesForType("video/av01").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(avcCaps, prefs) && decoderCanMeetPerformancePoint(av1Caps, prefs);
+            return !decoderCanMeetPerformancePoint(avcDecoderInfo, "video/avc", prefs) &&
+                    decoderCanMeetPerformancePoint(av1DecoderInfo, "video/av01", prefs);
         }
         else {
             // No performance data
@@ -308,6 +364,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         this.glRenderer = glRenderer;
         this.perfListener = perfListener;
 
+        this.lowLatencyTryCache = new LowLatencyTryCache(activity);
+
         this.activeWindowVideoStats = new VideoStats();
         this.lastWindowVideoStats = new VideoStats();
         this.globalVideoStats = new VideoStats();
@@ -374,6 +432,16 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
         }
 
+        // On Lollipop and later, we can hand the decoder's input buffers to the native code
+        // and let it copy the frame data straight into them rather than going through a byte[].
+        directInputBuffers = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+        // Asynchronous mode needs setCallback() with a Handler, which was added in M
+        asyncMode = prefs.asyncDecoder && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        if (asyncMode) {
+            LimeLog.info("Using asynchronous MediaCodec mode");
+        }
+
         // Use the larger of the two slices per frame preferences
         optimalSlicesPerFrame = (byte)Math.max(avcOptimalSlicesPerFrame, hevcOptimalSlicesPerFrame);
         LimeLog.info("Requesting "+optimalSlicesPerFrame+" slices per frame");
@@ -538,15 +606,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         LimeLog.info("Configuring with format: "+format);
 
+        // The callback must be set prior to configure() and it's cleared by reset()
+        if (asyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            videoDecoder.setCallback(codecCallback, codecCallbackHandler);
+        }
+
         videoDecoder.configure(format, renderTarget.getSurface(), null, 0);
 
         configuredFormat = format;
 
-        // After reconfiguration, we must resubmit CSD buffers
+        // After reconfiguration, we must resubmit CSD buffers. The cached CSD
+        // will be reused if the host sends the same parameter sets again.
         submittedCsd = false;
-        vpsBuffers.clear();
-        spsBuffers.clear();
-        ppsBuffers.clear();
+        csdCache.clearPending();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             // This will contain the actual accepted input format attributes
@@ -567,9 +639,13 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private boolean tryConfigureDecoder(MediaCodecInfo selectedDecoderInfo, MediaFormat format, boolean throwOnCodecError) {
         boolean configured = false;
         try {
-            videoDecoder = MediaCodec.createByCodecName(selectedDecoderInfo.getName());
+            videoDecoder = takePreparedDecoder(selectedDecoderInfo.getName());
+            if (videoDecoder == null) {
+                videoDecoder = MediaCodec.createByCodecName(selectedDecoderInfo.getName());
+            }
             configureAndStartDecoder(format);
             LimeLog.info("Using codec " + selectedDecoderInfo.getName() + " for hardware decoding " + format.getString(MediaFormat.KEY_MIME));
+            configuredDecoderName = selectedDecoderInfo.getName();
             configured = true;
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
@@ -595,10 +671,117 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return configured;
     }
 
+    private MediaCodec takePreparedDecoder(String decoderName) {
+        synchronized (preparedDecoderLock) {
+            MediaCodec decoder = null;
+            if (preparedDecoder != null && preparedDecoderName.equals(decoderName)) {
+                LimeLog.info("Using prepared decoder instance");
+                decoder = preparedDecoder;
+                preparedDecoder = null;
+            }
+
+            // We guessed wrong, so don't hold onto a decoder we won't use
+            releasePreparedDecoder();
+            return decoder;
+        }
+    }
+
+    private void releasePreparedDecoder() {
+        synchronized (preparedDecoderLock) {
+            if (preparedDecoder != null) {
+                preparedDecoder.release();
+                preparedDecoder = null;
+            }
+        }
+    }
+
+    @Override
+    public void prepare(int likelyVideoFormat) {
+        MediaCodecInfo decoderInfo;
+        if ((likelyVideoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
+            decoderInfo = avcDecoder;
+        }
+        else if ((likelyVideoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
+            decoderInfo = hevcDecoder;
+        }
+        else if ((likelyVideoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
+            decoderInfo = av1Decoder;
+        }
+        else {
+            decoderInfo = null;
+        }
+
+        if (decoderInfo == null) {
+            return;
+        }
+
+        // Creating the codec instance is the slow part of decoder initialization on many
+        // devices. We can't configure it yet because the format is only final after the
+        // RTSP handshake, so setup() will take it from here.
+        synchronized (preparedDecoderLock) {
+            if (stopping || preparedDecoder != null) {
+                return;
+            }
+
+            try {
+                preparedDecoder = MediaCodec.createByCodecName(decoderInfo.getName());
+                preparedDecoderName = decoderInfo.getName();
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void prepareHotSpareDecoder() {
+        if (hotSpareDecoder != null && !stopping) {
+            hotSpareDecoder.prepare(configuredDecoderName, configuredFormat,
+                    asyncMode ? codecCallback : null, codecCallbackHandler);
+        }
+    }
+
+    // Starts a hot spare decoder that has just replaced our broken decoder
+    @TargetApi(Build.VERSION_CODES.M)
+    private void startHotSpareDecoder() {
+        videoDecoder.setOutputSurface(renderTarget.getSurface());
+        videoDecoder.setOnFrameRenderedListener(getFrameRenderedListener(), null);
+        videoDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
+
+        // The new decoder needs CSD like any freshly configured decoder
+        submittedCsd = false;
+        csdCache.clearPending();
+
+        inputFormat = videoDecoder.getInputFormat();
+        LimeLog.info("Input format: "+inputFormat);
+
+        videoDecoder.start();
+    }
+
+    // Must be called before setup() for adaptive frame pacing to target the display's V-syncs
+    public void setDisplayRefreshRate(float displayRefreshRate) {
+        this.displayRefreshRate = displayRefreshRate;
+    }
+
+    public void setConnectionTimeline(ConnectionTimeline connectionTimeline) {
+        this.connectionTimeline = connectionTimeline;
+    }
+
+    public void setAvSyncMonitor(AvSyncMonitor avSyncMonitor) {
+        this.avSyncMonitor = avSyncMonitor;
+    }
+
+    private void notifyFrameRendered(long renderTimeMs) {
+        if (connectionTimeline != null && connectionTimeline.firstFrameRendered(renderTimeMs)) {
+            LimeLog.info(connectionTimeline.toString());
+        }
+    }
+
     public int initializeDecoder(boolean throwOnCodecError) {
         String mimeType;
         MediaCodecInfo selectedDecoderInfo;
 
+        // Only H.264 needs SPS patching
+        spsPatcher = null;
+
         if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
             mimeType = "video/avc";
             selectedDecoderInfo = avcDecoder;
@@ -632,6 +815,22 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
 
             refFrameInvalidationActive = refFrameInvalidationAvc;
+
+            spsPatcher = new H264SpsPatcher();
+            spsPatcher.width = initialWidth;
+            spsPatcher.height = initialHeight;
+            spsPatcher.refreshRate = refreshRate;
+            spsPatcher.refFrameInvalidationActive = refFrameInvalidationActive;
+            spsPatcher.constrainedHighProfile = constrainedHighProfile;
+
+            // See getPreferredColorSpace() for why we only do this on older devices without HEVC or AV1
+            spsPatcher.removeVuiColorInfo = Build.VERSION.SDK_INT < Build.VERSION_CODES.O &&
+                    hevcDecoder == null && av1Decoder == null;
+
+            // Newer devices get bitstream restrictions, along with older devices that are whitelisted
+            spsPatcher.addBitstreamRestrictions = needsSpsBitstreamFixup || isExynos4 ||
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+            spsPatcher.useDefaultBitstreamRestrictionDenominators = Build.VERSION.SDK_INT < Build.VERSION_CODES.O;
         }
         else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
             mimeType = "video/hevc";
@@ -661,53 +860,141 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return -3;
         }
 
+        csdCache.setSpsPatcher(spsPatcher);
+
         adaptivePlayback = MediaCodecHelper.decoderSupportsAdaptivePlayback(selectedDecoderInfo, mimeType);
         fusedIdrFrame = MediaCodecHelper.decoderSupportsFusedIdrFrame(selectedDecoderInfo, mimeType);
 
-        for (int tryNumber = 0;; tryNumber++) {
+        // Skip the tries that failed last time if we know which one works on this decoder
+        String decoderName = selectedDecoderInfo.getName();
+        int rememberedTryNumber = lowLatencyTryCache.getSuccessfulTry(decoderName, mimeType);
+        long configureStartTime = SystemClock.uptimeMillis();
+        for (int tryNumber = rememberedTryNumber;; tryNumber++) {
             LimeLog.info("Decoder configuration try: "+tryNumber);
 
             MediaFormat mediaFormat = createBaseMediaFormat(mimeType);
 
             // This will try low latency options until we find one that works (or we give up).
             boolean newFormat = MediaCodecHelper.setDecoderLowLatencyOptions(mediaFormat, selectedDecoderInfo, tryNumber);
+            boolean rememberedTry = rememberedTryNumber != 0 && tryNumber == rememberedTryNumber;
 
-            // Throw the underlying codec exception on the last attempt if the caller requested it
-            if (tryConfigureDecoder(selectedDecoderInfo, mediaFormat, !newFormat && throwOnCodecError)) {
+            // Throw the underlying codec exception on the last attempt if the caller requested it.
+            // We never throw on a remembered try since we can still fall back to trying them all.
+            long tryStartTime = SystemClock.uptimeMillis();
+            if (tryConfigureDecoder(selectedDecoderInfo, mediaFormat, !newFormat && throwOnCodecError && !rememberedTry)) {
                 // Success!
+                if (rememberedTry) {
+                    long savedTimeMs = lowLatencyTryCache.getSavedConfigureTimeMs(decoderName, mimeType);
+                    LimeLog.info("Skipped "+tryNumber+" decoder configuration tries (saved about "+savedTimeMs+" ms)");
+                    if (connectionTimeline != null) {
+                        connectionTimeline.event("Decoder configuration skipped "+tryNumber+
+                                " tries (saved about "+savedTimeMs+" ms)", SystemClock.uptimeMillis());
+                    }
+                }
+                else if (tryNumber != 0) {
+                    lowLatencyTryCache.recordSuccessfulTry(decoderName, mimeType, tryNumber, tryStartTime - configureStartTime);
+                }
                 break;
             }
 
+            if (rememberedTry) {
+                // The configuration that worked before doesn't anymore, so forget it and start over
+                LimeLog.warning("Remembered decoder configuration try failed");
+                lowLatencyTryCache.invalidate(decoderName, mimeType);
+                rememberedTryNumber = 0;
+                tryNumber = -1;
+                configureStartTime = SystemClock.uptimeMillis();
+                continue;
+            }
+
             if (!newFormat) {
                 // We couldn't even configure a decoder without any low latency options
                 return -5;
             }
         }
 
-        if (USE_FRAME_RENDER_TIME && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            videoDecoder.setOnFrameRenderedListener(new MediaCodec.OnFrameRenderedListener() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            videoDecoder.setOnFrameRenderedListener(getFrameRenderedListener(), null);
+        }
+
+        // Get a spare decoder ready if the user wants one and we can afford it
+        if (prefs.hotSpareDecoder && hotSpareDecoder == null &&
+                HotSpareDecoder.isAffordable(context, selectedDecoderInfo, mimeType, initialWidth, initialHeight)) {
+            LimeLog.info("Using hot spare decoder");
+            hotSpareDecoder = new HotSpareDecoder();
+        }
+        prepareHotSpareDecoder();
+
+        return 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private MediaCodec.OnFrameRenderedListener getFrameRenderedListener() {
+        if (frameRenderedListener == null) {
+            frameRenderedListener = new MediaCodec.OnFrameRenderedListener() {
                 @Override
                 public void onFrameRendered(MediaCodec mediaCodec, long presentationTimeUs, long renderTimeNanos) {
-                    long delta = (renderTimeNanos / 1000000L) - (presentationTimeUs / 1000);
-                    if (delta >= 0 && delta < 1000) {
-                        if (USE_FRAME_RENDER_TIME) {
+                    if (USE_FRAME_RENDER_TIME) {
+                        long delta = (renderTimeNanos / 1000000L) - (presentationTimeUs / 1000);
+                        if (delta >= 0 && delta < 1000) {
                             activeWindowVideoStats.totalTimeMs += delta;
                         }
                     }
+
+                    if (adaptiveFramePacer != null) {
+                        adaptiveFramePacer.onFrameRendered(presentationTimeUs, renderTimeNanos);
+                    }
+
+                    if (avSyncMonitor != null) {
+                        // The presentation time is when the frame was enqueued
+                        long latencyUs = renderTimeNanos / 1000 - presentationTimeUs;
+                        if (latencyUs >= 0 && latencyUs < 1000000) {
+                            avSyncMonitor.onVideoFrameRendered(latencyUs, System.nanoTime());
+                        }
+                    }
+
+                    notifyFrameRendered(renderTimeNanos / 1000000);
+
+                    // Find when this frame came out of the decoder. This history is written
+                    // by another thread, so we just discard anything that looks bogus.
+                    for (int i = 0; i < OUTPUT_TIME_HISTORY_SIZE; i++) {
+                        if (outputPresentationTimesUs[i] == presentationTimeUs) {
+                            long deltaNs = renderTimeNanos - outputTimesNs[i];
+                            if (deltaNs >= 0 && deltaNs < 1000000000L) {
+                                activeWindowVideoStats.renderLatency.record(deltaNs / 1000);
+                            }
+                            break;
+                        }
+                    }
                 }
-            }, null);
+            };
         }
-
-        return 0;
+        return frameRenderedListener;
     }
 
     @Override
     public int setup(int format, int width, int height, int redrawRate) {
+        // The CSD cache is kept when the decoder is reset or recreated, so only start
+        // over if the stream itself has changed
+        if (csdCache == null || format != this.videoFormat || width != initialWidth || height != initialHeight) {
+            csdCache = new CsdCache();
+        }
+
         this.initialWidth = width;
         this.initialHeight = height;
         this.videoFormat = format;
         this.refreshRate = redrawRate;
 
+        if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE) {
+            // Fall back to the stream's frame rate if we don't know the display's
+            adaptiveFramePacer = new AdaptiveFramePacer(displayRefreshRate > 0 ? displayRefreshRate : redrawRate);
+        }
+
+        // The callback thread must be running before we configure the decoder
+        if (asyncMode) {
+            startCodecCallbackThread();
+        }
+
         return initializeDecoder(false);
     }
 
@@ -722,6 +1009,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         // We need some sort of recovery, so quiesce all threads before starting that
         synchronized (codecRecoveryMonitor) {
+            // The first thread to get here starts the clock on this recovery
+            if (codecRecoveryThreadQuiescedFlags == 0) {
+                codecRecoveryStartTimeMs = SystemClock.uptimeMillis();
+            }
+
             if (choreographerHandlerThread == null) {
                 // If we have no choreographer thread, we can just mark that as quiesced right now.
                 codecRecoveryThreadQuiescedFlags |= CR_FLAG_CHOREOGRAPHER;
@@ -729,18 +1021,40 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
             codecRecoveryThreadQuiescedFlags |= quiescenceFlag;
 
+            // In asynchronous mode, the codec callback thread only runs when the codec has
+            // something for it to do (which may be never if the codec is wedged), so we must
+            // explicitly wake it up to get it quiesced.
+            if (codecCallbackHandler != null && !codecCallbackQuiescePosted &&
+                    (codecRecoveryThreadQuiescedFlags & CR_FLAG_RENDER_THREAD) == 0) {
+                codecCallbackQuiescePosted = true;
+                codecCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                    }
+                });
+            }
+
             // This is the final thread to quiesce, so let's perform the codec recovery now.
             if (codecRecoveryThreadQuiescedFlags == CR_FLAG_ALL) {
                 // Input and output buffers are invalidated by stop() and reset().
                 nextInputBuffer = null;
                 nextInputBufferIndex = -1;
                 outputBufferQueue.clear();
+                availableInputBuffers.clear();
 
                 // If we just need a flush, do so now with all threads quiesced.
                 if (codecRecoveryType.get() == CR_RECOVERY_TYPE_FLUSH) {
                     LimeLog.warning("Flushing decoder");
                     try {
                         videoDecoder.flush();
+
+                        // In asynchronous mode, the codec doesn't resume after a flush until
+                        // we call start() again.
+                        if (asyncMode) {
+                            videoDecoder.start();
+                        }
+
                         codecRecoveryType.set(CR_RECOVERY_TYPE_NONE);
                     } catch (IllegalStateException e) {
                         e.printStackTrace();
@@ -752,8 +1066,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 }
 
                 // We don't count flushes as codec recovery attempts
+                boolean countedRecovery = false;
+                boolean usedHotSpare = false;
                 if (codecRecoveryType.get() != CR_RECOVERY_TYPE_NONE) {
                     codecRecoveryAttempts++;
+                    countedRecovery = true;
                     LimeLog.info("Codec recovery attempt: "+codecRecoveryAttempts);
                 }
 
@@ -764,6 +1081,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                         videoDecoder.stop();
                         configureAndStartDecoder(configuredFormat);
                         codecRecoveryType.set(CR_RECOVERY_TYPE_NONE);
+
+                        // The format may have changed (for HDR metadata), so our spare is stale
+                        prepareHotSpareDecoder();
                     } catch (IllegalArgumentException e) {
                         e.printStackTrace();
 
@@ -779,9 +1099,43 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     }
                 }
 
+                // Swapping in a hot spare decoder is much faster than resetting the broken one
+                boolean decoderReleased = false;
+                if (codecRecoveryType.get() == CR_RECOVERY_TYPE_RESET && hotSpareDecoder != null) {
+                    MediaCodec spareDecoder = hotSpareDecoder.take(configuredDecoderName, configuredFormat);
+                    if (spareDecoder != null) {
+                        LimeLog.warning("Swapping in hot spare decoder after CodecException");
+
+                        // The broken decoder must let go of our surface before the spare can use it
+                        videoDecoder.release();
+                        videoDecoder = spareDecoder;
+                        try {
+                            startHotSpareDecoder();
+                            codecRecoveryType.set(CR_RECOVERY_TYPE_NONE);
+                            usedHotSpare = true;
+                        } catch (IllegalArgumentException e) {
+                            e.printStackTrace();
+
+                            // The spare may not like our surface, but a decoder created from
+                            // scratch still might, so fall through and recreate the decoder
+                            // rather than giving up on the stream.
+                            videoDecoder.release();
+                            decoderReleased = true;
+                        } catch (IllegalStateException e) {
+                            e.printStackTrace();
+
+                            // We'll try to reset the spare just like the original decoder
+                        }
+
+                        // Get a new spare ready for next time
+                        prepareHotSpareDecoder();
+                    }
+                }
+
                 // For "non-recoverable" exceptions on L+, we can call reset() to recover
                 // without having to recreate the entire decoder again.
-                if (codecRecoveryType.get() == CR_RECOVERY_TYPE_RESET && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                if (codecRecoveryType.get() == CR_RECOVERY_TYPE_RESET && !decoderReleased &&
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                     LimeLog.warning("Trying to reset decoder after CodecException");
                     try {
                         videoDecoder.reset();
@@ -805,7 +1159,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 // throw away the old decoder and reinitialize a new one from scratch.
                 if (codecRecoveryType.get() == CR_RECOVERY_TYPE_RESET) {
                     LimeLog.warning("Trying to recreate decoder after CodecException");
-                    videoDecoder.release();
+                    if (!decoderReleased) {
+                        videoDecoder.release();
+                    }
 
                     try {
                         int err = initializeDecoder(true);
@@ -829,8 +1185,21 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     }
                 }
 
+                if (countedRecovery) {
+                    long recoveryTimeMs = SystemClock.uptimeMillis() - codecRecoveryStartTimeMs;
+                    LimeLog.info("Codec recovery took "+recoveryTimeMs+" ms"+(usedHotSpare ? " using hot spare decoder" : ""));
+
+                    codecRecoveries++;
+                    if (usedHotSpare) {
+                        hotSpareCodecRecoveries++;
+                    }
+                    totalCodecRecoveryTimeMs += recoveryTimeMs;
+                    maxCodecRecoveryTimeMs = Math.max(maxCodecRecoveryTimeMs, recoveryTimeMs);
+                }
+
                 // Wake all quiesced threads and allow them to begin work again
                 codecRecoveryThreadQuiescedFlags = 0;
+                codecCallbackQuiescePosted = false;
                 codecRecoveryMonitor.notifyAll();
             }
             else {
@@ -978,40 +1347,46 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return;
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            frameTimeNanos -= activity.getWindowManager().getDefaultDisplay().getAppVsyncOffsetNanos();
-        }
-
-        // Don't render unless a new frame is due. This prevents microstutter when streaming
-        // at a frame rate that doesn't match the display (such as 60 FPS on 120 Hz).
-        long actualFrameTimeDeltaNs = frameTimeNanos - lastRenderedFrameTimeNanos;
-        long expectedFrameTimeDeltaNs = 800000000 / refreshRate; // within 80% of the next frame
-        if (actualFrameTimeDeltaNs >= expectedFrameTimeDeltaNs) {
-            // Render up to one frame when in frame pacing mode.
-            //
-            // NB: Since the queue limit is 2, we won't starve the decoder of output buffers
-            // by holding onto them for too long. This also ensures we will have that 1 extra
-            // frame of buffer to smooth over network/rendering jitter.
-            Integer nextOutputBuffer = outputBufferQueue.poll();
-            if (nextOutputBuffer != null) {
-                try {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, frameTimeNanos);
-                    }
-                    else {
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, true);
-                    }
+        // This is refreshed by our DisplayListener rather than queried each frame
+        frameTimeNanos -= appVsyncOffsetNanos;
 
-                    lastRenderedFrameTimeNanos = frameTimeNanos;
-                    activeWindowVideoStats.totalFramesRendered++;
-                } catch (IllegalStateException ignored) {
+        if (adaptiveFramePacer != null) {
+            // In adaptive mode, frames are released by the thread that receives decoder
+            // output. We just provide the V-sync timing that it targets.
+            adaptiveFramePacer.onVsync(frameTimeNanos);
+        }
+        else {
+            // Don't render unless a new frame is due. This prevents microstutter when streaming
+            // at a frame rate that doesn't match the display (such as 60 FPS on 120 Hz).
+            long actualFrameTimeDeltaNs = frameTimeNanos - lastRenderedFrameTimeNanos;
+            long expectedFrameTimeDeltaNs = 800000000 / refreshRate; // within 80% of the next frame
+            if (actualFrameTimeDeltaNs >= expectedFrameTimeDeltaNs) {
+                // Render up to one frame when in frame pacing mode.
+                //
+                // NB: Since the queue limit is 2, we won't starve the decoder of output buffers
+                // by holding onto them for too long. This also ensures we will have that 1 extra
+                // frame of buffer to smooth over network/rendering jitter.
+                int nextOutputBuffer = outputBufferQueue.poll();
+                if (nextOutputBuffer != IntRingBuffer.EMPTY) {
                     try {
-                        // Try to avoid leaking the output buffer by releasing it without rendering
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, false);
-                    } catch (IllegalStateException e) {
-                        // This will leak nextOutputBuffer, but there's really nothing else we can do
-                        e.printStackTrace();
-                        handleDecoderException(e);
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                            videoDecoder.releaseOutputBuffer(nextOutputBuffer, frameTimeNanos);
+                        }
+                        else {
+                            videoDecoder.releaseOutputBuffer(nextOutputBuffer, true);
+                        }
+
+                        lastRenderedFrameTimeNanos = frameTimeNanos;
+                        activeWindowVideoStats.totalFramesRendered++;
+                    } catch (IllegalStateException ignored) {
+                        try {
+                            // Try to avoid leaking the output buffer by releasing it without rendering
+                            videoDecoder.releaseOutputBuffer(nextOutputBuffer, false);
+                        } catch (IllegalStateException e) {
+                            // This will leak nextOutputBuffer, but there's really nothing else we can do
+                            e.printStackTrace();
+                            handleDecoderException(e);
+                        }
                     }
                 }
             }
@@ -1021,12 +1396,15 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         // be required even if the codec died before giving any output.
         doCodecRecoveryIfRequired(CR_FLAG_CHOREOGRAPHER);
 
+        choreographerAllocationCounter.onFrame();
+
         // Request another callback for next frame
         Choreographer.getInstance().postFrameCallback(this);
     }
 
     private void startChoreographerThread() {
-        if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED) {
+        if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED &&
+                prefs.framePacing != PreferenceConfiguration.FRAME_PACING_ADAPTIVE) {
             // Not using Choreographer in this pacing mode
             return;
         }
@@ -1035,8 +1413,30 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         choreographerHandlerThread = new HandlerThread("Video - Choreographer", Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE);
         choreographerHandlerThread.start();
 
-        // Start the frame callbacks
         choreographerHandler = new Handler(choreographerHandlerThread.getLooper());
+        choreographerAllocationCounter = new FrameAllocationCounter("Video - Choreographer");
+
+        // The app V-sync offset can only change along with the display mode, so we
+        // refresh it when the display changes rather than querying it each frame.
+        updateAppVsyncOffset();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            displayListener = new DisplayManager.DisplayListener() {
+                @Override
+                public void onDisplayAdded(int displayId) {}
+
+                @Override
+                public void onDisplayRemoved(int displayId) {}
+
+                @Override
+                public void onDisplayChanged(int displayId) {
+                    updateAppVsyncOffset();
+                }
+            };
+            DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+            displayManager.registerDisplayListener(displayListener, choreographerHandler);
+        }
+
+        // Start the frame callbacks
         choreographerHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -1045,12 +1445,189 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         });
     }
 
+    private void updateAppVsyncOffset() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            appVsyncOffsetNanos = activity.getWindowManager().getDefaultDisplay().getAppVsyncOffsetNanos();
+        }
+    }
+
+    // Must only be called by the thread that produces output buffers
+    private void enqueueOutputBufferForChoreographer(int outputBufferIndex) {
+        // Discard the oldest buffer if we've exceeded our limit.
+        //
+        // NB: We have to do this on the producer side because the consumer may not
+        // run for a while (if there is a huge mismatch between stream FPS and display
+        // refresh rate). The Choreographer may consume the oldest buffer before we do,
+        // so we just retry until our buffer fits.
+        while (!outputBufferQueue.offer(outputBufferIndex)) {
+            int oldestOutputBuffer = outputBufferQueue.poll();
+            if (oldestOutputBuffer != IntRingBuffer.EMPTY) {
+                videoDecoder.releaseOutputBuffer(oldestOutputBuffer, false);
+            }
+        }
+    }
+
+    private void updateDecoderTimeStats(long presentationTimeUs) {
+        // Add delta time to the totals (excluding probable outliers)
+        long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
+        if (delta >= 0 && delta < 1000) {
+            activeWindowVideoStats.decoderTimeMs += delta;
+            if (!USE_FRAME_RENDER_TIME) {
+                activeWindowVideoStats.totalTimeMs += delta;
+            }
+
+            // System.nanoTime() and uptimeMillis() share the same clock, but the former
+            // gives us sub-millisecond resolution for the histogram.
+            long outputTimeNs = System.nanoTime();
+            activeWindowVideoStats.decodeLatency.record(outputTimeNs / 1000 - presentationTimeUs);
+            if (adaptiveFramePacer != null) {
+                adaptiveFramePacer.onFrameDecoded(outputTimeNs / 1000 - presentationTimeUs);
+            }
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                // We have no OnFrameRenderedListener, so decoder output is as close as we get
+                notifyFrameRendered(outputTimeNs / 1000000);
+            }
+            else {
+                outputPresentationTimesUs[outputTimeHistoryIndex] = presentationTimeUs;
+                outputTimesNs[outputTimeHistoryIndex] = outputTimeNs;
+                outputTimeHistoryIndex = (outputTimeHistoryIndex + 1) % OUTPUT_TIME_HISTORY_SIZE;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void startCodecCallbackThread() {
+        // This thread takes the place of the renderer thread in asynchronous mode
+        codecCallbackThread = new HandlerThread("Video - Codec Callbacks", Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        codecCallbackThread.start();
+        codecCallbackHandler = new Handler(codecCallbackThread.getLooper());
+
+        // Only used on the codec callback thread
+        final FrameAllocationCounter allocationCounter = new FrameAllocationCounter("Video - Codec Callbacks");
+
+        codecCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Ignore callbacks from a decoder that we've since replaced
+                if (codec != videoDecoder) {
+                    return;
+                }
+
+                availableInputBuffers.offer(index);
+
+                // Wake the input thread if it's waiting on us
+                Thread waiter = inputBufferWaiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+                if (codec != videoDecoder || stopping) {
+                    return;
+                }
+
+                try {
+                    numFramesOut++;
+
+                    switch (prefs.framePacing) {
+                        case PreferenceConfiguration.FRAME_PACING_BALANCED:
+                            // The Choreographer callback will handle rendering.
+                            enqueueOutputBufferForChoreographer(index);
+                            break;
+
+                        case PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS:
+                        case PreferenceConfiguration.FRAME_PACING_CAP_FPS:
+                            // Use a PTS that will cause this frame to never be dropped
+                            videoDecoder.releaseOutputBuffer(index, 0);
+                            activeWindowVideoStats.totalFramesRendered++;
+                            break;
+
+                        case PreferenceConfiguration.FRAME_PACING_ADAPTIVE:
+                            // Target the earliest V-sync this frame can make
+                            videoDecoder.releaseOutputBuffer(index,
+                                    adaptiveFramePacer.getRenderTimestampNs(info.presentationTimeUs, System.nanoTime()));
+                            activeWindowVideoStats.totalFramesRendered++;
+                            break;
+
+                        default:
+                            // Use a PTS that will cause this frame to be dropped if another comes in within
+                            // the same V-sync period. We get one callback per frame here, so this takes the
+                            // place of draining the output queue to find the latest frame.
+                            videoDecoder.releaseOutputBuffer(index, System.nanoTime());
+                            activeWindowVideoStats.totalFramesRendered++;
+                            break;
+                    }
+
+                    updateDecoderTimeStats(info.presentationTimeUs);
+
+                    allocationCounter.onFrame();
+                } catch (IllegalStateException e) {
+                    handleDecoderException(e);
+                } finally {
+                    doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, CodecException e) {
+                if (codec != videoDecoder) {
+                    return;
+                }
+
+                handleDecoderException(e);
+                doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                if (codec != videoDecoder) {
+                    return;
+                }
+
+                LimeLog.info("Output format changed");
+                outputFormat = format;
+                LimeLog.info("New output format: " + outputFormat);
+            }
+        };
+    }
+
+    private int waitForAvailableInputBuffer() {
+        // Common case: the codec already gave us an input buffer
+        int index = availableInputBuffers.poll();
+        if (index != IntRingBuffer.EMPTY) {
+            return index;
+        }
+
+        inputBufferWaiter = Thread.currentThread();
+        try {
+            // Bail if codec recovery is pending, so our caller can quiesce this thread
+            while (!stopping && codecRecoveryType.get() == CR_RECOVERY_TYPE_NONE) {
+                index = availableInputBuffers.poll();
+                if (index != IntRingBuffer.EMPTY) {
+                    return index;
+                }
+
+                // We'll be unparked by onInputBufferAvailable(), but time out
+                // periodically to check for stopping and codec recovery.
+                LockSupport.parkNanos(10000000);
+            }
+        } finally {
+            inputBufferWaiter = null;
+        }
+
+        return -1;
+    }
+
     private void startRendererThread()
     {
         rendererThread = new Thread() {
             @Override
             public void run() {
                 BufferInfo info = new BufferInfo();
+                FrameAllocationCounter allocationCounter = new FrameAllocationCounter("Video - Renderer (MediaCodec)");
                 while (!stopping) {
                     try {
                         // Try to output a frame
@@ -1084,6 +1661,12 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                                         videoDecoder.releaseOutputBuffer(lastIndex, true);
                                     }
                                 }
+                                else if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE &&
+                                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                                    // Target the earliest V-sync this frame can make
+                                    videoDecoder.releaseOutputBuffer(lastIndex,
+                                            adaptiveFramePacer.getRenderTimestampNs(presentationTimeUs, System.nanoTime()));
+                                }
                                 else {
                                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                                         // Use a PTS that will cause this frame to be dropped if another comes in within
@@ -1100,34 +1683,12 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                             else {
                                 // For balanced frame pacing case, the Choreographer callback will handle rendering.
                                 // We just put all frames into the output buffer queue and let it handle things.
-
-                                // Discard the oldest buffer if we've exceeded our limit.
-                                //
-                                // NB: We have to do this on the producer side because the consumer may not
-                                // run for a while (if there is a huge mismatch between stream FPS and display
-                                // refresh rate).
-                                if (outputBufferQueue.size() == OUTPUT_BUFFER_QUEUE_LIMIT) {
-                                    try {
-                                        videoDecoder.releaseOutputBuffer(outputBufferQueue.take(), false);
-                                    } catch (InterruptedException e) {
-                                        // We're shutting down, so we can just drop this buffer on the floor
-                                        // and it will be reclaimed when the codec is released.
-                                        return;
-                                    }
-                                }
-
-                                // Add this buffer
-                                outputBufferQueue.add(lastIndex);
+                                enqueueOutputBufferForChoreographer(lastIndex);
                             }
 
-                            // Add delta time to the totals (excluding probable outliers)
-                            long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
-                            if (delta >= 0 && delta < 1000) {
-                                activeWindowVideoStats.decoderTimeMs += delta;
-                                if (!USE_FRAME_RENDER_TIME) {
-                                    activeWindowVideoStats.totalTimeMs += delta;
-                                }
-                            }
+                            updateDecoderTimeStats(presentationTimeUs);
+
+                            allocationCounter.onFrame();
                         } else {
                             switch (outIndex) {
                                 case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -1167,8 +1728,15 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         try {
             // If we don't have an input buffer index yet, fetch one now
-            while (nextInputBufferIndex < 0 && !stopping) {
-                nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+            if (asyncMode) {
+                if (nextInputBufferIndex < 0) {
+                    nextInputBufferIndex = waitForAvailableInputBuffer();
+                }
+            }
+            else {
+                while (nextInputBufferIndex < 0 && !stopping) {
+                    nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+                }
             }
 
             // Get the backing ByteBuffer for the input buffer index
@@ -1230,7 +1798,13 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     @Override
     public void start() {
-        startRendererThread();
+        // Used to validate that steady-state streaming doesn't allocate on the render paths
+        FrameAllocationCounter.startCounting();
+
+        // In asynchronous mode, the codec callback thread handles output buffers
+        if (!asyncMode) {
+            startRendererThread();
+        }
         startChoreographerThread();
     }
 
@@ -1239,6 +1813,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         // Let the decoding code know to ignore codec exceptions now
         stopping = true;
 
+        // Setup may never happen if the connection failed after we prepared a decoder
+        releasePreparedDecoder();
+
         // Halt the rendering thread
         if (rendererThread != null) {
             rendererThread.interrupt();
@@ -1250,6 +1827,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             codecRecoveryMonitor.notifyAll();
         }
 
+        // Stop delivery of further codec callbacks (if we have any)
+        if (codecCallbackThread != null) {
+            codecCallbackThread.quit();
+        }
+
         // Post a quit message to the Choreographer looper (if we have one)
         if (choreographerHandler != null) {
             choreographerHandler.post(new Runnable() {
@@ -1260,6 +1842,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
                     // Deregister the frame callback (if registered)
                     Choreographer.getInstance().removeFrameCallback(MediaCodecDecoderRenderer.this);
+
+                    if (displayListener != null) {
+                        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+                        displayManager.unregisterDisplayListener(displayListener);
+                    }
                 }
             });
         }
@@ -1284,22 +1871,32 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
         }
 
-        // Wait for the renderer thread to shut down
-        try {
-            rendererThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        FrameAllocationCounter.stopCounting();
 
-            // InterruptedException clears the thread's interrupt status. Since we can't
-            // handle that here, we will re-interrupt the thread to set the interrupt
-            // status back to true.
-            Thread.currentThread().interrupt();
+        // Wait for the renderer or codec callback thread to shut down
+        Thread outputThread = asyncMode ? codecCallbackThread : rendererThread;
+        if (outputThread != null) {
+            try {
+                outputThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     @Override
     public void cleanup() {
         videoDecoder.release();
+        releasePreparedDecoder();
+
+        if (hotSpareDecoder != null) {
+            hotSpareDecoder.release();
+        }
     }
 
     @Override
@@ -1376,28 +1973,52 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return fetchNextInputBuffer();
     }
 
-    private void doProfileSpecificSpsPatching(SeqParameterSet sps) {
-        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
-        // High Profile which allows the decoder to assume there will be no B-frames and
-        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
-        // like it so we only set them on devices that are confirmed to benefit from it.
-        if (sps.profileIdc == 100 && constrainedHighProfile) {
-            LimeLog.info("Setting constraint set flags for constrained high profile");
-            sps.constraintSet4Flag = true;
-            sps.constraintSet5Flag = true;
+    @Override
+    public ByteBuffer getDirectSubmitBuffer(int decodeUnitLength, int frameType) {
+        // IDR frames may need CSD submitted ahead of the picture data, so they
+        // always take the byte[] path.
+        if (!directInputBuffers || stopping || frameType == MoonBridge.FRAME_TYPE_IDR) {
+            return null;
         }
-        else {
-            // Force the constraints unset otherwise (some may be set by default)
-            sps.constraintSet4Flag = false;
-            sps.constraintSet5Flag = false;
+
+        // We only hand out an input buffer that was already fetched after the last
+        // queueInputBuffer() call. If we don't have one, the byte[] path will handle
+        // fetching it (and requesting an IDR frame if codec recovery took place).
+        if (nextInputBuffer == null || !nextInputBuffer.isDirect() || nextInputBuffer.position() != 0) {
+            return null;
         }
+
+        if (decodeUnitLength > nextInputBuffer.limit()) {
+            // Let the byte[] path generate the appropriate error for this
+            return null;
+        }
+
+        return nextInputBuffer;
+    }
+
+    @Override
+    public int submitDecodeUnit(ByteBuffer decodeUnitBuffer, int decodeUnitLength, int decodeUnitType,
+                                int frameNumber, int frameType, char frameHostProcessingLatency,
+                                long receiveTimeMs, long enqueueTimeMs) {
+        return submitDecodeUnitInternal(null, decodeUnitBuffer, decodeUnitLength, decodeUnitType,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
                                 int frameNumber, int frameType, char frameHostProcessingLatency,
                                 long receiveTimeMs, long enqueueTimeMs) {
+        return submitDecodeUnitInternal(decodeUnitData, null, decodeUnitLength, decodeUnitType,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+    }
+
+    // Exactly one of decodeUnitData or decodeUnitBuffer must be provided. If decodeUnitBuffer
+    // is provided, the picture data has already been written into our current input buffer.
+    @SuppressWarnings("deprecation")
+    private int submitDecodeUnitInternal(byte[] decodeUnitData, ByteBuffer decodeUnitBuffer,
+                                         int decodeUnitLength, int decodeUnitType,
+                                         int frameNumber, int frameType, char frameHostProcessingLatency,
+                                         long receiveTimeMs, long enqueueTimeMs) {
         if (stopping) {
             // Don't bother if we're stopping
             return MoonBridge.DR_OK;
@@ -1415,9 +2036,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         // Reset CSD data for each IDR frame
         if (lastFrameNumber != frameNumber && frameType == MoonBridge.FRAME_TYPE_IDR) {
-            vpsBuffers.clear();
-            spsBuffers.clear();
-            ppsBuffers.clear();
+            csdCache.clearPending();
         }
 
         lastFrameNumber = frameNumber;
@@ -1425,10 +2044,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         // Flip stats windows roughly every second
         if (SystemClock.uptimeMillis() >= activeWindowVideoStats.measurementStartTimestamp + 1000) {
             if (prefs.enablePerfOverlay) {
-                VideoStats lastTwo = new VideoStats();
+                VideoStats lastTwo = perfOverlayVideoStats;
+                lastTwo.clear();
                 lastTwo.add(lastWindowVideoStats);
                 lastTwo.add(activeWindowVideoStats);
-                VideoStatsFps fps = lastTwo.getFps();
+                VideoStatsFps fps = lastTwo.getFps(SystemClock.uptimeMillis());
                 String decoder;
 
                 if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
@@ -1458,6 +2078,15 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                             (float)lastTwo.maxHostProcessingLatency / 10,
                             (float)lastTwo.totalHostProcessingLatency / 10 / lastTwo.framesWithHostProcessingLatency)).append('\n');
                 }
+                appendLatencyPercentiles(sb, R.string.perf_overlay_receivelatency, lastTwo.receiveLatency);
+                appendLatencyPercentiles(sb, R.string.perf_overlay_decodelatency, lastTwo.decodeLatency);
+                appendLatencyPercentiles(sb, R.string.perf_overlay_renderlatency, lastTwo.renderLatency);
+                appendAdaptiveFramePacingStats(sb);
+                if (connectionTimeline != null && connectionTimeline.getTimeToFirstFrameMs() >= 0) {
+                    sb.append(context.getString(R.string.perf_overlay_timetofirstframe,
+                            connectionTimeline.getTimeToFirstFrameMs())).append('\n');
+                }
+                appendAllocationStats(sb, activeWindowVideoStats.totalFramesRendered);
                 sb.append(context.getString(R.string.perf_overlay_dectime, decodeTimeMs));
                 perfListener.onPerfUpdate(sb.toString());
             }
@@ -1476,144 +2105,16 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS && (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
                 numSpsIn++;
 
-                ByteBuffer spsBuf = ByteBuffer.wrap(decodeUnitData);
-                int startSeqLen = decodeUnitData[2] == 0x01 ? 3 : 4;
-
-                // Skip to the start of the NALU data
-                spsBuf.position(startSeqLen + 1);
-
-                // The H264Utils.readSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                SeqParameterSet sps = H264Utils.readSPS(spsBuf);
-
-                // Some decoders rely on H264 level to decide how many buffers are needed
-                // Since we only need one frame buffered, we'll set the level as low as we can
-                // for known resolution combinations. Reference frame invalidation may need
-                // these, so leave them be for those decoders.
-                if (!refFrameInvalidationActive) {
-                    if (initialWidth <= 720 && initialHeight <= 480 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 720x480x60
-                        LimeLog.info("Patching level_idc to 31");
-                        sps.levelIdc = 31;
-                    }
-                    else if (initialWidth <= 1280 && initialHeight <= 720 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 1280x720x60
-                        LimeLog.info("Patching level_idc to 32");
-                        sps.levelIdc = 32;
-                    }
-                    else if (initialWidth <= 1920 && initialHeight <= 1080 && refreshRate <= 60) {
-                        // Max 4 buffered frames at 1920x1080x64
-                        LimeLog.info("Patching level_idc to 42");
-                        sps.levelIdc = 42;
-                    }
-                    else {
-                        // Leave the profile alone (currently 5.0)
-                    }
-                }
-
-                // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
-                // also requires this fixup.
-                //
-                // I'm doing this fixup for all devices because I haven't seen any devices that
-                // this causes issues for. At worst, it seems to do nothing and at best it fixes
-                // issues with video lag, hangs, and crashes.
-                //
-                // It does break reference frame invalidation, so we will not do that for decoders
-                // where we've enabled reference frame invalidation.
-                if (!refFrameInvalidationActive) {
-                    LimeLog.info("Patching num_ref_frames in SPS");
-                    sps.numRefFrames = 1;
-                }
-
-                // GFE 2.5.11 changed the SPS to add additional extensions. Some devices don't like these
-                // so we remove them here on old devices unless these devices also support HEVC.
-                // See getPreferredColorSpace() for further information.
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O &&
-                        sps.vuiParams != null &&
-                        hevcDecoder == null &&
-                        av1Decoder == null) {
-                    sps.vuiParams.videoSignalTypePresentFlag = false;
-                    sps.vuiParams.colourDescriptionPresentFlag = false;
-                    sps.vuiParams.chromaLocInfoPresentFlag = false;
-                }
-
-                // Some older devices used to choke on a bitstream restrictions, so we won't provide them
-                // unless explicitly whitelisted. For newer devices, leave the bitstream restrictions present.
-                if (needsSpsBitstreamFixup || isExynos4 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
-                    // or max_dec_frame_buffering which increases decoding latency on Tegra.
-
-                    // If the encoder didn't include VUI parameters in the SPS, add them now
-                    if (sps.vuiParams == null) {
-                        LimeLog.info("Adding VUI parameters");
-                        sps.vuiParams = new VUIParameters();
-                    }
-
-                    // GFE 2.5.11 started sending bitstream restrictions
-                    if (sps.vuiParams.bitstreamRestriction == null) {
-                        LimeLog.info("Adding bitstream restrictions");
-                        sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
-                        sps.vuiParams.bitstreamRestriction.motionVectorsOverPicBoundariesFlag = true;
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthHorizontal = 16;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthVertical = 16;
-                        sps.vuiParams.bitstreamRestriction.numReorderFrames = 0;
-                    }
-                    else {
-                        LimeLog.info("Patching bitstream restrictions");
-                    }
-
-                    // Some devices throw errors if maxDecFrameBuffering < numRefFrames
-                    sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = sps.numRefFrames;
-
-                    // These values are the defaults for the fields, but they are more aggressive
-                    // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
-                    // We'll leave these alone for "modern" devices just in case they care.
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                    }
-
-                    // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
-                    // conservative values by GFE 2.5.11. We'll let those values stand.
-                }
-                else if (sps.vuiParams != null) {
-                    // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
-                    // will continue to not receive them now
-                    sps.vuiParams.bitstreamRestriction = null;
-                }
-
-                // If we need to hack this SPS to say we're baseline, do so now
-                if (needsBaselineSpsHack) {
-                    LimeLog.info("Hacking SPS to baseline");
-                    sps.profileIdc = 66;
-                    savedSps = sps;
-                }
-
-                // Patch the SPS constraint flags
-                doProfileSpecificSpsPatching(sps);
-
-                // The H264Utils.writeSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                ByteBuffer escapedNalu = H264Utils.writeSPS(sps, decodeUnitLength);
-
-                // Construct the patched SPS
-                byte[] naluBuffer = new byte[startSeqLen + 1 + escapedNalu.limit()];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, startSeqLen + 1);
-                escapedNalu.get(naluBuffer, startSeqLen + 1, escapedNalu.limit());
-
-                // Batch this to submit together with other CSD per AOSP docs
-                spsBuffers.add(naluBuffer);
+                // Batch this to submit together with other CSD per AOSP docs. The SPS
+                // will be patched when the CSD is built, unless it's already cached.
+                csdCache.addSps(decodeUnitData, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             else if (decodeUnitType == MoonBridge.BUFFER_TYPE_VPS) {
                 numVpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                vpsBuffers.add(naluBuffer);
+                csdCache.addVps(decodeUnitData, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             // Only the HEVC SPS hits this path (H.264 is handled above)
@@ -1621,18 +2122,14 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 numSpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                spsBuffers.add(naluBuffer);
+                csdCache.addSps(decodeUnitData, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             else if (decodeUnitType == MoonBridge.BUFFER_TYPE_PPS) {
                 numPpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                ppsBuffers.add(naluBuffer);
+                csdCache.addPps(decodeUnitData, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             else if ((videoFormat & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265)) != 0) {
@@ -1644,15 +2141,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     }
 
                     // Submit all CSD when we receive the first non-CSD blob in an IDR frame
-                    for (byte[] vpsBuffer : vpsBuffers) {
-                        nextInputBuffer.put(vpsBuffer);
-                    }
-                    for (byte[] spsBuffer : spsBuffers) {
-                        nextInputBuffer.put(spsBuffer);
-                    }
-                    for (byte[] ppsBuffer : ppsBuffers) {
-                        nextInputBuffer.put(ppsBuffer);
-                    }
+                    nextInputBuffer.put(csdCache.getCsd(needsBaselineSpsHack));
 
                     if (!queueNextInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
                         return MoonBridge.DR_NEED_IDR;
@@ -1698,6 +2187,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             // caused by a slow decoder.
             activeWindowVideoStats.totalTimeMs += enqueueTimeMs - receiveTimeMs;
         }
+        activeWindowVideoStats.receiveLatency.record((enqueueTimeMs - receiveTimeMs) * 1000);
 
         if (!fetchNextInputBuffer()) {
             return MoonBridge.DR_NEED_IDR;
@@ -1709,16 +2199,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             codecFlags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
 
             // If we are using fused IDR frames, submit the CSD with each IDR frame
-            if (fusedIdrFrame && !csdSubmittedForThisFrame) {
-                for (byte[] vpsBuffer : vpsBuffers) {
-                    nextInputBuffer.put(vpsBuffer);
-                }
-                for (byte[] spsBuffer : spsBuffers) {
-                    nextInputBuffer.put(spsBuffer);
-                }
-                for (byte[] ppsBuffer : ppsBuffers) {
-                    nextInputBuffer.put(ppsBuffer);
-                }
+            if (fusedIdrFrame && !csdSubmittedForThisFrame &&
+                    (videoFormat & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265)) != 0) {
+                nextInputBuffer.put(csdCache.getCsd(needsBaselineSpsHack));
             }
         }
 
@@ -1742,8 +2225,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             throw new RendererException(this, exception);
         }
 
-        // Copy data from our buffer list into the input buffer
-        nextInputBuffer.put(decodeUnitData, 0, decodeUnitLength);
+        if (decodeUnitBuffer != null) {
+            // The data was copied into the input buffer by the native code, so we just
+            // need to account for it. If the input buffer changed underneath us, the
+            // frame data is gone and we'll need an IDR frame to recover.
+            if (decodeUnitBuffer != nextInputBuffer || nextInputBuffer.position() != 0) {
+                return MoonBridge.DR_NEED_IDR;
+            }
+            nextInputBuffer.position(decodeUnitLength);
+        }
+        else {
+            // Copy data from our buffer list into the input buffer
+            nextInputBuffer.put(decodeUnitData, 0, decodeUnitLength);
+        }
 
         if (!queueNextInputBuffer(timestampUs, codecFlags)) {
             return MoonBridge.DR_NEED_IDR;
@@ -1757,22 +2251,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return false;
         }
 
-        // Write the Annex B header
-        nextInputBuffer.put(new byte[]{0x00, 0x00, 0x00, 0x01, 0x67});
-
-        // Switch the H264 profile back to high
-        savedSps.profileIdc = 100;
-
-        // Patch the SPS constraint flags
-        doProfileSpecificSpsPatching(savedSps);
-
-        // The H264Utils.writeSPS function safely handles
-        // Annex B NALUs (including NALUs with escape sequences)
-        ByteBuffer escapedNalu = H264Utils.writeSPS(savedSps, 128);
-        nextInputBuffer.put(escapedNalu);
-
-        // No need for the SPS anymore
-        savedSps = null;
+        // Submit the high profile version of the SPS we hacked to baseline
+        nextInputBuffer.put(csdCache.getReplaySps());
 
         // Queue the new SPS
         return queueNextInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
@@ -1818,6 +2298,52 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return (int)(globalVideoStats.decoderTimeMs / globalVideoStats.totalFramesReceived);
     }
 
+    private void appendLatencyPercentiles(StringBuilder sb, int formatResId, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+
+        sb.append(context.getString(formatResId,
+                histogram.getPercentileUs(50) / 1000f,
+                histogram.getPercentileUs(95) / 1000f,
+                histogram.getPercentileUs(99) / 1000f,
+                histogram.getMaxUs() / 1000f)).append('\n');
+    }
+
+    // Per-stage latency percentiles for the whole session
+    public String getLatencySummary() {
+        StringBuilder sb = new StringBuilder();
+        appendLatencyPercentiles(sb, R.string.perf_overlay_receivelatency, globalVideoStats.receiveLatency);
+        appendLatencyPercentiles(sb, R.string.perf_overlay_decodelatency, globalVideoStats.decodeLatency);
+        appendLatencyPercentiles(sb, R.string.perf_overlay_renderlatency, globalVideoStats.renderLatency);
+        appendAdaptiveFramePacingStats(sb);
+        if (codecRecoveries > 0) {
+            sb.append(context.getString(R.string.perf_overlay_codecrecovery, codecRecoveries, hotSpareCodecRecoveries,
+                    totalCodecRecoveryTimeMs / codecRecoveries, maxCodecRecoveryTimeMs)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Process-wide allocations since the last overlay update, which covers the active stats window
+    private void appendAllocationStats(StringBuilder sb, int framesRendered) {
+        if (gcStatsSampler.sample() && framesRendered > 0) {
+            sb.append(context.getString(R.string.perf_overlay_allocations,
+                    gcStatsSampler.getWindowBytesAllocated() / 1024f / framesRendered,
+                    gcStatsSampler.getWindowGcCount())).append('\n');
+        }
+    }
+
+    private void appendAdaptiveFramePacingStats(StringBuilder sb) {
+        if (adaptiveFramePacer == null) {
+            return;
+        }
+
+        sb.append(context.getString(adaptiveFramePacer.isSmoothnessFallback() ?
+                        R.string.perf_overlay_adaptivepacing_smooth : R.string.perf_overlay_adaptivepacing,
+                adaptiveFramePacer.getLatencyBudgetUs() / 1000f,
+                adaptiveFramePacer.getMissedVsyncs())).append('\n');
+    }
+
     static class DecoderHungException extends RuntimeException {
         private int hangTimeMs;
 
@@ -1943,6 +2469,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             str += "FPS target: "+renderer.refreshRate+DELIMITER;
             str += "Bitrate: "+renderer.prefs.bitrate+" Kbps"+DELIMITER;
             str += "CSD stats: "+renderer.numVpsIn+", "+renderer.numSpsIn+", "+renderer.numPpsIn+DELIMITER;
+            if (renderer.csdCache != null) {
+                str += "CSD cache hits/misses: "+renderer.csdCache.getHits()+"/"+renderer.csdCache.getMisses()+DELIMITER;
+            }
+            str += "Hot spare decoder: "+(renderer.hotSpareDecoder != null)+DELIMITER;
+            str += "Codec recoveries: "+renderer.codecRecoveries+" ("+renderer.hotSpareCodecRecoveries+" hot spare), max "+renderer.maxCodecRecoveryTimeMs+" ms"+DELIMITER;
             str += "Frames in-out: "+renderer.numFramesIn+", "+renderer.numFramesOut+DELIMITER;
             str += "Total frames received: "+renderer.globalVideoStats.totalFramesReceived+DELIMITER;
             str += "Total frames rendered: "+renderer.globalVideoStats.totalFramesRendered+DELIMITER;
@@ -1950,6 +2481,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             str += "Average end-to-end client latency: "+renderer.getAverageEndToEndLatency()+"ms"+DELIMITER;
             str += "Average hardware decoder latency: "+renderer.getAverageDecoderLatency()+"ms"+DELIMITER;
             str += "Frame pacing mode: "+renderer.prefs.framePacing+DELIMITER;
+            str += "Async mode: "+renderer.asyncMode+DELIMITER;
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 if (originalException instanceof CodecException) {
@@ -3,7 +3,9 @@ package com.limelight.binding.video;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -21,8 +23,10 @@ import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaCodecInfo.CodecProfileLevel;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.util.Range;
 
 import com.limelight.LimeLog;
+import com.limelight.nvstream.av.video.DecoderRanking;
 import com.limelight.preferences.PreferenceConfiguration;
 
 public class MediaCodecHelper {
@@ -51,6 +55,9 @@ public class MediaCodecHelper {
     private static boolean isLowEndSnapdragon = false;
     private static boolean isAdreno620 = false;
     private static boolean initialized = false;
+    private static Context appContext;
+    private static volatile DecoderRanking decoderRanking;
+    private static HashMap<String, MediaCodecInfo> decoderInfoByName;
 
     static {
         directSubmitPrefixes = new LinkedList<>();
@@ -309,6 +316,9 @@ public class MediaCodecHelper {
             return;
         }
 
+        appContext = context.getApplicationContext();
+        decoderRanking = DecoderBenchmarkRunner.loadRanking(context);
+
         // Older Sony ATVs (SVP-DTV15) have broken MediaTek codecs (decoder hangs after rendering the first frame).
         // I know the Fire TV 2 and 3 works, so I'll whitelist Amazon devices which seem to actually be tested.
         // We still have to check Build.MANUFACTURER to catch Amazon Fire tablets.
@@ -415,6 +425,25 @@ public class MediaCodecHelper {
         initialized = true;
     }
 
+    static DecoderCapabilityIndex getCapabilityIndex() {
+        if (!initialized) {
+            throw new IllegalStateException("MediaCodecHelper must be initialized before use");
+        }
+
+        return DecoderCapabilityIndex.get(appContext);
+    }
+
+    // Returns null if the decoder or MIME type is missing from the capability index
+    private static DecoderCapabilityIndex.MediaType getIndexedMediaType(String decoderName, String mimeType) {
+        DecoderCapabilityIndex.Decoder decoder = getCapabilityIndex().getDecoder(decoderName);
+        if (decoder == null) {
+            LimeLog.warning("Decoder missing from capability index: "+decoderName);
+            return null;
+        }
+
+        return decoder.getMediaType(mimeType);
+    }
+
     private static boolean isDecoderInList(List<String> decoderList, String decoderName) {
         if (!initialized) {
             throw new IllegalStateException("MediaCodecHelper must be initialized before use");
@@ -432,23 +461,33 @@ public class MediaCodecHelper {
         return false;
     }
 
-    private static boolean decoderSupportsAndroidRLowLatency(MediaCodecInfo decoderInfo, String mimeType) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            try {
-                if (decoderInfo.getCapabilitiesForType(mimeType).isFeatureSupported(CodecCapabilities.FEATURE_LowLatency)) {
-                    LimeLog.info("Low latency decoding mode supported (FEATURE_LowLatency)");
-                    return true;
-                }
-            } catch (Exception e) {
-                // Tolerate buggy codecs
-                e.printStackTrace();
-            }
+    private static boolean decoderSupportsAndroidRLowLatency(String decoderName, String mimeType) {
+        DecoderCapabilityIndex.MediaType mediaType = getIndexedMediaType(decoderName, mimeType);
+        if (mediaType != null && mediaType.lowLatency) {
+            LimeLog.info("Low latency decoding mode supported (FEATURE_LowLatency)");
+            return true;
         }
 
         return false;
     }
 
     private static boolean decoderSupportsKnownVendorLowLatencyOption(String decoderName) {
+        // Probing requires creating a codec instance, so we keep the answer in the capability index
+        DecoderCapabilityIndex index = getCapabilityIndex();
+        String answerKey = "vendorLowLatency/"+decoderName;
+        Boolean supported = index.getLazyAnswer(answerKey);
+        if (supported == null) {
+            supported = probeKnownVendorLowLatencyOption(decoderName);
+            index.putLazyAnswer(answerKey, supported);
+        }
+        else if (supported) {
+            LimeLog.info(decoderName + " supports a known low latency option");
+        }
+
+        return supported;
+    }
+
+    private static boolean probeKnownVendorLowLatencyOption(String decoderName) {
         // It's only possible to probe vendor parameters on Android 12 and above.
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             MediaCodec testCodec = null;
@@ -505,7 +544,7 @@ public class MediaCodecHelper {
 
             // If this decoder officially supports FEATURE_LowLatency, we will just use that alone
             // for try 0. Otherwise, we'll include it as best effort with other options.
-            if (decoderSupportsAndroidRLowLatency(decoderInfo, videoFormat.getString(MediaFormat.KEY_MIME))) {
+            if (decoderSupportsAndroidRLowLatency(decoderInfo.getName(), videoFormat.getString(MediaFormat.KEY_MIME))) {
                 return true;
             }
         }
@@ -596,18 +635,10 @@ public class MediaCodecHelper {
 
     public static boolean decoderSupportsFusedIdrFrame(MediaCodecInfo decoderInfo, String mimeType) {
         // If adaptive playback is supported, we can submit new CSD together with a keyframe
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            try {
-                if (decoderInfo.getCapabilitiesForType(mimeType).
-                        isFeatureSupported(CodecCapabilities.FEATURE_AdaptivePlayback))
-                {
-                    LimeLog.info("Decoder supports fused IDR frames (FEATURE_AdaptivePlayback)");
-                    return true;
-                }
-            } catch (Exception e) {
-                // Tolerate buggy codecs
-                e.printStackTrace();
-            }
+        DecoderCapabilityIndex.MediaType mediaType = getIndexedMediaType(decoderInfo.getName(), mimeType);
+        if (mediaType != null && mediaType.adaptivePlayback) {
+            LimeLog.info("Decoder supports fused IDR frames (FEATURE_AdaptivePlayback)");
+            return true;
         }
 
         return false;
@@ -621,17 +652,11 @@ public class MediaCodecHelper {
                 return false;
             }
 
-            try {
-                if (decoderInfo.getCapabilitiesForType(mimeType).
-                        isFeatureSupported(CodecCapabilities.FEATURE_AdaptivePlayback))
-                {
-                    // This will make getCapabilities() return that adaptive playback is supported
-                    LimeLog.info("Adaptive playback supported (FEATURE_AdaptivePlayback)");
-                    return true;
-                }
-            } catch (Exception e) {
-                // Tolerate buggy codecs
-                e.printStackTrace();
+            DecoderCapabilityIndex.MediaType mediaType = getIndexedMediaType(decoderInfo.getName(), mimeType);
+            if (mediaType != null && mediaType.adaptivePlayback) {
+                // This will make getCapabilities() return that adaptive playback is supported
+                LimeLog.info("Adaptive playback supported (FEATURE_AdaptivePlayback)");
+                return true;
             }
         }
         
@@ -688,7 +713,7 @@ public class MediaCodecHelper {
         // If the decoder supports FEATURE_LowLatency or any vendor low latency option,
         // we will use that as an indication that it can handle HEVC RFI without excessively
         // buffering frames.
-        if (decoderSupportsAndroidRLowLatency(decoderInfo, "video/hevc") ||
+        if (decoderSupportsAndroidRLowLatency(decoderInfo.getName(), "video/hevc") ||
                 decoderSupportsKnownVendorLowLatencyOption(decoderInfo.getName())) {
             LimeLog.info("Enabling HEVC RFI based on low latency option support");
             return true;
@@ -699,7 +724,7 @@ public class MediaCodecHelper {
 
     public static boolean decoderSupportsRefFrameInvalidationAv1(MediaCodecInfo decoderInfo) {
         // We'll use the same heuristics as HEVC for now
-        if (decoderSupportsAndroidRLowLatency(decoderInfo, "video/av01") ||
+        if (decoderSupportsAndroidRLowLatency(decoderInfo.getName(), "video/av01") ||
                 decoderSupportsKnownVendorLowLatencyOption(decoderInfo.getName())) {
             LimeLog.info("Enabling AV1 RFI based on low latency option support");
             return true;
@@ -745,7 +770,7 @@ public class MediaCodecHelper {
 
         // If the decoder supports FEATURE_LowLatency, we will assume it is fast and modern enough
         // to be preferable for streaming over H.264 decoders.
-        if (decoderSupportsAndroidRLowLatency(decoderInfo, "video/hevc")) {
+        if (decoderSupportsAndroidRLowLatency(decoderInfo.getName(), "video/hevc")) {
             LimeLog.info("Allowing HEVC based on FEATURE_LowLatency support");
             return true;
         }
@@ -782,7 +807,7 @@ public class MediaCodecHelper {
 
     @SuppressWarnings("deprecation")
     @SuppressLint("NewApi")
-    private static LinkedList<MediaCodecInfo> getMediaCodecList() {
+    static LinkedList<MediaCodecInfo> getMediaCodecList() {
         LinkedList<MediaCodecInfo> infoList = new LinkedList<>();
         
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -820,6 +845,39 @@ public class MediaCodecHelper {
         return str;
     }
     
+    // Returns the MediaCodecInfo for a decoder we picked from the capability index. If the
+    // decoder is no longer present, the index is stale, so we rebuild it and look once more.
+    private static MediaCodecInfo getCodecInfo(DecoderCapabilityIndex.Decoder decoder) {
+        MediaCodecInfo codecInfo = lookupDecoderInfo(decoder.name);
+        if (codecInfo != null) {
+            return codecInfo;
+        }
+
+        LimeLog.warning("Indexed decoder is not present: "+decoder.name);
+        DecoderCapabilityIndex.invalidate();
+        synchronized (MediaCodecHelper.class) {
+            decoderInfoByName = null;
+        }
+
+        if (getCapabilityIndex().getDecoder(decoder.name) == null) {
+            return null;
+        }
+        return lookupDecoderInfo(decoder.name);
+    }
+
+    // The codec list is walked once per process rather than once per stream
+    private static synchronized MediaCodecInfo lookupDecoderInfo(String decoderName) {
+        if (decoderInfoByName == null) {
+            decoderInfoByName = new HashMap<>();
+            for (MediaCodecInfo codecInfo : getMediaCodecList()) {
+                if (!codecInfo.isEncoder()) {
+                    decoderInfoByName.put(codecInfo.getName(), codecInfo);
+                }
+            }
+        }
+        return decoderInfoByName.get(decoderName);
+    }
+    
     private static MediaCodecInfo findPreferredDecoder() {
         // This is a different algorithm than the other findXXXDecoder functions,
         // because we want to evaluate the decoders in our list's order
@@ -829,17 +887,13 @@ public class MediaCodecHelper {
             throw new IllegalStateException("MediaCodecHelper must be initialized before use");
         }
         
+        List<DecoderCapabilityIndex.Decoder> decoders = getCapabilityIndex().getDecoders();
         for (String preferredDecoder : preferredDecoders) {
-            for (MediaCodecInfo codecInfo : getMediaCodecList()) {
-                // Skip encoders
-                if (codecInfo.isEncoder()) {
-                    continue;
-                }
-                
+            for (DecoderCapabilityIndex.Decoder decoder : decoders) {
                 // Check for preferred decoders
-                if (preferredDecoder.equalsIgnoreCase(codecInfo.getName())) {
-                    LimeLog.info("Preferred decoder choice is "+codecInfo.getName());
-                    return codecInfo;
+                if (preferredDecoder.equalsIgnoreCase(decoder.name)) {
+                    LimeLog.info("Preferred decoder choice is "+decoder.name);
+                    return getCodecInfo(decoder);
                 }
             }
         }
@@ -847,18 +901,18 @@ public class MediaCodecHelper {
         return null;
     }
 
-    private static boolean isCodecBlacklisted(MediaCodecInfo codecInfo) {
+    private static boolean isCodecBlacklisted(DecoderCapabilityIndex.Decoder decoder) {
         // Use the new isSoftwareOnly() function on Android Q
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            if (!SHOULD_BYPASS_SOFTWARE_BLOCK && codecInfo.isSoftwareOnly()) {
-                LimeLog.info("Skipping software-only decoder: "+codecInfo.getName());
+            if (!SHOULD_BYPASS_SOFTWARE_BLOCK && decoder.softwareOnly) {
+                LimeLog.info("Skipping software-only decoder: "+decoder.name);
                 return true;
             }
         }
 
         // Check for explicitly blacklisted decoders
-        if (isDecoderInList(blacklistedDecoderPrefixes, codecInfo.getName())) {
-            LimeLog.info("Skipping blacklisted decoder: "+codecInfo.getName());
+        if (isDecoderInList(blacklistedDecoderPrefixes, decoder.name)) {
+            LimeLog.info("Skipping blacklisted decoder: "+decoder.name);
             return true;
         }
 
@@ -866,39 +920,83 @@ public class MediaCodecHelper {
     }
     
     public static MediaCodecInfo findFirstDecoder(String mimeType) {
-        for (MediaCodecInfo codecInfo : getMediaCodecList()) {
-            // Skip encoders
-            if (codecInfo.isEncoder()) {
-                continue;
-            }
-
+        for (DecoderCapabilityIndex.Decoder decoder : getCapabilityIndex().getDecoders()) {
             // Skip compatibility aliases on Q+
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                if (codecInfo.isAlias()) {
-                    continue;
-                }
+            if (decoder.alias) {
+                continue;
             }
             
             // Find a decoder that supports the specified video format
-            for (String mime : codecInfo.getSupportedTypes()) {
-                if (mime.equalsIgnoreCase(mimeType)) {
-                    // Skip blacklisted codecs
-                    if (isCodecBlacklisted(codecInfo)) {
-                        continue;
-                    }
-
-                    LimeLog.info("First decoder choice is "+codecInfo.getName());
-                    return codecInfo;
+            if (decoder.getMediaType(mimeType) != null) {
+                // Skip blacklisted codecs
+                if (isCodecBlacklisted(decoder)) {
+                    continue;
                 }
+
+                LimeLog.info("First decoder choice is "+decoder.name);
+                return getCodecInfo(decoder);
             }
         }
         
         return null;
     }
     
+    // Returns the names of decoders we could use for this format, in MediaCodecList order
+    static List<String> getCandidateDecoders(String mimeType, int requiredProfile) {
+        ArrayList<String> candidates = new ArrayList<>();
+        for (DecoderCapabilityIndex.Decoder decoder : getCapabilityIndex().getDecoders()) {
+            if (decoder.alias) {
+                continue;
+            }
+
+            DecoderCapabilityIndex.MediaType mediaType = decoder.getMediaType(mimeType);
+            if (mediaType == null || mediaType.capabilitiesUnavailable || isCodecBlacklisted(decoder)) {
+                continue;
+            }
+
+            if (requiredProfile != -1 && !mediaType.supportsProfile(requiredProfile)) {
+                continue;
+            }
+
+            candidates.add(decoder.name);
+        }
+        return candidates;
+    }
+
+    // Returns null if the decoder isn't present
+    static MediaCodecInfo getDecoderInfo(String decoderName) {
+        DecoderCapabilityIndex.Decoder decoder = getCapabilityIndex().getDecoder(decoderName);
+        return decoder != null ? getCodecInfo(decoder) : null;
+    }
+
+    static void setDecoderRanking(DecoderRanking ranking) {
+        decoderRanking = ranking;
+    }
+
+    private static MediaCodecInfo findRankedDecoder(String mimeType, int requiredProfile) {
+        DecoderRanking ranking = decoderRanking;
+        if (ranking == null) {
+            return null;
+        }
+
+        String decoderName = ranking.choose(mimeType, getCandidateDecoders(mimeType, requiredProfile));
+        if (decoderName == null) {
+            return null;
+        }
+
+        LimeLog.info("Benchmarked decoder choice is "+decoderName);
+        return getDecoderInfo(decoderName);
+    }
+    
     public static MediaCodecInfo findProbableSafeDecoder(String mimeType, int requiredProfile) {
-        // First look for a preferred decoder by name
-        MediaCodecInfo info = findPreferredDecoder();
+        // If the user benchmarked their decoders, that beats any of our guesses
+        MediaCodecInfo info = findRankedDecoder(mimeType, requiredProfile);
+        if (info != null) {
+            return info;
+        }
+
+        // Next look for a preferred decoder by name
+        info = findPreferredDecoder();
         if (info != null) {
             return info;
         }
@@ -920,6 +1018,8 @@ public class MediaCodecHelper {
     // and we want to be sure all callers are handling this possibility
     @SuppressWarnings("RedundantThrows")
     private static MediaCodecInfo findKnownSafeDecoder(String mimeType, int requiredProfile) throws Exception {
+        List<DecoderCapabilityIndex.Decoder> decoders = getCapabilityIndex().getDecoders();
+
         // Some devices (Exynos devces, at least) have two sets of decoders.
         // The first set of decoders are C2 which do not support FEATURE_LowLatency,
         // but the second set of OMX decoders do support FEATURE_LowLatency. We want
@@ -929,48 +1029,41 @@ public class MediaCodecHelper {
         // the standard ones (like c2.qti.hevc.decoder) do not. Like Exynos, the decoders
         // with FEATURE_LowLatency support are listed after the standard ones.
         for (int i = 0; i < 2; i++) {
-            for (MediaCodecInfo codecInfo : getMediaCodecList()) {
-                // Skip encoders
-                if (codecInfo.isEncoder()) {
+            for (DecoderCapabilityIndex.Decoder decoder : decoders) {
+                // Skip compatibility aliases on Q+
+                if (decoder.alias) {
                     continue;
                 }
 
-                // Skip compatibility aliases on Q+
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    if (codecInfo.isAlias()) {
+                // Find a decoder that supports the requested video format
+                DecoderCapabilityIndex.MediaType mediaType = decoder.getMediaType(mimeType);
+                if (mediaType != null) {
+                    LimeLog.info("Examining decoder capabilities of " + decoder.name + " (round " + (i + 1) + ")");
+
+                    // Skip blacklisted codecs
+                    if (isCodecBlacklisted(decoder)) {
                         continue;
                     }
-                }
 
-                // Find a decoder that supports the requested video format
-                for (String mime : codecInfo.getSupportedTypes()) {
-                    if (mime.equalsIgnoreCase(mimeType)) {
-                        LimeLog.info("Examining decoder capabilities of " + codecInfo.getName() + " (round " + (i + 1) + ")");
-
-                        // Skip blacklisted codecs
-                        if (isCodecBlacklisted(codecInfo)) {
-                            continue;
-                        }
+                    // getCapabilitiesForType() threw when we built the index
+                    if (mediaType.capabilitiesUnavailable) {
+                        throw new IllegalArgumentException("Capabilities unavailable for " + decoder.name);
+                    }
 
-                        CodecCapabilities caps = codecInfo.getCapabilitiesForType(mime);
+                    if (i == 0 && !mediaType.lowLatency) {
+                        LimeLog.info("Skipping decoder that lacks FEATURE_LowLatency for round 1");
+                        continue;
+                    }
 
-                        if (i == 0 && !decoderSupportsAndroidRLowLatency(codecInfo, mime)) {
-                            LimeLog.info("Skipping decoder that lacks FEATURE_LowLatency for round 1");
-                            continue;
+                    if (requiredProfile != -1) {
+                        if (mediaType.supportsProfile(requiredProfile)) {
+                            LimeLog.info("Decoder " + decoder.name + " supports required profile");
+                            return getCodecInfo(decoder);
                         }
 
-                        if (requiredProfile != -1) {
-                            for (CodecProfileLevel profile : caps.profileLevels) {
-                                if (profile.profile == requiredProfile) {
-                                    LimeLog.info("Decoder " + codecInfo.getName() + " supports required profile");
-                                    return codecInfo;
-                                }
-                            }
-
-                            LimeLog.info("Decoder " + codecInfo.getName() + " does NOT support required profile");
-                        } else {
-                            return codecInfo;
-                        }
+                        LimeLog.info("Decoder " + decoder.name + " does NOT support required profile");
+                    } else {
+                        return getCodecInfo(decoder);
                     }
                 }
             }
@@ -978,6 +1071,23 @@ public class MediaCodecHelper {
         
         return null;
     }
+
+    // Returns 0 if unknown
+    static int getDecoderMaxSupportedInstances(String decoderName, String mimeType) {
+        DecoderCapabilityIndex.MediaType mediaType = getIndexedMediaType(decoderName, mimeType);
+        return mediaType != null ? mediaType.maxSupportedInstances : 0;
+    }
+
+    // Returns null if the supported widths are unknown
+    @SuppressLint("NewApi")
+    public static Range<Integer> getDecoderSupportedWidths(MediaCodecInfo decoderInfo, String mimeType) {
+        DecoderCapabilityIndex.MediaType mediaType = getIndexedMediaType(decoderInfo.getName(), mimeType);
+        if (mediaType == null || !mediaType.isWidthKnown()) {
+            return null;
+        }
+
+        return new Range<>(mediaType.minWidth, mediaType.maxWidth);
+    }
     
     public static String readCpuinfo() throws Exception {
         StringBuilder cpuInfo = new StringBuilder();
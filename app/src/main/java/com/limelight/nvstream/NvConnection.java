@@ -10,6 +10,9 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.RouteInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -21,6 +24,9 @@ import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
 
 import javax.crypto.KeyGenerator;
@@ -37,7 +43,9 @@ import com.limelight.nvstream.http.LimelightCryptoProvider;
 import com.limelight.nvstream.http.NvApp;
 import com.limelight.nvstream.http.NvHTTP;
 import com.limelight.nvstream.http.PairingManager;
+import com.limelight.nvstream.input.InputLatencyTracer;
 import com.limelight.nvstream.input.MouseButtonPacket;
+import com.limelight.nvstream.input.MouseMotionAccumulator;
 import com.limelight.nvstream.jni.MoonBridge;
 
 public class NvConnection {
@@ -49,6 +57,30 @@ public class NvConnection {
     private final boolean isMonkey;
     private final Context appContext;
 
+    // These run in parallel with the app launch on the host
+    private FutureTask<Integer> connectionTypeTask;
+    private Thread decoderPrepareThread;
+
+    // Relative mouse motion queued by queueMouseMove(). All of the mouse motion state
+    // is guarded by mouseMotion.
+    private final MouseMotionAccumulator mouseMotion = new MouseMotionAccumulator();
+    private final Handler mouseMotionHandler = new Handler(Looper.getMainLooper());
+    private int mouseMotionWindowMs;
+    private short mouseMotionReferenceWidth, mouseMotionReferenceHeight;
+    private long lastMouseMotionSendTimeMs;
+    private boolean mouseMotionFlushPending;
+    private final Runnable mouseMotionFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mouseMotion) {
+                mouseMotionFlushPending = false;
+                flushMouseMotion();
+            }
+        }
+    };
+
+    private final InputLatencyTracer inputLatencyTracer = new InputLatencyTracer();
+
     public NvConnection(Context appContext, ComputerDetails.AddressTuple host, int httpsPort, String uniqueId, StreamConfiguration config, LimelightCryptoProvider cryptoProvider, X509Certificate serverCert)
     {
         this.appContext = appContext;
@@ -87,6 +119,8 @@ public class NvConnection {
     }
 
     public void stop() {
+        mouseMotionHandler.removeCallbacks(mouseMotionFlushRunnable);
+
         // Interrupt any pending connection. This is thread-safe.
         MoonBridge.interruptConnection();
 
@@ -219,7 +253,91 @@ public class NvConnection {
         return StreamConfiguration.STREAM_CFG_AUTO;
     }
     
-    private boolean startApp() throws XmlPullParserException, IOException
+    // Returns the video format that will most likely be negotiated with the host
+    private int getLikelyVideoFormat() {
+        int supportedFormats = context.streamConfig.getSupportedVideoFormats();
+        if (!context.negotiatedHdr) {
+            supportedFormats &= ~MoonBridge.VIDEO_FORMAT_MASK_10BIT;
+        }
+
+        // The host's codec mode support uses different bits for AV1 than our video formats
+        int hostFormats = context.serverCodecModeSupport & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265);
+        if ((context.serverCodecModeSupport & 0x10000) != 0) {
+            hostFormats |= MoonBridge.VIDEO_FORMAT_AV1_MAIN8;
+        }
+        if ((context.serverCodecModeSupport & 0x20000) != 0) {
+            hostFormats |= MoonBridge.VIDEO_FORMAT_AV1_MAIN10;
+        }
+
+        // Older hosts don't report codec support at all, but they can always do H.264
+        if (context.serverCodecModeSupport == 0) {
+            hostFormats = MoonBridge.VIDEO_FORMAT_H264;
+        }
+
+        // Pick the most advanced codec we have in common
+        int commonFormats = supportedFormats & hostFormats;
+        if ((commonFormats & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
+            return Integer.highestOneBit(commonFormats & MoonBridge.VIDEO_FORMAT_MASK_AV1);
+        }
+        else if ((commonFormats & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
+            return Integer.highestOneBit(commonFormats & MoonBridge.VIDEO_FORMAT_MASK_H265);
+        }
+        else {
+            return MoonBridge.VIDEO_FORMAT_H264;
+        }
+    }
+
+    private void startDecoderPrepare(final VideoDecoderRenderer videoDecoderRenderer) {
+        final int likelyVideoFormat = getLikelyVideoFormat();
+        decoderPrepareThread = new Thread() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                videoDecoderRenderer.prepare(likelyVideoFormat);
+                LimeLog.info("Decoder prepared for format "+Integer.toHexString(likelyVideoFormat)+
+                        " in "+(System.currentTimeMillis() - startTime)+" ms");
+            }
+        };
+        decoderPrepareThread.setName("Video - Prepare");
+        decoderPrepareThread.start();
+    }
+
+    private void waitForDecoderPrepare() {
+        if (decoderPrepareThread == null) {
+            return;
+        }
+
+        try {
+            decoderPrepareThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+        }
+        decoderPrepareThread = null;
+    }
+
+    private int getDetectedConnectionType() {
+        try {
+            return connectionTypeTask.get();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // Restore the interrupt status as above
+            Thread.currentThread().interrupt();
+            return StreamConfiguration.STREAM_CFG_AUTO;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+
+            // If we can't determine the connection type, let moonlight-common-c decide.
+            return StreamConfiguration.STREAM_CFG_AUTO;
+        }
+    }
+
+    private boolean startApp(VideoDecoderRenderer videoDecoderRenderer) throws XmlPullParserException, IOException
     {
         NvHTTP h = new NvHTTP(context.serverAddress, context.httpsPort, uniqueId, context.serverCert, cryptoProvider);
 
@@ -249,6 +367,10 @@ public class NvConnection {
             context.connListener.displayTransientMessage("Your PC GPU does not support streaming HDR. The stream will be SDR.");
             context.negotiatedHdr = false;
         }
+
+        // Now that we know what the host supports, we can get the decoder ready while the
+        // host launches the app. This can take several seconds on the host side.
+        startDecoderPrepare(videoDecoderRenderer);
         
         //
         // Decide on negotiated stream parameters now
@@ -281,7 +403,7 @@ public class NvConnection {
 
         // We will perform some connection type detection if the caller asked for it
         if (context.streamConfig.getRemote() == StreamConfiguration.STREAM_CFG_AUTO) {
-            context.negotiatedRemoteStreaming = detectServerConnectionType();
+            context.negotiatedRemoteStreaming = getDetectedConnectionType();
             context.negotiatedPacketSize =
                     context.negotiatedRemoteStreaming == StreamConfiguration.STREAM_CFG_REMOTE ?
                             1024 : context.streamConfig.getMaxPacketSize();
@@ -388,10 +510,30 @@ public class NvConnection {
 
                 String appName = context.streamConfig.getApp().getAppName();
 
+                // Connection type detection may require resolving and connecting to the host,
+                // so we start that now to run in parallel with our requests to the host.
+                if (context.streamConfig.getRemote() == StreamConfiguration.STREAM_CFG_AUTO) {
+                    connectionTypeTask = new FutureTask<>(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return detectServerConnectionType();
+                        }
+                    });
+                    new Thread(connectionTypeTask, "Connection type detection").start();
+                }
+
                 context.connListener.stageStarting(appName);
 
                 try {
-                    if (!startApp()) {
+                    boolean appStarted;
+                    try {
+                        appStarted = startApp(videoDecoderRenderer);
+                    } finally {
+                        // The renderer must not be set up while it's still preparing
+                        waitForDecoderPrepare();
+                    }
+
+                    if (!appStarted) {
                         context.connListener.stageFailed(appName, 0, 0);
                         return;
                     }
@@ -451,37 +593,118 @@ public class NvConnection {
         }).start();
     }
     
+    // Input handlers use this to trace how long it takes for their input to be sent
+    public InputLatencyTracer getInputLatencyTracer() {
+        return inputLatencyTracer;
+    }
+
+    // Relative motion queued within this many milliseconds of the last motion packet is
+    // combined into a single packet. With a window of 0, motion is sent for each call to
+    // queueMouseMove() but sub-pixel motion is still carried over.
+    public void setMouseMotionWindowMs(int windowMs) {
+        synchronized (mouseMotion) {
+            mouseMotionWindowMs = windowMs;
+        }
+    }
+
+    // Queues relative mouse motion covering the given number of input samples. If the
+    // reference width and height are non-zero, the motion is sent as a change in the mouse
+    // position instead, like sendMouseMoveAsMousePosition().
+    public void queueMouseMove(float deltaX, float deltaY, int samples, short referenceWidth, short referenceHeight)
+    {
+        synchronized (mouseMotion) {
+            if (referenceWidth != mouseMotionReferenceWidth || referenceHeight != mouseMotionReferenceHeight) {
+                // Motion relative to the old reference size must be sent as such
+                flushMouseMotion();
+                mouseMotion.clear();
+                mouseMotionReferenceWidth = referenceWidth;
+                mouseMotionReferenceHeight = referenceHeight;
+            }
+
+            mouseMotion.add(deltaX, deltaY, samples);
+
+            long nextSendTimeMs = lastMouseMotionSendTimeMs + mouseMotionWindowMs;
+            if (mouseMotionWindowMs == 0 || SystemClock.uptimeMillis() >= nextSendTimeMs) {
+                flushMouseMotion();
+            }
+            else if (!mouseMotionFlushPending) {
+                mouseMotionFlushPending = true;
+                mouseMotionHandler.postAtTime(mouseMotionFlushRunnable, nextSendTimeMs);
+            }
+        }
+    }
+
+    // Returns the number of queued motion samples and sent motion packets since the last call
+    public void getMouseMotionWindowStats(MouseMotionAccumulator.WindowStats stats) {
+        mouseMotion.takeWindowStats(stats, SystemClock.uptimeMillis());
+    }
+
+    // Sends any queued mouse motion. This is called before sending other mouse input, so
+    // the host sees everything in the same order that we received it.
+    private void flushMouseMotion()
+    {
+        synchronized (mouseMotion) {
+            if (!mouseMotion.take()) {
+                return;
+            }
+
+            lastMouseMotionSendTimeMs = SystemClock.uptimeMillis();
+            if (isMonkey) {
+                return;
+            }
+
+            inputLatencyTracer.onInputSent();
+            if (mouseMotionReferenceWidth != 0 && mouseMotionReferenceHeight != 0) {
+                MoonBridge.sendMouseMoveAsMousePosition(mouseMotion.getSentX(), mouseMotion.getSentY(),
+                        mouseMotionReferenceWidth, mouseMotionReferenceHeight);
+            }
+            else {
+                MoonBridge.sendMouseMove(mouseMotion.getSentX(), mouseMotion.getSentY());
+            }
+        }
+    }
+
     public void sendMouseMove(final short deltaX, final short deltaY)
     {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseMove(deltaX, deltaY);
         }
     }
 
     public void sendMousePosition(short x, short y, short referenceWidth, short referenceHeight)
     {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMousePosition(x, y, referenceWidth, referenceHeight);
         }
     }
 
     public void sendMouseMoveAsMousePosition(short deltaX, short deltaY, short referenceWidth, short referenceHeight)
     {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseMoveAsMousePosition(deltaX, deltaY, referenceWidth, referenceHeight);
         }
     }
 
     public void sendMouseButtonDown(final byte mouseButton)
     {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseButton(MouseButtonPacket.PRESS_EVENT, mouseButton);
         }
     }
     
     public void sendMouseButtonUp(final byte mouseButton)
     {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseButton(MouseButtonPacket.RELEASE_EVENT, mouseButton);
         }
     }
@@ -493,6 +716,7 @@ public class NvConnection {
             final short rightStickX, final short rightStickY)
     {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMultiControllerInput(controllerNumber, activeGamepadMask, buttonFlags,
                     leftTrigger, rightTrigger, leftStickX, leftStickY, rightStickX, rightStickY);
         }
@@ -500,30 +724,39 @@ public class NvConnection {
 
     public void sendKeyboardInput(final short keyMap, final byte keyDirection, final byte modifier, final byte flags) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendKeyboardInput(keyMap, keyDirection, modifier, flags);
         }
     }
     
     public void sendMouseScroll(final byte scrollClicks) {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseHighResScroll((short)(scrollClicks * 120)); // WHEEL_DELTA
         }
     }
 
     public void sendMouseHScroll(final byte scrollClicks) {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseHighResHScroll((short)(scrollClicks * 120)); // WHEEL_DELTA
         }
     }
 
     public void sendMouseHighResScroll(final short scrollAmount) {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseHighResScroll(scrollAmount);
         }
     }
 
     public void sendMouseHighResHScroll(final short scrollAmount) {
+        flushMouseMotion();
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendMouseHighResHScroll(scrollAmount);
         }
     }
@@ -531,6 +764,7 @@ public class NvConnection {
     public int sendTouchEvent(byte eventType, int pointerId, float x, float y, float pressureOrDistance,
                               float contactAreaMajor, float contactAreaMinor, short rotation) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             return MoonBridge.sendTouchEvent(eventType, pointerId, x, y, pressureOrDistance,
                     contactAreaMajor, contactAreaMinor, rotation);
         }
@@ -543,6 +777,7 @@ public class NvConnection {
                             float pressureOrDistance, float contactAreaMajor, float contactAreaMinor,
                             short rotation, byte tilt) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             return MoonBridge.sendPenEvent(eventType, toolType, penButtons, x, y, pressureOrDistance,
                     contactAreaMajor, contactAreaMinor, rotation, tilt);
         }
@@ -559,6 +794,7 @@ public class NvConnection {
     public int sendControllerTouchEvent(byte controllerNumber, byte eventType, int pointerId,
                                         float x, float y, float pressure) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             return MoonBridge.sendControllerTouchEvent(controllerNumber, eventType, pointerId, x, y, pressure);
         }
         else {
@@ -569,6 +805,7 @@ public class NvConnection {
     public int sendControllerMotionEvent(byte controllerNumber, byte motionType,
                                          float x, float y, float z) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             return MoonBridge.sendControllerMotionEvent(controllerNumber, motionType, x, y, z);
         }
         else {
@@ -582,6 +819,7 @@ public class NvConnection {
 
     public void sendUtf8Text(final String text) {
         if (!isMonkey) {
+            inputLatencyTracer.onInputSent();
             MoonBridge.sendUtf8Text(text);
         }
     }
@@ -1,5 +1,6 @@
 package com.limelight.nvstream;
 
+import com.limelight.nvstream.av.audio.AudioConfiguration;
 import com.limelight.nvstream.http.NvApp;
 import com.limelight.nvstream.jni.MoonBridge;
 
@@ -21,7 +22,7 @@ public class StreamConfiguration {
     private boolean playLocalAudio;
     private int maxPacketSize;
     private int remote;
-    private MoonBridge.AudioConfiguration audioConfiguration;
+    private AudioConfiguration audioConfiguration;
     private int supportedVideoFormats;
     private int attachedGamepadMask;
     private int encryptionFlags;
@@ -118,7 +119,7 @@ public class StreamConfiguration {
             return this;
         }
 
-        public StreamConfiguration.Builder setAudioConfiguration(MoonBridge.AudioConfiguration audioConfig) {
+        public StreamConfiguration.Builder setAudioConfiguration(AudioConfiguration audioConfig) {
             config.audioConfiguration = audioConfig;
             return this;
         }
@@ -204,7 +205,7 @@ public class StreamConfiguration {
         return remote;
     }
 
-    public MoonBridge.AudioConfiguration getAudioConfiguration() {
+    public AudioConfiguration getAudioConfiguration() {
         return audioConfiguration;
     }
     
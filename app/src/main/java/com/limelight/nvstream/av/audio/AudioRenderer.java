@@ -1,15 +1,23 @@
 package com.limelight.nvstream.av.audio;
 
-import com.limelight.nvstream.jni.MoonBridge;
+import java.nio.ByteBuffer;
 
 public interface AudioRenderer {
-    int setup(MoonBridge.AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame);
+    int setup(AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame);
 
     void start();
 
     void stop();
     
     void playDecodedAudio(short[] audioData);
+
+    // Called once after setup(). If this returns null, decoded audio will be submitted via
+    // playDecodedAudio(short[]). Otherwise, the decoder will write native-order 16-bit samples
+    // to the beginning of the returned direct buffer for every frame and submit them via
+    // playDecodedAudio(ByteBuffer, int).
+    ByteBuffer getDirectSampleBuffer();
+
+    void playDecodedAudio(ByteBuffer audioData, int sampleCount);
     
     void cleanup();
 }
@@ -0,0 +1,99 @@
+package com.limelight.nvstream.av.audio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Binary format of Opus packet captures written by OpusPacketRecorder.
+//
+// The file starts with a header:
+//   int magic, int version, int audioConfiguration, int sampleRate, int channelCount,
+//   int streams, int coupledStreams, int samplesPerFrame, byte[channelCount] mapping
+// followed by packet records until EOF:
+//   long receiveTimeUs, int length, byte[length] data
+//
+// Receive times are relative to the first packet. All values are big endian as written
+// by DataOutputStream.
+public class OpusPacketCapture {
+    static final int MAGIC = 0x4D4C4F50; // "MLOP"
+    static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".mlop";
+
+    // Sequential reader for capture files. The data array is reused between packets.
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        public final int audioConfiguration;
+        public final int sampleRate;
+        public final int channelCount;
+        public final int streams;
+        public final int coupledStreams;
+        public final int samplesPerFrame;
+        public final byte[] mapping;
+
+        long receiveTimeUs;
+        byte[] data = new byte[0];
+        int dataLength;
+
+        public Reader(File captureFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(captureFile), 65536));
+
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not an Opus packet capture: " + captureFile);
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported capture version: " + version);
+                }
+
+                audioConfiguration = in.readInt();
+                sampleRate = in.readInt();
+                channelCount = in.readInt();
+                streams = in.readInt();
+                coupledStreams = in.readInt();
+                samplesPerFrame = in.readInt();
+                if (channelCount <= 0 || channelCount > 8) {
+                    throw new IOException("Invalid channel count: " + channelCount);
+                }
+
+                mapping = new byte[channelCount];
+                in.readFully(mapping);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        // Returns false at the end of the capture
+        boolean next() throws IOException {
+            try {
+                receiveTimeUs = in.readLong();
+
+                dataLength = in.readInt();
+                if (dataLength < 0) {
+                    throw new IOException("Invalid packet length: " + dataLength);
+                }
+                if (data.length < dataLength) {
+                    data = new byte[dataLength];
+                }
+                in.readFully(data, 0, dataLength);
+            } catch (EOFException e) {
+                // The final record may be truncated if the capture wasn't closed cleanly
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.limelight.nvstream.av.audio;
+
+import com.limelight.LimeLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Writes the Opus packets of a stream to a capture file that OpusPacketReplayer can play back
+// later. Packets are handed to us by the native decode path before they are decoded, so this
+// doesn't wrap an AudioRenderer like DecodeUnitRecorder does for video.
+public class OpusPacketRecorder {
+    private final File captureFile;
+    private DataOutputStream out;
+    private long firstPacketTimeUs = -1;
+
+    public OpusPacketRecorder(File captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    // Called when the audio stream is initialized
+    public synchronized void start(int audioConfiguration, int sampleRate, int channelCount,
+                                   int streams, int coupledStreams, int samplesPerFrame, byte[] mapping) {
+        close();
+
+        try {
+            File parent = captureFile.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(captureFile), 65536));
+            out.writeInt(OpusPacketCapture.MAGIC);
+            out.writeInt(OpusPacketCapture.VERSION);
+            out.writeInt(audioConfiguration);
+            out.writeInt(sampleRate);
+            out.writeInt(channelCount);
+            out.writeInt(streams);
+            out.writeInt(coupledStreams);
+            out.writeInt(samplesPerFrame);
+            out.write(mapping, 0, channelCount);
+
+            firstPacketTimeUs = -1;
+            LimeLog.info("Capturing Opus packets to "+captureFile);
+        } catch (IOException e) {
+            // Don't fail the stream just because we can't capture it
+            LimeLog.warning("Unable to start Opus packet capture: "+e.getMessage());
+            close();
+        }
+    }
+
+    public synchronized void writePacket(byte[] packet, int length) {
+        if (out != null) {
+            long nowUs = System.nanoTime() / 1000;
+            if (firstPacketTimeUs < 0) {
+                firstPacketTimeUs = nowUs;
+            }
+
+            try {
+                out.writeLong(nowUs - firstPacketTimeUs);
+                out.writeInt(length);
+                out.write(packet, 0, length);
+            } catch (IOException e) {
+                LimeLog.warning("Opus packet capture failed: "+e.getMessage());
+                close();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+}
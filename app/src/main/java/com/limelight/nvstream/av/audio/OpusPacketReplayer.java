@@ -0,0 +1,117 @@
+package com.limelight.nvstream.av.audio;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.av.video.LatencyHistogram;
+import com.limelight.nvstream.jni.MoonBridge;
+
+import java.io.File;
+import java.io.IOException;
+
+// Plays a capture written by OpusPacketRecorder through the native Opus decoder into a renderer,
+// using the same init/start/decode/stop/cleanup callbacks as a real stream. This gives us a
+// repeatable workload for measuring decode cost for each channel layout without a host PC.
+//
+// This must not run while a stream is active, since both use the same native audio decoder.
+public class OpusPacketReplayer {
+    private final File captureFile;
+    private final boolean realTime;
+
+    private volatile boolean stopping;
+
+    private int replayedPackets;
+    private int skippedPackets;
+    private long elapsedTimeMs;
+    private final LatencyHistogram packetTime = new LatencyHistogram();
+
+    // If realTime is true, packets are decoded with the same cadence they were originally
+    // received. Otherwise, they are decoded as fast as possible.
+    public OpusPacketReplayer(File captureFile, boolean realTime) {
+        this.captureFile = captureFile;
+        this.realTime = realTime;
+    }
+
+    // Blocks until the whole capture has been decoded or stop() is called
+    public void replay(AudioRenderer renderer) throws IOException {
+        try (OpusPacketCapture.Reader reader = new OpusPacketCapture.Reader(captureFile)) {
+            // Moonlight-core is not thread-safe with respect to connection start and stop, so
+            // we hold the same lock a connection does to keep one from starting under us.
+            synchronized (MoonBridge.class) {
+                MoonBridge.setupBridge(null, renderer, null);
+                try {
+                    int err = MoonBridge.startAudioReplay(reader.audioConfiguration, reader.sampleRate,
+                            reader.channelCount, reader.streams, reader.coupledStreams,
+                            reader.samplesPerFrame, reader.mapping);
+                    if (err != 0) {
+                        throw new IOException("Audio decoder setup failed: "+err);
+                    }
+
+                    try {
+                        replayPackets(reader);
+                    } finally {
+                        MoonBridge.stopAudioReplay();
+                    }
+                } finally {
+                    MoonBridge.cleanupBridge();
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        stopping = true;
+    }
+
+    public int getReplayedPackets() {
+        return replayedPackets;
+    }
+
+    // Packets the native decode path couldn't accept
+    public int getSkippedPackets() {
+        return skippedPackets;
+    }
+
+    public long getElapsedTimeMs() {
+        return elapsedTimeMs;
+    }
+
+    // Time taken to decode each packet and hand it to the renderer
+    public LatencyHistogram getPacketTime() {
+        return packetTime;
+    }
+
+    private void replayPackets(OpusPacketCapture.Reader reader) throws IOException {
+        long replayStartTimeUs = System.nanoTime() / 1000;
+
+        replayedPackets = 0;
+        skippedPackets = 0;
+        packetTime.clear();
+
+        while (!stopping && reader.next()) {
+            if (realTime) {
+                long sleepTimeMs = (replayStartTimeUs + reader.receiveTimeUs - System.nanoTime() / 1000) / 1000;
+                if (sleepTimeMs > 0) {
+                    try {
+                        Thread.sleep(sleepTimeMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            long startNs = System.nanoTime();
+            if (MoonBridge.replayAudioPacket(reader.data, reader.dataLength) < 0) {
+                skippedPackets++;
+                continue;
+            }
+            packetTime.record((System.nanoTime() - startNs) / 1000);
+            replayedPackets++;
+        }
+
+        elapsedTimeMs = System.nanoTime() / 1000000 - replayStartTimeUs / 1000;
+        LimeLog.info("Replayed "+replayedPackets+" Opus packets in "+elapsedTimeMs+" ms");
+        if (skippedPackets != 0) {
+            LimeLog.warning("Skipped "+skippedPackets+" oversized Opus packets");
+        }
+    }
+}
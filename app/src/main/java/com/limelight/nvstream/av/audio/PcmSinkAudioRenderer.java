@@ -0,0 +1,176 @@
+package com.limelight.nvstream.av.audio;
+
+import com.limelight.LimeLog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.zip.CRC32;
+
+// An audio renderer that plays nothing. It counts and checksums the decoded PCM and can
+// optionally write it to a WAV file. This is used with OpusPacketReplayer to measure the
+// decode path on its own and to check that decoded output matches between builds.
+//
+// The checksum covers the samples as little endian 16-bit values, so it is the same as a
+// checksum of the WAV data and doesn't depend on which submission path was used.
+public class PcmSinkAudioRenderer implements AudioRenderer {
+    private final File wavFile;
+    private final boolean useDirectBuffer;
+
+    private final CRC32 checksum = new CRC32();
+    private int channelCount;
+    private int sampleRate;
+    private int frames;
+    private long samples;
+
+    private byte[] pcmBytes;
+    private ByteBuffer directSampleBuffer;
+    private ShortBuffer directSamples;
+    private short[] directFrame;
+    private OutputStream wavOut;
+
+    // If wavFile is null, the PCM isn't written anywhere. If useDirectBuffer is true,
+    // the decoder submits audio through a direct buffer instead of a short[].
+    public PcmSinkAudioRenderer(File wavFile, boolean useDirectBuffer) {
+        this.wavFile = wavFile;
+        this.useDirectBuffer = useDirectBuffer;
+    }
+
+    @Override
+    public int setup(AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame) {
+        this.channelCount = audioConfiguration.channelCount;
+        this.sampleRate = sampleRate;
+
+        int frameSamples = channelCount * samplesPerFrame;
+        pcmBytes = new byte[frameSamples * 2];
+        if (useDirectBuffer) {
+            directSampleBuffer = ByteBuffer.allocateDirect(frameSamples * 2).order(ByteOrder.nativeOrder());
+            directSamples = directSampleBuffer.asShortBuffer();
+            directFrame = new short[frameSamples];
+        }
+
+        if (wavFile != null) {
+            try {
+                wavOut = new BufferedOutputStream(new FileOutputStream(wavFile), 65536);
+
+                // The sizes are filled in when we're cleaned up
+                wavOut.write(getWavHeader(0));
+            } catch (IOException e) {
+                LimeLog.warning("Unable to write WAV file: "+e.getMessage());
+                closeWav();
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void playDecodedAudio(short[] audioData) {
+        consumeSamples(audioData, audioData.length);
+    }
+
+    @Override
+    public ByteBuffer getDirectSampleBuffer() {
+        return directSampleBuffer;
+    }
+
+    @Override
+    public void playDecodedAudio(ByteBuffer audioData, int sampleCount) {
+        directSamples.clear();
+        directSamples.get(directFrame, 0, sampleCount);
+        consumeSamples(directFrame, sampleCount);
+    }
+
+    private void consumeSamples(short[] audioData, int length) {
+        for (int i = 0; i < length; i++) {
+            pcmBytes[i * 2] = (byte)audioData[i];
+            pcmBytes[i * 2 + 1] = (byte)(audioData[i] >> 8);
+        }
+        checksum.update(pcmBytes, 0, length * 2);
+
+        frames++;
+        samples += length / channelCount;
+
+        if (wavOut != null) {
+            try {
+                wavOut.write(pcmBytes, 0, length * 2);
+            } catch (IOException e) {
+                LimeLog.warning("Unable to write WAV file: "+e.getMessage());
+                closeWav();
+            }
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        if (wavOut != null) {
+            closeWav();
+
+            // Now that we know how much audio there was, fix up the header
+            try (RandomAccessFile file = new RandomAccessFile(wavFile, "rw")) {
+                file.write(getWavHeader(samples * channelCount * 2));
+            } catch (IOException e) {
+                LimeLog.warning("Unable to finish WAV file: "+e.getMessage());
+            }
+        }
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    // Number of samples per channel
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    private byte[] getWavHeader(long dataLength) {
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'});
+        header.putInt((int)(36 + dataLength));
+        header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        header.putInt(16); // fmt chunk size
+        header.putShort((short)1); // PCM
+        header.putShort((short)channelCount);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * channelCount * 2); // Byte rate
+        header.putShort((short)(channelCount * 2)); // Block align
+        header.putShort((short)16); // Bits per sample
+        header.put(new byte[] {'d', 'a', 't', 'a'});
+        header.putInt((int)dataLength);
+        return header.array();
+    }
+
+    private void closeWav() {
+        if (wavOut != null) {
+            try {
+                wavOut.close();
+            } catch (IOException ignored) {}
+            wavOut = null;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.nvstream.jni.MoonBridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Binary format of decode unit captures written by DecodeUnitRecorder.
+//
+// The file starts with a header:
+//   int magic, int version, int videoFormat, int width, int height, int redrawRate
+// followed by records until EOF, each starting with a one byte record type:
+//   RECORD_DECODE_UNIT: int bufferType, int frameNumber, int frameType, char hostProcessingLatency,
+//                       long receiveTimeMs, long enqueueTimeMs, int length, byte[length] data
+//   RECORD_HDR_MODE:    boolean enabled, int length (-1 if no metadata), byte[length] metadata
+//
+// All values are big endian as written by DataOutputStream.
+public class DecodeUnitCapture {
+    static final int MAGIC = 0x4D4C4455; // "MLDU"
+    static final int VERSION = 1;
+
+    static final byte RECORD_DECODE_UNIT = 1;
+    static final byte RECORD_HDR_MODE = 2;
+
+    public static final String FILE_EXTENSION = ".mldu";
+
+    public static String getElementaryStreamExtension(int videoFormat) {
+        if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
+            return ".h264";
+        }
+        else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
+            return ".h265";
+        }
+        else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
+            return ".obu";
+        }
+        else {
+            return ".bin";
+        }
+    }
+
+    // Returns null for unknown formats
+    public static String getMimeType(int videoFormat) {
+        if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
+            return "video/avc";
+        }
+        else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
+            return "video/hevc";
+        }
+        else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
+            return "video/av01";
+        }
+        else {
+            return null;
+        }
+    }
+
+    // Reads the first maxPictureFrames frames of a capture as a decoder benchmark clip. The codec
+    // config NALUs (VPS, SPS and PPS) preceding a frame are combined into one codec config frame.
+    // Returns null if the capture's video format is unknown.
+    public static DecoderBenchmark.Clip readBenchmarkClip(InputStream captureStream, int maxPictureFrames) throws IOException {
+        // The capture is replayed just like a stream, so the clip gets the same decode units
+        // in the same order that a real decoder would have received them.
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(captureStream, "benchmark clip", false);
+        BenchmarkClipRenderer renderer = new BenchmarkClipRenderer(replayer, maxPictureFrames);
+        replayer.replay(renderer);
+        return renderer.clip;
+    }
+
+    // Writes the video data of a capture as a raw elementary stream. Decode units already
+    // contain Annex B start codes for H.264/HEVC or low overhead OBUs for AV1, so the
+    // output is just the concatenation of all decode units in submission order.
+    // Returns the video format of the capture.
+    public static int exportElementaryStream(File captureFile, OutputStream out) throws IOException {
+        try (Reader reader = new Reader(captureFile)) {
+            while (reader.next()) {
+                if (reader.recordType == RECORD_DECODE_UNIT) {
+                    out.write(reader.data, 0, reader.dataLength);
+                }
+            }
+            out.flush();
+            return reader.videoFormat;
+        }
+    }
+
+    // Exports the capture to a file next to it with the appropriate elementary stream extension
+    public static File exportElementaryStream(File captureFile) throws IOException {
+        File tempFile = new File(captureFile.getPath() + ".tmp");
+
+        int videoFormat;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 65536)) {
+            videoFormat = exportElementaryStream(captureFile, out);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        String capturePath = captureFile.getPath();
+        int extensionIndex = capturePath.lastIndexOf('.');
+        if (extensionIndex > capturePath.lastIndexOf(File.separatorChar)) {
+            capturePath = capturePath.substring(0, extensionIndex);
+        }
+
+        File exportFile = new File(capturePath + getElementaryStreamExtension(videoFormat));
+        if (!tempFile.renameTo(exportFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename export to "+exportFile);
+        }
+        return exportFile;
+    }
+
+    // Collects replayed decode units into a benchmark clip
+    private static class BenchmarkClipRenderer extends VideoDecoderRenderer {
+        private final DecodeUnitReplayer replayer;
+        private final int maxPictureFrames;
+        private final ByteArrayOutputStream codecConfig = new ByteArrayOutputStream();
+
+        DecoderBenchmark.Clip clip;
+
+        BenchmarkClipRenderer(DecodeUnitReplayer replayer, int maxPictureFrames) {
+            this.replayer = replayer;
+            this.maxPictureFrames = maxPictureFrames;
+        }
+
+        @Override
+        public int setup(int format, int width, int height, int redrawRate) {
+            String mimeType = getMimeType(format);
+            if (mimeType != null) {
+                clip = new DecoderBenchmark.Clip(mimeType, width, height);
+            }
+            else {
+                // Nothing to collect for unknown formats
+                replayer.stop();
+            }
+            return 0;
+        }
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void stop() {}
+
+        @Override
+        public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                    int frameNumber, int frameType, char frameHostProcessingLatency,
+                                    long receiveTimeMs, long enqueueTimeMs) {
+            if (clip == null || clip.getPictureFrameCount() >= maxPictureFrames) {
+                return MoonBridge.DR_OK;
+            }
+
+            if (decodeUnitType != MoonBridge.BUFFER_TYPE_PICDATA) {
+                codecConfig.write(decodeUnitData, 0, decodeUnitLength);
+                return MoonBridge.DR_OK;
+            }
+
+            if (codecConfig.size() != 0) {
+                clip.addFrame(codecConfig.toByteArray(), codecConfig.size(), true);
+                codecConfig.reset();
+            }
+            clip.addFrame(decodeUnitData, decodeUnitLength, false);
+
+            if (clip.getPictureFrameCount() >= maxPictureFrames) {
+                replayer.stop();
+            }
+            return MoonBridge.DR_OK;
+        }
+
+        @Override
+        public void cleanup() {}
+
+        @Override
+        public int getCapabilities() {
+            return 0;
+        }
+
+        @Override
+        public void setHdrMode(boolean enabled, byte[] hdrMetadata) {}
+    }
+
+    // Sequential reader for capture files. The data array is reused between records.
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        final int videoFormat;
+        final int width;
+        final int height;
+        final int redrawRate;
+
+        byte recordType;
+        int bufferType;
+        int frameNumber;
+        int frameType;
+        char hostProcessingLatency;
+        long receiveTimeMs;
+        long enqueueTimeMs;
+        boolean hdrEnabled;
+        byte[] data = new byte[0];
+        int dataLength;
+
+        Reader(File captureFile) throws IOException {
+            this(new FileInputStream(captureFile), captureFile.toString());
+        }
+
+        Reader(InputStream captureStream, String captureName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(captureStream, 65536));
+
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a decode unit capture: " + captureName);
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported capture version: " + version);
+                }
+
+                videoFormat = in.readInt();
+                width = in.readInt();
+                height = in.readInt();
+                redrawRate = in.readInt();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        // Returns false at the end of the capture
+        boolean next() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                return false;
+            }
+
+            recordType = (byte) type;
+            try {
+                switch (recordType) {
+                    case RECORD_DECODE_UNIT:
+                        bufferType = in.readInt();
+                        frameNumber = in.readInt();
+                        frameType = in.readInt();
+                        hostProcessingLatency = in.readChar();
+                        receiveTimeMs = in.readLong();
+                        enqueueTimeMs = in.readLong();
+                        readData(in.readInt());
+                        break;
+
+                    case RECORD_HDR_MODE:
+                        hdrEnabled = in.readBoolean();
+                        readData(in.readInt());
+                        break;
+
+                    default:
+                        throw new IOException("Unknown record type: " + type);
+                }
+            } catch (EOFException e) {
+                // The final record may be truncated if the capture wasn't closed cleanly
+                return false;
+            }
+
+            return true;
+        }
+
+        // Returns a copy of the HDR metadata of the current record or null if there was none
+        byte[] getHdrMetadata() {
+            if (dataLength < 0) {
+                return null;
+            }
+
+            byte[] metadata = new byte[dataLength];
+            System.arraycopy(data, 0, metadata, 0, dataLength);
+            return metadata;
+        }
+
+        private void readData(int length) throws IOException {
+            dataLength = length;
+            if (length <= 0) {
+                return;
+            }
+
+            if (data.length < length) {
+                data = new byte[length];
+            }
+
+            in.readFully(data, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
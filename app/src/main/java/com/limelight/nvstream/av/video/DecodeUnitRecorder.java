@@ -0,0 +1,170 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.LimeLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Passes all calls through to another renderer while writing each submitted decode unit
+// to a capture file that DecodeUnitReplayer can play back later. Direct submission is
+// not supported while capturing, so all decode units arrive via the byte[] path.
+public class DecodeUnitRecorder extends VideoDecoderRenderer {
+    // Stop capturing once the file reaches this size, which is about 20 minutes of a 20 Mbps
+    // stream. The decoder benchmark only uses the first few seconds of a capture anyway.
+    private static final long MAX_CAPTURE_BYTES = 3L * 1024 * 1024 * 1024;
+
+    private final VideoDecoderRenderer renderer;
+    private final File captureFile;
+    private final boolean exportElementaryStream;
+    private DataOutputStream out;
+    private long captureBytes;
+
+    // If exportElementaryStream is true, the video is also written as a raw elementary
+    // stream next to the capture file when the renderer is cleaned up.
+    public DecodeUnitRecorder(VideoDecoderRenderer renderer, File captureFile, boolean exportElementaryStream) {
+        this.renderer = renderer;
+        this.captureFile = captureFile;
+        this.exportElementaryStream = exportElementaryStream;
+    }
+
+    @Override
+    public int setup(int format, int width, int height, int redrawRate) {
+        try {
+            File parent = captureFile.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(captureFile), 65536));
+            out.writeInt(DecodeUnitCapture.MAGIC);
+            out.writeInt(DecodeUnitCapture.VERSION);
+            out.writeInt(format);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(redrawRate);
+
+            LimeLog.info("Capturing decode units to "+captureFile);
+        } catch (IOException e) {
+            // Don't fail the stream just because we can't capture it
+            LimeLog.warning("Unable to start decode unit capture: "+e.getMessage());
+            closeCapture();
+        }
+
+        return renderer.setup(format, width, height, redrawRate);
+    }
+
+    @Override
+    public void prepare(int likelyVideoFormat) {
+        renderer.prepare(likelyVideoFormat);
+    }
+
+    @Override
+    public void start() {
+        renderer.start();
+    }
+
+    @Override
+    public void stop() {
+        renderer.stop();
+    }
+
+    @Override
+    public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                int frameNumber, int frameType, char frameHostProcessingLatency,
+                                long receiveTimeMs, long enqueueTimeMs) {
+        writeDecodeUnit(decodeUnitData, decodeUnitLength, decodeUnitType, frameNumber, frameType,
+                frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+
+        return renderer.submitDecodeUnit(decodeUnitData, decodeUnitLength, decodeUnitType,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+    }
+
+    @Override
+    public void cleanup() {
+        renderer.cleanup();
+        closeCapture();
+
+        // This runs on the connection stop thread, so the export won't block the UI
+        if (exportElementaryStream && captureFile.exists()) {
+            try {
+                File exportFile = DecodeUnitCapture.exportElementaryStream(captureFile);
+                LimeLog.info("Exported elementary stream to "+exportFile);
+            } catch (IOException e) {
+                LimeLog.warning("Unable to export decode unit capture: "+e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public int getCapabilities() {
+        return renderer.getCapabilities();
+    }
+
+    @Override
+    public void setHdrMode(boolean enabled, byte[] hdrMetadata) {
+        writeHdrMode(enabled, hdrMetadata);
+
+        renderer.setHdrMode(enabled, hdrMetadata);
+    }
+
+    // HDR mode changes arrive on a different thread than decode units
+    private synchronized void writeDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                              int frameNumber, int frameType, char frameHostProcessingLatency,
+                                              long receiveTimeMs, long enqueueTimeMs) {
+        if (out != null) {
+            // The record header is 35 bytes
+            captureBytes += 35 + decodeUnitLength;
+            if (captureBytes > MAX_CAPTURE_BYTES) {
+                LimeLog.warning("Decode unit capture reached the size limit. Capture stopped.");
+                closeCapture();
+                return;
+            }
+
+            try {
+                out.writeByte(DecodeUnitCapture.RECORD_DECODE_UNIT);
+                out.writeInt(decodeUnitType);
+                out.writeInt(frameNumber);
+                out.writeInt(frameType);
+                out.writeChar(frameHostProcessingLatency);
+                out.writeLong(receiveTimeMs);
+                out.writeLong(enqueueTimeMs);
+                out.writeInt(decodeUnitLength);
+                out.write(decodeUnitData, 0, decodeUnitLength);
+            } catch (IOException e) {
+                LimeLog.warning("Decode unit capture failed: "+e.getMessage());
+                closeCapture();
+            }
+        }
+    }
+
+    private synchronized void writeHdrMode(boolean enabled, byte[] hdrMetadata) {
+        if (out != null) {
+            try {
+                out.writeByte(DecodeUnitCapture.RECORD_HDR_MODE);
+                out.writeBoolean(enabled);
+                if (hdrMetadata != null) {
+                    out.writeInt(hdrMetadata.length);
+                    out.write(hdrMetadata);
+                }
+                else {
+                    out.writeInt(-1);
+                }
+            } catch (IOException e) {
+                LimeLog.warning("Decode unit capture failed: "+e.getMessage());
+                closeCapture();
+            }
+        }
+    }
+
+    private synchronized void closeCapture() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.jni.MoonBridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Plays a capture written by DecodeUnitRecorder into a renderer, driving it through the
+// same setup/start/submit/stop/cleanup sequence as a real stream. This gives us a
+// repeatable workload for benchmarking the decoder path without a host PC.
+public class DecodeUnitReplayer {
+    private final File captureFile;
+    private final InputStream captureStream;
+    private final String captureName;
+    private final boolean realTime;
+
+    private volatile boolean stopping;
+
+    private int submittedDecodeUnits;
+    private int idrRequests;
+    private long elapsedTimeMs;
+
+    // If realTime is true, decode units are submitted with the same cadence they were
+    // originally received. Otherwise, they are submitted as fast as the renderer accepts them.
+    public DecodeUnitReplayer(File captureFile, boolean realTime) {
+        this.captureFile = captureFile;
+        this.captureStream = null;
+        this.captureName = captureFile.toString();
+        this.realTime = realTime;
+    }
+
+    // Replays a capture from a stream, such as one bundled in our assets. The stream is
+    // closed once the replay is finished.
+    public DecodeUnitReplayer(InputStream captureStream, String captureName, boolean realTime) {
+        this.captureFile = null;
+        this.captureStream = captureStream;
+        this.captureName = captureName;
+        this.realTime = realTime;
+    }
+
+    // Blocks until the whole capture has been submitted or stop() is called
+    public void replay(VideoDecoderRenderer renderer) throws IOException {
+        try (DecodeUnitCapture.Reader reader = captureFile != null ?
+                new DecodeUnitCapture.Reader(captureFile) : new DecodeUnitCapture.Reader(captureStream, captureName)) {
+            int err = renderer.setup(reader.videoFormat, reader.width, reader.height, reader.redrawRate);
+            if (err != 0) {
+                throw new IOException("Renderer setup failed: "+err);
+            }
+
+            renderer.start();
+            try {
+                replayRecords(reader, renderer);
+            } finally {
+                renderer.stop();
+                renderer.cleanup();
+            }
+        }
+    }
+
+    public void stop() {
+        stopping = true;
+    }
+
+    public int getSubmittedDecodeUnits() {
+        return submittedDecodeUnits;
+    }
+
+    public int getIdrRequests() {
+        return idrRequests;
+    }
+
+    public long getElapsedTimeMs() {
+        return elapsedTimeMs;
+    }
+
+    private void replayRecords(DecodeUnitCapture.Reader reader, VideoDecoderRenderer renderer) throws IOException {
+        // Renderers compare these timestamps against the current (monotonic) time,
+        // so we rebase the recorded timestamps onto the time we started the replay.
+        long replayStartTimeMs = System.nanoTime() / 1000000;
+        long captureStartTimeMs = -1;
+        boolean waitingForIdr = false;
+
+        submittedDecodeUnits = 0;
+        idrRequests = 0;
+
+        while (!stopping && reader.next()) {
+            if (reader.recordType == DecodeUnitCapture.RECORD_HDR_MODE) {
+                renderer.setHdrMode(reader.hdrEnabled, reader.getHdrMetadata());
+                continue;
+            }
+
+            if (captureStartTimeMs < 0) {
+                captureStartTimeMs = reader.enqueueTimeMs;
+            }
+
+            // Like the host would, skip ahead to the next IDR frame if the renderer asked for one
+            if (waitingForIdr) {
+                if (reader.frameType != MoonBridge.FRAME_TYPE_IDR) {
+                    continue;
+                }
+                waitingForIdr = false;
+            }
+
+            long enqueueTimeMs;
+            if (realTime) {
+                enqueueTimeMs = replayStartTimeMs + (reader.enqueueTimeMs - captureStartTimeMs);
+
+                long sleepTimeMs = enqueueTimeMs - System.nanoTime() / 1000000;
+                if (sleepTimeMs > 0) {
+                    try {
+                        Thread.sleep(sleepTimeMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            else {
+                enqueueTimeMs = System.nanoTime() / 1000000;
+            }
+
+            // Preserve the original time spent receiving the frame
+            long receiveTimeMs = enqueueTimeMs - (reader.enqueueTimeMs - reader.receiveTimeMs);
+
+            int ret = renderer.submitDecodeUnit(reader.data, reader.dataLength, reader.bufferType,
+                    reader.frameNumber, reader.frameType, reader.hostProcessingLatency,
+                    receiveTimeMs, enqueueTimeMs);
+            submittedDecodeUnits++;
+            if (ret == MoonBridge.DR_NEED_IDR) {
+                idrRequests++;
+                waitingForIdr = true;
+            }
+        }
+
+        elapsedTimeMs = System.nanoTime() / 1000000 - replayStartTimeMs;
+        LimeLog.info("Replayed "+submittedDecodeUnits+" decode units in "+elapsedTimeMs+" ms ("+idrRequests+" IDR requests)");
+    }
+}
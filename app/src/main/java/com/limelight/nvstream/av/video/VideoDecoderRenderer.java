@@ -1,6 +1,14 @@
 package com.limelight.nvstream.av.video;
 
+import java.nio.ByteBuffer;
+
 public abstract class VideoDecoderRenderer {
+    // This is called on a separate thread while the host is launching the app, before setup()
+    // is called. It allows the renderer to get expensive decoder initialization out of the way
+    // in parallel with the launch. The format is our best guess at what will be negotiated,
+    // so setup() may still be called with a different format.
+    public void prepare(int likelyVideoFormat) {}
+
     public abstract int setup(int format, int width, int height, int redrawRate);
 
     public abstract void start();
@@ -12,6 +20,29 @@ public abstract class VideoDecoderRenderer {
     public abstract int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
                                          int frameNumber, int frameType, char frameHostProcessingLatency,
                                          long receiveTimeMs, long enqueueTimeMs);
+
+    // This is called before each picture data decode unit to allow the renderer to provide
+    // a direct ByteBuffer that the native code will copy the frame data into. If this returns
+    // null, the decode unit will be submitted via the byte[] variant of submitDecodeUnit().
+    // Otherwise, the frame data will be written starting at the beginning of the returned
+    // buffer and submitted via the ByteBuffer variant of submitDecodeUnit().
+    public ByteBuffer getDirectSubmitBuffer(int decodeUnitLength, int frameType) {
+        return null;
+    }
+
+    // Renderers that return direct buffers should override this to consume them in place.
+    // By default, the frame data is copied out and submitted via the byte[] variant.
+    public int submitDecodeUnit(ByteBuffer decodeUnitBuffer, int decodeUnitLength, int decodeUnitType,
+                                int frameNumber, int frameType, char frameHostProcessingLatency,
+                                long receiveTimeMs, long enqueueTimeMs) {
+        byte[] decodeUnitData = new byte[decodeUnitLength];
+        ByteBuffer data = decodeUnitBuffer.duplicate();
+        data.position(0);
+        data.get(decodeUnitData, 0, decodeUnitLength);
+
+        return submitDecodeUnit(decodeUnitData, decodeUnitLength, decodeUnitType, frameNumber,
+                frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+    }
     
     public abstract void cleanup();
 
@@ -23,8 +23,6 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Stack;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -42,9 +40,7 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
-import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import com.limelight.BuildConfig;
 import com.limelight.LimeLog;
@@ -236,65 +232,11 @@ public class NvHTTP {
     }
 
     static String getXmlString(Reader r, String tagname, boolean throwIfMissing) throws XmlPullParserException, IOException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-        XmlPullParser xpp = factory.newPullParser();
-
-        xpp.setInput(r);
-        int eventType = xpp.getEventType();
-        Stack<String> currentTag = new Stack<String>();
-        
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            switch (eventType) {
-            case (XmlPullParser.START_TAG):
-                if (xpp.getName().equals("root")) {
-                    verifyResponseStatus(xpp);
-                }
-                currentTag.push(xpp.getName());
-                break;
-            case (XmlPullParser.END_TAG):
-                currentTag.pop();
-                break;
-            case (XmlPullParser.TEXT):
-                if (currentTag.peek().equals(tagname)) {
-                    return xpp.getText();
-                }
-                break;
-            }
-            eventType = xpp.next();
-        }
-
-        if (throwIfMissing) {
-            // We throw an XmlPullParserException here for ease of handling in all the various callers.
-            // We could also throw an IOException, but some callers expect those in cases where the
-            // host may not be reachable. We want to distinguish unreachable hosts vs. hosts that
-            // are returning garbage XML to us, so we use XmlPullParserException instead.
-            throw new XmlPullParserException("Missing mandatory field in host response: "+tagname);
-        }
-
-        return null;
+        return NvHttpXml.getXmlString(r, tagname, throwIfMissing);
     }
 
     static String getXmlString(String str, String tagname, boolean throwIfMissing) throws XmlPullParserException, IOException {
-        return getXmlString(new StringReader(str), tagname, throwIfMissing);
-    }
-    
-    private static void verifyResponseStatus(XmlPullParser xpp) throws HostHttpResponseException {
-        // We use Long.parseLong() because in rare cases GFE can send back a status code of
-        // 0xFFFFFFFF, which will cause Integer.parseInt() to throw a NumberFormatException due
-        // to exceeding Integer.MAX_VALUE. We'll get the desired error code of -1 by just casting
-        // the resulting long into an int.
-        int statusCode = (int)Long.parseLong(xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_code"));
-        if (statusCode != 200) {
-            String statusMsg = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_message");
-            if (statusCode == -1 && "Invalid".equals(statusMsg)) {
-                // Special case handling an audio capture error which GFE doesn't
-                // provide any useful status message for.
-                statusCode = 418;
-                statusMsg = "Missing audio capture device. Reinstall GeForce Experience.";
-            }
-            throw new HostHttpResponseException(statusCode, statusMsg);
-        }
+        return NvHttpXml.getXmlString(str, tagname, throwIfMissing);
     }
     
     public String getServerInfo(boolean likelyOnline) throws IOException, XmlPullParserException {
@@ -623,65 +565,7 @@ public class NvHTTP {
     }
     
     public static LinkedList<NvApp> getAppListByReader(Reader r) throws XmlPullParserException, IOException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-        XmlPullParser xpp = factory.newPullParser();
-
-        xpp.setInput(r);
-        int eventType = xpp.getEventType();
-        LinkedList<NvApp> appList = new LinkedList<NvApp>();
-        Stack<String> currentTag = new Stack<String>();
-        boolean rootTerminated = false;
-
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            switch (eventType) {
-            case (XmlPullParser.START_TAG):
-                if (xpp.getName().equals("root")) {
-                    verifyResponseStatus(xpp);
-                }
-                currentTag.push(xpp.getName());
-                if (xpp.getName().equals("App")) {
-                    appList.addLast(new NvApp());
-                }
-                break;
-            case (XmlPullParser.END_TAG):
-                currentTag.pop();
-                if (xpp.getName().equals("root")) {
-                    rootTerminated = true;
-                }
-                break;
-            case (XmlPullParser.TEXT):
-                NvApp app = appList.getLast();
-                if (currentTag.peek().equals("AppTitle")) {
-                    app.setAppName(xpp.getText());
-                } else if (currentTag.peek().equals("ID")) {
-                    app.setAppId(xpp.getText());
-                } else if (currentTag.peek().equals("IsHdrSupported")) {
-                    app.setHdrSupported(xpp.getText().equals("1"));
-                }
-                break;
-            }
-            eventType = xpp.next();
-        }
-        
-        // Throw a malformed XML exception if we've not seen the root tag ended
-        if (!rootTerminated) {
-            throw new XmlPullParserException("Malformed XML: Root tag was not terminated");
-        }
-        
-        // Ensure that all apps in the list are initialized
-        ListIterator<NvApp> i = appList.listIterator();
-        while (i.hasNext()) {
-            NvApp app = i.next();
-            
-            // Remove uninitialized apps
-            if (!app.isInitialized()) {
-                LimeLog.warning("GFE returned incomplete app: "+app.getAppId()+" "+app.getAppName());
-                i.remove();
-            }
-        }
-        
-        return appList;
+        return NvHttpXml.getAppListByReader(r);
     }
     
     public String getAppListRaw() throws IOException {
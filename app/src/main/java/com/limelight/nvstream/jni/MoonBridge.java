@@ -1,9 +1,13 @@
 package com.limelight.nvstream.jni;
 
 import com.limelight.nvstream.NvConnectionListener;
+import com.limelight.nvstream.av.audio.AudioConfiguration;
 import com.limelight.nvstream.av.audio.AudioRenderer;
+import com.limelight.nvstream.av.audio.OpusPacketRecorder;
 import com.limelight.nvstream.av.video.VideoDecoderRenderer;
 
+import java.nio.ByteBuffer;
+
 public class MoonBridge {
     /* See documentation in Limelight.h for information about these functions and constants */
 
@@ -131,6 +135,7 @@ public class MoonBridge {
     private static AudioRenderer audioRenderer;
     private static VideoDecoderRenderer videoRenderer;
     private static NvConnectionListener connectionListener;
+    private static OpusPacketRecorder audioPacketRecorder;
 
     static {
         System.loadLibrary("moonlight-core");
@@ -141,57 +146,6 @@ public class MoonBridge {
         return slices << 24;
     }
 
-    public static class AudioConfiguration {
-        public final int channelCount;
-        public final int channelMask;
-
-        public AudioConfiguration(int channelCount, int channelMask) {
-            this.channelCount = channelCount;
-            this.channelMask = channelMask;
-        }
-
-        // Creates an AudioConfiguration from the integer value returned by moonlight-common-c
-        // See CHANNEL_COUNT_FROM_AUDIO_CONFIGURATION() and CHANNEL_MASK_FROM_AUDIO_CONFIGURATION()
-        // in Limelight.h
-        private AudioConfiguration(int audioConfiguration) {
-            // Check the magic byte before decoding to make sure we got something that's actually
-            // a MAKE_AUDIO_CONFIGURATION()-based value and not something else like an older version
-            // hardcoded AUDIO_CONFIGURATION value from an earlier version of moonlight-common-c.
-            if ((audioConfiguration & 0xFF) != 0xCA) {
-                throw new IllegalArgumentException("Audio configuration has invalid magic byte!");
-            }
-
-            this.channelCount = (audioConfiguration >> 8) & 0xFF;
-            this.channelMask = (audioConfiguration >> 16) & 0xFFFF;
-        }
-
-        // See SURROUNDAUDIOINFO_FROM_AUDIO_CONFIGURATION() in Limelight.h
-        public int getSurroundAudioInfo() {
-            return channelMask << 16 | channelCount;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof AudioConfiguration) {
-                AudioConfiguration that = (AudioConfiguration)obj;
-                return this.toInt() == that.toInt();
-            }
-
-            return false;
-        }
-
-        @Override
-        public int hashCode() {
-            return toInt();
-        }
-
-        // Returns the integer value expected by moonlight-common-c
-        // See MAKE_AUDIO_CONFIGURATION() in Limelight.h
-        public int toInt() {
-            return ((channelMask) << 16) | (channelCount << 8) | 0xCA;
-        }
-    }
-
     public static int bridgeDrSetup(int videoFormat, int width, int height, int redrawRate) {
         if (videoRenderer != null) {
             return videoRenderer.setup(videoFormat, width, height, redrawRate);
@@ -231,6 +185,27 @@ public class MoonBridge {
         }
     }
 
+    public static ByteBuffer bridgeDrGetDirectSubmitBuffer(int decodeUnitLength, int frameType) {
+        if (videoRenderer != null) {
+            return videoRenderer.getDirectSubmitBuffer(decodeUnitLength, frameType);
+        }
+        else {
+            return null;
+        }
+    }
+
+    public static int bridgeDrSubmitDirectDecodeUnit(ByteBuffer decodeUnitBuffer, int decodeUnitLength, int decodeUnitType,
+                                                     int frameNumber, int frameType, char frameHostProcessingLatency,
+                                                     long receiveTimeMs, long enqueueTimeMs) {
+        if (videoRenderer != null) {
+            return videoRenderer.submitDecodeUnit(decodeUnitBuffer, decodeUnitLength,
+                    decodeUnitType, frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+        }
+        else {
+            return DR_OK;
+        }
+    }
+
     public static int bridgeArInit(int audioConfiguration, int sampleRate, int samplesPerFrame) {
         if (audioRenderer != null) {
             return audioRenderer.setup(new AudioConfiguration(audioConfiguration), sampleRate, samplesPerFrame);
@@ -256,6 +231,9 @@ public class MoonBridge {
         if (audioRenderer != null) {
             audioRenderer.cleanup();
         }
+        if (audioPacketRecorder != null) {
+            audioPacketRecorder.close();
+        }
     }
 
     public static void bridgeArPlaySample(short[] pcmData) {
@@ -264,6 +242,35 @@ public class MoonBridge {
         }
     }
 
+    public static ByteBuffer bridgeArGetDirectSampleBuffer() {
+        if (audioRenderer != null) {
+            return audioRenderer.getDirectSampleBuffer();
+        }
+        else {
+            return null;
+        }
+    }
+
+    public static void bridgeArPlayDirectSample(ByteBuffer pcmData, int sampleCount) {
+        if (audioRenderer != null) {
+            audioRenderer.playDecodedAudio(pcmData, sampleCount);
+        }
+    }
+
+    public static void bridgeArCaptureConfig(int audioConfiguration, int sampleRate, int channelCount,
+                                             int streams, int coupledStreams, int samplesPerFrame, byte[] mapping) {
+        if (audioPacketRecorder != null) {
+            audioPacketRecorder.start(audioConfiguration, sampleRate, channelCount,
+                    streams, coupledStreams, samplesPerFrame, mapping);
+        }
+    }
+
+    public static void bridgeArCapturePacket(byte[] packet, int length) {
+        if (audioPacketRecorder != null) {
+            audioPacketRecorder.writePacket(packet, length);
+        }
+    }
+
     public static void bridgeClStageStarting(int stage) {
         if (connectionListener != null) {
             connectionListener.stageStarting(getStageName(stage));
@@ -340,6 +347,14 @@ public class MoonBridge {
         MoonBridge.videoRenderer = null;
         MoonBridge.audioRenderer = null;
         MoonBridge.connectionListener = null;
+        setAudioPacketRecorder(null);
+    }
+
+    // Opus packets of the next audio stream will be passed to the recorder before they are
+    // decoded. This is reset by cleanupBridge().
+    public static void setAudioPacketRecorder(OpusPacketRecorder recorder) {
+        MoonBridge.audioPacketRecorder = recorder;
+        setAudioPacketCaptureEnabled(recorder != null);
     }
 
     public static native int startConnection(String address, String appVersion, String gfeVersion,
@@ -419,5 +434,16 @@ public class MoonBridge {
 
     public static native boolean guessControllerHasShareButton(int vendorId, int productId);
 
+    private static native void setAudioPacketCaptureEnabled(boolean enabled);
+
+    // Used by OpusPacketReplayer to drive the audio renderer callbacks without a connection
+    public static native int startAudioReplay(int audioConfiguration, int sampleRate, int channelCount,
+                                              int streams, int coupledStreams, int samplesPerFrame, byte[] mapping);
+
+    // Returns -1 if the packet was skipped because it's too large to replay
+    public static native int replayAudioPacket(byte[] packet, int length);
+
+    public static native void stopAudioReplay();
+
     public static native void init();
 }
@@ -0,0 +1,63 @@
+package com.limelight.preferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.DialogPreference;
+import android.util.AttributeSet;
+import android.widget.Toast;
+
+import com.limelight.R;
+import com.limelight.binding.audio.AudioDecodeBenchmarkRunner;
+
+public class AudioDecodeBenchmarkPreference extends DialogPreference {
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public AudioDecodeBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public AudioDecodeBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public AudioDecodeBenchmarkPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public AudioDecodeBenchmarkPreference(Context context) {
+        super(context);
+    }
+
+    public void onClick(DialogInterface dialog, int which) {
+        if (which != DialogInterface.BUTTON_POSITIVE) {
+            return;
+        }
+
+        final Context context = getContext().getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        Toast.makeText(context, R.string.toast_benchmark_audio_decode_started, Toast.LENGTH_SHORT).show();
+
+        new Thread("Audio decode benchmark") {
+            @Override
+            public void run() {
+                final int benchmarked = AudioDecodeBenchmarkRunner.run(context);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (benchmarked == 0) {
+                            Toast.makeText(context, R.string.toast_benchmark_audio_decode_no_capture, Toast.LENGTH_LONG).show();
+                        }
+                        else {
+                            Toast.makeText(context, context.getString(R.string.toast_benchmark_audio_decode_complete,
+                                    benchmarked), Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,76 @@
+package com.limelight.preferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Build;
+import android.preference.DialogPreference;
+import android.text.InputType;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.limelight.R;
+import com.limelight.binding.input.ButtonRemapProfiles;
+
+// Edits the button remapping profiles as text in the format of ButtonRemapProfiles.importProfiles()
+public class ButtonRemapPreference extends DialogPreference {
+    private EditText profileText;
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public ButtonRemapPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public ButtonRemapPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public ButtonRemapPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public ButtonRemapPreference(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected View onCreateDialogView() {
+        // The dialog message isn't shown when we supply our own view, so we add it ourselves
+        int padding = (int)(16 * getContext().getResources().getDisplayMetrics().density);
+        LinearLayout layout = new LinearLayout(getContext());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(padding, padding, padding, 0);
+
+        TextView message = new TextView(getContext());
+        message.setText(getDialogMessage());
+        layout.addView(message);
+
+        profileText = new EditText(getContext());
+        profileText.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE |
+                InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+        profileText.setHint(R.string.hint_button_remap_profiles);
+        profileText.setText(new ButtonRemapProfiles(getContext()).exportProfiles());
+        layout.addView(profileText);
+        return layout;
+    }
+
+    public void onClick(DialogInterface dialog, int which) {
+        if (which != DialogInterface.BUTTON_POSITIVE) {
+            return;
+        }
+
+        int profiles = new ButtonRemapProfiles(getContext()).importProfiles(profileText.getText().toString());
+        if (profiles < 0) {
+            Toast.makeText(getContext(), R.string.toast_button_remap_invalid, Toast.LENGTH_LONG).show();
+        }
+        else {
+            Toast.makeText(getContext(), getContext().getString(R.string.toast_button_remap_saved, profiles),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+}
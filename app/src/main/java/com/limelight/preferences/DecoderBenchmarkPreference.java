@@ -0,0 +1,81 @@
+package com.limelight.preferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.DialogPreference;
+import android.preference.PreferenceManager;
+import android.util.AttributeSet;
+import android.widget.Toast;
+
+import com.limelight.R;
+import com.limelight.binding.video.DecoderBenchmarkRunner;
+import com.limelight.binding.video.MediaCodecHelper;
+import com.limelight.nvstream.av.video.DecoderRanking;
+
+public class DecoderBenchmarkPreference extends DialogPreference {
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public DecoderBenchmarkPreference(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void onAttachedToHierarchy(PreferenceManager preferenceManager) {
+        super.onAttachedToHierarchy(preferenceManager);
+
+        // We don't bundle a clip, so there's nothing to benchmark until the user records a stream
+        if (!DecoderBenchmarkRunner.hasClips(getContext())) {
+            setEnabled(false);
+            setSummary(R.string.summary_benchmark_decoders_no_clip);
+        }
+    }
+
+    public void onClick(DialogInterface dialog, int which) {
+        if (which != DialogInterface.BUTTON_POSITIVE) {
+            return;
+        }
+
+        final Context context = getContext().getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        Toast.makeText(context, R.string.toast_benchmark_decoders_started, Toast.LENGTH_SHORT).show();
+
+        new Thread("Decoder benchmark") {
+            @Override
+            public void run() {
+                // This must be called to do runtime initialization before calling functions that evaluate
+                // decoder lists.
+                MediaCodecHelper.initialize(context, GlPreferences.readPreferences(context).glRenderer);
+
+                final DecoderRanking ranking = DecoderBenchmarkRunner.run(context);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ranking == null) {
+                            Toast.makeText(context, R.string.toast_benchmark_decoders_no_clip, Toast.LENGTH_LONG).show();
+                        }
+                        else {
+                            Toast.makeText(context, context.getString(R.string.toast_benchmark_decoders_complete,
+                                    ranking.getRankedResults().size()), Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+}
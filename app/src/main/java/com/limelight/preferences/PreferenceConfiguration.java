@@ -7,6 +7,7 @@ import android.os.Build;
 import android.preference.PreferenceManager;
 import android.view.Display;
 
+import com.limelight.nvstream.av.audio.AudioConfiguration;
 import com.limelight.nvstream.jni.MoonBridge;
 
 public class PreferenceConfiguration {
@@ -29,6 +30,7 @@ public class PreferenceConfiguration {
     private static final String DISABLE_TOASTS_PREF_STRING = "checkbox_disable_warnings";
     private static final String HOST_AUDIO_PREF_STRING = "checkbox_host_audio";
     private static final String DEADZONE_PREF_STRING = "seekbar_deadzone";
+    private static final String MOUSE_MOTION_WINDOW_PREF_STRING = "seekbar_mouse_motion_window_ms";
     private static final String OSC_OPACITY_PREF_STRING = "seekbar_osc_opacity";
     private static final String LANGUAGE_PREF_STRING = "list_languages";
     private static final String SMALL_ICONS_PREF_STRING = "checkbox_small_icon_mode";
@@ -44,6 +46,7 @@ public class PreferenceConfiguration {
     private static final String ENABLE_PIP_PREF_STRING = "checkbox_enable_pip";
     private static final String ENABLE_PERF_OVERLAY_STRING = "checkbox_enable_perf_overlay";
     private static final String BIND_ALL_USB_STRING = "checkbox_usb_bind_all";
+    private static final String USB_QUEUED_TRANSFERS_PREF_STRING = "checkbox_usb_queued_transfers";
     private static final String MOUSE_EMULATION_STRING = "checkbox_mouse_emulation";
     private static final String MOUSE_NAV_BUTTONS_STRING = "checkbox_mouse_nav_buttons";
     static final String UNLOCK_FPS_STRING = "checkbox_unlock_fps";
@@ -55,11 +58,18 @@ public class PreferenceConfiguration {
     private static final String FRAME_PACING_PREF_STRING = "frame_pacing";
     private static final String ABSOLUTE_MOUSE_MODE_PREF_STRING = "checkbox_absolute_mouse_mode";
     private static final String ENABLE_AUDIO_FX_PREF_STRING = "checkbox_enable_audiofx";
+    private static final String NON_BLOCKING_AUDIO_PREF_STRING = "checkbox_nonblocking_audio";
+    private static final String AV_SYNC_CORRECTION_PREF_STRING = "checkbox_av_sync_correction";
     private static final String REDUCE_REFRESH_RATE_PREF_STRING = "checkbox_reduce_refresh_rate";
     private static final String FULL_RANGE_PREF_STRING = "checkbox_full_range";
     private static final String GAMEPAD_TOUCHPAD_AS_MOUSE_PREF_STRING = "checkbox_gamepad_touchpad_as_mouse";
     private static final String GAMEPAD_MOTION_SENSORS_PREF_STRING = "checkbox_gamepad_motion_sensors";
     private static final String GAMEPAD_MOTION_FALLBACK_PREF_STRING = "checkbox_gamepad_motion_fallback";
+    private static final String COALESCE_CONTROLLER_INPUT_PREF_STRING = "checkbox_coalesce_controller_input";
+    private static final String ASYNC_DECODER_PREF_STRING = "checkbox_async_decoder";
+    private static final String CAPTURE_DECODE_UNITS_PREF_STRING = "checkbox_capture_decode_units";
+    private static final String CAPTURE_AUDIO_PACKETS_PREF_STRING = "checkbox_capture_audio_packets";
+    private static final String HOT_SPARE_DECODER_PREF_STRING = "checkbox_hot_spare_decoder";
 
     static final String DEFAULT_RESOLUTION = "1280x720";
     static final String DEFAULT_FPS = "60";
@@ -68,6 +78,7 @@ public class PreferenceConfiguration {
     private static final boolean DEFAULT_DISABLE_TOASTS = false;
     private static final boolean DEFAULT_HOST_AUDIO = false;
     private static final int DEFAULT_DEADZONE = 7;
+    private static final int DEFAULT_MOUSE_MOTION_WINDOW_MS = 0;
     private static final int DEFAULT_OPACITY = 90;
     public static final String DEFAULT_LANGUAGE = "default";
     private static final boolean DEFAULT_MULTI_CONTROLLER = true;
@@ -81,6 +92,7 @@ public class PreferenceConfiguration {
     private static final boolean DEFAULT_ENABLE_PIP = false;
     private static final boolean DEFAULT_ENABLE_PERF_OVERLAY = false;
     private static final boolean DEFAULT_BIND_ALL_USB = false;
+    private static final boolean DEFAULT_USB_QUEUED_TRANSFERS = false;
     private static final boolean DEFAULT_MOUSE_EMULATION = true;
     private static final boolean DEFAULT_MOUSE_NAV_BUTTONS = false;
     private static final boolean DEFAULT_UNLOCK_FPS = false;
@@ -93,16 +105,24 @@ public class PreferenceConfiguration {
     private static final String DEFAULT_FRAME_PACING = "latency";
     private static final boolean DEFAULT_ABSOLUTE_MOUSE_MODE = false;
     private static final boolean DEFAULT_ENABLE_AUDIO_FX = false;
+    private static final boolean DEFAULT_NON_BLOCKING_AUDIO = false;
+    private static final boolean DEFAULT_AV_SYNC_CORRECTION = false;
     private static final boolean DEFAULT_REDUCE_REFRESH_RATE = false;
     private static final boolean DEFAULT_FULL_RANGE = false;
     private static final boolean DEFAULT_GAMEPAD_TOUCHPAD_AS_MOUSE = false;
     private static final boolean DEFAULT_GAMEPAD_MOTION_SENSORS = true;
     private static final boolean DEFAULT_GAMEPAD_MOTION_FALLBACK = false;
+    private static final boolean DEFAULT_COALESCE_CONTROLLER_INPUT = false;
+    private static final boolean DEFAULT_ASYNC_DECODER = false;
+    private static final boolean DEFAULT_CAPTURE_DECODE_UNITS = false;
+    private static final boolean DEFAULT_CAPTURE_AUDIO_PACKETS = false;
+    private static final boolean DEFAULT_HOT_SPARE_DECODER = false;
 
     public static final int FRAME_PACING_MIN_LATENCY = 0;
     public static final int FRAME_PACING_BALANCED = 1;
     public static final int FRAME_PACING_CAP_FPS = 2;
     public static final int FRAME_PACING_MAX_SMOOTHNESS = 3;
+    public static final int FRAME_PACING_ADAPTIVE = 4;
 
     public static final String RES_360P = "640x360";
     public static final String RES_480P = "854x480";
@@ -116,6 +136,7 @@ public class PreferenceConfiguration {
     public int bitrate;
     public FormatOption videoFormat;
     public int deadzonePercentage;
+    public int mouseMotionWindowMs;
     public int oscOpacity;
     public boolean stretchVideo, enableSops, playHostAudio, disableWarnings;
     public String language;
@@ -127,21 +148,29 @@ public class PreferenceConfiguration {
     public boolean enablePerfOverlay;
     public boolean enableLatencyToast;
     public boolean bindAllUsb;
+    public boolean usbQueuedTransfers;
     public boolean mouseEmulation;
     public boolean mouseNavButtons;
     public boolean unlockFps;
     public boolean vibrateOsc;
     public boolean vibrateFallbackToDevice;
     public boolean touchscreenTrackpad;
-    public MoonBridge.AudioConfiguration audioConfiguration;
+    public AudioConfiguration audioConfiguration;
     public int framePacing;
     public boolean absoluteMouseMode;
     public boolean enableAudioFx;
+    public boolean nonBlockingAudio;
+    public boolean avSyncCorrection;
     public boolean reduceRefreshRate;
     public boolean fullRange;
     public boolean gamepadMotionSensors;
     public boolean gamepadTouchpadAsMouse;
     public boolean gamepadMotionSensorsFallbackToDevice;
+    public boolean coalesceControllerInput;
+    public boolean asyncDecoder;
+    public boolean captureDecodeUnits;
+    public boolean captureAudioPackets;
+    public boolean hotSpareDecoder;
 
     public static boolean isNativeResolution(int width, int height) {
         // It's not a native resolution if it matches an existing resolution option
@@ -380,6 +409,9 @@ public class PreferenceConfiguration {
         else if (str.equals("smoothness")) {
             return FRAME_PACING_MAX_SMOOTHNESS;
         }
+        else if (str.equals("adaptive")) {
+            return FRAME_PACING_ADAPTIVE;
+        }
         else {
             // Should never get here
             return FRAME_PACING_MIN_LATENCY;
@@ -535,6 +567,7 @@ public class PreferenceConfiguration {
         config.framePacing = getFramePacingValue(context);
 
         config.deadzonePercentage = prefs.getInt(DEADZONE_PREF_STRING, DEFAULT_DEADZONE);
+        config.mouseMotionWindowMs = prefs.getInt(MOUSE_MOTION_WINDOW_PREF_STRING, DEFAULT_MOUSE_MOTION_WINDOW_MS);
 
         config.oscOpacity = prefs.getInt(OSC_OPACITY_PREF_STRING, DEFAULT_OPACITY);
 
@@ -555,6 +588,7 @@ public class PreferenceConfiguration {
         config.enablePip = prefs.getBoolean(ENABLE_PIP_PREF_STRING, DEFAULT_ENABLE_PIP);
         config.enablePerfOverlay = prefs.getBoolean(ENABLE_PERF_OVERLAY_STRING, DEFAULT_ENABLE_PERF_OVERLAY);
         config.bindAllUsb = prefs.getBoolean(BIND_ALL_USB_STRING, DEFAULT_BIND_ALL_USB);
+        config.usbQueuedTransfers = prefs.getBoolean(USB_QUEUED_TRANSFERS_PREF_STRING, DEFAULT_USB_QUEUED_TRANSFERS);
         config.mouseEmulation = prefs.getBoolean(MOUSE_EMULATION_STRING, DEFAULT_MOUSE_EMULATION);
         config.mouseNavButtons = prefs.getBoolean(MOUSE_NAV_BUTTONS_STRING, DEFAULT_MOUSE_NAV_BUTTONS);
         config.unlockFps = prefs.getBoolean(UNLOCK_FPS_STRING, DEFAULT_UNLOCK_FPS);
@@ -565,11 +599,18 @@ public class PreferenceConfiguration {
         config.enableLatencyToast = prefs.getBoolean(LATENCY_TOAST_PREF_STRING, DEFAULT_LATENCY_TOAST);
         config.absoluteMouseMode = prefs.getBoolean(ABSOLUTE_MOUSE_MODE_PREF_STRING, DEFAULT_ABSOLUTE_MOUSE_MODE);
         config.enableAudioFx = prefs.getBoolean(ENABLE_AUDIO_FX_PREF_STRING, DEFAULT_ENABLE_AUDIO_FX);
+        config.nonBlockingAudio = prefs.getBoolean(NON_BLOCKING_AUDIO_PREF_STRING, DEFAULT_NON_BLOCKING_AUDIO);
+        config.avSyncCorrection = prefs.getBoolean(AV_SYNC_CORRECTION_PREF_STRING, DEFAULT_AV_SYNC_CORRECTION);
         config.reduceRefreshRate = prefs.getBoolean(REDUCE_REFRESH_RATE_PREF_STRING, DEFAULT_REDUCE_REFRESH_RATE);
         config.fullRange = prefs.getBoolean(FULL_RANGE_PREF_STRING, DEFAULT_FULL_RANGE);
         config.gamepadTouchpadAsMouse = prefs.getBoolean(GAMEPAD_TOUCHPAD_AS_MOUSE_PREF_STRING, DEFAULT_GAMEPAD_TOUCHPAD_AS_MOUSE);
         config.gamepadMotionSensors = prefs.getBoolean(GAMEPAD_MOTION_SENSORS_PREF_STRING, DEFAULT_GAMEPAD_MOTION_SENSORS);
         config.gamepadMotionSensorsFallbackToDevice = prefs.getBoolean(GAMEPAD_MOTION_FALLBACK_PREF_STRING, DEFAULT_GAMEPAD_MOTION_FALLBACK);
+        config.coalesceControllerInput = prefs.getBoolean(COALESCE_CONTROLLER_INPUT_PREF_STRING, DEFAULT_COALESCE_CONTROLLER_INPUT);
+        config.asyncDecoder = prefs.getBoolean(ASYNC_DECODER_PREF_STRING, DEFAULT_ASYNC_DECODER);
+        config.captureDecodeUnits = prefs.getBoolean(CAPTURE_DECODE_UNITS_PREF_STRING, DEFAULT_CAPTURE_DECODE_UNITS);
+        config.captureAudioPackets = prefs.getBoolean(CAPTURE_AUDIO_PACKETS_PREF_STRING, DEFAULT_CAPTURE_AUDIO_PACKETS);
+        config.hotSpareDecoder = prefs.getBoolean(HOT_SPARE_DECODER_PREF_STRING, DEFAULT_HOT_SPARE_DECODER);
 
         return config;
     }
@@ -333,6 +333,13 @@ public class StreamSettings extends Activity {
                 category.removePreference(findPreference("checkbox_enable_pip"));
             }
 
+            // Asynchronous decoding requires MediaCodec.setCallback() with a Handler, which was added in M
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                PreferenceCategory category =
+                        (PreferenceCategory) findPreference("category_advanced_settings");
+                category.removePreference(findPreference("checkbox_async_decoder"));
+            }
+
             // Fire TV apps are not allowed to use WebViews or browsers, so hide the Help category
             /*if (getActivity().getPackageManager().hasSystemFeature("amazon.hardware.fire_tv")) {
                 PreferenceCategory category =
@@ -436,9 +443,12 @@ public class StreamSettings extends Activity {
                 MediaCodecInfo avcDecoder = MediaCodecHelper.findProbableSafeDecoder("video/avc", -1);
                 MediaCodecInfo hevcDecoder = MediaCodecHelper.findProbableSafeDecoder("video/hevc", -1);
 
+                Range<Integer> avcWidthRange = null;
                 if (avcDecoder != null) {
-                    Range<Integer> avcWidthRange = avcDecoder.getCapabilitiesForType("video/avc").getVideoCapabilities().getSupportedWidths();
+                    avcWidthRange = MediaCodecHelper.getDecoderSupportedWidths(avcDecoder, "video/avc");
+                }
 
+                if (avcWidthRange != null) {
                     LimeLog.info("AVC supported width range: "+avcWidthRange.getLower()+" - "+avcWidthRange.getUpper());
 
                     // If 720p is not reported as supported, ignore all results from this API
@@ -455,9 +465,12 @@ public class StreamSettings extends Activity {
                     }
                 }
 
+                Range<Integer> hevcWidthRange = null;
                 if (hevcDecoder != null) {
-                    Range<Integer> hevcWidthRange = hevcDecoder.getCapabilitiesForType("video/hevc").getVideoCapabilities().getSupportedWidths();
+                    hevcWidthRange = MediaCodecHelper.getDecoderSupportedWidths(hevcDecoder, "video/hevc");
+                }
 
+                if (hevcWidthRange != null) {
                     LimeLog.info("HEVC supported width range: "+hevcWidthRange.getLower()+" - "+hevcWidthRange.getUpper());
 
                     // If 720p is not reported as supported, ignore all results from this API
@@ -2,6 +2,7 @@ package com.limelight.utils;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import com.limelight.AppView;
@@ -64,6 +65,7 @@ public class ServerHelper {
         intent.putExtra(Game.EXTRA_UNIQUEID, managerBinder.getUniqueId());
         intent.putExtra(Game.EXTRA_PC_UUID, computer.uuid);
         intent.putExtra(Game.EXTRA_PC_NAME, computer.name);
+        intent.putExtra(Game.EXTRA_LAUNCH_TIME, SystemClock.uptimeMillis());
         try {
             if (computer.serverCert != null) {
                 intent.putExtra(Game.EXTRA_SERVER_CERT, computer.serverCert.getEncoded());
@@ -20,11 +20,17 @@ static jmethodID BridgeDrStartMethod;
 static jmethodID BridgeDrStopMethod;
 static jmethodID BridgeDrCleanupMethod;
 static jmethodID BridgeDrSubmitDecodeUnitMethod;
+static jmethodID BridgeDrGetDirectSubmitBufferMethod;
+static jmethodID BridgeDrSubmitDirectDecodeUnitMethod;
 static jmethodID BridgeArInitMethod;
 static jmethodID BridgeArStartMethod;
 static jmethodID BridgeArStopMethod;
 static jmethodID BridgeArCleanupMethod;
 static jmethodID BridgeArPlaySampleMethod;
+static jmethodID BridgeArGetDirectSampleBufferMethod;
+static jmethodID BridgeArPlayDirectSampleMethod;
+static jmethodID BridgeArCaptureConfigMethod;
+static jmethodID BridgeArCapturePacketMethod;
 static jmethodID BridgeClStageStartingMethod;
 static jmethodID BridgeClStageCompleteMethod;
 static jmethodID BridgeClStageFailedMethod;
@@ -38,6 +44,10 @@ static jmethodID BridgeClSetMotionEventStateMethod;
 static jmethodID BridgeClSetControllerLEDMethod;
 static jbyteArray DecodedFrameBuffer;
 static jshortArray DecodedAudioBuffer;
+static jobject DirectAudioBuffer;
+static opus_int16* DirectAudioBufferAddress;
+static jbyteArray CapturedAudioPacketBuffer;
+static bool AudioPacketCaptureEnabled;
 
 void DetachThread(void* context) {
     (*JVM)->DetachCurrentThread(JVM);
@@ -75,6 +85,16 @@ JNIEnv* GetThreadEnv(void) {
     return env;
 }
 
+// Detaching with a pending exception crashes the app with that exception. This must only be
+// done on threads that GetThreadEnv() attached. Java threads that call into us (like the audio
+// replay) must stay attached, and they'll get the exception when the native method returns.
+static void DetachThreadIfNativeAttached(void) {
+    pthread_once(&JniEnvKeyInitOnce, JniEnvKeyInit);
+    if (pthread_getspecific(JniEnvKey) != NULL) {
+        (*JVM)->DetachCurrentThread(JVM);
+    }
+}
+
 JNIEXPORT void JNICALL
 Java_com_limelight_nvstream_jni_MoonBridge_init(JNIEnv *env, jclass clazz) {
     (*env)->GetJavaVM(env, &JVM);
@@ -84,11 +104,17 @@ Java_com_limelight_nvstream_jni_MoonBridge_init(JNIEnv *env, jclass clazz) {
     BridgeDrStopMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrStop", "()V");
     BridgeDrCleanupMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrCleanup", "()V");
     BridgeDrSubmitDecodeUnitMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrSubmitDecodeUnit", "([BIIIICJJ)I");
+    BridgeDrGetDirectSubmitBufferMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrGetDirectSubmitBuffer", "(II)Ljava/nio/ByteBuffer;");
+    BridgeDrSubmitDirectDecodeUnitMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrSubmitDirectDecodeUnit", "(Ljava/nio/ByteBuffer;IIIICJJ)I");
     BridgeArInitMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArInit", "(III)I");
     BridgeArStartMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArStart", "()V");
     BridgeArStopMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArStop", "()V");
     BridgeArCleanupMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArCleanup", "()V");
     BridgeArPlaySampleMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArPlaySample", "([S)V");
+    BridgeArGetDirectSampleBufferMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArGetDirectSampleBuffer", "()Ljava/nio/ByteBuffer;");
+    BridgeArPlayDirectSampleMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArPlayDirectSample", "(Ljava/nio/ByteBuffer;I)V");
+    BridgeArCaptureConfigMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArCaptureConfig", "(IIIIII[B)V");
+    BridgeArCapturePacketMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArCapturePacket", "([BI)V");
     BridgeClStageStartingMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageStarting", "(I)V");
     BridgeClStageCompleteMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageComplete", "(I)V");
     BridgeClStageFailedMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageFailed", "(II)V");
@@ -141,10 +167,74 @@ void BridgeDrCleanup(void) {
     (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeDrCleanupMethod);
 }
 
+// Returns true if the decode unit was handled by copying it directly into a buffer
+// provided by the Java renderer (usually the decoder's input buffer itself).
+static bool TrySubmitDirectDecodeUnit(JNIEnv* env, PDECODE_UNIT decodeUnit, int* ret) {
+    jobject directBuffer;
+    char* directBufferAddress;
+    PLENTRY currentEntry;
+    int offset;
+
+    directBuffer = (*env)->CallStaticObjectMethod(env, GlobalBridgeClass, BridgeDrGetDirectSubmitBufferMethod,
+                                                  decodeUnit->fullLength, decodeUnit->frameType);
+    if ((*env)->ExceptionCheck(env)) {
+        // We will crash here
+        (*JVM)->DetachCurrentThread(JVM);
+        *ret = DR_OK;
+        return true;
+    }
+    else if (directBuffer == NULL) {
+        // The renderer wants this decode unit via the byte[] path
+        return false;
+    }
+
+    directBufferAddress = (*env)->GetDirectBufferAddress(env, directBuffer);
+    if (directBufferAddress == NULL || (*env)->GetDirectBufferCapacity(env, directBuffer) < decodeUnit->fullLength) {
+        (*env)->DeleteLocalRef(env, directBuffer);
+        return false;
+    }
+
+    // Parameter sets must be submitted separately, so those can't use this path
+    for (currentEntry = decodeUnit->bufferList; currentEntry != NULL; currentEntry = currentEntry->next) {
+        if (currentEntry->bufferType != BUFFER_TYPE_PICDATA) {
+            (*env)->DeleteLocalRef(env, directBuffer);
+            return false;
+        }
+    }
+
+    offset = 0;
+    for (currentEntry = decodeUnit->bufferList; currentEntry != NULL; currentEntry = currentEntry->next) {
+        memcpy(directBufferAddress + offset, currentEntry->data, currentEntry->length);
+        offset += currentEntry->length;
+    }
+
+    *ret = (*env)->CallStaticIntMethod(env, GlobalBridgeClass, BridgeDrSubmitDirectDecodeUnitMethod,
+                                       directBuffer, offset, BUFFER_TYPE_PICDATA,
+                                       decodeUnit->frameNumber, decodeUnit->frameType, (jchar)decodeUnit->frameHostProcessingLatency,
+                                       (jlong)decodeUnit->receiveTimeMs, (jlong)decodeUnit->enqueueTimeMs);
+
+    // This thread never returns to Java, so we must free our local reference ourselves
+    (*env)->DeleteLocalRef(env, directBuffer);
+
+    if ((*env)->ExceptionCheck(env)) {
+        // We will crash here
+        (*JVM)->DetachCurrentThread(JVM);
+        *ret = DR_OK;
+    }
+
+    return true;
+}
+
 int BridgeDrSubmitDecodeUnit(PDECODE_UNIT decodeUnit) {
     JNIEnv* env = GetThreadEnv();
     int ret;
 
+    // IDR frames carry parameter sets that must be submitted separately, so only
+    // try the direct path for other frames.
+    if (decodeUnit->frameType != FRAME_TYPE_IDR && TrySubmitDirectDecodeUnit(env, decodeUnit, &ret)) {
+        return ret;
+    }
+
     // Increase the size of our frame data buffer if our frame won't fit
     if ((*env)->GetArrayLength(env, DecodedFrameBuffer) < decodeUnit->fullLength) {
         (*env)->DeleteGlobalRef(env, DecodedFrameBuffer);
@@ -220,8 +310,45 @@ int BridgeArInit(int audioConfiguration, POPUS_MULTISTREAM_CONFIGURATION opusCon
             return -1;
         }
 
-        // We know ahead of time what the buffer size will be for decoded audio, so pre-allocate it
-        DecodedAudioBuffer = (*env)->NewGlobalRef(env, (*env)->NewShortArray(env, opusConfig->channelCount * opusConfig->samplesPerFrame));
+        // If the renderer provides a direct buffer, we can decode straight into it
+        DirectAudioBuffer = NULL;
+        DirectAudioBufferAddress = NULL;
+        DecodedAudioBuffer = NULL;
+        jobject directBuffer = (*env)->CallStaticObjectMethod(env, GlobalBridgeClass, BridgeArGetDirectSampleBufferMethod);
+        if ((*env)->ExceptionCheck(env)) {
+            // This is called on a Java thread, so it's safe to return
+            opus_multistream_decoder_destroy(Decoder);
+            (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArCleanupMethod);
+            return -1;
+        }
+        else if (directBuffer != NULL) {
+            if ((*env)->GetDirectBufferAddress(env, directBuffer) != NULL &&
+                (*env)->GetDirectBufferCapacity(env, directBuffer) >= opusConfig->channelCount * opusConfig->samplesPerFrame * sizeof(opus_int16)) {
+                DirectAudioBuffer = (*env)->NewGlobalRef(env, directBuffer);
+                DirectAudioBufferAddress = (*env)->GetDirectBufferAddress(env, DirectAudioBuffer);
+            }
+            (*env)->DeleteLocalRef(env, directBuffer);
+        }
+
+        if (DirectAudioBuffer == NULL) {
+            // We know ahead of time what the buffer size will be for decoded audio, so pre-allocate it
+            DecodedAudioBuffer = (*env)->NewGlobalRef(env, (*env)->NewShortArray(env, opusConfig->channelCount * opusConfig->samplesPerFrame));
+        }
+
+        CapturedAudioPacketBuffer = NULL;
+        if (AudioPacketCaptureEnabled) {
+            // Record the decoder configuration, so the packets can be decoded the same way later
+            jbyteArray mapping = (*env)->NewByteArray(env, opusConfig->channelCount);
+            (*env)->SetByteArrayRegion(env, mapping, 0, opusConfig->channelCount, (jbyte*)opusConfig->mapping);
+            (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArCaptureConfigMethod,
+                                         audioConfiguration, opusConfig->sampleRate, opusConfig->channelCount,
+                                         opusConfig->streams, opusConfig->coupledStreams, opusConfig->samplesPerFrame,
+                                         mapping);
+            (*env)->DeleteLocalRef(env, mapping);
+
+            // Opus packets fit in a single datagram. We'll grow this if one doesn't.
+            CapturedAudioPacketBuffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, 1500));
+        }
     }
 
     return err;
@@ -244,7 +371,19 @@ void BridgeArCleanup() {
 
     opus_multistream_decoder_destroy(Decoder);
 
-    (*env)->DeleteGlobalRef(env, DecodedAudioBuffer);
+    if (DirectAudioBuffer != NULL) {
+        (*env)->DeleteGlobalRef(env, DirectAudioBuffer);
+        DirectAudioBuffer = NULL;
+        DirectAudioBufferAddress = NULL;
+    }
+    if (DecodedAudioBuffer != NULL) {
+        (*env)->DeleteGlobalRef(env, DecodedAudioBuffer);
+        DecodedAudioBuffer = NULL;
+    }
+    if (CapturedAudioPacketBuffer != NULL) {
+        (*env)->DeleteGlobalRef(env, CapturedAudioPacketBuffer);
+        CapturedAudioPacketBuffer = NULL;
+    }
 
     (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArCleanupMethod);
 }
@@ -252,6 +391,40 @@ void BridgeArCleanup() {
 void BridgeArDecodeAndPlaySample(char* sampleData, int sampleLength) {
     JNIEnv* env = GetThreadEnv();
 
+    if (CapturedAudioPacketBuffer != NULL) {
+        if ((*env)->GetArrayLength(env, CapturedAudioPacketBuffer) < sampleLength) {
+            (*env)->DeleteGlobalRef(env, CapturedAudioPacketBuffer);
+            CapturedAudioPacketBuffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, sampleLength));
+        }
+
+        (*env)->SetByteArrayRegion(env, CapturedAudioPacketBuffer, 0, sampleLength, (jbyte*)sampleData);
+        (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArCapturePacketMethod, CapturedAudioPacketBuffer, sampleLength);
+        if ((*env)->ExceptionCheck(env)) {
+            // We will crash here
+            DetachThreadIfNativeAttached();
+            return;
+        }
+    }
+
+    if (DirectAudioBufferAddress != NULL) {
+        // Decode directly into the renderer's buffer. There's no array to pin or copy back.
+        int decodeLen = opus_multistream_decode(Decoder,
+                                                (const unsigned char*)sampleData,
+                                                sampleLength,
+                                                DirectAudioBufferAddress,
+                                                OpusConfig.samplesPerFrame,
+                                                0);
+        if (decodeLen > 0) {
+            (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArPlayDirectSampleMethod,
+                                         DirectAudioBuffer, decodeLen * OpusConfig.channelCount);
+            if ((*env)->ExceptionCheck(env)) {
+                // We will crash here
+                DetachThreadIfNativeAttached();
+            }
+        }
+        return;
+    }
+
     jshort* decodedData = (*env)->GetPrimitiveArrayCritical(env, DecodedAudioBuffer, NULL);
 
     int decodeLen = opus_multistream_decode(Decoder,
@@ -267,7 +440,7 @@ void BridgeArDecodeAndPlaySample(char* sampleData, int sampleLength) {
         (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArPlaySampleMethod, DecodedAudioBuffer);
         if ((*env)->ExceptionCheck(env)) {
             // We will crash here
-            (*JVM)->DetachCurrentThread(JVM);
+            DetachThreadIfNativeAttached();
         }
     }
     else {
@@ -488,4 +661,62 @@ Java_com_limelight_nvstream_jni_MoonBridge_startConnection(JNIEnv *env, jclass c
     }
 
     return ret;
-}
\ No newline at end of file
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_setAudioPacketCaptureEnabled(JNIEnv *env, jclass clazz, jboolean enabled) {
+    // Takes effect when the next audio stream is initialized
+    AudioPacketCaptureEnabled = enabled;
+}
+
+// The functions below drive the audio renderer callbacks directly, without a connection. This
+// lets us replay captured Opus packets through the same decode path that a stream uses.
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_startAudioReplay(JNIEnv *env, jclass clazz,
+                                                            jint audioConfiguration, jint sampleRate,
+                                                            jint channelCount, jint streams,
+                                                            jint coupledStreams, jint samplesPerFrame,
+                                                            jbyteArray mapping) {
+    OPUS_MULTISTREAM_CONFIGURATION opusConfig = {
+            .sampleRate = sampleRate,
+            .channelCount = channelCount,
+            .streams = streams,
+            .coupledStreams = coupledStreams,
+            .samplesPerFrame = samplesPerFrame,
+    };
+
+    if (channelCount > sizeof(opusConfig.mapping) || (*env)->GetArrayLength(env, mapping) < channelCount) {
+        return -1;
+    }
+    (*env)->GetByteArrayRegion(env, mapping, 0, channelCount, (jbyte*)opusConfig.mapping);
+
+    int err = BridgeArInit(audioConfiguration, &opusConfig, NULL, 0);
+    if (err != 0) {
+        return err;
+    }
+
+    BridgeArStart();
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_replayAudioPacket(JNIEnv *env, jclass clazz, jbyteArray packet, jint length) {
+    char packetBuffer[4096];
+
+    // Copy the packet out, since the decode path calls back into Java
+    if (length <= 0 || length > sizeof(packetBuffer)) {
+        __android_log_print(ANDROID_LOG_WARN, "moonlight-common-c", "Skipping replayed audio packet of %d bytes", length);
+        return -1;
+    }
+    (*env)->GetByteArrayRegion(env, packet, 0, length, (jbyte*)packetBuffer);
+
+    BridgeArDecodeAndPlaySample(packetBuffer, length);
+    return 0;
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_stopAudioReplay(JNIEnv *env, jclass clazz) {
+    BridgeArStop();
+    BridgeArCleanup();
+}
@@ -3,18 +3,20 @@ package com.limelight.binding.input.evdev;
 import android.app.Activity;
 import android.os.Build;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 
+import com.limelight.BuildConfig;
 import com.limelight.LimeLog;
 import com.limelight.binding.input.capture.InputCaptureProvider;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public class EvdevCaptureProvider extends InputCaptureProvider {
 
@@ -22,34 +24,150 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
     private final String libraryPath;
 
     private boolean shutdown = false;
-    private InputStream evdevIn;
     private OutputStream evdevOut;
     private Process su;
-    private ServerSocket servSock;
-    private Socket evdevSock;
+    private ServerSocketChannel servSock;
+    private SocketChannel evdevSock;
     private Activity activity;
     private boolean started = false;
 
     private static final byte UNGRAB_REQUEST = 1;
     private static final byte REGRAB_REQUEST = 2;
 
+    // Translates evdev events into mouse and keyboard input. Motion and scrolling from all
+    // of the reports in a batch of events is combined, so high rate mice produce one mouse
+    // move per batch instead of one per report.
+    private class EvdevEventHandler implements EvdevReader.EventHandler {
+        // Motion from the report that's still being received
+        private int reportDeltaX, reportDeltaY;
+        private int reportDeltaVScroll, reportDeltaHScroll;
+
+        // Motion from complete reports that hasn't been sent yet
+        private int deltaX, deltaY;
+        private int deltaVScroll, deltaHScroll;
+
+        private void flushMotion() {
+            if (deltaX != 0 || deltaY != 0) {
+                listener.mouseMove(deltaX, deltaY);
+                deltaX = deltaY = 0;
+            }
+            if (deltaVScroll != 0) {
+                listener.mouseVScroll(clampToByte(deltaVScroll));
+                deltaVScroll = 0;
+            }
+            if (deltaHScroll != 0) {
+                listener.mouseHScroll(clampToByte(deltaHScroll));
+                deltaHScroll = 0;
+            }
+        }
+
+        private void mouseButtonEvent(int buttonId, boolean down) {
+            // Send earlier motion first, so the click happens in the right place
+            flushMotion();
+            listener.mouseButtonEvent(buttonId, down);
+        }
+
+        @Override
+        public void handleEvent(short type, short code, int value) {
+            // Note: The EvdevReader process already filters input events when grabbing
+            // is not enabled, so we don't need to that here.
+
+            switch (type) {
+                case EvdevEvent.EV_SYN:
+                    deltaX += reportDeltaX;
+                    deltaY += reportDeltaY;
+                    deltaVScroll += reportDeltaVScroll;
+                    deltaHScroll += reportDeltaHScroll;
+                    reportDeltaX = reportDeltaY = 0;
+                    reportDeltaVScroll = reportDeltaHScroll = 0;
+                    break;
+
+                case EvdevEvent.EV_REL:
+                    switch (code) {
+                        case EvdevEvent.REL_X:
+                            reportDeltaX = value;
+                            break;
+                        case EvdevEvent.REL_Y:
+                            reportDeltaY = value;
+                            break;
+                        case EvdevEvent.REL_HWHEEL:
+                            reportDeltaHScroll = value;
+                            break;
+                        case EvdevEvent.REL_WHEEL:
+                            reportDeltaVScroll = value;
+                            break;
+                    }
+                    break;
+
+                case EvdevEvent.EV_KEY:
+                    switch (code) {
+                        case EvdevEvent.BTN_LEFT:
+                            mouseButtonEvent(EvdevListener.BUTTON_LEFT, value != 0);
+                            break;
+                        case EvdevEvent.BTN_MIDDLE:
+                            mouseButtonEvent(EvdevListener.BUTTON_MIDDLE, value != 0);
+                            break;
+                        case EvdevEvent.BTN_RIGHT:
+                            mouseButtonEvent(EvdevListener.BUTTON_RIGHT, value != 0);
+                            break;
+
+                        case EvdevEvent.BTN_SIDE:
+                            mouseButtonEvent(EvdevListener.BUTTON_X1, value != 0);
+                            break;
+
+                        case EvdevEvent.BTN_EXTRA:
+                            mouseButtonEvent(EvdevListener.BUTTON_X2, value != 0);
+                            break;
+
+                        case EvdevEvent.BTN_FORWARD:
+                        case EvdevEvent.BTN_BACK:
+                        case EvdevEvent.BTN_TASK:
+                            // Other unhandled mouse buttons
+                            break;
+
+                        default:
+                            // We got some unrecognized button. This means
+                            // someone is trying to use the other device in this
+                            // "combination" input device. We'll try to handle
+                            // it via keyboard, but we're not going to disconnect
+                            // if we can't
+                            short keyCode = EvdevTranslator.translateEvdevKeyCode(code);
+                            if (keyCode != 0) {
+                                flushMotion();
+                                listener.keyboardEvent(value != 0, keyCode);
+                            }
+                            break;
+                    }
+                    break;
+
+                case EvdevEvent.EV_MSC:
+                    break;
+            }
+        }
+
+        @Override
+        public void handleBatchEnd() {
+            flushMotion();
+        }
+    }
+
+    private static byte clampToByte(int value) {
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, value));
+    }
+
     private final Thread handlerThread = new Thread() {
         @Override
         public void run() {
-            int deltaX = 0;
-            int deltaY = 0;
-            byte deltaVScroll = 0;
-            byte deltaHScroll = 0;
-
             // Bind a local listening socket for evdevreader to connect to
             try {
-                servSock = new ServerSocket(0, 1);
+                servSock = ServerSocketChannel.open();
+                servSock.socket().bind(new InetSocketAddress(0), 1);
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
             }
 
-            final String evdevReaderCmd = libraryPath+File.separatorChar+"libevdev_reader.so "+servSock.getLocalPort();
+            final String evdevReaderCmd = libraryPath+File.separatorChar+"libevdev_reader.so "+servSock.socket().getLocalPort();
 
             // On Nougat and later, we'll need to pass the command directly to SU.
             // Writing to SU's input stream after it has started doesn't seem to work anymore.
@@ -88,113 +206,33 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
             }
 
             // Wait for evdevreader's connection
-            LimeLog.info("Waiting for EvdevReader connection to port "+servSock.getLocalPort());
+            LimeLog.info("Waiting for EvdevReader connection to port "+servSock.socket().getLocalPort());
             try {
                 evdevSock = servSock.accept();
-                evdevIn = evdevSock.getInputStream();
-                evdevOut = evdevSock.getOutputStream();
+                evdevOut = evdevSock.socket().getOutputStream();
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
             }
-            LimeLog.info("EvdevReader connected from port "+evdevSock.getPort());
+            LimeLog.info("EvdevReader connected from port "+evdevSock.socket().getPort());
 
+            EvdevReader reader = new EvdevReader(evdevSock);
+            EvdevEventHandler eventHandler = new EvdevEventHandler();
             while (!isInterrupted() && !shutdown) {
-                EvdevEvent event;
                 try {
-                    event = EvdevReader.read(evdevIn);
+                    if (!reader.readEvents(eventHandler)) {
+                        break;
+                    }
                 } catch (IOException e) {
-                    event = null;
-                }
-                if (event == null) {
                     break;
                 }
 
-                // Note: The EvdevReader process already filters input events when grabbing
-                // is not enabled, so we don't need to that here.
-
-                switch (event.type) {
-                    case EvdevEvent.EV_SYN:
-                        if (deltaX != 0 || deltaY != 0) {
-                            listener.mouseMove(deltaX, deltaY);
-                            deltaX = deltaY = 0;
-                        }
-                        if (deltaVScroll != 0) {
-                            listener.mouseVScroll(deltaVScroll);
-                            deltaVScroll = 0;
-                        }
-                        if (deltaHScroll != 0) {
-                            listener.mouseHScroll(deltaHScroll);
-                            deltaHScroll = 0;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_REL:
-                        switch (event.code) {
-                            case EvdevEvent.REL_X:
-                                deltaX = event.value;
-                                break;
-                            case EvdevEvent.REL_Y:
-                                deltaY = event.value;
-                                break;
-                            case EvdevEvent.REL_HWHEEL:
-                                deltaHScroll = (byte) event.value;
-                                break;
-                            case EvdevEvent.REL_WHEEL:
-                                deltaVScroll = (byte) event.value;
-                                break;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_KEY:
-                        switch (event.code) {
-                            case EvdevEvent.BTN_LEFT:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_LEFT,
-                                        event.value != 0);
-                                break;
-                            case EvdevEvent.BTN_MIDDLE:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_MIDDLE,
-                                        event.value != 0);
-                                break;
-                            case EvdevEvent.BTN_RIGHT:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_RIGHT,
-                                        event.value != 0);
-                                break;
-
-                            case EvdevEvent.BTN_SIDE:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_X1,
-                                        event.value != 0);
-                                break;
-
-                            case EvdevEvent.BTN_EXTRA:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_X2,
-                                        event.value != 0);
-                                break;
-
-                            case EvdevEvent.BTN_FORWARD:
-                            case EvdevEvent.BTN_BACK:
-                            case EvdevEvent.BTN_TASK:
-                                // Other unhandled mouse buttons
-                                break;
-
-                            default:
-                                // We got some unrecognized button. This means
-                                // someone is trying to use the other device in this
-                                // "combination" input device. We'll try to handle
-                                // it via keyboard, but we're not going to disconnect
-                                // if we can't
-                                short keyCode = EvdevTranslator.translateEvdevKeyCode(event.code);
-                                if (keyCode != 0) {
-                                    listener.keyboardEvent(event.value != 0, keyCode);
-                                }
-                                break;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_MSC:
-                        break;
+                if (reader.updateRates(SystemClock.uptimeMillis()) && BuildConfig.DEBUG && reader.getEventRate() != 0) {
+                    LimeLog.info("EvdevReader: "+reader.getEventRate()+" events/s in "+reader.getReadRate()+" reads/s");
                 }
             }
+
+            LimeLog.info("EvdevReader: "+reader.getTotalEvents()+" events in "+reader.getTotalReads()+" reads");
         }
     };
 
@@ -318,14 +356,6 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
                     }
                 }
 
-                if (evdevIn != null) {
-                    try {
-                        evdevIn.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
                 if (evdevOut != null) {
                     try {
                         evdevOut.close();
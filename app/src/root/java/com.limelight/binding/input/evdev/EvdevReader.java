@@ -1,58 +1,121 @@
 package com.limelight.binding.input.evdev;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
 
 import com.limelight.LimeLog;
 
+// Reads the events sent by evdev_reader. Each event is sent as a 4 byte length followed by
+// the kernel's input_event struct, all in native byte order.
+//
+// Everything available on the socket is read at once into a reused direct buffer, then all
+// complete events in it are decoded in one pass. High rate mice send thousands of events per
+// second, so this saves a lot of reads and allocations compared to reading each event's
+// length and payload separately.
 public class EvdevReader {
-    private static void readAll(InputStream in, ByteBuffer bb) throws IOException {
-        byte[] buf = bb.array();
-        int ret;
-        int offset = 0;
-
-        while (offset < buf.length) {
-            ret = in.read(buf, offset, buf.length-offset);
-            if (ret <= 0) {
-                throw new IOException("Read failed: "+ret);
-            }
+    public interface EventHandler {
+        // Called for each complete event in the order they were received
+        void handleEvent(short type, short code, int value);
 
-            offset += ret;
-        }
+        // Called after the events from a single read have been handled
+        void handleBatchEnd();
     }
 
-    // Takes a byte buffer to use to read the output into.
-    // This buffer MUST be in native byte order and at least
-    // EVDEV_MAX_EVENT_SIZE bytes long.
-    public static EvdevEvent read(InputStream input) throws IOException {
-        ByteBuffer bb;
-        int packetLength;
+    private static final int HEADER_SIZE = 4;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final long RATE_WINDOW_MS = 1000;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
 
-        // Read the packet length
-        bb = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
-        readAll(input, bb);
-        packetLength = bb.getInt();
+    private long totalEvents, totalReads;
+
+    private long rateWindowStartMs;
+    private int windowEvents, windowReads;
+    private volatile int eventRate, readRate;
+
+    public EvdevReader(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
 
-        if (packetLength < EvdevEvent.EVDEV_MIN_EVENT_SIZE) {
-            LimeLog.warning("Short read: "+packetLength);
-            return null;
+    // Blocks until more data is available, then handles all complete events that have
+    // been received. Returns false if the connection was closed or the data is invalid.
+    public boolean readEvents(EventHandler handler) throws IOException {
+        if (channel.read(buffer) < 0) {
+            return false;
         }
 
-        // Read the rest of the packet
-        bb = ByteBuffer.allocate(packetLength).order(ByteOrder.nativeOrder());
-        readAll(input, bb);
-
-        // Throw away the time stamp
-        if (packetLength == EvdevEvent.EVDEV_MAX_EVENT_SIZE) {
-            bb.getLong();
-            bb.getLong();
-        } else {
-            bb.getInt();
-            bb.getInt();
+        windowReads++;
+        totalReads++;
+
+        buffer.flip();
+        try {
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int packetLength = buffer.getInt(start);
+                if (packetLength < EvdevEvent.EVDEV_MIN_EVENT_SIZE || packetLength > EvdevEvent.EVDEV_MAX_EVENT_SIZE) {
+                    LimeLog.warning("Invalid evdev event length: "+packetLength);
+                    return false;
+                }
+
+                if (buffer.remaining() < HEADER_SIZE + packetLength) {
+                    // Wait for the rest of this event
+                    break;
+                }
+
+                // Skip the time stamp, which is 2 longs on 64-bit kernels and 2 ints otherwise
+                int eventOffset = start + HEADER_SIZE + packetLength - 8;
+                short type = buffer.getShort(eventOffset);
+                short code = buffer.getShort(eventOffset + 2);
+                int value = buffer.getInt(eventOffset + 4);
+                buffer.position(start + HEADER_SIZE + packetLength);
+
+                windowEvents++;
+                totalEvents++;
+                handler.handleEvent(type, code, value);
+            }
+        } finally {
+            // Keep any partial event for the next read
+            buffer.compact();
         }
 
-        return new EvdevEvent(bb.getShort(), bb.getShort(), bb.getInt());
+        handler.handleBatchEnd();
+        return true;
+    }
+
+    // Updates the per-second rates. Returns true if a new measurement is available.
+    public boolean updateRates(long nowMs) {
+        if (rateWindowStartMs == 0) {
+            rateWindowStartMs = nowMs;
+            return false;
+        }
+        else if (nowMs - rateWindowStartMs < RATE_WINDOW_MS) {
+            return false;
+        }
+
+        eventRate = (int) (windowEvents * 1000L / (nowMs - rateWindowStartMs));
+        readRate = (int) (windowReads * 1000L / (nowMs - rateWindowStartMs));
+        windowEvents = windowReads = 0;
+        rateWindowStartMs = nowMs;
+        return true;
+    }
+
+    public int getEventRate() {
+        return eventRate;
+    }
+
+    public int getReadRate() {
+        return readRate;
+    }
+
+    public long getTotalEvents() {
+        return totalEvents;
+    }
+
+    public long getTotalReads() {
+        return totalReads;
     }
 }
@@ -0,0 +1,36 @@
+package com.limelight.benchmarks;
+
+import com.limelight.nvstream.av.video.AdaptiveFramePacer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class AdaptiveFramePacerBenchmark {
+    private static final long VSYNC_PERIOD_NS = 1000000000L / 60;
+
+    private AdaptiveFramePacer pacer;
+    private long frameNumber;
+
+    @Setup
+    public void setup() {
+        pacer = new AdaptiveFramePacer(60);
+        frameNumber = 1;
+    }
+
+    // Per-frame cost of all pacer callbacks for a 60 FPS stream on a 60 Hz display
+    @Benchmark
+    public long frame() {
+        long vsyncNs = frameNumber * VSYNC_PERIOD_NS;
+        long presentationTimeUs = frameNumber * 16667;
+        frameNumber++;
+
+        pacer.onVsync(vsyncNs);
+        pacer.onFrameDecoded(3000 + (frameNumber & 0x3FF));
+        long targetNs = pacer.getRenderTimestampNs(presentationTimeUs, vsyncNs + 4000000);
+        pacer.onFrameRendered(presentationTimeUs, targetNs);
+        return targetNs;
+    }
+}
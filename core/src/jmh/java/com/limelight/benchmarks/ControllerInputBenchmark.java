@@ -0,0 +1,34 @@
+package com.limelight.benchmarks;
+
+import com.limelight.nvstream.av.audio.AudioConfiguration;
+import com.limelight.nvstream.input.ControllerInputAggregator;
+import com.limelight.nvstream.input.ControllerPacket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class ControllerInputBenchmark {
+    private final ControllerInputAggregator aggregator = new ControllerInputAggregator();
+    private short stickValue;
+
+    // A controller split into gamepad, motion and touchpad devices
+    @Benchmark
+    public int aggregateSplitController() {
+        stickValue += 97;
+
+        aggregator.reset();
+        aggregator.add(ControllerPacket.A_FLAG, (byte) 0, (byte) 0x7F,
+                stickValue, (short) -stickValue, (short) 0, (short) 0);
+        aggregator.add(0, (byte) 0, (byte) 0, (short) 0, (short) 0, (short) 0, (short) 0);
+        aggregator.add(ControllerPacket.TOUCHPAD_FLAG, (byte) 0, (byte) 0,
+                (short) 0, (short) 0, (short) 0, (short) 0);
+        return aggregator.inputMap + aggregator.leftStickX + aggregator.rightTrigger;
+    }
+
+    @Benchmark
+    public int audioConfigurationRoundTrip() {
+        return new AudioConfiguration(new AudioConfiguration(8, 0x63F).toInt()).getSurroundAudioInfo();
+    }
+}
@@ -0,0 +1,47 @@
+package com.limelight.benchmarks;
+
+import com.limelight.nvstream.av.video.H264SpsPatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+@State(Scope.Thread)
+public class H264SpsPatcherBenchmark {
+    // 1920x1080 High profile SPS with VUI parameters
+    private static final byte[] SPS = {
+            0x00, 0x00, 0x00, 0x01, 0x67, 0x64, 0x00, 0x28, (byte) 0xAC, (byte) 0xD9, 0x40, 0x78,
+            0x02, 0x27, (byte) 0xE5, (byte) 0xC0, 0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00,
+            0x03, 0x00, (byte) 0xF0, 0x3C, 0x60, (byte) 0xC6, 0x58
+    };
+
+    private H264SpsPatcher patcher;
+
+    @Setup
+    public void setup() {
+        // Don't benchmark the log output
+        Logger.getLogger("com.limelight.LimeLog").setLevel(Level.OFF);
+
+        patcher = new H264SpsPatcher();
+        patcher.width = 1920;
+        patcher.height = 1080;
+        patcher.refreshRate = 60;
+        patcher.addBitstreamRestrictions = true;
+        patcher.constrainedHighProfile = true;
+    }
+
+    @Benchmark
+    public byte[] patchSps() {
+        return patcher.patchSps(SPS, SPS.length, false);
+    }
+
+    @Benchmark
+    public byte[] patchSpsWithBaselineHack() {
+        patcher.patchSps(SPS, SPS.length, true);
+        return patcher.getReplaySps();
+    }
+}
@@ -0,0 +1,39 @@
+package com.limelight.benchmarks;
+
+import com.limelight.utils.IntRingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Group)
+public class IntRingBufferBenchmark {
+    // Same size as the video output buffer queue
+    private final IntRingBuffer queue = new IntRingBuffer(2);
+    private int next;
+
+    // Producer dropping the oldest entry when full, like the video renderer thread
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public int produce() {
+        int dropped = 0;
+        while (!queue.offer(next)) {
+            if (queue.poll() != IntRingBuffer.EMPTY) {
+                dropped++;
+            }
+        }
+        next = (next + 1) & 0xFF;
+        return dropped;
+    }
+
+    // Consumer polling once per call, like the Choreographer callback
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public int consume() {
+        return queue.poll();
+    }
+}
@@ -0,0 +1,60 @@
+package com.limelight.benchmarks;
+
+import com.limelight.nvstream.http.NvApp;
+import com.limelight.nvstream.http.NvHttpXml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.StringReader;
+import java.util.List;
+
+@State(Scope.Thread)
+public class NvHttpXmlBenchmark {
+    private static final String SERVER_INFO =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<root status_code=\"200\">" +
+            "<hostname>DESKTOP-BENCH</hostname>" +
+            "<appversion>7.1.431.-1</appversion>" +
+            "<GfeVersion>3.23.0.74</GfeVersion>" +
+            "<uniqueid>0123456789ABCDEF</uniqueid>" +
+            "<HttpsPort>47984</HttpsPort>" +
+            "<ExternalPort>47989</ExternalPort>" +
+            "<MaxLumaPixelsHEVC>1869449984</MaxLumaPixelsHEVC>" +
+            "<mac>00:00:00:00:00:00</mac>" +
+            "<LocalIP>192.168.1.2</LocalIP>" +
+            "<ServerCodecModeSupport>259</ServerCodecModeSupport>" +
+            "<SupportedDisplayMode><DisplayMode><Width>1920</Width><Height>1080</Height>" +
+            "<RefreshRate>60</RefreshRate></DisplayMode></SupportedDisplayMode>" +
+            "<PairStatus>1</PairStatus>" +
+            "<currentgame>0</currentgame>" +
+            "<state>SUNSHINE_SERVER_FREE</state>" +
+            "</root>";
+
+    private String appList;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?><root status_code=\"200\">");
+        for (int i = 0; i < 50; i++) {
+            sb.append("<App><IsHdrSupported>").append(i % 2).append("</IsHdrSupported>");
+            sb.append("<AppTitle>Game ").append(i).append("</AppTitle>");
+            sb.append("<ID>").append(100000 + i).append("</ID></App>");
+        }
+        sb.append("</root>");
+        appList = sb.toString();
+    }
+
+    @Benchmark
+    public String getXmlString() throws Exception {
+        return NvHttpXml.getXmlString(SERVER_INFO, "currentgame", true);
+    }
+
+    @Benchmark
+    public List<NvApp> getAppList() throws Exception {
+        return NvHttpXml.getAppListByReader(new StringReader(appList));
+    }
+}
@@ -0,0 +1,65 @@
+package com.limelight.benchmarks;
+
+import com.limelight.nvstream.av.video.LatencyHistogram;
+import com.limelight.nvstream.av.video.VideoStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+@State(Scope.Thread)
+public class VideoStatsBenchmark {
+    private final VideoStats activeWindow = new VideoStats();
+    private final VideoStats lastWindow = new VideoStats();
+    private final VideoStats global = new VideoStats();
+    private final VideoStats lastTwo = new VideoStats();
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final long[] samples = new long[1024];
+    private int sampleIndex;
+
+    @Setup
+    public void setup() {
+        // Latencies roughly like a 60 FPS stream with occasional spikes
+        Random random = new Random(1234);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 2000 + random.nextInt(6000) + (random.nextInt(100) == 0 ? 50000 : 0);
+            activeWindow.receiveLatency.record(samples[i]);
+            activeWindow.decodeLatency.record(samples[i] / 2);
+            activeWindow.renderLatency.record(samples[i] * 2);
+            histogram.record(samples[i]);
+        }
+        activeWindow.totalFrames = activeWindow.totalFramesReceived = activeWindow.totalFramesRendered = 60;
+        activeWindow.measurementStartTimestamp = 1;
+        lastWindow.copy(activeWindow);
+    }
+
+    // Per-frame cost of recording a latency sample
+    @Benchmark
+    public void recordLatency() {
+        histogram.record(samples[sampleIndex++ & (samples.length - 1)]);
+    }
+
+    // Per-second cost of computing the perf overlay percentiles
+    @Benchmark
+    public long percentiles() {
+        return histogram.getPercentileUs(50) + histogram.getPercentileUs(95) +
+                histogram.getPercentileUs(99) + histogram.getMaxUs();
+    }
+
+    // Per-second cost of flipping the stats windows and building the overlay stats
+    @Benchmark
+    public int flipWindows() {
+        lastTwo.clear();
+        lastTwo.add(lastWindow);
+        lastTwo.add(activeWindow);
+
+        global.add(activeWindow);
+        lastWindow.copy(activeWindow);
+
+        return lastTwo.totalFrames;
+    }
+}
@@ -0,0 +1,89 @@
+package com.limelight.nvstream;
+
+import java.util.ArrayList;
+
+// Records how long each stage of starting a stream takes, from the user launching the
+// stream until the first frame is on screen. All times are milliseconds on the uptime
+// clock (SystemClock.uptimeMillis() or System.nanoTime() / 1000000 on Android).
+public class ConnectionTimeline {
+    private final long launchTimeMs;
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private long firstFrameTimeMs = -1;
+
+    public ConnectionTimeline(long launchTimeMs) {
+        this.launchTimeMs = launchTimeMs;
+    }
+
+    public synchronized void stageStarting(String name, long timeMs) {
+        stages.add(new Stage(name, timeMs));
+    }
+
+    public synchronized void stageComplete(String name, long timeMs) {
+        // Stages may overlap, so find the most recent one with this name
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            Stage stage = stages.get(i);
+            if (stage.name.equals(name) && stage.endTimeMs < 0) {
+                stage.endTimeMs = timeMs;
+                return;
+            }
+        }
+    }
+
+    // Records an instantaneous event, like the video surface becoming ready
+    public synchronized void event(String name, long timeMs) {
+        Stage stage = new Stage(name, timeMs);
+        stage.endTimeMs = timeMs;
+        stages.add(stage);
+    }
+
+    // Returns true if this is the first frame rendered
+    public synchronized boolean firstFrameRendered(long timeMs) {
+        if (firstFrameTimeMs >= 0) {
+            return false;
+        }
+
+        firstFrameTimeMs = timeMs;
+        return true;
+    }
+
+    // Returns -1 if no frame has been rendered yet
+    public synchronized long getTimeToFirstFrameMs() {
+        if (firstFrameTimeMs < 0) {
+            return -1;
+        }
+
+        return firstFrameTimeMs - launchTimeMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Connection timeline (ms since launch):");
+        for (Stage stage : stages) {
+            sb.append("\n  +").append(stage.startTimeMs - launchTimeMs);
+            if (stage.endTimeMs < 0) {
+                sb.append(" ").append(stage.name).append(" (not completed)");
+            }
+            else if (stage.endTimeMs == stage.startTimeMs) {
+                sb.append(" ").append(stage.name);
+            }
+            else {
+                sb.append(" ").append(stage.name).append(" (").append(stage.endTimeMs - stage.startTimeMs).append(" ms)");
+            }
+        }
+        if (firstFrameTimeMs >= 0) {
+            sb.append("\n  +").append(firstFrameTimeMs - launchTimeMs).append(" First frame rendered");
+        }
+        return sb.toString();
+    }
+
+    private static class Stage {
+        final String name;
+        final long startTimeMs;
+        long endTimeMs = -1;
+
+        Stage(String name, long startTimeMs) {
+            this.name = name;
+            this.startTimeMs = startTimeMs;
+        }
+    }
+}
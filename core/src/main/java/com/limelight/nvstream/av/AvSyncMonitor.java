@@ -0,0 +1,160 @@
+package com.limelight.nvstream.av;
+
+import com.limelight.LimeLog;
+
+// Watches for audio and video drifting apart over a session. Both streams are stamped by the
+// host at about the same time, so we compare how long each one takes from arriving here until
+// it is presented: video from enqueue until the frame is rendered, and audio from decode until
+// the sample is played out. The difference between the two is the A/V offset. The offset at
+// the start of the session is taken as the baseline, since users will have no complaints about
+// sync then, and drift is measured relative to it.
+//
+// Samples are averaged over fixed windows. The trend is the least squares slope of the window
+// offsets over the last few minutes. Correction is suggested by moving the audio buffering
+// target in small steps to cancel out the drift. Audio can only be delayed further or sped up
+// down to the minimum buffer depth, so the correction is bounded.
+//
+// Video samples are recorded on the frame rendered callback thread, audio samples on the audio
+// thread, and results are read from the UI thread, so all methods are synchronized.
+public class AvSyncMonitor {
+    private static final long WINDOW_NS = 5 * 1000000000L;
+
+    // Skip the first windows, since buffers are still settling
+    private static final int WARMUP_WINDOWS = 2;
+
+    // Number of windows used for the trend (5 minutes)
+    private static final int TREND_WINDOWS = 60;
+
+    // Drift smaller than this isn't perceptible, so we don't try to correct it
+    private static final float CORRECTION_THRESHOLD_MS = 15;
+
+    // Correction moves by at most this much each window, so changes are gradual
+    private static final int CORRECTION_STEP_MS = 2;
+    private static final int MAX_CORRECTION_MS = 60;
+
+    private long windowStartNs;
+    private long windowVideoLatencySumUs;
+    private int windowVideoSamples;
+    private long windowAudioLatencySumUs;
+    private int windowAudioSamples;
+    private int windowsSeen;
+
+    private boolean hasBaseline;
+    private float baselineOffsetMs;
+    private float lastOffsetMs;
+    private float maxAbsDriftMs;
+
+    // Window offsets for the trend, indexed by window number modulo TREND_WINDOWS
+    private final float[] offsetHistoryMs = new float[TREND_WINDOWS];
+    private int offsetHistoryCount;
+    private int windowIndex;
+
+    private int correctionMs;
+
+    public synchronized void onVideoFrameRendered(long latencyUs, long nowNs) {
+        windowVideoLatencySumUs += latencyUs;
+        windowVideoSamples++;
+        maybeEndWindow(nowNs);
+    }
+
+    public synchronized void onAudioLatencySample(long latencyUs, long nowNs) {
+        windowAudioLatencySumUs += latencyUs;
+        windowAudioSamples++;
+        maybeEndWindow(nowNs);
+    }
+
+    private void maybeEndWindow(long nowNs) {
+        if (windowStartNs == 0) {
+            windowStartNs = nowNs;
+            return;
+        }
+        else if (nowNs - windowStartNs < WINDOW_NS) {
+            return;
+        }
+
+        // We need both streams to say anything about their offset
+        if (windowVideoSamples != 0 && windowAudioSamples != 0 && ++windowsSeen > WARMUP_WINDOWS) {
+            // Positive offsets mean audio is presented later than video
+            float offsetMs = (windowAudioLatencySumUs / (float)windowAudioSamples -
+                    windowVideoLatencySumUs / (float)windowVideoSamples) / 1000;
+
+            if (!hasBaseline) {
+                hasBaseline = true;
+                baselineOffsetMs = offsetMs;
+                LimeLog.info("A/V sync baseline offset: "+offsetMs+" ms");
+            }
+
+            lastOffsetMs = offsetMs;
+            maxAbsDriftMs = Math.max(maxAbsDriftMs, Math.abs(getDriftMsLocked()));
+
+            offsetHistoryMs[windowIndex % TREND_WINDOWS] = offsetMs;
+            windowIndex++;
+            offsetHistoryCount = Math.min(offsetHistoryCount + 1, TREND_WINDOWS);
+
+            updateCorrection();
+        }
+
+        windowStartNs = nowNs;
+        windowVideoLatencySumUs = windowAudioLatencySumUs = 0;
+        windowVideoSamples = windowAudioSamples = 0;
+    }
+
+    private void updateCorrection() {
+        // Drift that correction hasn't already cancelled out. Correction changes the audio
+        // latency, so it's already part of the measured offset.
+        float drift = getDriftMsLocked();
+        if (Math.abs(drift) < CORRECTION_THRESHOLD_MS) {
+            return;
+        }
+
+        // If audio is falling behind, buffer less audio. If it's getting ahead, buffer more.
+        int step = drift > 0 ? -CORRECTION_STEP_MS : CORRECTION_STEP_MS;
+        correctionMs = Math.max(-MAX_CORRECTION_MS, Math.min(MAX_CORRECTION_MS, correctionMs + step));
+    }
+
+    private float getDriftMsLocked() {
+        return hasBaseline ? lastOffsetMs - baselineOffsetMs : 0;
+    }
+
+    // Returns false until enough of the session has been seen to measure drift
+    public synchronized boolean hasMeasurement() {
+        return hasBaseline;
+    }
+
+    // Current change in A/V offset since the start of the session. Positive values mean
+    // audio has fallen behind video.
+    public synchronized float getDriftMs() {
+        return getDriftMsLocked();
+    }
+
+    public synchronized float getMaxAbsDriftMs() {
+        return maxAbsDriftMs;
+    }
+
+    // Rate of change of the A/V offset over the last few minutes
+    public synchronized float getTrendMsPerMinute() {
+        if (offsetHistoryCount < 2) {
+            return 0;
+        }
+
+        // Least squares slope with x as the window number (oldest is 0)
+        int n = offsetHistoryCount;
+        int oldest = windowIndex - n;
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for (int i = 0; i < n; i++) {
+            float y = offsetHistoryMs[(oldest + i) % TREND_WINDOWS];
+            sumX += i;
+            sumY += y;
+            sumXY += i * (double)y;
+            sumXX += i * (double)i;
+        }
+
+        double slopePerWindow = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+        return (float)(slopePerWindow * (60 * 1000000000L / WINDOW_NS));
+    }
+
+    // Suggested change to the audio buffering target to cancel out drift
+    public synchronized int getAudioCorrectionMs() {
+        return correctionMs;
+    }
+}
@@ -0,0 +1,52 @@
+package com.limelight.nvstream.av.audio;
+
+public class AudioConfiguration {
+    public final int channelCount;
+    public final int channelMask;
+
+    public AudioConfiguration(int channelCount, int channelMask) {
+        this.channelCount = channelCount;
+        this.channelMask = channelMask;
+    }
+
+    // Creates an AudioConfiguration from the integer value returned by moonlight-common-c
+    // See CHANNEL_COUNT_FROM_AUDIO_CONFIGURATION() and CHANNEL_MASK_FROM_AUDIO_CONFIGURATION()
+    // in Limelight.h
+    public AudioConfiguration(int audioConfiguration) {
+        // Check the magic byte before decoding to make sure we got something that's actually
+        // a MAKE_AUDIO_CONFIGURATION()-based value and not something else like an older version
+        // hardcoded AUDIO_CONFIGURATION value from an earlier version of moonlight-common-c.
+        if ((audioConfiguration & 0xFF) != 0xCA) {
+            throw new IllegalArgumentException("Audio configuration has invalid magic byte!");
+        }
+
+        this.channelCount = (audioConfiguration >> 8) & 0xFF;
+        this.channelMask = (audioConfiguration >> 16) & 0xFFFF;
+    }
+
+    // See SURROUNDAUDIOINFO_FROM_AUDIO_CONFIGURATION() in Limelight.h
+    public int getSurroundAudioInfo() {
+        return channelMask << 16 | channelCount;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof AudioConfiguration) {
+            AudioConfiguration that = (AudioConfiguration)obj;
+            return this.toInt() == that.toInt();
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return toInt();
+    }
+
+    // Returns the integer value expected by moonlight-common-c
+    // See MAKE_AUDIO_CONFIGURATION() in Limelight.h
+    public int toInt() {
+        return ((channelMask) << 16) | (channelCount << 8) | 0xCA;
+    }
+}
@@ -0,0 +1,232 @@
+package com.limelight.nvstream.av.audio;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.av.video.LatencyHistogram;
+
+// Keeps the amount of buffered audio close to a target depth that adapts to how erratically
+// audio frames are arriving. Rather than discarding whole frames when too much audio is queued
+// up, a few samples are dropped from or inserted into each frame, so the buffer converges on
+// the target without audible gaps or pitch changes. Whole frames are only dropped if the buffer
+// gets far too deep, like after a burst of delayed frames arrives all at once.
+//
+// Frames are processed on the audio decoder thread, while stats may be read from any thread,
+// so all state is guarded by the object lock. Processing a frame never allocates.
+public class AudioJitterBuffer {
+    // Length of the window used to measure arrival jitter
+    private static final long WINDOW_NS = 1000000000L;
+
+    // Bounds on the target depth
+    private static final int MIN_TARGET_DEPTH_MS = 10;
+    private static final int MAX_TARGET_DEPTH_MS = 150;
+
+    // Don't adjust frames while we're within this distance of the target
+    private static final int DEPTH_TOLERANCE_MS = 3;
+
+    // Maximum amount each frame may be lengthened or shortened. At 2%, the buffer can
+    // converge by 20 ms per second with edits at least 50 samples apart.
+    private static final int MAX_STRETCH_PERCENT = 2;
+
+    // Drop whole frames if we're this far above the target. This bounds the latency we'll
+    // tolerate while converging, like the fixed 40 ms limit we used before adapting the target.
+    private static final int MAX_EXCESS_DEPTH_MS = 40;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int samplesPerFrame;
+    private final long frameDurationNs;
+    private final int maxStretchSamples;
+
+    private final LatencyHistogram windowArrivalIntervals = new LatencyHistogram();
+    private long windowStartNs;
+    private long lastArrivalNs;
+
+    private int targetDepthMs = MIN_TARGET_DEPTH_MS * 2;
+    private int targetOffsetMs;
+    private int lastDepthMs;
+
+    private int emptyArrivals;
+    private int droppedFrames;
+    private long droppedSamples;
+    private long insertedSamples;
+
+    public AudioJitterBuffer(int sampleRate, int channelCount, int samplesPerFrame) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.samplesPerFrame = samplesPerFrame;
+        this.frameDurationNs = samplesPerFrame * 1000000000L / sampleRate;
+        this.maxStretchSamples = Math.max(1, samplesPerFrame * MAX_STRETCH_PERCENT / 100);
+    }
+
+    // Returns the size of the output buffer required by process()
+    public int getMaxOutputLength() {
+        return (samplesPerFrame + maxStretchSamples) * channelCount;
+    }
+
+    // Adjusts a decoded frame of interleaved PCM samples to steer the buffer toward the target
+    // depth. bufferedSamples is the number of samples (per channel) queued ahead of this frame.
+    // Returns the number of values written to output, which may be 0 if the frame was dropped.
+    public synchronized int process(short[] frame, int frameLength, long arrivalTimeNs,
+                                    int bufferedSamples, short[] output) {
+        boolean firstFrame = lastArrivalNs == 0;
+        updateJitter(arrivalTimeNs);
+
+        int depthMs = (int)(bufferedSamples * 1000L / sampleRate);
+        lastDepthMs = depthMs;
+
+        if (bufferedSamples == 0 && !firstFrame) {
+            // The output ran dry before this frame arrived
+            emptyArrivals++;
+            raiseTarget(targetDepthMs + (int)(frameDurationNs / 1000000));
+        }
+
+        int frameSamples = frameLength / channelCount;
+        int excessMs = depthMs - getEffectiveTargetDepthMs();
+        int outputSamples;
+        if (excessMs > MAX_EXCESS_DEPTH_MS) {
+            droppedFrames++;
+            droppedSamples += frameSamples;
+            return 0;
+        }
+        else if (excessMs > DEPTH_TOLERANCE_MS) {
+            outputSamples = frameSamples - Math.min(maxStretchSamples, excessMs * sampleRate / 1000);
+            droppedSamples += frameSamples - outputSamples;
+        }
+        else if (excessMs < -DEPTH_TOLERANCE_MS) {
+            outputSamples = frameSamples + Math.min(maxStretchSamples, -excessMs * sampleRate / 1000);
+            insertedSamples += outputSamples - frameSamples;
+        }
+        else {
+            System.arraycopy(frame, 0, output, 0, frameLength);
+            return frameLength;
+        }
+
+        adjustLength(frame, frameSamples, output, outputSamples);
+        return outputSamples * channelCount;
+    }
+
+    private int getEffectiveTargetDepthMs() {
+        return Math.max(MIN_TARGET_DEPTH_MS, Math.min(MAX_TARGET_DEPTH_MS, targetDepthMs + targetOffsetMs));
+    }
+
+    public synchronized int getTargetDepthMs() {
+        return getEffectiveTargetDepthMs();
+    }
+
+    // The part of the target depth chosen to cover arrival jitter, without the offset
+    public synchronized int getJitterTargetDepthMs() {
+        return targetDepthMs;
+    }
+
+    // Shifts the target depth by a fixed amount on top of what jitter requires, such as
+    // to correct A/V sync drift. The result is still kept within the target bounds.
+    public synchronized void setTargetOffsetMs(int offsetMs) {
+        targetOffsetMs = offsetMs;
+    }
+
+    public synchronized int getDepthMs() {
+        return lastDepthMs;
+    }
+
+    // Number of frames that arrived after the output had already run dry. The AudioTrack
+    // underrun count is reported separately, since it also covers late writes on our side.
+    public synchronized int getEmptyArrivals() {
+        return emptyArrivals;
+    }
+
+    public synchronized int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    // Total audio removed by dropping samples or whole frames
+    public synchronized long getDroppedMs() {
+        return droppedSamples * 1000 / sampleRate;
+    }
+
+    // Total audio added by inserting samples
+    public synchronized long getInsertedMs() {
+        return insertedSamples * 1000 / sampleRate;
+    }
+
+    private void updateJitter(long arrivalTimeNs) {
+        if (lastArrivalNs != 0) {
+            windowArrivalIntervals.record((arrivalTimeNs - lastArrivalNs) / 1000);
+        }
+        lastArrivalNs = arrivalTimeNs;
+
+        if (windowStartNs == 0) {
+            windowStartNs = arrivalTimeNs;
+        }
+        else if (arrivalTimeNs - windowStartNs >= WINDOW_NS) {
+            evaluateWindow();
+            windowStartNs = arrivalTimeNs;
+        }
+    }
+
+    private void evaluateWindow() {
+        // Frames that arrive late need to be covered by enough buffered audio to play until
+        // they show up. We size the buffer for nearly the worst gap we've seen in the window.
+        long worstIntervalUs = windowArrivalIntervals.getPercentileUs(99);
+        int jitterTargetMs = (int)((worstIntervalUs + 999) / 1000) + DEPTH_TOLERANCE_MS;
+
+        if (jitterTargetMs > targetDepthMs) {
+            raiseTarget(jitterTargetMs);
+        }
+        else {
+            // Come down slowly, since bursts of jitter tend to repeat
+            targetDepthMs = Math.max(MIN_TARGET_DEPTH_MS, targetDepthMs - (targetDepthMs - jitterTargetMs) / 4);
+        }
+
+        windowArrivalIntervals.clear();
+    }
+
+    private void raiseTarget(int newTargetMs) {
+        newTargetMs = Math.min(newTargetMs, MAX_TARGET_DEPTH_MS);
+        if (newTargetMs > targetDepthMs) {
+            LimeLog.info("Audio jitter buffer target: "+targetDepthMs+" -> "+newTargetMs+" ms");
+            targetDepthMs = newTargetMs;
+        }
+    }
+
+    // Changes the length of the frame by dropping or inserting single samples at points spread
+    // evenly across it. Unlike resampling the whole frame, this leaves the pitch of everything
+    // in between untouched. Each dropped sample pair is replaced by its average and each inserted
+    // sample is the average of its neighbors, so the waveform stays continuous at the edit points.
+    private void adjustLength(short[] frame, int frameSamples, short[] output, int outputSamples) {
+        int edits = Math.abs(outputSamples - frameSamples);
+        int segmentSamples = frameSamples / (edits + 1);
+        if (segmentSamples < 1) {
+            System.arraycopy(frame, 0, output, 0, Math.min(frameSamples, outputSamples) * channelCount);
+            return;
+        }
+
+        int in = 0;
+        int out = 0;
+        for (int i = 1; i <= edits; i++) {
+            // Edit points always leave at least one segment after them, so both
+            // samples around an edit point are within the frame
+            int editPoint = i * segmentSamples;
+            int copyLength = (editPoint - in) * channelCount;
+            System.arraycopy(frame, in * channelCount, output, out * channelCount, copyLength);
+            out += editPoint - in;
+
+            int prev = (editPoint - 1) * channelCount;
+            int next = editPoint * channelCount;
+            if (outputSamples > frameSamples) {
+                for (int c = 0; c < channelCount; c++) {
+                    output[out * channelCount + c] = (short)((frame[prev + c] + frame[next + c]) >> 1);
+                }
+                out++;
+                in = editPoint;
+            }
+            else {
+                // Merge the samples on either side of the edit point into the one we already copied
+                for (int c = 0; c < channelCount; c++) {
+                    output[(out - 1) * channelCount + c] = (short)((frame[prev + c] + frame[next + c]) >> 1);
+                }
+                in = editPoint + 1;
+            }
+        }
+
+        System.arraycopy(frame, in * channelCount, output, out * channelCount, (frameSamples - in) * channelCount);
+    }
+}
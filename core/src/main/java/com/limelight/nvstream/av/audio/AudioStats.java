@@ -0,0 +1,41 @@
+package com.limelight.nvstream.av.audio;
+
+import com.limelight.nvstream.av.video.LatencyHistogram;
+
+public class AudioStats {
+
+    public int totalFrames;
+    public int framesDropped;
+    public int underruns;
+    public long measurementStartTimestamp;
+
+    // Time from writing audio to the sink until it is played out
+    public final LatencyHistogram outputLatency = new LatencyHistogram();
+
+    public void add(AudioStats other) {
+        this.totalFrames += other.totalFrames;
+        this.framesDropped += other.framesDropped;
+        this.underruns += other.underruns;
+        this.outputLatency.add(other.outputLatency);
+
+        if (this.measurementStartTimestamp == 0) {
+            this.measurementStartTimestamp = other.measurementStartTimestamp;
+        }
+    }
+
+    public void copy(AudioStats other) {
+        this.totalFrames = other.totalFrames;
+        this.framesDropped = other.framesDropped;
+        this.underruns = other.underruns;
+        this.measurementStartTimestamp = other.measurementStartTimestamp;
+        this.outputLatency.copy(other.outputLatency);
+    }
+
+    public void clear() {
+        this.totalFrames = 0;
+        this.framesDropped = 0;
+        this.underruns = 0;
+        this.measurementStartTimestamp = 0;
+        this.outputLatency.clear();
+    }
+}
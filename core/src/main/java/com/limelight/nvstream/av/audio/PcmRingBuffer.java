@@ -0,0 +1,129 @@
+package com.limelight.nvstream.av.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+// A single producer, single consumer ring buffer of 16-bit PCM samples. The samples are stored
+// in a direct buffer, so the consumer can pass the readable region straight to an audio sink
+// without copying it. Neither side ever blocks the other: the producer writes as much as fits
+// and the consumer reads whatever is available.
+//
+// Only one thread may call the producer methods and only one thread may call the consumer
+// methods. The positions are volatile, so samples written before the write position is
+// published are visible to the consumer once it reads the new position.
+public class PcmRingBuffer {
+    private final int capacity;
+
+    // Used only by the producer
+    private final ShortBuffer writeView;
+
+    // Used only by the consumer
+    private final ByteBuffer readView;
+
+    // Total samples written and read. These never wrap in practice.
+    private volatile long writePosition;
+    private volatile long readPosition;
+
+    private volatile boolean consumerWaiting;
+
+    // Capacity is in samples, not frames
+    public PcmRingBuffer(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder());
+
+        this.capacity = capacity;
+        this.writeView = buffer.asShortBuffer();
+        this.readView = buffer.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Number of samples waiting to be read. This may be called from any thread.
+    public int getAvailable() {
+        return (int)(writePosition - readPosition);
+    }
+
+    // Producer: writes as many of the samples as fit and returns the number written
+    public int write(short[] samples, int offset, int length) {
+        long writePos = writePosition;
+        int free = capacity - (int)(writePos - readPosition);
+        int count = Math.min(length, free);
+        if (count == 0) {
+            return 0;
+        }
+
+        // The write may wrap around the end of the buffer
+        int start = (int)(writePos % capacity);
+        int firstPart = Math.min(count, capacity - start);
+        writeView.position(start);
+        writeView.put(samples, offset, firstPart);
+        if (firstPart < count) {
+            writeView.position(0);
+            writeView.put(samples, offset + firstPart, count - firstPart);
+        }
+
+        // Publish the samples to the consumer
+        writePosition = writePos + count;
+
+        if (consumerWaiting) {
+            synchronized (this) {
+                notify();
+            }
+        }
+
+        return count;
+    }
+
+    // Consumer: returns a view of the samples that can be read without wrapping, from the
+    // position to the limit of the returned buffer. The view is reused by each call, so it
+    // must not be held across calls. After consuming some of it, call commitRead().
+    public ByteBuffer getReadableBuffer() {
+        long readPos = readPosition;
+        int available = (int)(writePosition - readPos);
+        int start = (int)(readPos % capacity);
+        int contiguous = Math.min(available, capacity - start);
+
+        readView.limit((start + contiguous) * 2);
+        readView.position(start * 2);
+        return readView;
+    }
+
+    // Consumer: marks bytes from the readable buffer as consumed. Partial samples
+    // are not allowed, since the sink must consume whole samples.
+    public void commitRead(int bytes) {
+        if ((bytes & 1) != 0) {
+            throw new IllegalArgumentException("Partial sample read: "+bytes);
+        }
+
+        readPosition += bytes / 2;
+    }
+
+    // Consumer: discards all samples waiting to be read
+    public void skipAll() {
+        readPosition = writePosition;
+    }
+
+    // Consumer: waits up to the timeout for samples to become available. Returns true if
+    // there are samples to read.
+    public boolean awaitData(long timeoutMs) throws InterruptedException {
+        if (getAvailable() != 0) {
+            return true;
+        }
+
+        synchronized (this) {
+            consumerWaiting = true;
+            try {
+                // Check again now that the producer will notify us
+                if (getAvailable() == 0) {
+                    wait(timeoutMs);
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+
+        return getAvailable() != 0;
+    }
+}
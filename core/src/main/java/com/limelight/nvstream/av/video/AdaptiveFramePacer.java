@@ -0,0 +1,193 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.LimeLog;
+
+// Chooses render timestamps for the adaptive frame pacing mode. We predict upcoming V-syncs
+// from Choreographer frame times and release each frame for the earliest V-sync that we
+// expect it to make, given how long frames have been taking to reach the display. If decode
+// times get too erratic or we keep missing our V-syncs, we stop targeting V-syncs and never
+// drop frames (like the max smoothness mode) until things settle down again.
+//
+// This is called from the Choreographer, renderer, and OnFrameRenderedListener threads, so
+// all state is guarded by the object lock. None of the per-frame methods allocate.
+public class AdaptiveFramePacer {
+    // Number of released frames we remember to match render callbacks with our targets
+    private static final int TARGET_HISTORY_SIZE = 16;
+
+    // Length of the window used to evaluate decode jitter and missed V-syncs
+    private static final long WINDOW_NS = 1000000000L;
+
+    // Fall back to smoothness if more than this percentage of frames miss their V-sync
+    private static final int MAX_MISSED_VSYNC_PERCENT = 5;
+
+    // Number of consecutive stable windows needed to leave the smoothness fallback
+    private static final int STABLE_WINDOWS_TO_RECOVER = 3;
+
+    // Number of consecutive on-time frames before we try a tighter render budget
+    private static final int ON_TIME_FRAMES_TO_TIGHTEN = 120;
+
+    private final long nominalVsyncPeriodNs;
+
+    private long vsyncPeriodNs;
+    private long lastVsyncNs;
+
+    // How far ahead of the target V-sync a frame must be released to make it
+    private long renderBudgetNs;
+    private final long minRenderBudgetNs;
+    private final long maxRenderBudgetNs;
+    private int consecutiveOnTimeFrames;
+
+    private final LatencyHistogram windowDecodeLatency = new LatencyHistogram();
+    private long windowStartNs;
+    private int windowTargetedFrames;
+    private int windowMissedVsyncs;
+    private int stableWindows;
+    private long lastDecodeLatencyP95Us;
+
+    private boolean smoothnessFallback;
+    private int missedVsyncs;
+
+    private final long[] targetPresentationTimesUs = new long[TARGET_HISTORY_SIZE];
+    private final long[] targetVsyncTimesNs = new long[TARGET_HISTORY_SIZE];
+    private int targetHistoryIndex;
+
+    // The refresh rate must be the display's, not the stream's frame rate, since we're
+    // predicting when the display will V-sync
+    public AdaptiveFramePacer(float displayRefreshRate) {
+        nominalVsyncPeriodNs = (long) (1000000000L / displayRefreshRate);
+        vsyncPeriodNs = nominalVsyncPeriodNs;
+
+        // Start out assuming the compositor needs a full frame to latch and display our buffer
+        renderBudgetNs = nominalVsyncPeriodNs;
+        minRenderBudgetNs = 1000000;
+        maxRenderBudgetNs = nominalVsyncPeriodNs * 3;
+    }
+
+    // Called with the (hardware) V-sync time for each Choreographer frame
+    public synchronized void onVsync(long frameTimeNanos) {
+        if (lastVsyncNs != 0) {
+            // Choreographer callbacks may be skipped if its thread is delayed, so we
+            // divide the delta by the number of V-sync periods that have elapsed.
+            long deltaNs = frameTimeNanos - lastVsyncNs;
+            long periods = Math.max(1, (deltaNs + vsyncPeriodNs / 2) / vsyncPeriodNs);
+            long periodNs = deltaNs / periods;
+
+            // Ignore samples that are way off, since the display may be changing modes
+            if (Math.abs(periodNs - nominalVsyncPeriodNs) < nominalVsyncPeriodNs / 5) {
+                vsyncPeriodNs += (periodNs - vsyncPeriodNs) / 16;
+            }
+        }
+        lastVsyncNs = frameTimeNanos;
+
+        if (windowStartNs == 0) {
+            windowStartNs = frameTimeNanos;
+        }
+        else if (frameTimeNanos - windowStartNs >= WINDOW_NS) {
+            evaluateWindow();
+            windowStartNs = frameTimeNanos;
+        }
+    }
+
+    // Called with the time each frame spent in the decoder
+    public synchronized void onFrameDecoded(long decodeLatencyUs) {
+        windowDecodeLatency.record(decodeLatencyUs);
+    }
+
+    // Returns the timestamp to pass to releaseOutputBuffer() for a frame that is ready to
+    // render now. A timestamp of 0 means the frame should be rendered without being dropped.
+    public synchronized long getRenderTimestampNs(long presentationTimeUs, long nowNs) {
+        long targetNs;
+        if (smoothnessFallback) {
+            targetNs = 0;
+        }
+        else if (lastVsyncNs == 0) {
+            // No V-sync timing yet, so just render as soon as possible
+            return nowNs;
+        }
+        else {
+            // Pick the first V-sync that leaves enough time to get this frame on screen.
+            // Any older frame targeting the same V-sync will be dropped in favor of this one.
+            long earliestNs = nowNs + renderBudgetNs;
+            long periods = Math.max(0, (earliestNs - lastVsyncNs + vsyncPeriodNs - 1) / vsyncPeriodNs);
+            targetNs = lastVsyncNs + periods * vsyncPeriodNs;
+        }
+
+        targetPresentationTimesUs[targetHistoryIndex] = presentationTimeUs;
+        targetVsyncTimesNs[targetHistoryIndex] = targetNs;
+        targetHistoryIndex = (targetHistoryIndex + 1) % TARGET_HISTORY_SIZE;
+
+        return targetNs;
+    }
+
+    // Called from OnFrameRenderedListener with the time the frame was actually displayed
+    public synchronized void onFrameRendered(long presentationTimeUs, long renderTimeNanos) {
+        for (int i = 0; i < TARGET_HISTORY_SIZE; i++) {
+            if (targetPresentationTimesUs[i] != presentationTimeUs) {
+                continue;
+            }
+
+            long targetNs = targetVsyncTimesNs[i];
+            if (targetNs == 0) {
+                // We didn't target a specific V-sync for this frame
+                return;
+            }
+
+            windowTargetedFrames++;
+            if (renderTimeNanos - targetNs > vsyncPeriodNs / 2) {
+                // We missed our V-sync, so give the compositor more time
+                missedVsyncs++;
+                windowMissedVsyncs++;
+                consecutiveOnTimeFrames = 0;
+                renderBudgetNs = Math.min(renderBudgetNs + vsyncPeriodNs / 4, maxRenderBudgetNs);
+            }
+            else if (++consecutiveOnTimeFrames >= ON_TIME_FRAMES_TO_TIGHTEN) {
+                // We've been making our V-syncs, so see if we can shave off some latency
+                consecutiveOnTimeFrames = 0;
+                renderBudgetNs = Math.max(renderBudgetNs - vsyncPeriodNs / 16, minRenderBudgetNs);
+            }
+            return;
+        }
+    }
+
+    // The expected time from a frame leaving the network stack until it is on screen
+    public synchronized long getLatencyBudgetUs() {
+        return lastDecodeLatencyP95Us + renderBudgetNs / 1000;
+    }
+
+    public synchronized int getMissedVsyncs() {
+        return missedVsyncs;
+    }
+
+    public synchronized boolean isSmoothnessFallback() {
+        return smoothnessFallback;
+    }
+
+    private void evaluateWindow() {
+        long decodeJitterUs = windowDecodeLatency.getPercentileUs(95) - windowDecodeLatency.getPercentileUs(50);
+        if (windowDecodeLatency.getCount() != 0) {
+            lastDecodeLatencyP95Us = windowDecodeLatency.getPercentileUs(95);
+        }
+
+        // If decode times vary by more than half a frame, we can't reliably hit a given V-sync
+        boolean unstable = decodeJitterUs * 1000 > vsyncPeriodNs / 2 ||
+                windowMissedVsyncs * 100 > windowTargetedFrames * MAX_MISSED_VSYNC_PERCENT;
+
+        if (unstable) {
+            stableWindows = 0;
+            if (!smoothnessFallback) {
+                LimeLog.info("Adaptive frame pacing: falling back to smoothness (decode jitter: "+
+                        decodeJitterUs+" us, missed V-syncs: "+windowMissedVsyncs+"/"+windowTargetedFrames+")");
+                smoothnessFallback = true;
+            }
+        }
+        else if (smoothnessFallback && ++stableWindows >= STABLE_WINDOWS_TO_RECOVER) {
+            LimeLog.info("Adaptive frame pacing: targeting V-syncs again");
+            smoothnessFallback = false;
+            stableWindows = 0;
+        }
+
+        windowDecodeLatency.clear();
+        windowTargetedFrames = 0;
+        windowMissedVsyncs = 0;
+    }
+}
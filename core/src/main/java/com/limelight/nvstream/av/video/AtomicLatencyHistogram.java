@@ -0,0 +1,37 @@
+package com.limelight.nvstream.av.video;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A LatencyHistogram that may be recorded into from any number of threads without locking.
+// Samples are read by draining them into a regular LatencyHistogram. A drain that races with
+// recording may count a sample in the next drain while its value only raised the max of this
+// one, which is fine for the periodic stats we use this for.
+public class AtomicLatencyHistogram {
+    private final AtomicIntegerArray buckets = new AtomicIntegerArray(LatencyHistogram.BUCKET_COUNT);
+    private final AtomicLong maxUs = new AtomicLong();
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            return;
+        }
+
+        buckets.incrementAndGet(LatencyHistogram.bucketForValue(Math.min(valueUs, LatencyHistogram.MAX_VALUE_US)));
+
+        long currentMaxUs;
+        do {
+            currentMaxUs = maxUs.get();
+        } while (valueUs > currentMaxUs && !maxUs.compareAndSet(currentMaxUs, valueUs));
+    }
+
+    // Adds the samples recorded since the last drain to the given histogram
+    public void drainTo(LatencyHistogram histogram) {
+        long drainedMaxUs = maxUs.getAndSet(0);
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            int samples = buckets.getAndSet(i, 0);
+            if (samples != 0) {
+                histogram.addBucket(i, samples, drainedMaxUs);
+            }
+        }
+    }
+}
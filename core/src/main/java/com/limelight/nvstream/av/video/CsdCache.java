@@ -0,0 +1,226 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.LimeLog;
+
+import java.nio.ByteBuffer;
+
+// Builds the codec config data (VPS, SPS and PPS) submitted to the decoder with each IDR
+// frame. Hosts send the same parameter sets with every IDR frame, so we keep the final
+// patched and concatenated CSD keyed by the raw parameter set bytes. An unchanged IDR frame
+// then requires no SPS parsing or allocation. This class is not thread-safe.
+//
+// The cache outlives the decoder, so an IDR frame after the decoder is reset or recreated
+// can still use the cached CSD.
+public class CsdCache {
+    // Only set for H.264 streams
+    private H264SpsPatcher spsPatcher;
+
+    // Parameter sets received for the current IDR frame
+    private final ParameterSets pending = new ParameterSets();
+
+    // Parameter sets that were used to build the cached CSD
+    private final ParameterSets cached = new ParameterSets();
+    private boolean cachedBaselineHack;
+    private boolean cacheValid;
+
+    private ByteBuffer csdBuffer = ByteBuffer.allocateDirect(0);
+    private byte[] replaySps;
+
+    private int hits;
+    private int misses;
+
+    // The SPS patcher is recreated with the decoder, but it's configured the same way for
+    // the same stream and decoder, so changing it doesn't invalidate the cached CSD
+    public void setSpsPatcher(H264SpsPatcher spsPatcher) {
+        this.spsPatcher = spsPatcher;
+    }
+
+    // Discards parameter sets received so far. This is called at the start of each IDR frame.
+    public void clearPending() {
+        pending.clear();
+    }
+
+    public void addVps(byte[] data, int length) {
+        pending.vps.append(data, length);
+    }
+
+    public void addSps(byte[] data, int length) {
+        pending.sps.append(data, length);
+    }
+
+    public void addPps(byte[] data, int length) {
+        pending.pps.append(data, length);
+    }
+
+    // Returns the CSD for the parameter sets received in the current IDR frame. The returned
+    // buffer is owned by the cache and is positioned at the start of the CSD each time this is
+    // called. It remains valid until the next call to getCsd().
+    public ByteBuffer getCsd(boolean baselineHack) {
+        if (cacheValid && baselineHack == cachedBaselineHack && pending.equals(cached)) {
+            hits++;
+        }
+        else {
+            misses++;
+            rebuild(baselineHack);
+        }
+
+        csdBuffer.rewind();
+        return csdBuffer;
+    }
+
+    // Returns the high profile SPS to submit after a CSD built with the baseline hack
+    public byte[] getReplaySps() {
+        return replaySps;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private void rebuild(boolean baselineHack) {
+        LimeLog.info("Rebuilding CSD");
+
+        byte[][] patchedSps = null;
+        int csdLength = pending.vps.length + pending.pps.length;
+        if (spsPatcher != null) {
+            patchedSps = new byte[pending.sps.count][];
+            for (int i = 0; i < pending.sps.count; i++) {
+                patchedSps[i] = spsPatcher.patchSps(pending.sps.get(i), pending.sps.getLength(i), baselineHack);
+                csdLength += patchedSps[i].length;
+            }
+
+            replaySps = baselineHack ? spsPatcher.getReplaySps() : null;
+        }
+        else {
+            csdLength += pending.sps.length;
+            replaySps = null;
+        }
+
+        if (csdBuffer.capacity() < csdLength) {
+            csdBuffer = ByteBuffer.allocateDirect(csdLength);
+        }
+
+        // Submit all CSD in VPS, SPS, PPS order per AOSP docs
+        csdBuffer.clear();
+        csdBuffer.put(pending.vps.data, 0, pending.vps.length);
+        if (patchedSps != null) {
+            for (byte[] sps : patchedSps) {
+                csdBuffer.put(sps);
+            }
+        }
+        else {
+            csdBuffer.put(pending.sps.data, 0, pending.sps.length);
+        }
+        csdBuffer.put(pending.pps.data, 0, pending.pps.length);
+        csdBuffer.flip();
+
+        cached.copy(pending);
+        cachedBaselineHack = baselineHack;
+        cacheValid = true;
+    }
+
+    private static class ParameterSets {
+        final NaluList vps = new NaluList();
+        final NaluList sps = new NaluList();
+        final NaluList pps = new NaluList();
+
+        void clear() {
+            vps.clear();
+            sps.clear();
+            pps.clear();
+        }
+
+        void copy(ParameterSets other) {
+            vps.copy(other.vps);
+            sps.copy(other.sps);
+            pps.copy(other.pps);
+        }
+
+        boolean equals(ParameterSets other) {
+            return vps.equals(other.vps) && sps.equals(other.sps) && pps.equals(other.pps);
+        }
+    }
+
+    // Reusable storage for a list of NALUs stored back to back
+    private static class NaluList {
+        byte[] data = new byte[128];
+        int length;
+
+        int[] offsets = new int[4];
+        int count;
+
+        void clear() {
+            length = 0;
+            count = 0;
+        }
+
+        void append(byte[] nalu, int naluLength) {
+            if (count == offsets.length) {
+                int[] newOffsets = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                offsets = newOffsets;
+            }
+            ensureCapacity(length + naluLength);
+
+            offsets[count++] = length;
+            System.arraycopy(nalu, 0, data, length, naluLength);
+            length += naluLength;
+        }
+
+        // Returns a copy of the NALU at the specified index
+        byte[] get(int index) {
+            byte[] nalu = new byte[getLength(index)];
+            System.arraycopy(data, offsets[index], nalu, 0, nalu.length);
+            return nalu;
+        }
+
+        int getLength(int index) {
+            int end = index + 1 < count ? offsets[index + 1] : length;
+            return end - offsets[index];
+        }
+
+        void copy(NaluList other) {
+            ensureCapacity(other.length);
+            System.arraycopy(other.data, 0, data, 0, other.length);
+            length = other.length;
+
+            if (offsets.length < other.count) {
+                offsets = new int[other.offsets.length];
+            }
+            System.arraycopy(other.offsets, 0, offsets, 0, other.count);
+            count = other.count;
+        }
+
+        boolean equals(NaluList other) {
+            if (length != other.length || count != other.count) {
+                return false;
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] != other.offsets[i]) {
+                    return false;
+                }
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (data[i] != other.data[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (data.length < capacity) {
+                byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+                System.arraycopy(data, 0, newData, 0, length);
+                data = newData;
+            }
+        }
+    }
+}
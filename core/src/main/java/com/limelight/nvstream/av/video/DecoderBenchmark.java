@@ -0,0 +1,196 @@
+package com.limelight.nvstream.av.video;
+
+import com.limelight.LimeLog;
+
+import java.util.ArrayList;
+
+// Feeds a short clip through a decoder and measures how long each frame takes to come out the
+// other side. Frames are submitted one at a time like a stream would, so a decoder that decodes
+// each frame as soon as it arrives is measured on its per-frame latency. If a decoder holds
+// frames back, we keep feeding it so it can't stall the benchmark, and the frames it buffers
+// show up in its latency. After the last frame, we signal end of stream so the decoder
+// releases any frames it's still holding.
+public class DecoderBenchmark {
+    // If the oldest frame in the decoder has been there this long, submit the next one anyway
+    private static final long HOLD_BACK_TIMEOUT_NS = 50 * 1000000L;
+
+    // Give up if the decoder doesn't produce any output for this long
+    private static final long STALL_TIMEOUT_NS = 2000 * 1000000L;
+
+    private static final long POLL_TIMEOUT_US = 1000;
+
+    // A clip of codec config and picture data in decode order
+    public static class Clip {
+        public final String mimeType;
+        public final int width;
+        public final int height;
+
+        private final ArrayList<byte[]> frames = new ArrayList<>();
+        private final ArrayList<Boolean> codecConfig = new ArrayList<>();
+        private int pictureFrameCount;
+
+        public Clip(String mimeType, int width, int height) {
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+        }
+
+        public void addFrame(byte[] data, int length, boolean isCodecConfig) {
+            byte[] frame = new byte[length];
+            System.arraycopy(data, 0, frame, 0, length);
+            frames.add(frame);
+            codecConfig.add(isCodecConfig);
+            if (!isCodecConfig) {
+                pictureFrameCount++;
+            }
+        }
+
+        public int getFrameCount() {
+            return frames.size();
+        }
+
+        public int getPictureFrameCount() {
+            return pictureFrameCount;
+        }
+    }
+
+    public static class Result {
+        public final String decoderName;
+        public final String mimeType;
+
+        // Null if the benchmark completed
+        public final String failureReason;
+
+        public final int decodedFrames;
+        public final long medianLatencyUs;
+        public final long p95LatencyUs;
+        public final float framesPerSecond;
+
+        public Result(String decoderName, String mimeType, int decodedFrames,
+                      long medianLatencyUs, long p95LatencyUs, float framesPerSecond) {
+            this.decoderName = decoderName;
+            this.mimeType = mimeType;
+            this.failureReason = null;
+            this.decodedFrames = decodedFrames;
+            this.medianLatencyUs = medianLatencyUs;
+            this.p95LatencyUs = p95LatencyUs;
+            this.framesPerSecond = framesPerSecond;
+        }
+
+        public Result(String decoderName, String mimeType, String failureReason) {
+            this.decoderName = decoderName;
+            this.mimeType = mimeType;
+            this.failureReason = failureReason;
+            this.decodedFrames = 0;
+            this.medianLatencyUs = 0;
+            this.p95LatencyUs = 0;
+            this.framesPerSecond = 0;
+        }
+
+        public boolean succeeded() {
+            return failureReason == null;
+        }
+
+        @Override
+        public String toString() {
+            if (!succeeded()) {
+                return decoderName+" ("+mimeType+"): failed - "+failureReason;
+            }
+
+            return decoderName+" ("+mimeType+"): "+decodedFrames+" frames, median "+
+                    medianLatencyUs+" us, p95 "+p95LatencyUs+" us, "+framesPerSecond+" FPS";
+        }
+    }
+
+    public static Result run(DecoderDriver driver, Clip clip) {
+        String decoderName = driver.getName();
+        try {
+            driver.start(clip);
+            Result result = measure(driver, clip);
+            LimeLog.info("Decoder benchmark: "+result);
+            return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new Result(decoderName, clip.mimeType, e.toString());
+        } finally {
+            driver.release();
+        }
+    }
+
+    private static Result measure(DecoderDriver driver, Clip clip) throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+
+        // Indexed by presentation time, which is just the frame index
+        long[] submitTimesNs = new long[clip.getFrameCount()];
+        boolean[] decoded = new boolean[clip.getFrameCount()];
+
+        int nextFrame = 0;
+        int decodedFrames = 0;
+        int oldestPendingFrame = -1;
+        boolean endOfStreamSignaled = false;
+        long startTimeNs = System.nanoTime();
+        long lastProgressTimeNs = startTimeNs;
+        long lastOutputTimeNs = startTimeNs;
+
+        while (decodedFrames < clip.getPictureFrameCount()) {
+            long nowNs = System.nanoTime();
+            if (nowNs - lastProgressTimeNs > STALL_TIMEOUT_NS) {
+                return new Result(driver.getName(), clip.mimeType,
+                        "stalled after "+decodedFrames+" of "+clip.getPictureFrameCount()+" frames");
+            }
+
+            // Submit the next frame if the decoder has caught up with us or is holding frames back
+            if (nextFrame < clip.getFrameCount() &&
+                    (oldestPendingFrame < 0 || nowNs - submitTimesNs[oldestPendingFrame] > HOLD_BACK_TIMEOUT_NS)) {
+                boolean isCodecConfig = clip.codecConfig.get(nextFrame);
+                byte[] frame = clip.frames.get(nextFrame);
+                submitTimesNs[nextFrame] = System.nanoTime();
+                if (driver.submitFrame(frame, frame.length, nextFrame, isCodecConfig)) {
+                    if (!isCodecConfig && oldestPendingFrame < 0) {
+                        oldestPendingFrame = nextFrame;
+                    }
+                    nextFrame++;
+                    lastProgressTimeNs = submitTimesNs[nextFrame - 1];
+
+                    // Codec config doesn't produce any output, so keep going
+                    if (isCodecConfig) {
+                        continue;
+                    }
+                }
+            }
+            else if (nextFrame == clip.getFrameCount() && !endOfStreamSignaled) {
+                // Decoders that hold frames back won't release the last ones without this
+                endOfStreamSignaled = driver.signalEndOfStream();
+            }
+
+            long presentationTimeUs = driver.pollDecodedFrame(POLL_TIMEOUT_US);
+            if (presentationTimeUs == DecoderDriver.END_OF_STREAM) {
+                // The decoder has nothing left to give us
+                return new Result(driver.getName(), clip.mimeType,
+                        "lost "+(clip.getPictureFrameCount() - decodedFrames)+" of "+clip.getPictureFrameCount()+" frames");
+            }
+            else if (presentationTimeUs < 0 || presentationTimeUs >= nextFrame || decoded[(int)presentationTimeUs]) {
+                continue;
+            }
+
+            lastOutputTimeNs = System.nanoTime();
+            lastProgressTimeNs = lastOutputTimeNs;
+            latency.record((lastOutputTimeNs - submitTimesNs[(int)presentationTimeUs]) / 1000);
+            decoded[(int)presentationTimeUs] = true;
+            decodedFrames++;
+
+            // Find the oldest frame that's still in the decoder
+            oldestPendingFrame = -1;
+            for (int i = 0; i < nextFrame; i++) {
+                if (!decoded[i] && !clip.codecConfig.get(i)) {
+                    oldestPendingFrame = i;
+                    break;
+                }
+            }
+        }
+
+        float framesPerSecond = decodedFrames * 1000000000f / Math.max(1, lastOutputTimeNs - startTimeNs);
+        return new Result(driver.getName(), clip.mimeType, decodedFrames,
+                latency.getPercentileUs(50), latency.getPercentileUs(95), framesPerSecond);
+    }
+}
@@ -0,0 +1,30 @@
+package com.limelight.nvstream.av.video;
+
+// A single candidate decoder driven by DecoderBenchmark. On Android this wraps a MediaCodec
+// instance, but keeping it behind this interface lets the benchmark and ranking logic run
+// against fake decoders on a regular JVM.
+//
+// We declare these methods as throwing Exception since real decoders can fail in all sorts
+// of ways, and any failure just means the decoder is excluded from the ranking.
+public interface DecoderDriver {
+    // Returned by pollDecodedFrame() once the decoder has output everything before end of stream
+    long END_OF_STREAM = -2;
+
+    String getName();
+
+    // Configures and starts the decoder for the specified clip
+    void start(DecoderBenchmark.Clip clip) throws Exception;
+
+    // Returns false if the decoder has no room for more input right now
+    boolean submitFrame(byte[] data, int length, long presentationTimeUs, boolean codecConfig) throws Exception;
+
+    // Tells the decoder there is no more input, so it must output any frames it's holding back.
+    // Returns false if the decoder has no room for the end of stream marker right now.
+    boolean signalEndOfStream() throws Exception;
+
+    // Waits up to timeoutUs for a decoded frame. Returns the presentation time of the
+    // decoded frame, -1 if no frame was decoded before the timeout, or END_OF_STREAM.
+    long pollDecodedFrame(long timeoutUs) throws Exception;
+
+    void release();
+}
@@ -0,0 +1,110 @@
+package com.limelight.nvstream.av.video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+// Orders decoders by how they performed in DecoderBenchmark. Decoders are ranked per MIME type
+// by their 95th percentile latency, since a stream is only as smooth as its slow frames. Decoders
+// with about the same latency are considered equally fast and ordered by throughput instead. Any
+// decoder that failed the benchmark or can't keep up with the minimum frame rate is left out.
+public class DecoderRanking {
+    // Decoders slower than this can't handle even a basic stream
+    private static final float MIN_FRAMES_PER_SECOND = 30;
+
+    // Width of the latency buckets that are treated as a tie, as a percentage
+    private static final int LATENCY_TIE_PERCENT = 10;
+
+    private final ArrayList<DecoderBenchmark.Result> ranked = new ArrayList<>();
+
+    public DecoderRanking(List<DecoderBenchmark.Result> results) {
+        for (DecoderBenchmark.Result result : results) {
+            if (result.succeeded() && result.framesPerSecond >= MIN_FRAMES_PER_SECOND) {
+                ranked.add(result);
+            }
+        }
+
+        Collections.sort(ranked, new Comparator<DecoderBenchmark.Result>() {
+            @Override
+            public int compare(DecoderBenchmark.Result a, DecoderBenchmark.Result b) {
+                int mimeTypeOrder = a.mimeType.compareTo(b.mimeType);
+                if (mimeTypeOrder != 0) {
+                    return mimeTypeOrder;
+                }
+
+                int latencyOrder = Integer.compare(getLatencyBucket(a), getLatencyBucket(b));
+                if (latencyOrder != 0) {
+                    return latencyOrder;
+                }
+
+                return Float.compare(b.framesPerSecond, a.framesPerSecond);
+            }
+        });
+    }
+
+    // Latencies are compared in logarithmic buckets, so small differences are treated as a tie
+    // while keeping the ordering consistent (unlike comparing each pair against a threshold).
+    private static int getLatencyBucket(DecoderBenchmark.Result result) {
+        return (int)(Math.log(Math.max(1, result.p95LatencyUs)) / Math.log(1 + LATENCY_TIE_PERCENT / 100.0));
+    }
+
+    // Returns the best ranked decoder for the MIME type out of the candidates we're allowed
+    // to use, or null if none of them were ranked.
+    public String choose(String mimeType, List<String> candidateNames) {
+        for (DecoderBenchmark.Result result : ranked) {
+            if (result.mimeType.equalsIgnoreCase(mimeType) && candidateNames.contains(result.decoderName)) {
+                return result.decoderName;
+            }
+        }
+
+        return null;
+    }
+
+    // Ranked results for all MIME types
+    public List<DecoderBenchmark.Result> getRankedResults() {
+        return Collections.unmodifiableList(ranked);
+    }
+
+    // Serializes the ranking with one tab separated result per line
+    public String serialize() {
+        StringBuilder sb = new StringBuilder();
+        for (DecoderBenchmark.Result result : ranked) {
+            sb.append(result.mimeType).append('\t')
+                    .append(result.decoderName).append('\t')
+                    .append(result.decodedFrames).append('\t')
+                    .append(result.medianLatencyUs).append('\t')
+                    .append(result.p95LatencyUs).append('\t')
+                    .append(String.format(Locale.ROOT, "%.1f", result.framesPerSecond)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Returns null if the serialized ranking is invalid
+    public static DecoderRanking deserialize(String serialized) {
+        ArrayList<DecoderBenchmark.Result> results = new ArrayList<>();
+        for (String line : serialized.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = line.split("\t");
+            if (fields.length != 6) {
+                return null;
+            }
+
+            try {
+                results.add(new DecoderBenchmark.Result(fields[1], fields[0],
+                        Integer.parseInt(fields[2]),
+                        Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]),
+                        Float.parseFloat(fields[5])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return new DecoderRanking(results);
+    }
+}
@@ -0,0 +1,114 @@
+package com.limelight.nvstream.av.video;
+
+// A fixed-size histogram of latency samples in microseconds. Buckets are spaced
+// logarithmically with 8 linear sub-buckets per power of two, so reported percentiles
+// are within 6.25% of the true value. Recording a sample never allocates.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Samples above this (~16.7 seconds) are clamped into the last bucket
+    private static final int MAX_VALUE_BITS = 24;
+    static final long MAX_VALUE_US = (1L << MAX_VALUE_BITS) - 1;
+
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1);
+
+    private final int[] buckets = new int[BUCKET_COUNT];
+    private int count;
+    private long maxUs;
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            return;
+        }
+
+        buckets[bucketForValue(Math.min(valueUs, MAX_VALUE_US))]++;
+        count++;
+        if (valueUs > maxUs) {
+            maxUs = valueUs;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.buckets[i] += other.buckets[i];
+        }
+        this.count += other.count;
+        this.maxUs = Math.max(this.maxUs, other.maxUs);
+    }
+
+    // Used by AtomicLatencyHistogram to move its samples into this histogram
+    void addBucket(int bucket, int samples, long maxUs) {
+        this.buckets[bucket] += samples;
+        this.count += samples;
+        this.maxUs = Math.max(this.maxUs, maxUs);
+    }
+
+    public void copy(LatencyHistogram other) {
+        System.arraycopy(other.buckets, 0, this.buckets, 0, BUCKET_COUNT);
+        this.count = other.count;
+        this.maxUs = other.maxUs;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.buckets[i] = 0;
+        }
+        this.count = 0;
+        this.maxUs = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getMaxUs() {
+        return maxUs;
+    }
+
+    // Returns the midpoint of the bucket containing the given percentile (0-100)
+    public long getPercentileUs(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        // Rank of the sample we're looking for (1-based)
+        long targetRank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+
+        long rank = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            rank += buckets[i];
+            if (rank >= targetRank) {
+                long lowerBound = lowestValueInBucket(i);
+                long upperBound = i + 1 < BUCKET_COUNT ? lowestValueInBucket(i + 1) - 1 : MAX_VALUE_US;
+
+                // Never report more than the largest sample we've seen
+                return Math.min((lowerBound + upperBound) / 2, maxUs);
+            }
+        }
+
+        return maxUs;
+    }
+
+    static int bucketForValue(long valueUs) {
+        if (valueUs < SUB_BUCKET_COUNT) {
+            // Values below the first power of two get exact buckets
+            return (int) valueUs;
+        }
+
+        // The top SUB_BUCKET_BITS bits below the leading one select the sub-bucket
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long lowestValueInBucket(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+
+        int exponent = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -1,23 +1,26 @@
-package com.limelight.binding.video;
+package com.limelight.nvstream.av.video;
 
-import android.os.SystemClock;
+public class VideoStats {
 
-class VideoStats {
+    public long decoderTimeMs;
+    public long totalTimeMs;
+    public int totalFrames;
+    public int totalFramesReceived;
+    public int totalFramesRendered;
+    public int frameLossEvents;
+    public int framesLost;
+    public char minHostProcessingLatency;
+    public char maxHostProcessingLatency;
+    public int totalHostProcessingLatency;
+    public int framesWithHostProcessingLatency;
+    public long measurementStartTimestamp;
 
-    long decoderTimeMs;
-    long totalTimeMs;
-    int totalFrames;
-    int totalFramesReceived;
-    int totalFramesRendered;
-    int frameLossEvents;
-    int framesLost;
-    char minHostProcessingLatency;
-    char maxHostProcessingLatency;
-    int totalHostProcessingLatency;
-    int framesWithHostProcessingLatency;
-    long measurementStartTimestamp;
+    // Per-stage latency distributions
+    public final LatencyHistogram receiveLatency = new LatencyHistogram();
+    public final LatencyHistogram decodeLatency = new LatencyHistogram();
+    public final LatencyHistogram renderLatency = new LatencyHistogram();
 
-    void add(VideoStats other) {
+    public void add(VideoStats other) {
         this.decoderTimeMs += other.decoderTimeMs;
         this.totalTimeMs += other.totalTimeMs;
         this.totalFrames += other.totalFrames;
@@ -35,6 +38,10 @@ class VideoStats {
         this.totalHostProcessingLatency += other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency += other.framesWithHostProcessingLatency;
 
+        this.receiveLatency.add(other.receiveLatency);
+        this.decodeLatency.add(other.decodeLatency);
+        this.renderLatency.add(other.renderLatency);
+
         if (this.measurementStartTimestamp == 0) {
             this.measurementStartTimestamp = other.measurementStartTimestamp;
         }
@@ -42,7 +49,7 @@ class VideoStats {
         assert other.measurementStartTimestamp >= this.measurementStartTimestamp;
     }
 
-    void copy(VideoStats other) {
+    public void copy(VideoStats other) {
         this.decoderTimeMs = other.decoderTimeMs;
         this.totalTimeMs = other.totalTimeMs;
         this.totalFrames = other.totalFrames;
@@ -55,9 +62,12 @@ class VideoStats {
         this.totalHostProcessingLatency = other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency = other.framesWithHostProcessingLatency;
         this.measurementStartTimestamp = other.measurementStartTimestamp;
+        this.receiveLatency.copy(other.receiveLatency);
+        this.decodeLatency.copy(other.decodeLatency);
+        this.renderLatency.copy(other.renderLatency);
     }
 
-    void clear() {
+    public void clear() {
         this.decoderTimeMs = 0;
         this.totalTimeMs = 0;
         this.totalFrames = 0;
@@ -70,10 +80,14 @@ class VideoStats {
         this.totalHostProcessingLatency = 0;
         this.framesWithHostProcessingLatency = 0;
         this.measurementStartTimestamp = 0;
+        this.receiveLatency.clear();
+        this.decodeLatency.clear();
+        this.renderLatency.clear();
     }
 
-    VideoStatsFps getFps() {
-        float elapsed = (SystemClock.uptimeMillis() - this.measurementStartTimestamp) / (float) 1000;
+    // The current time must come from the same clock as measurementStartTimestamp
+    public VideoStatsFps getFps(long nowMs) {
+        float elapsed = (nowMs - this.measurementStartTimestamp) / (float) 1000;
 
         VideoStatsFps fps = new VideoStatsFps();
         if (elapsed > 0) {
@@ -84,10 +98,3 @@ class VideoStats {
         return fps;
     }
 }
-
-class VideoStatsFps {
-
-    float totalFps;
-    float receivedFps;
-    float renderedFps;
-}
\ No newline at end of file
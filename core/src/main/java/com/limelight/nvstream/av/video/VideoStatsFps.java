@@ -0,0 +1,8 @@
+package com.limelight.nvstream.av.video;
+
+public class VideoStatsFps {
+
+    public float totalFps;
+    public float receivedFps;
+    public float renderedFps;
+}
@@ -0,0 +1,57 @@
+package com.limelight.nvstream.input;
+
+// Fuses the state of several input devices into a single controller. This is needed
+// to handle controllers that are split into multiple devices (like separate gamepad
+// and touchpad devices), since they share a single controller number on the host.
+public class ControllerInputAggregator {
+    public int inputMap;
+    public byte leftTrigger;
+    public byte rightTrigger;
+    public short leftStickX;
+    public short leftStickY;
+    public short rightStickX;
+    public short rightStickY;
+
+    public void reset() {
+        inputMap = 0;
+        leftTrigger = 0;
+        rightTrigger = 0;
+        leftStickX = 0;
+        leftStickY = 0;
+        rightStickX = 0;
+        rightStickY = 0;
+    }
+
+    public void add(int inputMap, byte leftTrigger, byte rightTrigger,
+                    short leftStickX, short leftStickY, short rightStickX, short rightStickY) {
+        this.inputMap |= inputMap;
+        this.leftTrigger |= maxByMagnitude(this.leftTrigger, leftTrigger);
+        this.rightTrigger |= maxByMagnitude(this.rightTrigger, rightTrigger);
+        this.leftStickX |= maxByMagnitude(this.leftStickX, leftStickX);
+        this.leftStickY |= maxByMagnitude(this.leftStickY, leftStickY);
+        this.rightStickX |= maxByMagnitude(this.rightStickX, rightStickX);
+        this.rightStickY |= maxByMagnitude(this.rightStickY, rightStickY);
+    }
+
+    public static byte maxByMagnitude(byte a, byte b) {
+        int absA = Math.abs(a);
+        int absB = Math.abs(b);
+        if (absA > absB) {
+            return a;
+        }
+        else {
+            return b;
+        }
+    }
+
+    public static short maxByMagnitude(short a, short b) {
+        int absA = Math.abs(a);
+        int absB = Math.abs(b);
+        if (absA > absB) {
+            return a;
+        }
+        else {
+            return b;
+        }
+    }
+}
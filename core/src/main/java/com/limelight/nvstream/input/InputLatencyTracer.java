@@ -0,0 +1,101 @@
+package com.limelight.nvstream.input;
+
+import com.limelight.nvstream.av.video.AtomicLatencyHistogram;
+import com.limelight.nvstream.av.video.LatencyHistogram;
+
+// Measures the time from when an input event happened (as stamped by the OS or by our own
+// controller drivers) until the first input packet it produced was passed to the native
+// streaming code.
+//
+// Input handlers call beginEvent() before processing an event and endEvent() when done, and
+// the connection calls onInputSent() each time it sends input. The event being processed is
+// tracked per thread, so events handled concurrently on the UI thread and by controller
+// driver threads don't mix. Events that don't produce any input packets aren't recorded.
+//
+// Input that's queued and sent later (like coalesced mouse motion or controller state) is
+// sent outside of any traced event, so it isn't recorded.
+//
+// All times are from System.nanoTime(), which uses the same clock as the event times of
+// Android's InputEvent and SystemClock.uptimeMillis().
+public class InputLatencyTracer {
+    public static final int SOURCE_TOUCH = 0;
+    public static final int SOURCE_MOUSE = 1;
+    public static final int SOURCE_KEYBOARD = 2;
+    public static final int SOURCE_GAMEPAD = 3;
+    public static final int SOURCE_USB_GAMEPAD = 4;
+    public static final int SOURCE_COUNT = 5;
+
+    private static class TracedEvent {
+        int depth;
+        int source;
+        long eventTimeNs;
+        boolean sent;
+    }
+
+    private final ThreadLocal<TracedEvent> currentEvent = new ThreadLocal<TracedEvent>() {
+        @Override
+        protected TracedEvent initialValue() {
+            return new TracedEvent();
+        }
+    };
+
+    private final AtomicLatencyHistogram[] activeHistograms = new AtomicLatencyHistogram[SOURCE_COUNT];
+
+    // Guarded by sessionHistograms
+    private final LatencyHistogram[] sessionHistograms = new LatencyHistogram[SOURCE_COUNT];
+
+    public InputLatencyTracer() {
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            activeHistograms[i] = new AtomicLatencyHistogram();
+            sessionHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // Calls may be nested (for example, when a key event handler passes the event on to
+    // another handler). Only the outermost event is traced.
+    public void beginEvent(int source, long eventTimeNs) {
+        TracedEvent event = currentEvent.get();
+        if (event.depth++ == 0) {
+            event.source = source;
+            event.eventTimeNs = eventTimeNs;
+            event.sent = false;
+        }
+    }
+
+    public void endEvent() {
+        TracedEvent event = currentEvent.get();
+        if (event.depth > 0) {
+            event.depth--;
+        }
+    }
+
+    public void onInputSent() {
+        TracedEvent event = currentEvent.get();
+        if (event.depth == 0 || event.sent) {
+            // Not in a traced event or we've already recorded it
+            return;
+        }
+
+        event.sent = true;
+        activeHistograms[event.source].record((System.nanoTime() - event.eventTimeNs) / 1000);
+    }
+
+    // Moves the samples recorded since the last call into the given histogram and adds them
+    // to the session totals
+    public void takeWindow(int source, LatencyHistogram window) {
+        window.clear();
+        synchronized (sessionHistograms) {
+            activeHistograms[source].drainTo(window);
+            sessionHistograms[source].add(window);
+        }
+    }
+
+    public void getSessionHistogram(int source, LatencyHistogram session) {
+        synchronized (sessionHistograms) {
+            LatencyHistogram window = new LatencyHistogram();
+            activeHistograms[source].drainTo(window);
+            sessionHistograms[source].add(window);
+            session.copy(sessionHistograms[source]);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.limelight.nvstream.input;
+
+// Sums relative mouse motion until it is sent, so motion from high polling rate mice can be
+// sent as one packet per batch of input events instead of one packet per event.
+//
+// Only whole pixels are sent. The fractional part of the motion is carried over to the next
+// packet, so slow sub-pixel motion (common with touchpads) isn't lost to truncation.
+//
+// Motion may be added from multiple threads (for example, evdev and the UI thread).
+public class MouseMotionAccumulator {
+    private float pendingX, pendingY;
+    private int pendingSamples;
+
+    private short sentX, sentY;
+
+    private int windowInputSamples;
+    private int windowPackets;
+    private long windowStartTimeMs;
+
+    public static class WindowStats {
+        public int inputSamples;
+        public int packets;
+        public long durationMs;
+    }
+
+    // Samples is the number of input samples (including historical ones) that the motion covers
+    public synchronized void add(float deltaX, float deltaY, int samples) {
+        pendingX += deltaX;
+        pendingY += deltaY;
+        pendingSamples += samples;
+    }
+
+    // Takes the whole pixel part of the pending motion. Returns false if there's nothing
+    // to send. Otherwise, the motion to send is returned by getSentX() and getSentY(), which
+    // are only valid until the next call.
+    public synchronized boolean take() {
+        if (pendingSamples == 0) {
+            return false;
+        }
+
+        windowInputSamples += pendingSamples;
+        pendingSamples = 0;
+
+        // Truncation leaves the remainder with the same sign as the motion
+        int x = clampToShort((int) pendingX);
+        int y = clampToShort((int) pendingY);
+        if (x == 0 && y == 0) {
+            // Keep accumulating sub-pixel motion
+            return false;
+        }
+
+        pendingX -= x;
+        pendingY -= y;
+        sentX = (short) x;
+        sentY = (short) y;
+        windowPackets++;
+        return true;
+    }
+
+    public synchronized short getSentX() {
+        return sentX;
+    }
+
+    public synchronized short getSentY() {
+        return sentY;
+    }
+
+    // Drops any pending motion, including the fractional carry
+    public synchronized void clear() {
+        pendingX = pendingY = 0;
+        pendingSamples = 0;
+    }
+
+    // Returns the input samples and packets since the last call, then starts a new window
+    public synchronized void takeWindowStats(WindowStats stats, long nowMs) {
+        stats.inputSamples = windowInputSamples;
+        stats.packets = windowPackets;
+        stats.durationMs = windowStartTimeMs != 0 ? nowMs - windowStartTimeMs : 0;
+
+        windowInputSamples = 0;
+        windowPackets = 0;
+        windowStartTimeMs = nowMs;
+    }
+
+    private static int clampToShort(int value) {
+        // Anything beyond the range of a packet is carried over to the next one
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
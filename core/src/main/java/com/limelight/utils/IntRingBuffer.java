@@ -0,0 +1,80 @@
+package com.limelight.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A fixed-capacity, lock-free FIFO of non-negative ints (buffer indices). It supports
+// a single producer thread and any number of consumer threads. Allowing multiple
+// consumers lets the producer discard the oldest entry itself when the queue is full.
+public class IntRingBuffer {
+    public static final int EMPTY = -1;
+
+    private final int[] buffer;
+    private final int mask;
+
+    // Index of the next entry to consume. Advanced by consumers using CAS.
+    private final AtomicLong head = new AtomicLong();
+
+    // Index of the next entry to produce. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    public IntRingBuffer(int minCapacity) {
+        // Round up to a power of two so we can mask rather than divide
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+
+        this.buffer = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // Must only be called by the producer. Returns false if the queue is full.
+    public boolean offer(int value) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= buffer.length) {
+            return false;
+        }
+
+        buffer[(int) (currentTail & mask)] = value;
+
+        // Publish the entry to consumers
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    // Returns the oldest entry or EMPTY if there is none
+    public int poll() {
+        for (;;) {
+            long currentHead = head.get();
+            if (currentHead >= tail.get()) {
+                return EMPTY;
+            }
+
+            // The producer can't overwrite this slot until head moves past it,
+            // so this read is safe even if another consumer beats us to the CAS.
+            int value = buffer[(int) (currentHead & mask)];
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                return value;
+            }
+        }
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // Discards all entries. This is safe to call from any consumer thread.
+    public void clear() {
+        for (;;) {
+            long currentHead = head.get();
+            long currentTail = tail.get();
+            if (currentHead >= currentTail || head.compareAndSet(currentHead, currentTail)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.limelight.nvstream.av.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PcmRingBufferTest {
+    private static short[] sequence(int start, int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short)(start + i);
+        }
+        return samples;
+    }
+
+    // Reads up to maxSamples samples, following the buffer around the wrap point
+    private static short[] read(PcmRingBuffer ring, int maxSamples) {
+        short[] samples = new short[maxSamples];
+        int count = 0;
+        while (count < maxSamples) {
+            ByteBuffer buffer = ring.getReadableBuffer();
+            int readable = Math.min(buffer.remaining() / 2, maxSamples - count);
+            if (readable == 0) {
+                break;
+            }
+            for (int i = 0; i < readable; i++) {
+                samples[count++] = buffer.getShort();
+            }
+            ring.commitRead(readable * 2);
+        }
+
+        short[] result = new short[count];
+        System.arraycopy(samples, 0, result, 0, count);
+        return result;
+    }
+
+    private static void assertSamples(short[] expected, short[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("sample " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void startsEmpty() {
+        PcmRingBuffer ring = new PcmRingBuffer(16);
+        assertEquals(16, ring.getCapacity());
+        assertEquals(0, ring.getAvailable());
+        assertEquals(0, ring.getReadableBuffer().remaining());
+    }
+
+    @Test
+    public void writeStopsWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(16);
+        assertEquals(10, ring.write(sequence(0, 10), 0, 10));
+        assertEquals(6, ring.write(sequence(10, 10), 0, 10));
+        assertEquals(16, ring.getAvailable());
+        assertEquals(0, ring.write(sequence(20, 1), 0, 1));
+
+        assertSamples(sequence(0, 16), read(ring, 32));
+        assertEquals(0, ring.getAvailable());
+    }
+
+    @Test
+    public void readableBufferStopsAtWrapPoint() {
+        PcmRingBuffer ring = new PcmRingBuffer(16);
+        ring.write(sequence(0, 12), 0, 12);
+        read(ring, 12);
+
+        // This write wraps, so only the part before the end is contiguous
+        assertEquals(10, ring.write(sequence(12, 10), 0, 10));
+        assertEquals(10, ring.getAvailable());
+        assertEquals(4 * 2, ring.getReadableBuffer().remaining());
+
+        assertSamples(sequence(12, 10), read(ring, 10));
+    }
+
+    @Test
+    public void preservesOrderAcrossManyWraps() {
+        PcmRingBuffer ring = new PcmRingBuffer(7);
+        int next = 0;
+        for (int i = 0; i < 100; i++) {
+            // Vary the chunk size so the wrap point moves around
+            int length = 1 + i % 7;
+            assertEquals(length, ring.write(sequence(next, length), 0, length));
+            assertSamples(sequence(next, length), read(ring, length));
+            next += length;
+        }
+    }
+
+    @Test
+    public void writesFromOffset() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        assertEquals(3, ring.write(sequence(0, 10), 5, 3));
+        assertSamples(sequence(5, 3), read(ring, 8));
+    }
+
+    @Test
+    public void partialCommitLeavesRestReadable() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(sequence(0, 6), 0, 6);
+        ring.getReadableBuffer();
+        ring.commitRead(4);
+
+        assertEquals(4, ring.getAvailable());
+        assertSamples(sequence(2, 4), read(ring, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPartialSampleCommit() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(sequence(0, 4), 0, 4);
+        ring.commitRead(3);
+    }
+
+    @Test
+    public void skipAllEmptiesBuffer() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(sequence(0, 8), 0, 8);
+        ring.skipAll();
+
+        assertEquals(0, ring.getAvailable());
+        assertEquals(8, ring.write(sequence(8, 8), 0, 8));
+        assertSamples(sequence(8, 8), read(ring, 8));
+    }
+
+    @Test
+    public void awaitDataTimesOutWhenEmpty() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        assertFalse(ring.awaitData(10));
+
+        ring.write(sequence(0, 1), 0, 1);
+        assertTrue(ring.awaitData(10));
+    }
+
+    @Test
+    public void concurrentProducerAndConsumer() throws InterruptedException {
+        final int totalSamples = 2000000;
+        final PcmRingBuffer ring = new PcmRingBuffer(1021);
+        final AtomicReference<Throwable> producerError = new AtomicReference<>();
+
+        Thread producer = new Thread("PcmRingBuffer producer") {
+            @Override
+            public void run() {
+                try {
+                    int next = 0;
+                    while (next < totalSamples) {
+                        int length = Math.min(1 + next % 480, totalSamples - next);
+                        short[] samples = sequence(next, length);
+                        int offset = 0;
+                        while (offset < length) {
+                            int written = ring.write(samples, offset, length - offset);
+                            if (written == 0) {
+                                Thread.yield();
+                            }
+                            offset += written;
+                        }
+                        next += length;
+                    }
+                } catch (Throwable t) {
+                    producerError.set(t);
+                }
+            }
+        };
+        producer.start();
+
+        int expected = 0;
+        long deadlineMs = System.currentTimeMillis() + 30000;
+        while (expected < totalSamples) {
+            if (System.currentTimeMillis() > deadlineMs) {
+                fail("Timed out after reading " + expected + " samples");
+            }
+            if (!ring.awaitData(100)) {
+                continue;
+            }
+
+            int available = ring.getAvailable();
+            assertTrue(available > 0 && available <= ring.getCapacity());
+
+            ByteBuffer buffer = ring.getReadableBuffer();
+            int readable = buffer.remaining() / 2;
+            for (int i = 0; i < readable; i++) {
+                short sample = buffer.getShort();
+                if (sample != (short)expected) {
+                    fail("Sample " + expected + " was " + sample);
+                }
+                expected++;
+            }
+            ring.commitRead(readable * 2);
+        }
+
+        producer.join();
+        assertNull(producerError.get());
+        assertEquals(0, ring.getAvailable());
+    }
+}
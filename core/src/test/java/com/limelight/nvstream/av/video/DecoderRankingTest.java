@@ -0,0 +1,168 @@
+package com.limelight.nvstream.av.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DecoderRankingTest {
+    private static final String AVC = "video/avc";
+    private static final String HEVC = "video/hevc";
+
+    private static DecoderBenchmark.Result result(String name, String mimeType, long p95LatencyUs, float fps) {
+        return new DecoderBenchmark.Result(name, mimeType, 100, p95LatencyUs / 2, p95LatencyUs, fps);
+    }
+
+    private static List<String> rankedNames(DecoderRanking ranking) {
+        ArrayList<String> names = new ArrayList<>();
+        for (DecoderBenchmark.Result result : ranking.getRankedResults()) {
+            names.add(result.decoderName);
+        }
+        return names;
+    }
+
+    private static DecoderBenchmark.Clip clip(int pictureFrames) {
+        DecoderBenchmark.Clip clip = new DecoderBenchmark.Clip(AVC, 1280, 720);
+        clip.addFrame(new byte[] {0, 0, 0, 1, 0x67}, 5, true);
+        for (int i = 0; i < pictureFrames; i++) {
+            clip.addFrame(new byte[] {0, 0, 0, 1, 0x65}, 5, false);
+        }
+        return clip;
+    }
+
+    @Test
+    public void ranksByP95Latency() {
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("slow", AVC, 20000, 60),
+                result("fast", AVC, 2000, 60),
+                result("medium", AVC, 8000, 60)));
+
+        assertEquals(Arrays.asList("fast", "medium", "slow"), rankedNames(ranking));
+    }
+
+    @Test
+    public void breaksLatencyTiesByFramesPerSecond() {
+        // 5000 and 5100 us are within the 10% tie window, so throughput decides
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("lowFps", AVC, 5000, 90),
+                result("highFps", AVC, 5100, 240)));
+
+        assertEquals(Arrays.asList("highFps", "lowFps"), rankedNames(ranking));
+    }
+
+    @Test
+    public void latencyOutsideTieWindowBeatsFramesPerSecond() {
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("highFps", AVC, 10000, 240),
+                result("lowLatency", AVC, 5000, 60)));
+
+        assertEquals(Arrays.asList("lowLatency", "highFps"), rankedNames(ranking));
+    }
+
+    @Test
+    public void orderDoesNotDependOnInputOrder() {
+        List<DecoderBenchmark.Result> results = new ArrayList<>(Arrays.asList(
+                result("a", AVC, 5000, 120),
+                result("b", AVC, 5200, 100),
+                result("c", AVC, 5400, 80),
+                result("d", AVC, 9000, 240)));
+        List<String> expected = rankedNames(new DecoderRanking(results));
+
+        Collections.reverse(results);
+        assertEquals(expected, rankedNames(new DecoderRanking(results)));
+    }
+
+    @Test
+    public void excludesFailedAndSlowDecoders() {
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("ok", AVC, 5000, 60),
+                result("tooSlow", AVC, 1000, 29),
+                new DecoderBenchmark.Result("broken", AVC, "stalled")));
+
+        assertEquals(Collections.singletonList("ok"), rankedNames(ranking));
+    }
+
+    @Test
+    public void choosesBestCandidatePerMimeType() {
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("avc.fast", AVC, 2000, 60),
+                result("avc.slow", AVC, 20000, 60),
+                result("hevc.only", HEVC, 4000, 60)));
+
+        assertEquals("avc.fast", ranking.choose(AVC, Arrays.asList("avc.slow", "avc.fast")));
+        assertEquals("avc.slow", ranking.choose(AVC, Collections.singletonList("avc.slow")));
+        assertEquals("hevc.only", ranking.choose("VIDEO/HEVC", Arrays.asList("avc.fast", "hevc.only")));
+        assertNull(ranking.choose(AVC, Collections.singletonList("hevc.only")));
+        assertNull(ranking.choose("video/av01", Arrays.asList("avc.fast", "hevc.only")));
+    }
+
+    @Test
+    public void serializationRoundTrips() {
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(
+                result("a", AVC, 5000, 120),
+                result("b", HEVC, 3000, 60),
+                result("c", AVC, 9000, 240)));
+
+        DecoderRanking deserialized = DecoderRanking.deserialize(ranking.serialize());
+        assertNotNull(deserialized);
+        assertEquals(rankedNames(ranking), rankedNames(deserialized));
+        assertEquals(ranking.serialize(), deserialized.serialize());
+    }
+
+    @Test
+    public void rejectsInvalidSerialization() {
+        assertNull(DecoderRanking.deserialize("video/avc\tname\t1\t2\n"));
+        assertNull(DecoderRanking.deserialize("video/avc\tname\tx\t2\t3\t60.0\n"));
+        assertTrue(DecoderRanking.deserialize("").getRankedResults().isEmpty());
+    }
+
+    @Test
+    public void benchmarkRanksFakeDecodersByDecodeTime() {
+        DecoderBenchmark.Clip clip = clip(20);
+        FakeDecoderDriver fast = new FakeDecoderDriver("fast", 1000);
+        FakeDecoderDriver slow = new FakeDecoderDriver("slow", 8000);
+
+        DecoderBenchmark.Result fastResult = DecoderBenchmark.run(fast, clip);
+        DecoderBenchmark.Result slowResult = DecoderBenchmark.run(slow, clip);
+        assertTrue(fastResult.succeeded());
+        assertTrue(slowResult.succeeded());
+        assertEquals(20, fastResult.decodedFrames);
+        assertTrue(fast.released && slow.released);
+
+        DecoderRanking ranking = new DecoderRanking(Arrays.asList(slowResult, fastResult));
+        assertEquals(Arrays.asList("fast", "slow"), rankedNames(ranking));
+    }
+
+    @Test
+    public void benchmarkDrainsDecoderWithOutputDelay() {
+        // Without end of stream, the last three frames would never come out
+        FakeDecoderDriver delayed = new FakeDecoderDriver("delayed", 1000, 3);
+
+        DecoderBenchmark.Result result = DecoderBenchmark.run(delayed, clip(20));
+        assertTrue(result.failureReason, result.succeeded());
+        assertTrue(delayed.endOfStream);
+        assertEquals(20, result.decodedFrames);
+
+        DecoderRanking ranking = new DecoderRanking(Collections.singletonList(result));
+        assertEquals(Collections.singletonList("delayed"), rankedNames(ranking));
+    }
+
+    @Test
+    public void benchmarkReportsStartFailure() {
+        FakeDecoderDriver broken = new FakeDecoderDriver("broken", 1000, "no such codec");
+
+        DecoderBenchmark.Result result = DecoderBenchmark.run(broken, clip(5));
+        assertFalse(result.succeeded());
+        assertTrue(result.failureReason.contains("no such codec"));
+        assertTrue(broken.released);
+        assertTrue(new DecoderRanking(Collections.singletonList(result)).getRankedResults().isEmpty());
+    }
+}
@@ -0,0 +1,96 @@
+package com.limelight.nvstream.av.video;
+
+import java.util.ArrayDeque;
+
+// Decodes each picture frame after a fixed delay, in submission order. Setting a failure
+// message makes start() throw instead, like a decoder that can't be configured. A decoder
+// with output delay holds that many frames back until newer ones (or end of stream) arrive.
+class FakeDecoderDriver implements DecoderDriver {
+    private final String name;
+    private final long decodeTimeNs;
+    private final String startFailure;
+    private final int outputDelayFrames;
+
+    // Pairs of presentation time and the time the frame is "decoded"
+    private final ArrayDeque<long[]> pendingFrames = new ArrayDeque<>();
+
+    boolean started;
+    boolean endOfStream;
+    boolean released;
+
+    FakeDecoderDriver(String name, long decodeTimeUs) {
+        this(name, decodeTimeUs, 0, null);
+    }
+
+    FakeDecoderDriver(String name, long decodeTimeUs, int outputDelayFrames) {
+        this(name, decodeTimeUs, outputDelayFrames, null);
+    }
+
+    FakeDecoderDriver(String name, long decodeTimeUs, String startFailure) {
+        this(name, decodeTimeUs, 0, startFailure);
+    }
+
+    private FakeDecoderDriver(String name, long decodeTimeUs, int outputDelayFrames, String startFailure) {
+        this.name = name;
+        this.decodeTimeNs = decodeTimeUs * 1000;
+        this.outputDelayFrames = outputDelayFrames;
+        this.startFailure = startFailure;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start(DecoderBenchmark.Clip clip) throws Exception {
+        if (startFailure != null) {
+            throw new IllegalStateException(startFailure);
+        }
+        started = true;
+    }
+
+    @Override
+    public boolean submitFrame(byte[] data, int length, long presentationTimeUs, boolean codecConfig) {
+        if (!codecConfig) {
+            pendingFrames.add(new long[] {presentationTimeUs, System.nanoTime() + decodeTimeNs});
+        }
+        return true;
+    }
+
+    @Override
+    public boolean signalEndOfStream() {
+        endOfStream = true;
+        return true;
+    }
+
+    @Override
+    public long pollDecodedFrame(long timeoutUs) throws InterruptedException {
+        long[] frame = pendingFrames.peek();
+        if (frame == null) {
+            return endOfStream ? END_OF_STREAM : -1;
+        }
+        else if (pendingFrames.size() <= outputDelayFrames && !endOfStream) {
+            // Held back until more frames arrive
+            Thread.sleep(timeoutUs / 1000, (int)(timeoutUs % 1000) * 1000);
+            return -1;
+        }
+
+        long waitNs = frame[1] - System.nanoTime();
+        if (waitNs > timeoutUs * 1000) {
+            Thread.sleep(timeoutUs / 1000, (int)(timeoutUs % 1000) * 1000);
+            return -1;
+        }
+        else if (waitNs > 0) {
+            Thread.sleep(waitNs / 1000000, (int)(waitNs % 1000000));
+        }
+
+        pendingFrames.remove();
+        return frame[0];
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+}